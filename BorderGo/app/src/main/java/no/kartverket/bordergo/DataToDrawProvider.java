@@ -1,21 +1,22 @@
 package no.kartverket.bordergo;
 
 import android.content.Context;
-import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Scanner;
+import java.util.Set;
 
-import no.kartverket.data.dtm.DTMGrid;
+import no.kartverket.data.dtm.DTMSurface;
 import no.kartverket.data.model.WfsResponse;
-import no.kartverket.data.repository.DataRepository;
-import no.kartverket.data.repository.WfsDataRepository;
 import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
 
 /**
  * Created by hg on 11.05.2017.
@@ -40,10 +41,10 @@ public class DataToDrawProvider {
     private double _min_E = 0.0;
     private double _max_N = 0.0;
     private double _max_E = 0.0;
-    private boolean _wfs_finished = false;
     private DataToDraw _data;
-    private Object _lock = new Object();
-    private DTMGrid _dtmGrid;
+    private DTMSurface _dtmGrid;
+    // Fast UTM transforms around the center of the area
+    private OriginData _projection;
 
     // Testdata, brygge Sandvika
     static final double Brygge[][] = {
@@ -269,11 +270,11 @@ public class DataToDrawProvider {
 
 
     // constructor
-    DataToDrawProvider(DTMGrid grid)
+    DataToDrawProvider(DTMSurface grid)
     {
         _dtmGrid = grid;
     }
-    DataToDrawProvider(DTMGrid grid, String user, String pass, String url)
+    DataToDrawProvider(DTMSurface grid, String user, String pass, String url)
     {
         _dtmGrid = grid;
         setWFSUser(user,pass,url);
@@ -335,23 +336,26 @@ public class DataToDrawProvider {
 
 
     /**
-     * Calculate height from dtmgrid and lat/lon.
+     * Calculate heights from dtmgrid for a set of positions.
      * @param lat
      * @param lon
-     * @return Height.
+     * @param H     Receives heights.
+     * @param num   Number of positions.
      */
-    private double calcH(double lat, double lon)
+    private void calcH(double[] lat, double[] lon, double[] H, int num)
     {
-        double H = 0.0;
-
-        if ( null != _dtmGrid )
+        if ( null == _dtmGrid )
         {
-            H = _dtmGrid.getInterpolatedAltitude(lat, lon);
-            if (H == Double.NEGATIVE_INFINITY)
-                return 0;
+            Arrays.fill(H, 0, num, 0.0);
+            return;
         }
 
-        return H;
+        _dtmGrid.getInterpolatedAltitudes(lat, lon, H, 0, num);
+        for ( int i=0 ; i<num ; i++ )
+        {
+            if (H[i] == Double.NEGATIVE_INFINITY)
+                H[i] = 0;
+        }
     }
 
     private int outsideAreaCount = 0;
@@ -370,11 +374,12 @@ public class DataToDrawProvider {
      */
     private void wfsCalcVector(DataToDraw data, DataObject data_object, double lat1, double lon1, double lat2, double lon2, boolean isFirstVector, boolean isLastVector)
     {
-        Geodesy.Coords_xy NE1 = new Geodesy.Coords_xy(0,0), NE2 = new Geodesy.Coords_xy(0,0);
-        Geodesy.latlon2utm( new Geodesy.Coords_xy(lat1,lon1), NE1);
-        Geodesy.latlon2utm( new Geodesy.Coords_xy(lat2,lon2), NE2);
-        double dN = NE2._x - NE1._x;
-        double dE = NE2._y - NE1._y;
+        // End positions as north,east pairs
+        double[] NE12 = new double[4];
+        _projection.latLonToUtm( lat1, lon1, NE12, 0 );
+        _projection.latLonToUtm( lat2, lon2, NE12, 2 );
+        double dN = NE12[2] - NE12[0];
+        double dE = NE12[3] - NE12[1];
         double length = Math.sqrt( dN*dN + dE*dE);
 
         double max_dist = 1.0;
@@ -383,32 +388,50 @@ public class DataToDrawProvider {
         double deltaN = dN / (numP-1);
         double deltaE = dE / (numP-1);
 
+        // Positions within area, transformed and heights computed for all in one batch
+        double[] sampleN = new double[numP];
+        double[] sampleE = new double[numP];
+        double[] lat = new double[numP];
+        double[] lon = new double[numP];
+        double[] H = new double[numP];
+        boolean[] endPoint = new boolean[numP];
+        int num = 0;
+
         for ( int i=0 ; i<numP ; i++ )          // for all sampled positions
         {
             if ( (!isFirstVector) && (i==0))
                 continue;       // Polyline, this position is already sampled
 
-            double N = (i==numP-1) ? (NE2._x) : (NE1._x + i*deltaN);
-            double E = (i==numP-1) ? (NE2._y) : (NE1._y + i*deltaE);
+            double N = (i==numP-1) ? (NE12[2]) : (NE12[0] + i*deltaN);
+            double E = (i==numP-1) ? (NE12[3]) : (NE12[1] + i*deltaE);
 
             if ( N>_min_N && E>_min_E && N<_max_N && E<_max_E )     // if position is within area
             {
-                Geodesy.Coords_xy latlon = new Geodesy.Coords_xy(0,0);
-                Geodesy.utm2latlon( new Geodesy.Coords_xy(N,E), latlon );
-                DataPoint P = new DataPoint();
-                P._x[0] = latlon._x;
-                P._x[1] = latlon._y;
-                P._x[2] = calcH(latlon._x, latlon._y);
-                data_object._points.add(P);
-
-                if ( (i==0 && isFirstVector) || (i==numP-1 && isLastVector) ) {   // end position of vector or polyline -> save singlepoint
-                    data.addPoint(P);
-                }
+                sampleN[num] = N;
+                sampleE[num] = E;
+                endPoint[num] = (i==0 && isFirstVector) || (i==numP-1 && isLastVector);   // end position of vector or polyline
+                num++;
             } else {
                 outsideAreaCount++;
                 Log.i("DataToDrawProvider", "Outside drawing area nr: " + outsideAreaCount );
             }
         }
+
+        _projection.utmToLatLon( sampleN, sampleE, lat, lon, 0, num );
+        calcH(lat, lon, H, num);
+
+        for ( int i=0 ; i<num ; i++ )
+        {
+            DataPoint P = new DataPoint();
+            P._x[0] = lat[i];
+            P._x[1] = lon[i];
+            P._x[2] = H[i];
+            data_object._points.add(P);
+
+            if ( endPoint[i] ) {    // end position of vector or polyline -> save singlepoint
+                data.addPoint(P);
+            }
+        }
     }
 
 
@@ -473,9 +496,10 @@ public class DataToDrawProvider {
      * Calculate wfs response to polylines and points to draw.
      * @param data        Data to write to.
      * @param response
+     * @param seen        posList of line strings already added, updated
      * @return            Number of polylines to draw
      */
-    private int wfsAddResult(DataToDraw data, WfsResponse response)
+    private int wfsAddResult(DataToDraw data, WfsResponse response, Set<String> seen)
     {
         int membersSize = response.getMembers().size();
         List<WfsResponse.Member> members = response.getMembers();
@@ -503,6 +527,9 @@ public class DataToDrawProvider {
 
                     for ( int l=0 ; l < lineStringsSize ; l++ )
                     {
+                        if ( !seen.add(lineStrings.get(l).getPosList()) )
+                            continue;       // already added from another square
+
                         List<Double> listLatLon = lineStrings.get(l).getParsedPosList();
 
                         if ( listLatLon.size() == 4 ) {       // vector
@@ -529,53 +556,17 @@ public class DataToDrawProvider {
      * @return  Number of polylines to draw
      */
     private int getWFSdata(Context context, double lat, double lon){
-        double coslat = Math.cos(lat/rho);
-        double delta_lat = rho*(0.5*_dek_square_size/RN);
-        double delta_lon = delta_lat / coslat;
-
-        double lat_min = lat - delta_lat;
-        double lon_min = lon - delta_lon;
-        double lat_max = lat + delta_lat;
-        double lon_max = lon + delta_lon;
-        String bbox_string = String.format("%.6f,%.6f,%.6f,%.6f", lat_min, lon_min, lat_max, lon_max);
-        //String bbox_string = "59.891187,10.522436,59.892085,10.524226";
-
         if ( (_wfs_user == null) || (_wfs_pass == null) || (_wfs_url == null) )
         {
             return 0;       // Have not user and password for matrikkel wfs
         }
 
-        DataRepository repo = DataRepository.newInstance(_wfs_user, _wfs_pass, _wfs_url);
-
-        boolean finished = false;
-
-        repo.getDataAsync(bbox_string, new WfsDataRepository.WfsResponseCallback() {
-            @Override
-            public void onSuccess(@Nullable WfsResponse response) {
-                //Log.d(DataToDrawProvider.this.getClass().getSimpleName(), "Response: " + response.getMembers().size());
-                wfsAddResult(_data, response);
-                _wfs_finished = true;
-            }
-
-            @Override
-            public void onError(Throwable error, int code) {
-                Log.d(DataToDrawProvider.this.getClass().getSimpleName(), "Error: " + error.getLocalizedMessage());
-                _wfs_finished = true;
-            }
-        });
-
-        int numWait=0;
-        synchronized(_lock) {
-            while ( ! _wfs_finished )
-            {
-                try {
-                    numWait++;
-                    _lock.wait(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        // The area is covered by up to four cached squares, boundaries on the square edges are
+        // returned for more than one square
+        WfsSquareCache cache = WfsSquareCache.getInstance(_wfs_user, _wfs_pass, _wfs_url);
+        HashSet<String> seen = new HashSet<>();
+        for (WfsResponse response : cache.getResponses(lat, lon, 0.5*_dek_square_size))
+            wfsAddResult(_data, response, seen);
 
         return _data._objects.size();
     }
@@ -597,6 +588,7 @@ public class DataToDrawProvider {
         Geodesy.latlon2utm( new Geodesy.Coords_xy(lat,lon), center_NE);
         _center_N = center_NE._x;
         _center_E = center_NE._y;
+        _projection = new OriginData(lat, lon, 0);
         double delta = 0.5*_dek_square_size;
         _min_N = _center_N - delta;
         _min_E = _center_E - delta;
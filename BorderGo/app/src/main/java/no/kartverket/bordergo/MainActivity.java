@@ -56,6 +56,7 @@ import no.kartverket.bordergo.config.Config;
 import no.kartverket.bordergo.data.DataActivity;
 import no.kartverket.data.dtm.DTMGrid;
 import no.kartverket.data.dtm.DTMGridProvider;
+import no.kartverket.data.dtm.DTMTileCache;
 import no.kartverket.data.DataLogger;
 
 import no.kartverket.data.repository.ITokenServiceRepository;
@@ -65,15 +66,18 @@ import no.kartverket.data.utils.DTMRequest;
 import no.kartverket.data.utils.WcsRequest;
 
 import no.kartverket.data.utils.WmsRequest;
-import no.kartverket.geodesy.Geodesy;
 import no.kartverket.geodesy.OriginData;
-import no.kartverket.geometry.IndexedTriangleMesh;
+import no.kartverket.geometry.HeightField;
 import no.kartverket.geometry.Pos;
+import no.kartverket.geometry.TerrainChunk;
+import no.kartverket.geometry.TerrainMeshBuilder;
 import no.kartverket.glrenderer.ArGlRenderer;
 import no.kartverket.glrenderer.ArScene;
 import no.kartverket.glrenderer.GlColor;
 import no.kartverket.positionorientation.OriginUpdateListener;
 import no.kartverket.positionorientation.PositionOrientationProvider;
+import no.kartverket.positionorientation.PrefetchListener;
+import no.kartverket.positionorientation.PrefetchScheduler;
 import no.kartverket.positionorientation.TangoPositionOrientationProvider;
 
 import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
@@ -107,7 +111,13 @@ public class MainActivity extends Activity {
     private double rgbTimestampGlThread;
 
 
-    private DTMRequest heightService;
+    private volatile DTMTileCache tileCache;
+    private PrefetchScheduler prefetchScheduler;
+
+    // Terrain is loaded within this distance from the origin, covering the property data
+    private static final double terrainLoadRadius = 130;
+    // Terrain is drawn within this distance from the origin
+    private static final double terrainDrawRadius = 64;
 
     private int displayRotation = 0;
 
@@ -128,11 +138,19 @@ public class MainActivity extends Activity {
             //resetToDefault(null);
             updateFromPreferencesOrDefault();
 
+            prefetchScheduler = new PrefetchScheduler(tangoService.getPositionOrientationProvider());
+            prefetchScheduler.addPrefetchListener(prefetchListener);
+            prefetchScheduler.start();
+
             isBound = true;
         }
 
         public void onServiceDisconnected(ComponentName arg0) {
             isBound = false;
+            if (prefetchScheduler != null) {
+                prefetchScheduler.stop();
+                prefetchScheduler = null;
+            }
         }
 
     };
@@ -179,12 +197,9 @@ public class MainActivity extends Activity {
         setContentView(R.layout.activity_main);
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
-        String heightServiceURL = BorderGoApp.config.getConfigValue(Config.Keys.HEIGHT_SERVICE_URL);
-
-        if (heightServiceURL.toLowerCase().contains("request=getmap"))
-            heightService = new WmsRequest( heightServiceURL);
-        else if (heightServiceURL.toLowerCase().contains("request=getcoverage"))
-            heightService = new WcsRequest( heightServiceURL);
+        // Normally started by SplashActivity, but not when the activity is restored. The config
+        // is waited for by LoadDataTask, in the background.
+        ModelRegistry.start(this);
 
         textA = (TextView)findViewById(R.id.textA);
         textB = (TextView)findViewById(R.id.textB);
@@ -227,8 +242,6 @@ public class MainActivity extends Activity {
         }
 
 
-        Geodesy.initHREF(app.getApplicationContext());
-
         Intent intent = new Intent(this, TangoService.class);
         bindService(intent, tangoConnection, Context.BIND_AUTO_CREATE);
 
@@ -275,6 +288,10 @@ public class MainActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
 
+        if (prefetchScheduler != null) {
+            prefetchScheduler.stop();
+            prefetchScheduler = null;
+        }
         if (isBound) {
             unbindService(tangoConnection);
         }
@@ -399,6 +416,19 @@ public class MainActivity extends Activity {
     }
 
 
+    /**
+     * @return the height service of the config, null if the URL is neither a WMS nor a WCS request
+     */
+    private static DTMRequest heightService() {
+        String heightServiceURL = BorderGoApp.config.getConfigValue(Config.Keys.HEIGHT_SERVICE_URL);
+
+        if (heightServiceURL.toLowerCase().contains("request=getmap"))
+            return new WmsRequest( heightServiceURL);
+        else if (heightServiceURL.toLowerCase().contains("request=getcoverage"))
+            return new WcsRequest( heightServiceURL);
+        return null;
+    }
+
     /**
      * Asynchronous data loader. Also generates graphical objects for the loaded data.
      */
@@ -409,68 +439,33 @@ public class MainActivity extends Activity {
             OriginData origin = origins[0];
 
             Context context = app.getApplicationContext();
+            // Started by onCreate, usually loaded long before
+            ModelRegistry.await(ModelRegistry.CONFIG);
 
             scene.clearScene();
 
 
             try {
-                // Load grid
-                DTMGridProvider grid_provider = new DTMGridProvider();
-                DTMGrid grid = grid_provider.get_grid(context, origin.lat_0, origin.lon_0, heightService);
-                grid.setOrigin(origin);
-                tangoService.setDtmGrid(grid);
+                // Load terrain tiles around the origin
+                if (tileCache == null) {
+                    tileCache = new DTMTileCache(DTMGridProvider.tile_loader(context, heightService()));
+                    tileCache.setQuantization(DTMGrid.DEFAULT_QUANTIZATION);
+                }
+                tileCache.setOrigin(origin);
+                tileCache.ensureLoaded(origin.lat_0, origin.lon_0, terrainLoadRadius);
+                tangoService.setDtmSurface(tileCache);
 
                 // Create an artificial terrain point at the feet of the user
                 FloatBuffer artificialPoint = FloatBuffer.allocate(4);
                 artificialPoint.clear();
                 artificialPoint.put(0).put(0).put(-tangoService.getDeviceHeight()).put(1).rewind();
-                ((TangoPositionOrientationProvider) tangoService.getPositionOrientationProvider()).handlePointCloudObservation(1, artificialPoint, grid, tangoService.getDemSigma());
-
-                // Create gridlines for visualization
-                float height = (float) origin.h_0;
-                int w = (int) grid.getCols();
-                int h = (int) grid.getRows();
-                Pos[] gridPositions = new Pos[w * h];
-
-                // calculate all positions
-                for (int i = 0; i < h; i++) {
-                    for (int j = 0; j < w; j++) {
-                        int index = i * w + j;
-                        Pos p = new Pos();
-                        p.z = grid.gridValue(j, i) - height;
-                        p.x = grid.gridToWorldX(j, i);
-                        p.y = grid.gridToWorldY(j, i);
-
-                        gridPositions[index] = p;
-                    }
-                }
-
-                // Create lines to draw
-                drawPolyLineGrid(gridPositions, w, h);
-
-                // Compute grid indexes
-                short [] indexes = new short[(w-1)*(h-1)*2*3];
-                int ix = 0;
-                for (int i = 0; i < h-1; i++) {
-                    for (int j = 0; j < w-1; j++) {
-                        short i00 = (short)(i * w + j);
-                        short i10 = (short)((i+1) * w + j);
-                        short i01 = (short)(i * w + j + 1);
-                        short i11 = (short)((i+1) * w + j + 1);
-                        indexes[ix++] = i00;
-                        indexes[ix++] = i10;
-                        indexes[ix++] = i01;
-                        indexes[ix++] = i11;
-                        indexes[ix++] = i01;
-                        indexes[ix++] = i10;
-                    }
-                }
+                ((TangoPositionOrientationProvider) tangoService.getPositionOrientationProvider()).handlePointCloudObservation(1, artificialPoint, tileCache, tangoService.getDemSigma());
 
-                // Create terrain surface to draw (used for hidden gridline removal)
-                IndexedTriangleMesh mesh = new IndexedTriangleMesh();
-                mesh.positions = gridPositions;
-                mesh.indexes = indexes;
-                scene.addDepthSurface(mesh);
+                // Create terrain surface for all loaded tiles, and gridlines for the tiles closest to the origin
+                for (DTMGrid grid : tileCache.getTiles(origin.lat_0, origin.lon_0, terrainLoadRadius))
+                    addDepthSurfaceToScene(grid, (float) origin.h_0);
+                for (DTMGrid grid : tileCache.getTiles(origin.lat_0, origin.lon_0, terrainDrawRadius))
+                    drawPolyLineGrid(gridPositions(grid, (float) origin.h_0), (int) grid.getCols(), (int) grid.getRows());
             }
             catch (IOException ex) {
                 runOnUiThread(new Runnable() {
@@ -487,7 +482,7 @@ public class MainActivity extends Activity {
             String wfsUser = BorderGoApp.config.getConfigValue(Config.Keys.WFS_USER);
             String wfsPass = BorderGoApp.config.getConfigValue(Config.Keys.WFS_PASSWRD);
             String wfsUrl = BorderGoApp.config.getConfigValue(Config.Keys.WFS_BASE_URL);
-            DataToDrawProvider data_provider = new DataToDrawProvider(tangoService.getDtmGrid(), wfsUser,wfsPass,wfsUrl);
+            DataToDrawProvider data_provider = new DataToDrawProvider(tangoService.getDtmSurface(), wfsUser,wfsPass,wfsUrl);
             DataToDrawProvider.DataToDraw data =  data_provider.getData(context, origin.lat_0, origin.lon_0);
 
             // Draw polylines:
@@ -551,6 +546,27 @@ public class MainActivity extends Activity {
     }
 
     private static int cutoff = 1000; // distance we dont want want to display data for.
+
+    /**
+     * Loads terrain tiles and property boundaries ahead of the walking direction
+     */
+    private PrefetchListener prefetchListener = new PrefetchListener() {
+        @Override
+        public void prefetch(double lat, double lon, double radius) {
+            DTMTileCache cache = tileCache;
+            if (cache != null)
+                cache.prefetch(lat, lon, radius);
+
+            // Only once the config is loaded
+            if (!ModelRegistry.isReady(ModelRegistry.CONFIG) || BorderGoApp.config == null)
+                return;
+            String wfsUser = BorderGoApp.config.getConfigValue(Config.Keys.WFS_USER);
+            String wfsPass = BorderGoApp.config.getConfigValue(Config.Keys.WFS_PASSWRD);
+            String wfsUrl = BorderGoApp.config.getConfigValue(Config.Keys.WFS_BASE_URL);
+            if (wfsUser != null && wfsPass != null && wfsUrl != null)
+                WfsSquareCache.getInstance(wfsUser, wfsPass, wfsUrl).prefetch(lat, lon, radius);
+        }
+    };
     private OriginUpdateListener originUpdateListener = new OriginUpdateListener() {
         @Override
         public void originChanged(OriginData origin) {
@@ -564,6 +580,74 @@ public class MainActivity extends Activity {
         }
     };
 
+    /**
+     * Compute world positions of all grid points
+     *
+     * @param grid the grid
+     * @param height height of origin
+     * @return positions, line by line from upper left
+     */
+    private static Pos[] gridPositions(DTMGrid grid, float height) {
+        int w = (int) grid.getCols();
+        int h = (int) grid.getRows();
+        Pos[] gridPositions = new Pos[w * h];
+
+        // calculate all positions
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                int index = i * w + j;
+                Pos p = new Pos();
+                p.z = grid.gridValue(j, i) - height;
+                p.x = grid.gridToWorldX(j, i);
+                p.y = grid.gridToWorldY(j, i);
+
+                gridPositions[index] = p;
+            }
+        }
+        return gridPositions;
+    }
+
+    /**
+     * Add a terrain surface (used for hidden gridline removal) for a grid. The surface is split in
+     * chunks drawn with a level of detail depending on the distance from the camera.
+     *
+     * @param grid the grid
+     * @param height height of origin
+     */
+    private void addDepthSurfaceToScene(DTMGrid grid, float height) {
+        final int w = (int) grid.getCols();
+        final int h = (int) grid.getRows();
+        final Pos[] positions = gridPositions(grid, height);
+
+        TerrainChunk[] chunks = new TerrainMeshBuilder().build(new HeightField() {
+            @Override
+            public int getRowCount() {
+                return h;
+            }
+
+            @Override
+            public int getColumnCount() {
+                return w;
+            }
+
+            @Override
+            public float x(int col, int row) {
+                return positions[row * w + col].x;
+            }
+
+            @Override
+            public float y(int col, int row) {
+                return positions[row * w + col].y;
+            }
+
+            @Override
+            public float z(int col, int row) {
+                return positions[row * w + col].z;
+            }
+        });
+        scene.addDepthSurface(chunks);
+    }
+
     /**
      * Draw gridlines based on a list of gridpoints
      *
@@ -1056,14 +1140,14 @@ public class MainActivity extends Activity {
                                     if (transform.statusCode == TangoPoseData.POSE_VALID) {
                                         PositionOrientationProvider pop = tangoService.getPositionOrientationProvider();
                                         textA = (TextView)findViewById(R.id.textA);
-                                        if(tangoService.getDtmGrid() != null){
+                                        if(tangoService.getDtmSurface() != null){
                                             BGState st = BorderGoApp.getBGState();
                                             Location loc = tangoService.getPositionOrientationProvider().getLocation();
                                             double lat = loc.getLatitude();
                                             double lng = loc.getLongitude();
                                             double zig = loc.getAccuracy();
 
-                                            double h = tangoService.getDtmGrid().getInterpolatedAltitude(lat,lng);
+                                            double h = tangoService.getDtmSurface().getInterpolatedAltitude(lat,lng);
                                             st.altInterpolated = (h == Double.NEGATIVE_INFINITY ? 0 : h);
                                             st.altTango = loc.getAltitude();
                                             st.latTango = lat;
@@ -35,7 +35,7 @@ import java.util.ArrayList;
 
 import no.kartverket.bordergo.config.Config;
 import no.kartverket.data.api.GateKeeperApi;
-import no.kartverket.data.dtm.DTMGrid;
+import no.kartverket.data.dtm.DTMSurface;
 import no.kartverket.data.repository.ITokenServiceRepository;
 import no.kartverket.data.repository.TokenServiceRepository;
 import no.kartverket.geodesy.OriginData;
@@ -65,6 +65,8 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
     private static ArrayList<Transform.Observation> observations = new ArrayList();
     private String mapServiceUrlTemplateNormal;
     private String mapServiceUrlTemplateOrtho;
+    // Set on the UI thread when the templates are read from the config
+    private boolean configRead = false;
 
     private ServiceConnection tangoConnection = new ServiceConnection() {
 
@@ -97,8 +99,20 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
             lng = extras.getDouble("Lng");
         }
 
-        mapServiceUrlTemplateOrtho = BorderGoApp.config.getConfigValue(Config.Keys.ORTHO_WMS_SERVICE_URL);
-        mapServiceUrlTemplateNormal = BorderGoApp.config.getConfigValue(Config.Keys.BASE_WMS_SERVICE_URL);
+        // The map templates are read when the config is loaded, the map waits for them
+        ModelRegistry.start(this);
+        ModelRegistry.whenReady(ModelRegistry.CONFIG, new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed() || BorderGoApp.config == null)
+                    return;
+                mapServiceUrlTemplateOrtho = BorderGoApp.config.getConfigValue(Config.Keys.ORTHO_WMS_SERVICE_URL);
+                mapServiceUrlTemplateNormal = BorderGoApp.config.getConfigValue(Config.Keys.BASE_WMS_SERVICE_URL);
+                configRead = true;
+                if (mMap != null)
+                    setMapType();
+            }
+        });
 
         setContentView(R.layout.activity_maps);
         app = (BorderGoApp) getApplication();
@@ -178,15 +192,24 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
     public void onMapReady(GoogleMap googleMap) {
         mMap = googleMap;
         mMap.setMaxZoomPreference(19.0f); // currently the maximum zoom level from Kartverket for the ortho service.
+        if (configRead)
+            setMapType();
+
+        updateMapLocation();
+        reInitializeMarkers();
+    }
+
+    /**
+     * Use the map services of the config if given, satellite images otherwise. Called once both
+     * the map and the config are ready.
+     */
+    private void setMapType() {
         if(mapServiceUrlTemplateNormal != null && mapServiceUrlTemplateOrtho != null){
             mMap.setMapType(GoogleMap.MAP_TYPE_NONE);
             setTileOverlay();
         } else {
             mMap.setMapType(GoogleMap.MAP_TYPE_SATELLITE);
         }
-
-        updateMapLocation();
-        reInitializeMarkers();
     }
 
     TileProvider tileProvider;
@@ -277,7 +300,7 @@ public class MapsActivity extends FragmentActivity implements OnMapReadyCallback
 
     public void setCurrentPos(View view){
         LatLng coord = this.mMap.getCameraPosition().target;
-        DTMGrid dtm = tangoService.getDtmGrid();
+        DTMSurface dtm = tangoService.getDtmSurface();
         if (dtm != null) {
             double h = dtm.getInterpolatedAltitude(coord.latitude, coord.longitude);
             if (h > Double.NEGATIVE_INFINITY) {
@@ -0,0 +1,144 @@
+package no.kartverket.bordergo;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.kartverket.bordergo.config.Config;
+import no.kartverket.data.dtm.DTMGridProvider;
+import no.kartverket.geodesy.Geodesy;
+
+/**
+ * Loads the models and assets needed at startup in parallel, in the background.<p>
+ *
+ * Loading is started by {@link #start(Context)}, normally from {@link SplashActivity}, and each
+ * model is available as a {@link Future}. Code that needs a model waits only for that model,
+ * with {@link #await(String)} on a background thread, or continues on the UI thread when it is
+ * loaded, with {@link #whenReady(String, Runnable)}. The geoid model is also waited for by
+ * {@link Geodesy#GetGeoidHeight(double, double)}, so the first origin computation does not use
+ * the default geoid height while the model is loading.
+ */
+public class ModelRegistry {
+    static final String TAG = ModelRegistry.class.getSimpleName();
+
+    /** Geoid model, see {@link Geodesy#initHREFAsync(Context, java.util.concurrent.Executor)} */
+    public static final String HREF = "HREF";
+    /** Configuration strings, {@link BorderGoApp#config} */
+    public static final String CONFIG = "CONFIG";
+    /** Bundled terrain models, see {@link DTMGridProvider#preload_assets(Context)} */
+    public static final String DTM_ASSETS = "DTM_ASSETS";
+
+    private static final HashMap<String, Future<?>> models = new HashMap<>();
+    private static ExecutorService executor;
+
+    /**
+     * Start loading all models. Only the first call has any effect.
+     *
+     * @param context any context, the application context is used
+     */
+    public static synchronized void start(Context context) {
+        if (executor != null)
+            return;
+
+        final Context app = context.getApplicationContext();
+        // Threads end when loading is done
+        executor = Executors.newCachedThreadPool();
+
+        models.put(HREF, Geodesy.initHREFAsync(app, executor));
+        models.put(CONFIG, executor.submit(new Callable<Config>() {
+            @Override
+            public Config call() {
+                BorderGoApp.config = new Config(app);
+                return BorderGoApp.config;
+            }
+        }));
+        models.put(DTM_ASSETS, executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                DTMGridProvider.preload_assets(app);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * @param name model name, e.g. {@link #HREF}
+     * @return the loading of the model, or null if loading is not started
+     */
+    public static synchronized Future<?> get(String name) {
+        return models.get(name);
+    }
+
+    /**
+     * @param name model name, e.g. {@link #HREF}
+     * @return true if the model is loaded, or failed to load
+     */
+    public static boolean isReady(String name) {
+        Future<?> model = get(name);
+        return model != null && model.isDone();
+    }
+
+    /**
+     * Wait for a model to be loaded. Returns at once if loading is not started.
+     *
+     * @param name model name, e.g. {@link #HREF}
+     * @return true if the model was loaded, false if loading failed or is not started
+     */
+    public static boolean await(String name) {
+        Future<?> model = get(name);
+        if (model == null)
+            return false;
+
+        try {
+            model.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to load " + name, e.getCause());
+        }
+        return false;
+    }
+
+    /**
+     * Run an action on the UI thread when a model is loaded, or failed to load. The action is run
+     * at once if the model is already loaded, or loading is not started, and this is called on
+     * the UI thread. Does not block.
+     *
+     * @param name model name, e.g. {@link #CONFIG}
+     * @param action the action
+     */
+    public static void whenReady(final String name, final Runnable action) {
+        final Handler ui = new Handler(Looper.getMainLooper());
+        Future<?> model;
+        ExecutorService waiter;
+        synchronized (ModelRegistry.class) {
+            model = models.get(name);
+            waiter = executor;
+        }
+
+        if (model == null || model.isDone()) {
+            if (Looper.myLooper() == Looper.getMainLooper())
+                action.run();
+            else
+                ui.post(action);
+            return;
+        }
+
+        waiter.execute(new Runnable() {
+            @Override
+            public void run() {
+                await(name);
+                ui.post(action);
+            }
+        });
+    }
+}
@@ -16,7 +16,6 @@ import android.view.WindowManager;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import no.kartverket.bordergo.config.Config;
 import no.kartverket.data.api.GateKeeperApi;
 import okhttp3.OkHttpClient;
 import retrofit2.Call;
@@ -47,7 +46,8 @@ public class SplashActivity extends AppCompatActivity {
                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
         requestWindowFeature(Window.FEATURE_NO_TITLE);*/
         BorderGoApp app = (BorderGoApp) getApplication();
-        BorderGoApp.config = new Config(this.getApplicationContext()); // instantiate in the first view class so that config gets the correct context to access text assets.
+        // Load config, geoid and terrain models in the background, MainActivity waits for what it needs
+        ModelRegistry.start(this);
         Context context = this;
 
 
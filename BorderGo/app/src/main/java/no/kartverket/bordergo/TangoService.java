@@ -37,7 +37,7 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 
-import no.kartverket.data.dtm.DTMGrid;
+import no.kartverket.data.dtm.DTMSurface;
 import no.kartverket.data.DataLogger;
 import no.kartverket.positionorientation.PositionOrientationProvider;
 import no.kartverket.positionorientation.TangoPositionOrientationProvider;
@@ -62,7 +62,7 @@ public class TangoService extends Service {
     private boolean isConnected = false;
     private TangoPositionOrientationProvider positionOrientationProvider;
 
-    private DTMGrid dtmGrid;
+    private DTMSurface dtmSurface;
 
 
     private LocationManager location_manager;
@@ -192,12 +192,12 @@ public class TangoService extends Service {
     public Tango getTango(){ return tango;}
     public Object getTangoLock() { return tangoLock; }
 
-    public DTMGrid getDtmGrid() {
-        return dtmGrid;
+    public DTMSurface getDtmSurface() {
+        return dtmSurface;
     }
 
-    public void setDtmGrid(DTMGrid dtmGrid) {
-        this.dtmGrid = dtmGrid;
+    public void setDtmSurface(DTMSurface dtmSurface) {
+        this.dtmSurface = dtmSurface;
     }
 
     private void requestLocationUpdatesFromProvider() {
@@ -325,22 +325,12 @@ public class TangoService extends Service {
                         }
                     }
 
-                    // Decimate down to approx. 100 points
-                    int ix = 0;
-                    int step = Math.max(numSelectedPoints / 100, 1);
-                    for (int i = 0; i < numSelectedPoints; i += step) {
-                        selectedPoints.put(4*ix,   selectedPoints.get(4*i));
-                        selectedPoints.put(4*ix+1, selectedPoints.get(4*i+1));
-                        selectedPoints.put(4*ix+2, selectedPoints.get(4*i+2));
-                        selectedPoints.put(4*ix+3, selectedPoints.get(4*i+3));
-                        ++ix;
-                    }
-
+                    // All selected points are given, the provider thins them on a voxel grid
                     ((TangoPositionOrientationProvider)getPositionOrientationProvider()).handlePointCloudObservation(
-                            ix, selectedPoints, dtmGrid, (float)Math.hypot(getPointCloudSigma(), getDemSigma()));
+                            numSelectedPoints, selectedPoints, dtmSurface, (float)Math.hypot(getPointCloudSigma(), getDemSigma()));
                     snapCloud = false;
 
-                    final int numpoint = ix;
+                    final int numpoint = numSelectedPoints;
                     Handler handler = new Handler(Looper.getMainLooper());
                     handler.post(new Runnable() {
 
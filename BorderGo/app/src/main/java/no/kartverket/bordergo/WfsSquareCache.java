@@ -0,0 +1,208 @@
+package no.kartverket.bordergo;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import no.kartverket.data.model.WfsResponse;
+import no.kartverket.data.repository.DataRepository;
+import no.kartverket.data.repository.WfsDataRepository;
+import no.kartverket.geodesy.Geodesy;
+
+/**
+ * Cache of property boundary responses from the WFS service.<p>
+ *
+ * Boundaries are requested for fixed squares aligned to the UTM33 grid, so the same squares are
+ * requested regardless of the exact user position, and responses can be fetched ahead of time
+ * with {@link #prefetch}. The least recently used squares are dropped when there are more than
+ * {@link #MAX_SQUARES}.
+ */
+public class WfsSquareCache {
+    static final String TAG = WfsSquareCache.class.getSimpleName();
+
+    /** Side length of squares, meters */
+    static final double SQUARE_SIZE = 160.0;
+    /** Max number of cached squares */
+    static final int MAX_SQUARES = 64;
+    /** Max time to wait for a response */
+    static final long TIMEOUT_MS = 30000;
+
+    private static WfsSquareCache instance;
+
+    /**
+     * A square, with the response when it has arrived
+     */
+    private static class Square {
+        WfsResponse response;
+        boolean finished = false;
+        boolean failed = false;
+    }
+
+    private final String user, pass, url;
+    private final WfsDataRepository repo;
+    private final LinkedHashMap<Long, Square> squares = new LinkedHashMap<>(16, 0.75f, true);
+
+    private WfsSquareCache(String user, String pass, String url) {
+        this(user, pass, url, DataRepository.newInstance(user, pass, url));
+    }
+
+    /**
+     * @param repo source of the responses
+     */
+    WfsSquareCache(String user, String pass, String url, WfsDataRepository repo) {
+        this.user = user;
+        this.pass = pass;
+        this.url = url;
+        this.repo = repo;
+    }
+
+    /**
+     * Get the cache for a WFS service. A new cache is created if the service or user changes.
+     */
+    public static synchronized WfsSquareCache getInstance(String user, String pass, String url) {
+        if (instance == null || !Objects.equals(instance.user, user) || !Objects.equals(instance.pass, pass) ||
+                !Objects.equals(instance.url, url))
+            instance = new WfsSquareCache(user, pass, url);
+        return instance;
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * Find a square, and start requesting it if it is not cached or failed earlier
+     */
+    private Square request(int row, int col) {
+        final long key = key(row, col);
+        final Square square;
+        synchronized (squares) {
+            Square s = squares.get(key);
+            if (s != null && !s.failed)
+                return s;
+
+            square = new Square();
+            squares.put(key, square);
+
+            Iterator<Map.Entry<Long, Square>> it = squares.entrySet().iterator();
+            while (squares.size() > MAX_SQUARES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+
+        // Bounding box in geographic coordinates, covering the square
+        double minN = row * SQUARE_SIZE, minE = col * SQUARE_SIZE;
+        double lat_min = Double.MAX_VALUE, lon_min = Double.MAX_VALUE;
+        double lat_max = -Double.MAX_VALUE, lon_max = -Double.MAX_VALUE;
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        for (int i = 0; i < 4; ++i) {
+            Geodesy.utm2latlon(new Geodesy.Coords_xy(minN + (i / 2) * SQUARE_SIZE, minE + (i % 2) * SQUARE_SIZE), latlon);
+            lat_min = Math.min(lat_min, latlon._x);
+            lat_max = Math.max(lat_max, latlon._x);
+            lon_min = Math.min(lon_min, latlon._y);
+            lon_max = Math.max(lon_max, latlon._y);
+        }
+        String bbox_string = String.format(Locale.ROOT, "%.6f,%.6f,%.6f,%.6f", lat_min, lon_min, lat_max, lon_max);
+
+        WfsDataRepository.WfsResponseCallback callback = new WfsDataRepository.WfsResponseCallback() {
+            @Override
+            public void onSuccess(@Nullable WfsResponse response) {
+                synchronized (square) {
+                    square.response = response;
+                    square.finished = true;
+                    square.notifyAll();
+                }
+            }
+
+            @Override
+            public void onError(Throwable error, int code) {
+                Log.d(TAG, "Error: " + error.getLocalizedMessage());
+                synchronized (square) {
+                    square.failed = true;
+                    square.finished = true;
+                    square.notifyAll();
+                }
+            }
+        };
+        try {
+            repo.getDataAsync(bbox_string, callback);
+        } catch (IOException e) {
+            callback.onError(e, 0);
+        }
+        return square;
+    }
+
+    private int[] squareRange(double lat, double lon, double radius) {
+        Geodesy.Coords_xy NE = new Geodesy.Coords_xy();
+        Geodesy.latlon2utm(new Geodesy.Coords_xy(lat, lon), NE);
+
+        return new int[]{
+                (int) Math.floor((NE._x - radius) / SQUARE_SIZE),
+                (int) Math.floor((NE._y - radius) / SQUARE_SIZE),
+                (int) Math.floor((NE._x + radius) / SQUARE_SIZE),
+                (int) Math.floor((NE._y + radius) / SQUARE_SIZE)
+        };
+    }
+
+    /**
+     * Start requesting all squares within a distance of a position
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param radius distance, meters
+     */
+    public void prefetch(double lat, double lon, double radius) {
+        int[] range = squareRange(lat, lon, radius);
+        for (int row = range[0]; row <= range[2]; ++row) {
+            for (int col = range[1]; col <= range[3]; ++col)
+                request(row, col);
+        }
+    }
+
+    /**
+     * Get the responses for all squares within a distance of a position, waiting for
+     * squares that are not yet received. Must not be called from the UI thread, where the
+     * responses are delivered.
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param radius distance, meters
+     * @return the received responses
+     */
+    public List<WfsResponse> getResponses(double lat, double lon, double radius) {
+        int[] range = squareRange(lat, lon, radius);
+        ArrayList<Square> wanted = new ArrayList<>();
+        for (int row = range[0]; row <= range[2]; ++row) {
+            for (int col = range[1]; col <= range[3]; ++col)
+                wanted.add(request(row, col));
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        ArrayList<WfsResponse> result = new ArrayList<>(wanted.size());
+        for (Square square : wanted) {
+            synchronized (square) {
+                long wait;
+                while (!square.finished && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        square.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return result;
+                    }
+                }
+                if (square.response != null)
+                    result.add(square.response);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package no.kartverket.bordergo;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.kartverket.data.model.WfsResponse;
+import no.kartverket.data.repository.WfsDataRepository;
+import no.kartverket.geodesy.Geodesy;
+
+import static org.junit.Assert.*;
+
+/**
+ * The square cache must request each square once, hold at most {@link WfsSquareCache#MAX_SQUARES}
+ * squares, dropping the least recently used, and retry squares that failed.
+ */
+public class WfsSquareCacheTest {
+    // Square row and column near Oslo
+    private static final int ROW0 = 41562, COL0 = 1625;
+
+    /**
+     * Answers at once, and records the requested bounding boxes
+     */
+    private static final class Repository implements WfsDataRepository {
+        final List<String> requests = new ArrayList<>();
+        boolean fail = false;
+
+        @Override
+        public void getDataAsync(String boundingBoxString, WfsResponseCallback callback) {
+            requests.add(boundingBoxString);
+            if (fail)
+                callback.onError(new Exception("Failed"), 500);
+            else
+                callback.onSuccess(new WfsResponse());
+        }
+    }
+
+    /**
+     * @return latitude, longitude of the middle of a square
+     */
+    private static double[] square(int row, int col) {
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy((ROW0 + row + 0.5) * WfsSquareCache.SQUARE_SIZE,
+                (COL0 + col + 0.5) * WfsSquareCache.SQUARE_SIZE), latlon);
+        return new double[] {latlon._x, latlon._y};
+    }
+
+    private static void prefetch(WfsSquareCache cache, int row, int col) {
+        double[] latlon = square(row, col);
+        cache.prefetch(latlon[0], latlon[1], 1);
+    }
+
+    @Test
+    public void getInstance_nullCredentials() throws Exception {
+        final String url = "http://wfs.example.com/wfs/";
+        WfsSquareCache cache = WfsSquareCache.getInstance(null, null, url);
+        assertSame(cache, WfsSquareCache.getInstance(null, null, url));
+
+        WfsSquareCache other = WfsSquareCache.getInstance("user", "pass", url);
+        assertNotSame(cache, other);
+        assertSame(other, WfsSquareCache.getInstance("user", "pass", url));
+        assertNotSame(other, WfsSquareCache.getInstance("user", null, url));
+    }
+
+    @Test
+    public void prefetch_requestsSquaresOnce() throws Exception {
+        Repository repo = new Repository();
+        WfsSquareCache cache = new WfsSquareCache(null, null, null, repo);
+
+        // A position in the middle of a square, with a radius reaching into the eight around it
+        double[] latlon = square(0, 0);
+        cache.prefetch(latlon[0], latlon[1], WfsSquareCache.SQUARE_SIZE * 0.75);
+        assertEquals(9, repo.requests.size());
+
+        cache.prefetch(latlon[0], latlon[1], WfsSquareCache.SQUARE_SIZE * 0.75);
+        assertEquals(9, repo.requests.size());
+        assertEquals(9, cache.getResponses(latlon[0], latlon[1], WfsSquareCache.SQUARE_SIZE * 0.75).size());
+        assertEquals(9, repo.requests.size());
+    }
+
+    @Test
+    public void prefetch_boundedByMaxSquares() throws Exception {
+        Repository repo = new Repository();
+        WfsSquareCache cache = new WfsSquareCache(null, null, null, repo);
+
+        final int n = WfsSquareCache.MAX_SQUARES + 36;
+        for (int i = 0; i < n; ++i)
+            prefetch(cache, i / 10, i % 10);
+        assertEquals(n, repo.requests.size());
+
+        // The most recent squares are kept
+        for (int i = n - WfsSquareCache.MAX_SQUARES; i < n; ++i)
+            prefetch(cache, i / 10, i % 10);
+        assertEquals(n, repo.requests.size());
+
+        // The older ones are requested again
+        prefetch(cache, 0, 0);
+        assertEquals(n + 1, repo.requests.size());
+        prefetch(cache, (n - WfsSquareCache.MAX_SQUARES) / 10, (n - WfsSquareCache.MAX_SQUARES) % 10);
+        assertEquals(n + 2, repo.requests.size());
+    }
+
+    @Test
+    public void getResponses_retriesFailed() throws Exception {
+        Repository repo = new Repository();
+        WfsSquareCache cache = new WfsSquareCache(null, null, null, repo);
+        double[] latlon = square(0, 0);
+
+        repo.fail = true;
+        assertTrue(cache.getResponses(latlon[0], latlon[1], 1).isEmpty());
+        assertEquals(1, repo.requests.size());
+
+        repo.fail = false;
+        assertEquals(1, cache.getResponses(latlon[0], latlon[1], 1).size());
+        assertEquals(2, repo.requests.size());
+        assertEquals(1, cache.getResponses(latlon[0], latlon[1], 1).size());
+        assertEquals(2, repo.requests.size());
+    }
+}
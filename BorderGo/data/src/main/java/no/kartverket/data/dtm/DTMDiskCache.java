@@ -0,0 +1,390 @@
+package no.kartverket.data.dtm;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Persistent cache of grids downloaded from height services.<p>
+ *
+ * Each response is stored as a binary tile (see {@link DTMTileFormat}) together with a small
+ * properties file holding the request key, the service, the bounding box and the HTTP validation
+ * data (ETag and Last-Modified). The total size of the tiles is bounded, and the least recently
+ * used entries are deleted when it is exceeded.<p>
+ *
+ * Entries younger than {@link #MAX_AGE_MS} are used without contacting the service, older
+ * entries should be validated with a conditional request. In offline mode, or when the
+ * service can not be reached, {@link #findCovering} gives the closest cached grid covering an area.
+ */
+public class DTMDiskCache {
+    static final String TAG = DTMDiskCache.class.getSimpleName();
+
+    /** Entries younger than this are used without validation */
+    public static final long MAX_AGE_MS = 7L * 24 * 3600 * 1000;
+    /** Default max total size of cached tiles */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final String META_EXTENSION = ".meta";
+
+    /**
+     * A cached response
+     */
+    public static class Entry {
+        final String name;
+        final String key;
+        final String service;
+        final double minx, miny, maxx, maxy;
+        String etag;
+        String lastModified;
+        long fetched;
+        long accessed;
+        long size;
+
+        Entry(String name, String key, String service, double minx, double miny, double maxx, double maxy) {
+            this.name = name;
+            this.key = key;
+            this.service = service;
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+        }
+
+        /**
+         * @return true if the entry may be used without validation
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() - fetched < MAX_AGE_MS;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    private volatile boolean offline = false;
+
+    // Index of entries, loaded from disk on first use
+    private HashMap<String, Entry> index;
+    private long totalBytes = 0;
+
+    /**
+     * @param dir directory for cache files, created if necessary
+     * @param maxBytes max total size of cached tiles
+     */
+    public DTMDiskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * In offline mode the service is never contacted, and cached grids are used regardless of age
+     */
+    public void setOffline(boolean offline) {
+        this.offline = offline;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    private File tileFile(String name) {
+        return new File(dir, name + DTMTileFormat.EXTENSION);
+    }
+
+    private File metaFile(String name) {
+        return new File(dir, name + META_EXTENSION);
+    }
+
+    private static String fileName(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes(Charset.forName("UTF-8")));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(String.format("%02x", b & 0xff));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private void loadIndex() {
+        if (index != null)
+            return;
+
+        index = new HashMap<>();
+        totalBytes = 0;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Unable to create cache directory " + dir);
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File f : files) {
+            String fname = f.getName();
+            if (!fname.endsWith(META_EXTENSION))
+                continue;
+
+            String name = fname.substring(0, fname.length() - META_EXTENSION.length());
+            File tile = tileFile(name);
+            Entry entry = null;
+            if (tile.isFile()) {
+                try {
+                    entry = readMeta(name);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Invalid cache entry " + name, e);
+                }
+            }
+
+            if (entry == null) {
+                f.delete();
+                tile.delete();
+                continue;
+            }
+
+            entry.size = tile.length();
+            entry.accessed = tile.lastModified();
+            index.put(entry.key, entry);
+            totalBytes += entry.size;
+        }
+    }
+
+    private Entry readMeta(String name) throws IOException {
+        Properties p = new Properties();
+        InputStream is = new FileInputStream(metaFile(name));
+        try {
+            p.load(is);
+        } finally {
+            is.close();
+        }
+
+        Entry entry = new Entry(name, p.getProperty("key"), p.getProperty("service"),
+                Double.parseDouble(p.getProperty("minx")), Double.parseDouble(p.getProperty("miny")),
+                Double.parseDouble(p.getProperty("maxx")), Double.parseDouble(p.getProperty("maxy")));
+        entry.etag = p.getProperty("etag");
+        entry.lastModified = p.getProperty("lastModified");
+        entry.fetched = Long.parseLong(p.getProperty("fetched", "0"));
+        if (entry.key == null || entry.service == null)
+            throw new IOException("Incomplete cache entry");
+        return entry;
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("key", entry.key);
+        p.setProperty("service", entry.service);
+        p.setProperty("minx", Double.toString(entry.minx));
+        p.setProperty("miny", Double.toString(entry.miny));
+        p.setProperty("maxx", Double.toString(entry.maxx));
+        p.setProperty("maxy", Double.toString(entry.maxy));
+        if (entry.etag != null)
+            p.setProperty("etag", entry.etag);
+        if (entry.lastModified != null)
+            p.setProperty("lastModified", entry.lastModified);
+        p.setProperty("fetched", Long.toString(entry.fetched));
+
+        OutputStream out = new FileOutputStream(metaFile(entry.name));
+        try {
+            p.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Find a cached response
+     *
+     * @param key request key, see {@link no.kartverket.data.utils.DTMRequest#cacheKey}
+     * @return the entry, or null if not cached
+     */
+    public synchronized Entry lookup(String key) {
+        loadIndex();
+        return index.get(key);
+    }
+
+    /**
+     * Read the grid of an entry, and mark the entry as used
+     *
+     * @param entry the entry
+     * @return the grid, or null if the cached data is lost or invalid
+     */
+    public DTMGrid read(Entry entry) {
+        File tile = tileFile(entry.name);
+        try {
+            FileInputStream stream = new FileInputStream(tile);
+            try {
+                DTMGrid grid = DTMTileFormat.map(stream, 0, tile.length());
+                touch(entry);
+                return grid;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached grid " + entry.key, e);
+            remove(entry);
+            return null;
+        }
+    }
+
+    /**
+     * Mark an entry as used
+     */
+    private synchronized void touch(Entry entry) {
+        entry.accessed = System.currentTimeMillis();
+        tileFile(entry.name).setLastModified(entry.accessed);
+    }
+
+    /**
+     * Mark an entry as validated by the service, after a "not modified" response
+     */
+    public synchronized void validated(Entry entry) {
+        entry.fetched = System.currentTimeMillis();
+        try {
+            writeMeta(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to update cache entry " + entry.key, e);
+        }
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (index != null && index.get(entry.key) == entry) {
+            index.remove(entry.key);
+            totalBytes -= entry.size;
+        }
+        metaFile(entry.name).delete();
+        tileFile(entry.name).delete();
+    }
+
+    /**
+     * Store a grid
+     *
+     * @param key request key, see {@link no.kartverket.data.utils.DTMRequest#cacheKey}
+     * @param service service key, see {@link no.kartverket.data.utils.DTMRequest#getServiceKey}
+     * @param minx western limit of requested area
+     * @param miny southern limit of requested area
+     * @param maxx eastern limit of requested area
+     * @param maxy northern limit of requested area
+     * @param grid the grid
+     * @param etag ETag of response, or null
+     * @param lastModified Last-Modified of response, or null
+     */
+    public synchronized void put(String key, String service, double minx, double miny, double maxx, double maxy,
+                                 DTMGrid grid, String etag, String lastModified) {
+        loadIndex();
+
+        Entry old = index.get(key);
+        if (old != null)
+            remove(old);
+
+        Entry entry = new Entry(fileName(key), key, service, minx, miny, maxx, maxy);
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.fetched = entry.accessed = System.currentTimeMillis();
+
+        File tile = tileFile(entry.name);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tile));
+            try {
+                DTMTileFormat.write(out, grid);
+            } finally {
+                out.close();
+            }
+            writeMeta(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store cache entry " + key, e);
+            metaFile(entry.name).delete();
+            tile.delete();
+            return;
+        }
+
+        entry.size = tile.length();
+        index.put(key, entry);
+        totalBytes += entry.size;
+
+        evict(entry);
+    }
+
+    /**
+     * Delete least recently used entries until the cache is within its size limit
+     *
+     * @param keep entry that should not be deleted
+     */
+    private void evict(Entry keep) {
+        if (totalBytes <= maxBytes)
+            return;
+
+        ArrayList<Entry> entries = new ArrayList<>(index.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.accessed, b.accessed);
+            }
+        });
+
+        for (Entry e : entries) {
+            if (totalBytes <= maxBytes)
+                break;
+            if (e != keep)
+                remove(e);
+        }
+    }
+
+    /**
+     * Find the cached grid covering an area with center closest to the center of the area.
+     * Used when the service can not be reached.
+     *
+     * @param service service key, see {@link no.kartverket.data.utils.DTMRequest#getServiceKey}
+     * @param minx western limit of area
+     * @param miny southern limit of area
+     * @param maxx eastern limit of area
+     * @param maxy northern limit of area
+     * @return the grid, or null if no cached grid covers the area
+     */
+    public DTMGrid findCovering(String service, double minx, double miny, double maxx, double maxy) {
+        double cx = (minx + maxx) / 2;
+        double cy = (miny + maxy) / 2;
+
+        Entry best = null;
+        double best_dist = Double.MAX_VALUE;
+        synchronized (this) {
+            loadIndex();
+            for (Entry e : index.values()) {
+                if (!e.service.equals(service) ||
+                        e.minx > minx || e.miny > miny || e.maxx < maxx || e.maxy < maxy)
+                    continue;
+
+                double dist = Math.hypot((e.minx + e.maxx) / 2 - cx, (e.miny + e.maxy) / 2 - cy);
+                if (dist < best_dist) {
+                    best_dist = dist;
+                    best = e;
+                }
+            }
+        }
+
+        return best != null ? read(best) : null;
+    }
+}
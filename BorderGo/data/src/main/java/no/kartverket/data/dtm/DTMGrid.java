@@ -1,6 +1,9 @@
 package no.kartverket.data.dtm;
 
 import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import no.kartverket.geodesy.Geodesy;
 import no.kartverket.geodesy.OriginData;
@@ -8,10 +11,14 @@ import no.kartverket.geometry.GeomUtils;
 import no.kartverket.geometry.Triangle;
 
 /**
- * A terrain model implemented as a regular grid, positioned and oriented to a geographical position
+ * A terrain model implemented as a regular grid, positioned and oriented to a geographical position<p>
  *
+ * Heights are stored either as 32 bit floats, or quantized as 16 bit offsets from a base height
+ * with a fixed scale (see {@link #quantize(float)}), which halves the memory use. Quantized heights
+ * are decoded when read. Missing heights are NaN in float grids and {@link #NODATA_Q} in quantized
+ * grids, and positions where they are used are reported as not covered.
  */
-public class DTMGrid {
+public class DTMGrid implements DTMSurface {
 
     /**
      * Create grid and allocate data
@@ -25,15 +32,58 @@ public class DTMGrid {
         arrH.clear();
     }
 
+    /**
+     * Create grid on existing height data, for example a memory mapped binary tile.
+     * The data is used directly, without copying.
+     *
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param heights All heights, line by line, from upper left
+     */
+    DTMGrid(int rows, int cols, FloatBuffer heights) {
+        this.rows = rows;
+        this.cols = cols;
+        arrH = heights;
+    }
+
+    /**
+     * Create grid on existing quantized height data. The data is used directly, without copying.
+     *
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param heights All quantized heights, line by line, from upper left
+     * @param base height of quantized value 0
+     * @param scale height difference between quantized values
+     */
+    DTMGrid(int rows, int cols, ShortBuffer heights, float base, float scale) {
+        this.rows = rows;
+        this.cols = cols;
+        arrQ = heights;
+        q_base = base;
+        q_scale = scale;
+    }
+
+    /** Quantized value of missing heights */
+    public static final short NODATA_Q = Short.MIN_VALUE;
+    /** Default height resolution of quantized grids, one centimeter */
+    public static final float DEFAULT_QUANTIZATION = 0.01f;
+
     // Grid dimensions
     private long rows;
     private long cols;
 
     /**
-     * All heights, line by line, from upper left.
+     * All heights, line by line, from upper left. Null if the grid is quantized.
      */
     FloatBuffer arrH;
 
+    /**
+     * All quantized heights, line by line, from upper left. Null unless the grid is quantized.
+     */
+    ShortBuffer arrQ;
+    private float q_base = 0;
+    private float q_scale = 1;
+
     private double ul_lat = 0.0;
     private double ul_lon = 0.0;
     private double ul_x = 0.0;
@@ -42,8 +92,14 @@ public class DTMGrid {
     private double sinAngle = 0.0;
     private double space = 0.0;
 
+    // Grid position as given in UTM33/ETRS89
+    private double ul_N = 0.0;
+    private double ul_E = 0.0;
+    private double utm_space = 0.0;
 
     private OriginData origin;
+    // Built on the first interpolation, and dropped when the position changes
+    private volatile double[] latLonAffine;
 
     /**
      * Set grid position (given in UTM33/ETRS89) and compute geodetic data
@@ -54,6 +110,10 @@ public class DTMGrid {
      */
     void setCoordinateParams(final double upperLeftN, final double upperLeftE, final double space)
     {
+        ul_N = upperLeftN;
+        ul_E = upperLeftE;
+        utm_space = space;
+
         Geodesy.Coords_xy NE = new Geodesy.Coords_xy(upperLeftN, upperLeftE);
         Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
         Geodesy.utm2latlon(NE, latlon);
@@ -76,12 +136,17 @@ public class DTMGrid {
             ul_x = origin.longitudeToLocalOrigin(ul_lon);
             ul_y = origin.latitudeToLocalOrigin(ul_lat);
         }
+        latLonAffine = null;
+        surfaceIndex = null;
     }
 
-    public void setOrigin(OriginData origin) {
+    @Override
+    public synchronized void setOrigin(OriginData origin) {
         this.origin = origin;
         ul_x = origin.longitudeToLocalOrigin(ul_lon);
         ul_y = origin.latitudeToLocalOrigin(ul_lat);
+        latLonAffine = null;
+        surfaceIndex = null;
     }
 
     /**
@@ -92,7 +157,88 @@ public class DTMGrid {
      * @return
      */
     public float gridValue(int x_i, int y_i) {
-        return arrH.get(y_i * (int) cols + x_i);
+        return height(y_i * (int) cols + x_i);
+    }
+
+    /**
+     * Height at an index in the storage, decoded if the grid is quantized
+     *
+     * @param i index, row * columns + column
+     * @return height, NaN if missing
+     */
+    float height(int i) {
+        if (arrH != null)
+            return arrH.get(i);
+        short q = arrQ.get(i);
+        return q == NODATA_Q ? Float.NaN : q_base + q * q_scale;
+    }
+
+    /**
+     * @return true if heights are stored quantized
+     */
+    public boolean isQuantized() {
+        return arrQ != null;
+    }
+
+    /**
+     * @return height of quantized value 0, see {@link #isQuantized()}
+     */
+    public float getQuantizationBase() {
+        return q_base;
+    }
+
+    /**
+     * @return height difference between quantized values, see {@link #isQuantized()}
+     */
+    public float getQuantizationScale() {
+        return q_scale;
+    }
+
+    /**
+     * @return size of the height storage in bytes
+     */
+    public long getStorageBytes() {
+        return rows * cols * (arrQ != null ? 2 : 4);
+    }
+
+    /**
+     * Make a quantized copy of the grid, with heights stored as 16 bit offsets from a base
+     * height. The base is chosen in the middle of the height range of the grid.
+     *
+     * @param scale height difference between quantized values, e.g. {@link #DEFAULT_QUANTIZATION}
+     * @return the quantized grid, or this grid if it is already quantized or the height range
+     *         is too large for the scale
+     */
+    public DTMGrid quantize(float scale) {
+        if (arrQ != null)
+            return this;
+
+        int n = (int) (rows * cols);
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; ++i) {
+            float h = arrH.get(i);
+            if (h < min)
+                min = h;
+            if (h > max)
+                max = h;
+        }
+
+        float base = min <= max ? Math.round((min + max) / 2 / scale) * scale : 0;
+        if (min <= max && (Math.round((max - base) / scale) > Short.MAX_VALUE ||
+                Math.round((min - base) / scale) <= NODATA_Q))
+            return this;
+
+        short[] q = new short[n];
+        for (int i = 0; i < n; ++i) {
+            float h = arrH.get(i);
+            q[i] = h == h ? (short) Math.round((h - base) / scale) : NODATA_Q;
+        }
+
+        DTMGrid grid = new DTMGrid((int) rows, (int) cols, ShortBuffer.wrap(q), base, scale);
+        grid.setCoordinateParams(ul_N, ul_E, utm_space);
+        if (origin != null)
+            grid.setOrigin(origin);
+        return grid;
     }
 
     /**
@@ -102,48 +248,214 @@ public class DTMGrid {
      * @param lng longitude of position
      * @return height value
      */
+    @Override
     public double getInterpolatedAltitude(double lat, double lng) {
+        // Same arithmetic as the batch interpolation, so the results are identical
+        double[] a = latLonAffine;
+        if (a == null)
+            latLonAffine = a = latLonAffine();
+        double gx = a[0] + a[1] * lng + a[2] * lat;
+        double gy = a[3] + a[4] * lng + a[5] * lat;
+
         int w = (int) cols;
         int h = (int) rows;
+        int cellX = (int) Math.floor(gx);
+        int cellY = (int) Math.floor(gy);
+        if (cellY >= h - 1 || cellX >= w - 1 || cellY < 0 || cellX < 0) {
+            // Log.i("BorderGoApp", "Outside height grid area");
+            return Double.NEGATIVE_INFINITY;
+        }
+        float dX = (float) (gx - cellX);
+        float dY = (float) (gy - cellY);
+
+        int i0 = w * cellY + cellX;
+        double value = GeomUtils.bilinear(
+                height(i0),
+                height(i0 + 1),
+                height(i0 + w),
+                height(i0 + w + 1),
+                dX,
+                dY);
+        // Missing heights give NaN
+        return value == value ? value : Double.NEGATIVE_INFINITY;
+    }
 
+    /** Batches larger than this are split and interpolated in parallel */
+    static final int PARALLEL_THRESHOLD = 8192;
 
-        float x_w = (float) origin.longitudeToLocalOrigin(lng);
-        float y_w = (float) origin.latitudeToLocalOrigin(lat);
-        float x = worldToGridX(x_w, y_w);
-        float y = worldToGridY(x_w, y_w);
+    private static ForkJoinPool pool;
 
-        int cellX = (int) Math.floor(x);
-        float dX = x % 1;
+    /**
+     * @return pool for parallel work on grids
+     */
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * Compute interpolated values for a set of positions in local coordinates
+     *
+     * @param x local coordinates, meters east of origin
+     * @param y local coordinates, meters north of origin
+     * @param heights receives height values, {@link Double#NEGATIVE_INFINITY} for positions outside the grid
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public void getInterpolatedAltitudesLocal(double[] x, double[] y, double[] heights, int offset, int count) {
+        // World to grid affine transform, see worldToGridX/Y
+        double c = cosAngle / space, s = sinAngle / space;
+        double[] affine = {
+                -(ul_x * c - ul_y * s), c, -s,
+                (ul_x * s + ul_y * c), -s, -c
+        };
+        interpolate(affine, x, y, heights, offset, count);
+    }
+
+    /**
+     * Compute interpolated values for a set of positions
+     *
+     * @param lat latitudes of positions
+     * @param lng longitudes of positions
+     * @param heights receives height values, {@link Double#NEGATIVE_INFINITY} for positions outside the grid
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    @Override
+    public void getInterpolatedAltitudes(double[] lat, double[] lng, double[] heights, int offset, int count) {
+        double[] affine = latLonAffine;
+        if (affine == null)
+            latLonAffine = affine = latLonAffine();
+        interpolate(affine, lng, lat, heights, offset, count);
+    }
+
+    /**
+     * @return longitude, latitude to grid transform, the origin scaling combined with the world
+     *         to grid transform
+     */
+    private double[] latLonAffine() {
+        double c = cosAngle / space, s = sinAngle / space;
+        double x0 = -origin.lon_0 * origin.lon_scale - ul_x;
+        double y0 = -origin.lat_0 * origin.lat_scale - ul_y;
+        return new double[] {
+                x0 * c - y0 * s, c * origin.lon_scale, -s * origin.lat_scale,
+                -(x0 * s + y0 * c), -s * origin.lon_scale, -c * origin.lat_scale
+        };
+    }
+
+    private void interpolate(double[] affine, double[] u, double[] v, double[] heights, int offset, int count) {
+        if (count > PARALLEL_THRESHOLD)
+            getPool().invoke(new InterpolateTask(affine, u, v, heights, offset, count));
+        else
+            interpolateRange(affine, u, v, heights, offset, offset + count);
+    }
 
-        int cellY = (int) Math.floor(y);
-        float dY = y % 1;
+    /**
+     * Bilinear interpolation for a range of positions, with grid coordinates
+     * {@code (gx, gy) = (a[0] + a[1]*u + a[2]*v, a[3] + a[4]*u + a[5]*v)}
+     */
+    private void interpolateRange(double[] a, double[] u, double[] v, double[] heights, int from, int to) {
+        final int w = (int) cols;
+        final int h = (int) rows;
+
+        // Read directly from the backing array when there is one
+        final float[] arr = arrH != null && arrH.hasArray() ? arrH.array() : null;
+        final short[] arr_q = arrQ != null && arrQ.hasArray() ? arrQ.array() : null;
+        final int base = arr != null ? arrH.arrayOffset() : arr_q != null ? arrQ.arrayOffset() : 0;
+
+        for (int i = from; i < to; ++i) {
+            double gx = a[0] + a[1] * u[i] + a[2] * v[i];
+            double gy = a[3] + a[4] * u[i] + a[5] * v[i];
+
+            int cellX = (int) Math.floor(gx);
+            int cellY = (int) Math.floor(gy);
+            if (cellY >= h - 1 || cellX >= w - 1 || cellY < 0 || cellX < 0) {
+                heights[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            float dX = (float) (gx - cellX);
+            float dY = (float) (gy - cellY);
 
-        if ((cellY < h - 1) && (cellX < w - 1) && (cellY >= 0) && (cellX >= 0)) {
             int i0 = w * cellY + cellX;
-            int ix = w * cellY + cellX + 1;
-            int iy = w * (cellY + 1) + cellX;
-            int ixy = w * (cellY + 1) + cellX + 1;
-
-            return GeomUtils.bilinear(
-                    arrH.get(i0),
-                    arrH.get(ix),
-                    arrH.get(iy),
-                    arrH.get(ixy),
-                    dX,
-                    dY);
+            float h00, h10, h01, h11;
+            if (arr != null) {
+                h00 = arr[base + i0];
+                h10 = arr[base + i0 + 1];
+                h01 = arr[base + i0 + w];
+                h11 = arr[base + i0 + w + 1];
+            } else if (arr_q != null) {
+                short q00 = arr_q[base + i0];
+                short q10 = arr_q[base + i0 + 1];
+                short q01 = arr_q[base + i0 + w];
+                short q11 = arr_q[base + i0 + w + 1];
+                if (q00 == NODATA_Q || q10 == NODATA_Q || q01 == NODATA_Q || q11 == NODATA_Q) {
+                    heights[i] = Double.NEGATIVE_INFINITY;
+                    continue;
+                }
+                h00 = q_base + q00 * q_scale;
+                h10 = q_base + q10 * q_scale;
+                h01 = q_base + q01 * q_scale;
+                h11 = q_base + q11 * q_scale;
+            } else {
+                h00 = height(i0);
+                h10 = height(i0 + 1);
+                h01 = height(i0 + w);
+                h11 = height(i0 + w + 1);
+            }
+
+            double value = GeomUtils.bilinear(h00, h10, h01, h11, dX, dY);
+            heights[i] = value == value ? value : Double.NEGATIVE_INFINITY;
         }
-        // Log.i("BorderGoApp", "Outside height grid area");
-        return Double.NEGATIVE_INFINITY;
+    }
 
+    /**
+     * Splits a large batch for parallel interpolation
+     */
+    private class InterpolateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final double[] affine, u, v, heights;
+        final int offset, count;
+
+        InterpolateTask(double[] affine, double[] u, double[] v, double[] heights, int offset, int count) {
+            this.affine = affine;
+            this.u = u;
+            this.v = v;
+            this.heights = heights;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= PARALLEL_THRESHOLD) {
+                interpolateRange(affine, u, v, heights, offset, offset + count);
+                return;
+            }
+            int half = count / 2;
+            invokeAll(new InterpolateTask(affine, u, v, heights, offset, half),
+                    new InterpolateTask(affine, u, v, heights, offset + half, count - half));
+        }
     }
 
-    private static int[] neighCellIx = new int[]{
-            0, 0, 1, 0, 1, 1, 0, 1, -1, 1, -1, 0, -1, -1, 0, -1, 1, -1, // radius = 1
-            2, 0, 2, 1, 2, 2, 1, 2, 0, 2, -1, 2, -2, 2, -2, 1, -2, 0, -2, -1, -2, -2, -1, -2, 0, -2, 1, -2, 2, -2, 2, -1, // Radius = 2
-            3, 0, 3, 1, 3, 2, 2, 3, 1, 3, 0, 3, -1, 3, -2, 3, -3, 2, -3, 1, -3, 0, -3, -1, -3, -2, -2, -3, -1, -3, 0, -3, 1, -3, 2, -3, 3, -2, 3, -1, // Radius = 3
-            4, 0, 4, 1, 4, 2, 4, 3, 3, 3, 3, 4, 2, 4, 1, 4, 0, 4, -1, 4, -2, 4, -3, 4, -3, 3, -4, 3, -4, 2, -4, 1,
-            -4, 0, -4, -1, -4, -2, -4, -3, -3, -3, -3, -4, -2, -4, -1, -4, 0, -4, 1, -4, 2, -4, 3, -4, 3, -3, 4, -3, 4, -2, 4, -1 // Radius = 4
-    };
+    /** Max number of cells from the cell of a point searched for the closest facet */
+    static final int SEARCH_RADIUS = 4;
+
+    // Built on the first closest facet query, and dropped when the position changes
+    private volatile DTMSurfaceIndex surfaceIndex;
+
+    private DTMSurfaceIndex surfaceIndex() {
+        DTMSurfaceIndex index = surfaceIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = surfaceIndex;
+                if (index == null)
+                    surfaceIndex = index = new DTMSurfaceIndex(this, (float) space, (float) origin.h_0);
+            }
+        }
+        return index;
+    }
 
     /**
      * Compute plane equation for the closest point in a DTM surface.
@@ -153,106 +465,148 @@ public class DTMGrid {
      * @param z coordiante of point
      * @return plane equation as given in {@link Triangle#pointTriangle(float[], float[], float[], float[], float[])}
      */
+    @Override
     public float[] getSurfacePlane(float x, float y, float z) {
-        int x_i = (int) Math.floor(worldToGridX(x, y));
-        int y_i = (int) Math.floor(worldToGridY(x, y));
-        if (x_i < 0 || y_i < 0 || x_i >= cols - 1 || y_i >= rows - 1)
+        float[] retval = new float[4];
+        if (getSurfacePlane(x, y, z, retval) < 0)
             return null;
+        return retval;
+    }
 
-        float[] retval = new float[4];
-        float[] tmp = new float[4];
-        float[] p00 = new float[3];
-        float[] p01 = new float[3];
-        float[] p10 = new float[3];
-        float[] p11 = new float[3];
-        float[] p = new float[]{x, y, z};
-
-        float best_dist = 2 * (float) space + Math.abs(z - (gridValue(x_i, y_i) - (float) origin.h_0));
-        for (int i = 0; i < neighCellIx.length; i += 2) {
-            int xi = x_i + neighCellIx[i];
-            int yi = y_i + neighCellIx[i + 1];
-            if (xi < 0 || yi < 0 || xi >= cols - 1 || yi >= rows - 1)
-                continue;
+    /**
+     * Compute plane equation for the closest point in a DTM surface, and the distance to it.
+     * Facets up to {@link #SEARCH_RADIUS} cells away, and closer than two grid spacings plus the
+     * height above the cell of the point, are searched. The search uses a {@link DTMSurfaceIndex}
+     * made on the first call, and does not allocate memory.
+     *
+     * @param x coordiante of point
+     * @param y coordiante of point
+     * @param z coordiante of point
+     * @param retval receives the plane equation, unchanged if no facet is found
+     * @return distance to the closest facet, {@link Float#POSITIVE_INFINITY} if no facet is found
+     *         close to the point, or -1 if the point is outside the grid
+     */
+    public float getSurfacePlane(float x, float y, float z, float[] retval) {
+        float gx = worldToGridX(x, y);
+        float gy = worldToGridY(x, y);
+        int x_i = (int) Math.floor(gx);
+        int y_i = (int) Math.floor(gy);
+        if (x_i < 0 || y_i < 0 || x_i >= cols - 1 || y_i >= rows - 1)
+            return -1;
 
-            p00[0] = gridToWorldX(xi, yi);
-            p00[1] = gridToWorldY(xi, yi);
-            p00[2] = gridValue(xi, yi) - (float) origin.h_0;
-            p01[0] = gridToWorldX(xi, yi + 1);
-            p01[1] = gridToWorldY(xi, yi + 1);
-            p01[2] = gridValue(xi, yi + 1) - (float) origin.h_0;
-            p10[0] = gridToWorldX(xi + 1, yi);
-            p10[1] = gridToWorldY(xi + 1, yi);
-            p10[2] = gridValue(xi + 1, yi) - (float) origin.h_0;
-            p11[0] = gridToWorldX(xi + 1, yi + 1);
-            p11[1] = gridToWorldY(xi + 1, yi + 1);
-            p11[2] = gridValue(xi + 1, yi + 1) - (float) origin.h_0;
-
-            float dx = 0, dy = 0, dz = 0;
-
-            float max_dx = p00[0] - x;
-            max_dx = Math.max(max_dx, p01[0] - x);
-            max_dx = Math.max(max_dx, p10[0] - x);
-            max_dx = Math.max(max_dx, p11[0] - x);
-            float min_dx = p00[0] - x;
-            min_dx = Math.min(min_dx, p01[0] - x);
-            min_dx = Math.min(min_dx, p10[0] - x);
-            min_dx = Math.min(min_dx, p11[0] - x);
-            if (max_dx > 0 && min_dx > 0)
-                dx = min_dx;
-            else if (max_dx < 0 && min_dx < 0)
-                dx = max_dx;
-
-            float max_dy = p00[1] - y;
-            max_dy = Math.max(max_dy, p01[1] - y);
-            max_dy = Math.max(max_dy, p10[1] - y);
-            max_dy = Math.max(max_dy, p11[1] - y);
-            float min_dy = p00[1] - y;
-            min_dy = Math.min(min_dy, p01[1] - y);
-            min_dy = Math.min(min_dy, p10[1] - y);
-            min_dy = Math.min(min_dy, p11[1] - y);
-            if (max_dy > 0 && min_dy > 0)
-                dy = min_dy;
-            else if (max_dy < 0 && min_dy < 0)
-                dy = max_dy;
-
-            if (dx * dx + dy * dy > (best_dist + 1.5 * space) * (best_dist + 1.5 * space))
-                break;
-
-            float max_dz = p00[2] - z;
-            max_dz = Math.max(max_dz, p01[2] - z);
-            max_dz = Math.max(max_dz, p10[2] - z);
-            max_dz = Math.max(max_dz, p11[2] - z);
-            float min_dz = p00[2] - z;
-            min_dz = Math.min(min_dz, p01[2] - z);
-            min_dz = Math.min(min_dz, p10[2] - z);
-            min_dz = Math.min(min_dz, p11[2] - z);
-            if (max_dz > 0 && min_dz > 0)
-                dz = min_dz;
-            else if (max_dz < 0 && min_dz < 0)
-                dz = max_dz;
-
-            if (dx * dx + dy * dy + dz * dz > best_dist * best_dist)
-                continue;
+        return surfaceIndex().closestFacet(x, y, z, gx, gy, SEARCH_RADIUS, retval);
+    }
 
-            float dist = Triangle.pointTriangle(p00, p01, p10, p, tmp);
-            if (dist < best_dist) {
-                best_dist = dist;
-                retval[0] = tmp[0];
-                retval[1] = tmp[1];
-                retval[2] = tmp[2];
-                retval[3] = tmp[3];
-            }
-            dist = Triangle.pointTriangle(p11, p01, p10, p, tmp);
-            if (dist < best_dist) {
-                best_dist = dist;
-                retval[0] = tmp[0];
-                retval[1] = tmp[1];
-                retval[2] = tmp[2];
-                retval[3] = tmp[3];
+    /** Ray batches larger than this are split and cast in parallel */
+    static final int RAY_PARALLEL_THRESHOLD = 256;
+
+    /**
+     * Find the first point where a ray hits the DTM surface, in the same coordinates as
+     * {@link #getSurfacePlane(float, float, float, float[])}. The ray is {@code o + t * d} for
+     * {@code 0 <= t <= maxT}, so with a unit direction {@code t} is the distance along the ray.
+     * Uses the {@link DTMSurfaceIndex}, and does not allocate memory.
+     *
+     * @param ox coordinate of ray origin
+     * @param oy coordinate of ray origin
+     * @param oz coordinate of ray origin
+     * @param dx ray direction
+     * @param dy ray direction
+     * @param dz ray direction
+     * @param maxT max ray parameter
+     * @return ray parameter of the hit, {@link Float#POSITIVE_INFINITY} if the ray does not hit the surface
+     */
+    @Override
+    public float rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        // Direction in grid coordinates, see worldToGridX/Y
+        float du = (float) ((dx * cosAngle - dy * sinAngle) / space);
+        float dv = (float) ((dx * sinAngle + dy * cosAngle) / -space);
+        return surfaceIndex().rayCast(ox, oy, oz, dx, dy, dz,
+                worldToGridX(ox, oy), worldToGridY(ox, oy), du, dv, maxT);
+    }
+
+    /**
+     * Cast a set of rays, see {@link #rayCast(float, float, float, float, float, float, float)}.
+     * Large batches are cast in parallel.
+     *
+     * @param rays origin and direction of each ray, six values per ray
+     * @param maxT max ray parameter
+     * @param t receives the ray parameter of each hit, {@link Float#POSITIVE_INFINITY} for rays not hitting the surface
+     * @param offset index of first ray
+     * @param count number of rays
+     */
+    public void rayCast(float[] rays, float maxT, float[] t, int offset, int count) {
+        surfaceIndex();
+        if (count > RAY_PARALLEL_THRESHOLD)
+            getPool().invoke(new RayCastTask(rays, maxT, t, offset, count));
+        else
+            rayCastRange(rays, maxT, t, offset, offset + count);
+    }
+
+    private void rayCastRange(float[] rays, float maxT, float[] t, int start, int end) {
+        for (int i = start; i < end; ++i) {
+            int j = i * 6;
+            t[i] = rayCast(rays[j], rays[j + 1], rays[j + 2], rays[j + 3], rays[j + 4], rays[j + 5], maxT);
+        }
+    }
+
+    /**
+     * Splits a large batch of rays for parallel casting
+     */
+    private class RayCastTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final float[] rays, t;
+        final float maxT;
+        final int offset, count;
+
+        RayCastTask(float[] rays, float maxT, float[] t, int offset, int count) {
+            this.rays = rays;
+            this.maxT = maxT;
+            this.t = t;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= RAY_PARALLEL_THRESHOLD) {
+                rayCastRange(rays, maxT, t, offset, offset + count);
+                return;
             }
+            int half = count / 2;
+            invokeAll(new RayCastTask(rays, maxT, t, offset, half),
+                    new RayCastTask(rays, maxT, t, offset + half, count - half));
         }
+    }
 
-        return retval;
+    /**
+     * Copy a rectangular part of the grid to a new grid
+     *
+     * @param row0 first row
+     * @param col0 first column
+     * @param nrows number of rows
+     * @param ncols number of columns
+     * @return new grid with the same spacing, georeference and height storage
+     */
+    DTMGrid copyWindow(int row0, int col0, int nrows, int ncols) {
+        DTMGrid grid;
+        if (arrQ != null) {
+            grid = new DTMGrid(nrows, ncols, ShortBuffer.allocate(nrows * ncols), q_base, q_scale);
+            for (int r = 0; r < nrows; ++r) {
+                for (int c = 0; c < ncols; ++c)
+                    grid.arrQ.put(r * ncols + c, arrQ.get((row0 + r) * (int) cols + col0 + c));
+            }
+        } else {
+            grid = new DTMGrid(nrows, ncols);
+            for (int r = 0; r < nrows; ++r) {
+                for (int c = 0; c < ncols; ++c)
+                    grid.arrH.put(r * ncols + c, gridValue(col0 + c, row0 + r));
+            }
+        }
+        grid.setCoordinateParams(ul_N - row0 * utm_space, ul_E + col0 * utm_space, utm_space);
+        if (origin != null)
+            grid.setOrigin(origin);
+        return grid;
     }
 
     public float gridToWorldX(float x_grid, float y_grid) {
@@ -282,4 +636,33 @@ public class DTMGrid {
     public long getCols() {
         return cols;
     }
+
+    /**
+     * @return northing (UTM33/ETRS89) of the upper left grid point
+     */
+    public double getUpperLeftN() {
+        return ul_N;
+    }
+
+    /**
+     * @return easting (UTM33/ETRS89) of the upper left grid point
+     */
+    public double getUpperLeftE() {
+        return ul_E;
+    }
+
+    /**
+     * @return grid spacing in world coordinates, the UTM spacing adjusted for the scale of the projection
+     */
+    @Override
+    public float getSpacing() {
+        return (float) space;
+    }
+
+    /**
+     * @return grid spacing in UTM33/ETRS89
+     */
+    public double getUtmSpacing() {
+        return utm_space;
+    }
 }
@@ -1,19 +1,21 @@
 package no.kartverket.data.dtm;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
+import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
-import java.nio.FloatBuffer;
-import java.util.StringTokenizer;
+import java.util.HashMap;
 //import java.util.stream.Collectors;
 
 import no.kartverket.data.utils.DTMRequest;
@@ -33,190 +35,207 @@ public class DTMGridProvider {
     static final String gridfile_norkart = "Sandvika_23.XYZ";
     static final String gridfile_kartverket = "Kartverket_23.XYZ";
 
+    // Grid spacing of tiles from height services
+    static final double request_spacing = 1.0;
+    // Center of single grid requests is snapped to this step
+    static final double wms_snap = 10.0;
 
-    static private DTMGrid read_grid(Context context, String grid_file, double lat, double lon) throws IOException {
-
-        double prev_N = -99.e99;
-
-
-        StringTokenizer token1 = null;
-        {
-            InputStream is = context.getAssets().open(grid_file);
-            int size = is.available();
-
-            byte[] buffer = new byte[size];
-            is.read(buffer);
-            is.close();
-
-            String str = new String(buffer);
-
-            token1 = new StringTokenizer(str, "\n");
-        }
-        int num_points = 0, rows = 0, cols = 0;
-        double ul_N = 0, ul_E = 0, space = 0;
-        FloatBuffer grid_buf = FloatBuffer.allocate(1024);
-        grid_buf.clear();
-
-        while (token1.hasMoreTokens()) {
-            int num_d = 0;
-            double[] xyz = {0, 0, 0};
-            String line = token1.nextToken();
-            StringTokenizer token2 = new StringTokenizer(line, " \r\n");
-            while (token2.hasMoreTokens() && num_d < 3) {
-                String strd = token2.nextToken();
-                xyz[num_d] = Double.parseDouble(strd);
-                num_d++;
-            }
+    static private DTMDiskCache disk_cache;
 
-            if (num_d == 3) {
-                // If necessary, increase buffer size
-                if (grid_buf.position() >= grid_buf.capacity()) {
-                    FloatBuffer tmp = FloatBuffer.allocate(grid_buf.capacity() * 2);
-                    tmp.clear();
-                    grid_buf.flip();
-                    tmp.put(grid_buf);
-                    grid_buf = tmp;
-                }
-                // Add point
-                num_points++;
-                grid_buf.put((float) xyz[2]);
-            }
+    // Bundled grids, read once and shared by the tile loaders
+    static private final HashMap<String, DTMGrid> asset_grids = new HashMap<>();
 
-            // First point, save upper left
-            if (num_points == 1) {
-                ul_N = xyz[0];
-                ul_E = xyz[1];
-            }
 
-            // Second point, save spacing in grid
-            if (num_points == 2) {
-                space = xyz[1] - ul_E;
+    static private DTMGrid read_grid(Context context, String grid_file, double lat, double lon) throws IOException {
+        AssetManager assets = context.getAssets();
+
+        // Prefer the binary tile, which is memory mapped and used without parsing
+        String tile_file = grid_file.substring(0, grid_file.lastIndexOf('.')) + DTMTileFormat.EXTENSION;
+        try {
+            AssetFileDescriptor fd = assets.openFd(tile_file);
+            FileInputStream stream = fd.createInputStream();
+            try {
+                return DTMTileFormat.map(stream, fd.getStartOffset(), fd.getLength());
+            } finally {
+                // The mapping stays valid after the file is closed
+                stream.close();
+                fd.close();
             }
+        } catch (FileNotFoundException e) {
+            // Missing, or stored compressed in the apk and not possible to map
+        }
 
-            // New row, find out grid size
-            if (xyz[0] != prev_N) {
-                rows++;
-                if (cols == 0 && num_points > 1)
-                    cols = num_points - 1;
+        try {
+            InputStream is = assets.open(tile_file);
+            try {
+                return DTMTileFormat.load(is, is.available());
+            } finally {
+                is.close();
             }
-
-            prev_N = xyz[0];
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "No binary tile " + tile_file + ", reading " + grid_file);
         }
 
-        grid_buf.flip();
-
-        DTMGrid grid = new DTMGrid(rows, cols);
-        grid.arrH.put(grid_buf);
-        grid.arrH.flip();
-        grid.setCoordinateParams(ul_N, ul_E, space);
-
-        return grid;
-
+        InputStream is = assets.open(grid_file);
+        try {
+            return DTMGridReader.readXYZ(is);
+        } finally {
+            is.close();
+        }
     }
 
-    static private DTMGrid readAsciiGrid(Reader inputReader) throws IOException {
-
-        BufferedReader reader = new BufferedReader(inputReader);
-
-        int ncols = -1;
-        int nrows = -1;
-        double xllcorner = Double.NEGATIVE_INFINITY;
-        double yllcorner = Double.NEGATIVE_INFINITY;
-        double cellsize = -1;
-        double nodata_value = Double.NEGATIVE_INFINITY;
-
-
-        String line = reader.readLine();
+    static private DTMGrid wms_grid(Context context, DTMRequest request, double lat, double lon) throws IOException {
+        int dim = 180;
 
-        while (line != null) {
-            String[] linesplit = line.trim().split("\\s+");
+        Geodesy.Coords_xy lat_lon = new Geodesy.Coords_xy(lat, lon);
+        Geodesy.Coords_xy xy = new Geodesy.Coords_xy();
+        Geodesy.latlon2utm(lat_lon, xy);
 
-            if (linesplit[0].equals("ncols"))
-                ncols = Integer.parseInt(linesplit[1]);
-            else if (linesplit[0].equals("nrows"))
-                nrows = Integer.parseInt(linesplit[1]);
-            else if (linesplit[0].equals("cellsize"))
-                cellsize = Double.parseDouble(linesplit[1]);
-            else if (linesplit[0].equals("xllcorner"))
-                xllcorner = Double.parseDouble(linesplit[1]);
-            else if (linesplit[0].equals("yllcorner"))
-                yllcorner = Double.parseDouble(linesplit[1]);
-            else if (linesplit[0].equals("nodata_value"))
-                nodata_value = Double.parseDouble(linesplit[1]);
-            else
-                break;
+        // Snap center, so small moves of the origin give the same request
+        double center_x = Math.round(xy._y / wms_snap) * wms_snap;
+        double center_y = Math.round(xy._x / wms_snap) * wms_snap;
 
-            line = reader.readLine();
-        }
+        double minx = center_x - dim / 2.;
+        double miny = center_y - dim / 2.;
+        double maxx = center_x + dim / 2.;
+        double maxy = center_y + dim / 2.;
 
-        double minx = xllcorner;
-        double maxy = yllcorner + nrows * cellsize;
+        return request_grid(getDiskCache(context), request, minx, miny, maxx, maxy, dim, dim);
+    }
 
-        DTMGrid grid = new DTMGrid(nrows, ncols);
-        while (line != null) {
-            String[] linesplit = line.trim().split("\\s+");
-            for (String s : linesplit) {
-                float h = Float.parseFloat(s);
-                grid.arrH.put(h);
+    /**
+     * Get a bundled grid, reading it on first use. The grid is shared and must not be changed.
+     */
+    static private DTMGrid asset_grid(Context context, String grid_file) throws IOException {
+        synchronized (asset_grids) {
+            DTMGrid grid = asset_grids.get(grid_file);
+            if (grid == null) {
+                grid = read_grid(context, grid_file, 0, 0);
+                asset_grids.put(grid_file, grid);
             }
-
-            line = reader.readLine();
+            return grid;
         }
+    }
 
-        grid.arrH.rewind();
-        grid.setCoordinateParams(maxy, minx, cellsize);
+    /**
+     * Read the bundled grids used by {@link #tile_loader(Context, DTMRequest)}, so loading the
+     * first tiles does not wait for them. Binary tiles are only mapped, not read.
+     *
+     * @param context context for reading assets
+     * @throws IOException if a grid can not be read
+     */
+    static public void preload_assets(Context context) throws IOException {
+        asset_grid(context, gridfile_norkart);
+        asset_grid(context, gridfile_kartverket);
+    }
 
-        return grid;
+    /**
+     * Get the disk cache for height service responses
+     *
+     * @param context context giving the cache directory
+     * @return the cache
+     */
+    static public synchronized DTMDiskCache getDiskCache(Context context) {
+        if (disk_cache == null)
+            disk_cache = new DTMDiskCache(new File(context.getCacheDir(), "dtm"), DTMDiskCache.DEFAULT_MAX_BYTES);
+        return disk_cache;
     }
 
-    static private DTMGrid wms_grid(DTMRequest request, double lat, double lon) throws IOException {
-        int dim = 180;
-        float wms_max_h = 25000, wms_min_h = -25000;
+    /**
+     * Get a grid from a height service, through the disk cache
+     */
+    static private DTMGrid request_grid(DTMDiskCache cache, DTMRequest request, double minx, double miny, double maxx, double maxy,
+                                        int width, int height) throws IOException {
+        String key = request.cacheKey(minx, miny, maxx, maxy, width, height);
+        DTMDiskCache.Entry entry = cache.lookup(key);
+
+        if (entry != null && (entry.isFresh() || cache.isOffline())) {
+            DTMGrid grid = cache.read(entry);
+            if (grid != null)
+                return grid;
+            entry = null;
+        }
 
-        Geodesy.Coords_xy lat_lon = new Geodesy.Coords_xy(lat, lon);
-        Geodesy.Coords_xy xy = new Geodesy.Coords_xy();
-        Geodesy.latlon2utm(lat_lon, xy);
+        if (cache.isOffline()) {
+            DTMGrid grid = cache.findCovering(request.getServiceKey(), minx, miny, maxx, maxy);
+            if (grid == null)
+                throw new IOException("Offline, and no cached grid covers the area");
+            return grid;
+        }
 
+        try {
+            java.net.URL url = request.createRequest(minx, miny, maxx, maxy, width, height);
+            HttpURLConnection connection = (HttpURLConnection) url
+                    .openConnection();
+            connection.setDoInput(true);
+            if (entry != null) {
+                // Conditional request, to validate the cached grid
+                if (entry.getETag() != null)
+                    connection.setRequestProperty("If-None-Match", entry.getETag());
+                if (entry.getLastModified() != null)
+                    connection.setRequestProperty("If-Modified-Since", entry.getLastModified());
+            }
+            connection.connect();
+
+            if (entry != null && connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                cache.validated(entry);
+                DTMGrid grid = cache.read(entry);
+                if (grid != null)
+                    return grid;
+                return request_grid(cache, request, minx, miny, maxx, maxy, width, height);
+            }
 
-        double minx = xy._y - dim / 2.;
-        double miny = xy._x - dim / 2.;
-        double maxx = xy._y + dim / 2.;
-        double maxy = xy._x + dim / 2.;
+            DTMGrid grid = read_response(connection, minx, maxy, (maxx - minx) / width);
+            if (grid != null)
+                cache.put(key, request.getServiceKey(), minx, miny, maxx, maxy, grid,
+                        connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            return grid;
+        }
+        catch (IOException ex) {
+            // No network, use what we have
+            DTMGrid grid = entry != null ? cache.read(entry) : null;
+            if (grid == null)
+                grid = cache.findCovering(request.getServiceKey(), minx, miny, maxx, maxy);
+            if (grid == null)
+                throw ex;
+            Log.w(TAG, "Height service not available, using cached grid", ex);
+            return grid;
+        }
+    }
 
-        java.net.URL url = request.createRequest(minx, miny, maxx, maxy, dim, dim);
-        HttpURLConnection connection = (HttpURLConnection) url
-                .openConnection();
-        connection.setDoInput(true);
-        connection.connect();
+    /**
+     * Parse a height service response
+     *
+     * @param connection connected request
+     * @param minx western limit of requested area, used for images
+     * @param maxy northern limit of requested area, used for images
+     * @param space pixel size, used for images
+     * @return the grid, or null if the response did not contain a grid
+     */
+    static private DTMGrid read_response(HttpURLConnection connection, double minx, double maxy, double space) throws IOException {
         String content_type = connection.getContentType();
 
         if ("image/png".equals(content_type)) {
             InputStream input = connection.getInputStream();
             Bitmap bm = BitmapFactory.decodeStream(input);
+            if (bm == null)
+                return null;
 
-            DTMGrid grid = new DTMGrid(bm.getHeight(), bm.getWidth());
-
-            for (int j = 0; j < bm.getHeight(); ++j) {
-                for (int i = 0; i < bm.getWidth(); ++i) {
-                    int pixel = bm.getPixel(i, j);
-                    int r = Color.red(pixel);
-                    int g = Color.green(pixel);
-                    int b = Color.blue(pixel);
+            // Bulk copy of the pixels, decoded in parallel straight into the grid storage
+            int width = bm.getWidth();
+            int height = bm.getHeight();
+            int[] pixels = new int[width * height];
+            bm.getPixels(pixels, 0, width, 0, 0, width, height);
+            bm.recycle();
 
-                    float h = (wms_max_h - wms_min_h) * ((r << 16) | (g << 8) | b) / 16777215.f + wms_min_h;
-                    grid.arrH.put(h);
-                }
-            }
-            grid.arrH.rewind();
-            grid.setCoordinateParams(maxy, minx, 1);
+            DTMGrid grid = new RgbHeightDecoder().decodeGrid(pixels, width, height);
+            grid.setCoordinateParams(maxy, minx, space);
 
             return grid;
         }
         else if ("application/arcgrid".equals(content_type) || "image/x-aaigrid".equals(content_type)) {
-            InputStream input = connection.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-
-            return readAsciiGrid(reader);
+            // Parsed while downloading
+            return DTMGridReader.readAsciiGrid(connection.getInputStream());
         }
         else if (content_type.startsWith("multipart/related")) {
 
@@ -229,15 +248,13 @@ public class DTMGridProvider {
 
 
 
-            InputStream inputStream = connection.getInputStream();
-            String newLine = System.getProperty("line.separator");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-            StringBuilder result = new StringBuilder();
+            // Headers and grid are read from the same scanner, the grid part is parsed while downloading
+            GridTextScanner scanner = new GridTextScanner(connection.getInputStream());
             String line = "";
 
             while (line != null) {
                 String sub_content_type = "";
-                while ((line = reader.readLine()) != null) {
+                while ((line = scanner.readLine()) != null) {
                     if (line.equals(""))
                         break;
 
@@ -249,17 +266,13 @@ public class DTMGridProvider {
                 if (sub_content_type.equals("application/arcgrid") ||
                     sub_content_type.equals("image/x-aaigrid")) {
 
-                    boolean flag = false;
-                    while ((line = reader.readLine()) != null) {
-                        if (line.equals(boundary))
-                            break;
-                        result.append(flag ? newLine : "").append(line);
-                        flag = true;
-                    }
-
-                    BufferedReader gridReader = new BufferedReader(new StringReader(result.toString()));
+                    return DTMGridReader.readAsciiGrid(scanner);
+                }
 
-                    return readAsciiGrid(gridReader);
+                // Skip to next part
+                while ((line = scanner.readLine()) != null) {
+                    if (line.equals(boundary))
+                        break;
                 }
             }
 
@@ -284,7 +297,7 @@ public class DTMGridProvider {
 
     static public DTMGrid get_grid(Context context, double lat, double lon, DTMRequest request) throws IOException {
         if (request != null) {
-            return wms_grid(request, lat, lon);
+            return wms_grid(context, request, lat, lon);
         }
 
         if ( Geodesy.IsPositionCloseNorkart(lat, lon) )
@@ -296,4 +309,56 @@ public class DTMGridProvider {
         else
             throw new IllegalArgumentException("Unable to create a DTMGrid from data");
     }
+
+    /**
+     * Create a tile source for a {@link DTMTileCache}.
+     *
+     * @param context context for reading assets
+     * @param request height service, or null to use the bundled grids
+     * @return the tile loader
+     */
+    static public DTMTileCache.TileLoader tile_loader(final Context context, final DTMRequest request) {
+        if (request != null) {
+            return new DTMTileCache.TileLoader() {
+                @Override
+                public DTMGrid loadTile(double minN, double minE, double maxN, double maxE) throws IOException {
+                    // One extra cell on all sides
+                    double space = request_spacing;
+                    int width = (int) Math.round((maxE - minE) / space) + 2;
+                    int height = (int) Math.round((maxN - minN) / space) + 2;
+                    return request_grid(getDiskCache(context), request, minE - space, minN - space,
+                            minE - space + width * space, minN - space + height * space, width, height);
+                }
+            };
+        }
+
+        return new DTMTileCache.TileLoader() {
+            @Override
+            public DTMGrid loadTile(double minN, double minE, double maxN, double maxE) throws IOException {
+                Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+                Geodesy.utm2latlon(new Geodesy.Coords_xy((minN + maxN) / 2, (minE + maxE) / 2), latlon);
+
+                String grid_file;
+                if (Geodesy.IsPositionCloseNorkart(latlon._x, latlon._y))
+                    grid_file = gridfile_norkart;
+                else if (Geodesy.IsPositionCloseKartverket(latlon._x, latlon._y))
+                    grid_file = gridfile_kartverket;
+                else
+                    return null;
+
+                DTMGrid grid = asset_grid(context, grid_file);
+
+                // Copy the tile area, with one extra cell on all sides
+                double space = grid.getUtmSpacing();
+                int c0 = Math.max((int) Math.floor((minE - space - grid.getUpperLeftE()) / space), 0);
+                int c1 = Math.min((int) Math.ceil((maxE + space - grid.getUpperLeftE()) / space), (int) grid.getCols() - 1);
+                int r0 = Math.max((int) Math.floor((grid.getUpperLeftN() - maxN - space) / space), 0);
+                int r1 = Math.min((int) Math.ceil((grid.getUpperLeftN() - minN + space) / space), (int) grid.getRows() - 1);
+                if (c1 <= c0 || r1 <= r0)
+                    return null;
+
+                return grid.copyWindow(r0, c0, r1 - r0 + 1, c1 - c0 + 1);
+            }
+        };
+    }
 }
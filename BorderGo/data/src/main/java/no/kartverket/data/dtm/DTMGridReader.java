@@ -0,0 +1,165 @@
+package no.kartverket.data.dtm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Streaming parsers for the text based grid formats, see {@link GridTextScanner}. Kept free of Android dependencies so they can be used
+ * by {@link DTMTileConverter} on the desktop as well as by {@link DTMGridProvider}.
+ */
+
+class DTMGridReader {
+
+    private DTMGridReader() {
+    }
+
+    /**
+     * Read a grid from XYZ text, one "N E H" point per line, rows from north and columns from west
+     *
+     * @param is stream with XYZ data, read to the end but not closed
+     * @return the grid
+     * @throws IOException on read errors
+     */
+    static DTMGrid readXYZ(InputStream is) throws IOException {
+        // Start with room for the whole file, assuming about 25 bytes per point
+        return readXYZ(new GridTextScanner(is), is.available() / 25);
+    }
+
+    /**
+     * Read a grid from XYZ text in a buffer
+     *
+     * @param buffer XYZ data from the buffer position to the limit
+     * @return the grid
+     * @throws IOException on read errors
+     */
+    static DTMGrid readXYZ(ByteBuffer buffer) throws IOException {
+        return readXYZ(new GridTextScanner(buffer), buffer.remaining() / 25);
+    }
+
+    private static DTMGrid readXYZ(GridTextScanner scanner, int size_hint) throws IOException {
+
+        double prev_N = -99.e99;
+
+        int num_points = 0, rows = 0, cols = 0;
+        double ul_N = 0, ul_E = 0, space = 0;
+        float[] heights = new float[Math.max(size_hint, 1024)];
+        double[] xyz = {0, 0, 0};
+
+        while (scanner.skipSpace()) {
+            int num_d = 0;
+            while (num_d < 3 && scanner.skipBlanks() && scanner.atNumber()) {
+                xyz[num_d] = scanner.readDouble();
+                num_d++;
+            }
+            scanner.nextLine();
+
+            if (num_d < 3)
+                continue;
+
+            // If necessary, increase buffer size
+            if (num_points >= heights.length)
+                heights = Arrays.copyOf(heights, heights.length * 2);
+
+            // Add point
+            heights[num_points++] = (float) xyz[2];
+
+            // First point, save upper left
+            if (num_points == 1) {
+                ul_N = xyz[0];
+                ul_E = xyz[1];
+            }
+
+            // Second point, save spacing in grid
+            if (num_points == 2) {
+                space = xyz[1] - ul_E;
+            }
+
+            // New row, find out grid size
+            if (xyz[0] != prev_N) {
+                rows++;
+                if (cols == 0 && num_points > 1)
+                    cols = num_points - 1;
+            }
+
+            prev_N = xyz[0];
+        }
+
+        // The height array is used as grid storage without copying
+        DTMGrid grid = new DTMGrid(rows, cols, FloatBuffer.wrap(heights));
+        grid.setCoordinateParams(ul_N, ul_E, space);
+
+        return grid;
+    }
+
+    /**
+     * Read a grid in ESRI ASCII grid format
+     *
+     * @param is stream with grid data, read until the last height value, not closed
+     * @return the grid
+     * @throws IOException on read errors
+     */
+    static DTMGrid readAsciiGrid(InputStream is) throws IOException {
+        return readAsciiGrid(new GridTextScanner(is));
+    }
+
+    /**
+     * Read a grid in ESRI ASCII grid format. Reading stops after the last height value, so the
+     * grid may be followed by other data, for example the next part of a multipart response.
+     *
+     * @param scanner scanner positioned at the start of the grid header
+     * @return the grid
+     * @throws IOException on read errors
+     */
+    static DTMGrid readAsciiGrid(GridTextScanner scanner) throws IOException {
+
+        int ncols = -1;
+        int nrows = -1;
+        double xllcorner = Double.NEGATIVE_INFINITY;
+        double yllcorner = Double.NEGATIVE_INFINITY;
+        double cellsize = -1;
+        double nodata_value = Double.NEGATIVE_INFINITY;
+
+        // Header lines, until the first line starting with a number
+        while (scanner.skipSpace() && !scanner.atNumber()) {
+            String key = scanner.readWord();
+            scanner.skipBlanks();
+
+            if (key.equalsIgnoreCase("ncols"))
+                ncols = (int) scanner.readDouble();
+            else if (key.equalsIgnoreCase("nrows"))
+                nrows = (int) scanner.readDouble();
+            else if (key.equalsIgnoreCase("cellsize"))
+                cellsize = scanner.readDouble();
+            else if (key.equalsIgnoreCase("xllcorner"))
+                xllcorner = scanner.readDouble();
+            else if (key.equalsIgnoreCase("yllcorner"))
+                yllcorner = scanner.readDouble();
+            else if (key.equalsIgnoreCase("nodata_value"))
+                nodata_value = scanner.readDouble();
+
+            scanner.nextLine();
+        }
+
+        if (nrows < 0 || ncols < 0)
+            throw new IOException("Missing size in ASCII grid header");
+
+        double minx = xllcorner;
+        double maxy = yllcorner + nrows * cellsize;
+
+        // Values are decoded straight into the grid storage, missing values as NaN
+        float nodata = (float) nodata_value;
+        float[] heights = new float[nrows * ncols];
+        for (int i = 0; i < heights.length; ++i) {
+            float h = scanner.readFloat();
+            heights[i] = h == nodata ? Float.NaN : h;
+        }
+
+        DTMGrid grid = new DTMGrid(nrows, ncols, FloatBuffer.wrap(heights));
+        grid.setCoordinateParams(maxy, minx, cellsize);
+
+        return grid;
+    }
+}
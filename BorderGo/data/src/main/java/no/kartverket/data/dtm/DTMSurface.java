@@ -0,0 +1,68 @@
+package no.kartverket.data.dtm;
+
+import no.kartverket.geodesy.OriginData;
+
+/**
+ * A terrain surface that can be queried for heights, closest facets and ray hits, either a single
+ * {@link DTMGrid} or a set of tiles in a {@link DTMTileCache}.
+ */
+public interface DTMSurface {
+
+    /**
+     * Set the local origin used for world coordinates
+     *
+     * @param origin the origin
+     */
+    void setOrigin(OriginData origin);
+
+    /**
+     * Compute interpolated value for a position
+     *
+     * @param lat latitude of position
+     * @param lng longitude of position
+     * @return height value, or {@link Double#NEGATIVE_INFINITY} if the position is not covered
+     */
+    double getInterpolatedAltitude(double lat, double lng);
+
+    /**
+     * Compute interpolated values for a set of positions
+     *
+     * @param lat latitudes of positions
+     * @param lng longitudes of positions
+     * @param heights receives height values, {@link Double#NEGATIVE_INFINITY} for positions not covered
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    void getInterpolatedAltitudes(double[] lat, double[] lng, double[] heights, int offset, int count);
+
+    /**
+     * Compute plane equation for the closest point in the surface.
+     *
+     * @param x world coordinate of point
+     * @param y world coordinate of point
+     * @param z world coordinate of point
+     * @return plane equation as given in {@link no.kartverket.geometry.Triangle#pointTriangle(float[], float[], float[], float[], float[])},
+     *         or null if the point is not covered
+     */
+    float[] getSurfacePlane(float x, float y, float z);
+
+    /**
+     * @return horizontal spacing of the grid points in world coordinates, or 0 if not known
+     */
+    float getSpacing();
+
+    /**
+     * Find the first point where a ray hits the surface, in world coordinates. The ray is
+     * {@code o + t * d} for {@code 0 <= t <= maxT}.
+     *
+     * @param ox world coordinate of ray origin
+     * @param oy world coordinate of ray origin
+     * @param oz world coordinate of ray origin
+     * @param dx ray direction
+     * @param dy ray direction
+     * @param dz ray direction
+     * @param maxT max ray parameter
+     * @return ray parameter of the hit, {@link Float#POSITIVE_INFINITY} if the ray does not hit the surface
+     */
+    float rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT);
+}
@@ -0,0 +1,508 @@
+package no.kartverket.data.dtm;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import no.kartverket.geometry.Triangle;
+
+/**
+ * Precomputed data for closest facet queries and ray casts in a {@link DTMGrid}, see
+ * {@link DTMGrid#getSurfacePlane(float, float, float, float[])} and
+ * {@link DTMGrid#rayCast(float, float, float, float, float, float, float)}.<p>
+ *
+ * Holds the world position of every grid point, the plane of every triangle and a pyramid with
+ * the height range of blocks of cells. Level 0 of the pyramid has blocks of {@link #BLOCK} x
+ * {@link #BLOCK} cells, and each level above merges {@link #BLOCK} x {@link #BLOCK} blocks of the
+ * level below, up to a single block covering the whole grid.<p>
+ *
+ * A closest facet query visits the cells in rings around the point, and skips blocks, cells and
+ * triangles where a lower bound of the distance shows that they can not be closer than the best
+ * facet found so far. The exact point to triangle distance is only computed for the few remaining
+ * candidates.<p>
+ *
+ * A ray cast walks the blocks of the top level along the ray, front to back, and only descends
+ * into blocks where the height range of the ray overlaps the height range of the block. At the
+ * bottom, the two triangles of each cell crossed by the ray are intersected exactly.<p>
+ *
+ * Facets with a missing corner height are never returned. The positions depend on the origin of
+ * the grid, so a new index must be made when the origin changes.
+ */
+class DTMSurfaceIndex {
+    static final int BLOCK_SHIFT = 3;
+    /** Cells along each side of a block */
+    static final int BLOCK = 1 << BLOCK_SHIFT;
+
+    // Facets within this distance from the best are not skipped, covering rounding of the bounds
+    private static final float SLACK = 1e-3f;
+    // Tolerance of ray hits on cell edges, in cells, and of ray heights against block ranges, meters
+    private static final float EDGE_SLACK = 1e-4f;
+    private static final float RAY_SLACK = 1e-3f;
+
+    /**
+     * Work arrays for a query, one set per thread
+     */
+    private static class Scratch {
+        final float[] p = new float[3];
+        final float[] p00 = new float[3];
+        final float[] p01 = new float[3];
+        final float[] p10 = new float[3];
+        final float[] p11 = new float[3];
+        final float[] tmp = new float[4];
+        final Ray ray = new Ray();
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private final int rows;
+    private final int cols;
+    private final float space;
+
+    // World coordinates of grid points, line by line from upper left
+    private final float[] px;
+    private final float[] py;
+    private final float[] pz;
+
+    // Plane (normal and constant) of the two triangles of each cell
+    private final float[] planes;
+
+    // Height range of each block, by pyramid level
+    private final int[] levelCols;
+    private final int[] levelRows;
+    private final float[][] levelMin;
+    private final float[][] levelMax;
+
+    /**
+     * Build the index of a grid
+     *
+     * @param grid the grid, with origin set
+     * @param space grid spacing in world coordinates
+     * @param h_0 height of the origin
+     */
+    DTMSurfaceIndex(DTMGrid grid, float space, float h_0) {
+        rows = (int) grid.getRows();
+        cols = (int) grid.getCols();
+        this.space = space;
+
+        int n = rows * cols;
+        px = new float[n];
+        py = new float[n];
+        pz = new float[n];
+
+        if (grid.arrH != null) {
+            FloatBuffer heights = grid.arrH.duplicate();
+            heights.clear();
+            heights.get(pz, 0, n);
+        } else {
+            for (int i = 0; i < n; ++i)
+                pz[i] = grid.height(i);
+        }
+        for (int r = 0, i = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c, ++i) {
+                px[i] = grid.gridToWorldX(c, r);
+                py[i] = grid.gridToWorldY(c, r);
+                pz[i] = pz[i] - h_0;
+            }
+        }
+
+        planes = new float[Math.max(rows - 1, 0) * Math.max(cols - 1, 0) * 8];
+        for (int r = 0; r < rows - 1; ++r) {
+            for (int c = 0; c < cols - 1; ++c) {
+                int i = r * cols + c;
+                int j = (r * (cols - 1) + c) * 8;
+                plane(i, i + cols, i + 1, j);
+                plane(i + cols + 1, i + cols, i + 1, j + 4);
+            }
+        }
+
+        int levels = 1;
+        for (int n_c = cols - 1, n_r = rows - 1; n_c > BLOCK || n_r > BLOCK; ++levels) {
+            n_c = (n_c + BLOCK - 1) >> BLOCK_SHIFT;
+            n_r = (n_r + BLOCK - 1) >> BLOCK_SHIFT;
+        }
+        levelCols = new int[levels];
+        levelRows = new int[levels];
+        levelMin = new float[levels][];
+        levelMax = new float[levels][];
+
+        int blockRows = Math.max((rows - 2 + BLOCK) >> BLOCK_SHIFT, 0);
+        int blockCols = Math.max((cols - 2 + BLOCK) >> BLOCK_SHIFT, 0);
+        float[] blockMin = new float[blockRows * blockCols];
+        float[] blockMax = new float[blockMin.length];
+        for (int br = 0; br < blockRows; ++br) {
+            for (int bc = 0; bc < blockCols; ++bc) {
+                float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                int r1 = Math.min((br + 1) << BLOCK_SHIFT, rows - 1);
+                int c1 = Math.min((bc + 1) << BLOCK_SHIFT, cols - 1);
+                for (int r = br << BLOCK_SHIFT; r <= r1; ++r) {
+                    for (int c = bc << BLOCK_SHIFT; c <= c1; ++c) {
+                        // Missing heights are NaN, and left out
+                        float z = pz[r * cols + c];
+                        if (z < min)
+                            min = z;
+                        if (z > max)
+                            max = z;
+                    }
+                }
+                blockMin[br * blockCols + bc] = min;
+                blockMax[br * blockCols + bc] = max;
+            }
+        }
+        levelCols[0] = blockCols;
+        levelRows[0] = blockRows;
+        levelMin[0] = blockMin;
+        levelMax[0] = blockMax;
+
+        for (int l = 1; l < levels; ++l) {
+            int lc = (levelCols[l - 1] + BLOCK - 1) >> BLOCK_SHIFT;
+            int lr = (levelRows[l - 1] + BLOCK - 1) >> BLOCK_SHIFT;
+            float[] min = new float[lr * lc];
+            float[] max = new float[min.length];
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            for (int r = 0; r < levelRows[l - 1]; ++r) {
+                for (int c = 0; c < levelCols[l - 1]; ++c) {
+                    int i = (r >> BLOCK_SHIFT) * lc + (c >> BLOCK_SHIFT);
+                    int j = r * levelCols[l - 1] + c;
+                    min[i] = Math.min(min[i], levelMin[l - 1][j]);
+                    max[i] = Math.max(max[i], levelMax[l - 1][j]);
+                }
+            }
+            levelCols[l] = lc;
+            levelRows[l] = lr;
+            levelMin[l] = min;
+            levelMax[l] = max;
+        }
+    }
+
+    /**
+     * Store the plane of a triangle, normal with unit length and constant
+     */
+    private void plane(int i1, int i2, int i3, int j) {
+        float e0x = px[i2] - px[i1], e0y = py[i2] - py[i1], e0z = pz[i2] - pz[i1];
+        float e1x = px[i3] - px[i1], e1y = py[i3] - py[i1], e1z = pz[i3] - pz[i1];
+        float a = e0y * e1z - e0z * e1y;
+        float b = e0z * e1x - e0x * e1z;
+        float c = e0x * e1y - e0y * e1x;
+        float invLen = 1 / (float) Math.sqrt(a * a + b * b + c * c);
+        a *= invLen;
+        b *= invLen;
+        c *= invLen;
+        planes[j] = a;
+        planes[j + 1] = b;
+        planes[j + 2] = c;
+        planes[j + 3] = a * px[i1] + b * py[i1] + c * pz[i1];
+    }
+
+    /**
+     * Squared lower bound of the distance between a point and the facets of a rectangle of cells,
+     * from the horizontal distance and the height range
+     */
+    private float boundSq(float gx, float gy, float z, int c0, int r0, int c1, int r1, float zmin, float zmax) {
+        float du = gx < c0 ? c0 - gx : gx > c1 ? gx - c1 : 0;
+        float dv = gy < r0 ? r0 - gy : gy > r1 ? gy - r1 : 0;
+        float dz = z < zmin ? zmin - z : z > zmax ? z - zmax : 0;
+        return (du * du + dv * dv) * space * space + dz * dz;
+    }
+
+    /**
+     * Find the closest facet to a point. See {@link DTMGrid#getSurfacePlane(float, float, float, float[])}.
+     *
+     * @param x coordinate of point
+     * @param y coordinate of point
+     * @param z coordinate of point
+     * @param gx grid column of point, inside the grid
+     * @param gy grid row of point, inside the grid
+     * @param radius max number of cells to search from the cell of the point
+     * @param retval receives the plane equation, unchanged if no facet is found
+     * @return distance to the closest facet, {@link Float#POSITIVE_INFINITY} if no facet is found
+     */
+    float closestFacet(float x, float y, float z, float gx, float gy, int radius, float[] retval) {
+        int ix = (int) Math.floor(gx);
+        int iy = (int) Math.floor(gy);
+
+        Scratch s = scratch.get();
+        float[] p = s.p;
+        p[0] = x;
+        p[1] = y;
+        p[2] = z;
+
+        boolean found = false;
+        float best_dist = 2 * space + Math.abs(z - pz[iy * cols + ix]);
+        if (best_dist != best_dist) {
+            // Missing height below the point, search the whole area
+            best_dist = Float.POSITIVE_INFINITY;
+        }
+        float limit = best_dist + SLACK;
+
+        final int blockCols = levelCols[0];
+        final float[] blockMin = levelMin[0];
+        final float[] blockMax = levelMax[0];
+        int last_block = -1;
+        boolean skip_block = false;
+
+        for (int k = 0; k <= radius; ++k) {
+            // All cells in ring k are at least k - 1 cells away horizontally
+            if (k > 1 && (k - 1) * space > limit)
+                break;
+
+            for (int dr = -k; dr <= k; ++dr) {
+                int r = iy + dr;
+                if (r < 0 || r >= rows - 1)
+                    continue;
+
+                // Whole row on the top and bottom of the ring, only the ends otherwise
+                int step = dr == -k || dr == k ? 1 : 2 * k;
+                for (int dc = -k; dc <= k; dc += step) {
+                    int c = ix + dc;
+                    if (c < 0 || c >= cols - 1)
+                        continue;
+
+                    int block = (r >> BLOCK_SHIFT) * blockCols + (c >> BLOCK_SHIFT);
+                    if (block != last_block) {
+                        int c0 = c & ~(BLOCK - 1), r0 = r & ~(BLOCK - 1);
+                        skip_block = boundSq(gx, gy, z, c0, r0, Math.min(c0 + BLOCK, cols - 1),
+                                Math.min(r0 + BLOCK, rows - 1), blockMin[block], blockMax[block]) > limit * limit;
+                        last_block = block;
+                    }
+                    if (skip_block)
+                        continue;
+
+                    int i00 = r * cols + c;
+                    int i01 = i00 + cols;
+                    int i10 = i00 + 1;
+                    int i11 = i01 + 1;
+                    float zmin = Math.min(Math.min(pz[i00], pz[i01]), Math.min(pz[i10], pz[i11]));
+                    float zmax = Math.max(Math.max(pz[i00], pz[i01]), Math.max(pz[i10], pz[i11]));
+                    if (boundSq(gx, gy, z, c, r, c + 1, r + 1, zmin, zmax) > limit * limit)
+                        continue;
+
+                    int j = (r * (cols - 1) + c) * 8;
+                    boolean first = Math.abs(planes[j] * x + planes[j + 1] * y + planes[j + 2] * z - planes[j + 3]) <= limit;
+                    boolean second = Math.abs(planes[j + 4] * x + planes[j + 5] * y + planes[j + 6] * z - planes[j + 7]) <= limit;
+                    if (!first && !second)
+                        continue;
+
+                    set(s.p00, i00);
+                    set(s.p01, i01);
+                    set(s.p10, i10);
+                    if (first) {
+                        float dist = Triangle.pointTriangle(s.p00, s.p01, s.p10, p, s.tmp);
+                        if (dist < best_dist) {
+                            best_dist = dist;
+                            limit = best_dist + SLACK;
+                            found = true;
+                            System.arraycopy(s.tmp, 0, retval, 0, 4);
+                        }
+                    }
+                    if (second) {
+                        set(s.p11, i11);
+                        float dist = Triangle.pointTriangle(s.p11, s.p01, s.p10, p, s.tmp);
+                        if (dist < best_dist) {
+                            best_dist = dist;
+                            limit = best_dist + SLACK;
+                            found = true;
+                            System.arraycopy(s.tmp, 0, retval, 0, 4);
+                        }
+                    }
+                }
+            }
+        }
+
+        return found ? best_dist : Float.POSITIVE_INFINITY;
+    }
+
+    private void set(float[] v, int i) {
+        v[0] = px[i];
+        v[1] = py[i];
+        v[2] = pz[i];
+    }
+
+    /**
+     * Find the first facet hit by a ray. See
+     * {@link DTMGrid#rayCast(float, float, float, float, float, float, float)}.
+     *
+     * @param ox world coordinate of ray origin
+     * @param oy world coordinate of ray origin
+     * @param oz world coordinate of ray origin
+     * @param dx world direction of ray
+     * @param dy world direction of ray
+     * @param dz world direction of ray
+     * @param u0 grid column of ray origin
+     * @param v0 grid row of ray origin
+     * @param du grid columns per unit of ray parameter
+     * @param dv grid rows per unit of ray parameter
+     * @param maxT max ray parameter
+     * @return ray parameter of the hit, {@link Float#POSITIVE_INFINITY} if no facet is hit
+     */
+    float rayCast(float ox, float oy, float oz, float dx, float dy, float dz,
+                  float u0, float v0, float du, float dv, float maxT) {
+        // Clip the ray to the grid area, with the edge tolerance of the cells, so a ray along a
+        // border rounded to just outside it is still cast from its start
+        float t0 = 0, t1 = maxT;
+        float invDu = 1 / du, invDv = 1 / dv;
+        if (du != 0) {
+            float ta = (-EDGE_SLACK - u0) * invDu, tb = (cols - 1 + EDGE_SLACK - u0) * invDu;
+            t0 = Math.max(t0, Math.min(ta, tb));
+            t1 = Math.min(t1, Math.max(ta, tb));
+        } else if (u0 < -EDGE_SLACK || u0 > cols - 1 + EDGE_SLACK) {
+            return Float.POSITIVE_INFINITY;
+        }
+        if (dv != 0) {
+            float ta = (-EDGE_SLACK - v0) * invDv, tb = (rows - 1 + EDGE_SLACK - v0) * invDv;
+            t0 = Math.max(t0, Math.min(ta, tb));
+            t1 = Math.min(t1, Math.max(ta, tb));
+        } else if (v0 < -EDGE_SLACK || v0 > rows - 1 + EDGE_SLACK) {
+            return Float.POSITIVE_INFINITY;
+        }
+        if (!(t0 <= t1) || levelMin[0].length == 0)
+            return Float.POSITIVE_INFINITY;
+
+        Ray ray = scratch.get().ray;
+        ray.ox = ox;
+        ray.oy = oy;
+        ray.oz = oz;
+        ray.dx = dx;
+        ray.dy = dy;
+        ray.dz = dz;
+        ray.u0 = u0;
+        ray.v0 = v0;
+        ray.du = du;
+        ray.dv = dv;
+        ray.invDu = invDu;
+        ray.invDv = invDv;
+        ray.maxT = maxT;
+
+        int top = levelMin.length - 1;
+        return walk(ray, top, 0, 0, levelCols[top] - 1, levelRows[top] - 1, t0, t1);
+    }
+
+    /**
+     * A ray in world and grid coordinates
+     */
+    private static class Ray {
+        float ox, oy, oz, dx, dy, dz;
+        float u0, v0, du, dv, invDu, invDv;
+        float maxT;
+    }
+
+    /**
+     * Walk the blocks of a pyramid level along a ray, or the cells for level -1
+     *
+     * @param level pyramid level, -1 for cells
+     * @param c0 first block column
+     * @param r0 first block row
+     * @param c1 last block column
+     * @param r1 last block row
+     * @param tEnter ray parameter where the ray enters the blocks
+     * @param tExit ray parameter where the ray leaves the blocks
+     * @return ray parameter of the first hit, {@link Float#POSITIVE_INFINITY} if no facet is hit
+     */
+    private float walk(Ray ray, int level, int c0, int r0, int c1, int r1, float tEnter, float tExit) {
+        // Cells along each side of a block
+        int size = level < 0 ? 1 : BLOCK << (BLOCK_SHIFT * level);
+
+        float t = tEnter;
+        int ix = clamp((int) Math.floor((ray.u0 + t * ray.du) / size), c0, c1);
+        int iy = clamp((int) Math.floor((ray.v0 + t * ray.dv) / size), r0, r1);
+        int sx = ray.du > 0 ? 1 : -1;
+        int sy = ray.dv > 0 ? 1 : -1;
+        // Set when the ray has left the blocks along an axis
+        boolean doneX = ray.du == 0, doneY = ray.dv == 0;
+
+        while (true) {
+            // Ray parameters where the ray crosses the next block boundaries, never behind the
+            // ray when it runs just outside the blocks, within the edge tolerance
+            float tx = doneX ? Float.POSITIVE_INFINITY : ((ix + (sx > 0 ? 1 : 0)) * size - ray.u0) * ray.invDu;
+            float ty = doneY ? Float.POSITIVE_INFINITY : ((iy + (sy > 0 ? 1 : 0)) * size - ray.v0) * ray.invDv;
+            float tNext = Math.max(Math.min(Math.min(tx, ty), tExit), t);
+
+            float za = ray.oz + t * ray.dz, zb = ray.oz + tNext * ray.dz;
+            float zlo = Math.min(za, zb) - RAY_SLACK, zhi = Math.max(za, zb) + RAY_SLACK;
+
+            float hit;
+            if (level < 0) {
+                hit = cell(ray, ix, iy, zlo, zhi);
+            } else {
+                int i = iy * levelCols[level] + ix;
+                if (zlo <= levelMax[level][i] && zhi >= levelMin[level][i]) {
+                    int cc = level > 0 ? levelCols[level - 1] : cols - 1;
+                    int cr = level > 0 ? levelRows[level - 1] : rows - 1;
+                    hit = walk(ray, level - 1, ix << BLOCK_SHIFT, iy << BLOCK_SHIFT,
+                            Math.min((ix << BLOCK_SHIFT) + BLOCK - 1, cc - 1),
+                            Math.min((iy << BLOCK_SHIFT) + BLOCK - 1, cr - 1), t, tNext);
+                } else {
+                    hit = Float.POSITIVE_INFINITY;
+                }
+            }
+            if (hit != Float.POSITIVE_INFINITY)
+                return hit;
+
+            if (tNext >= tExit)
+                break;
+            // A ray along the edge of the blocks may cross a boundary out of them before tExit,
+            // it then goes on along the last blocks in that direction
+            if (tx <= ty) {
+                ix += sx;
+                if (ix < c0 || ix > c1) {
+                    ix -= sx;
+                    doneX = true;
+                }
+            } else {
+                iy += sy;
+                if (iy < r0 || iy > r1) {
+                    iy -= sy;
+                    doneY = true;
+                }
+            }
+            if (doneX && doneY)
+                break;
+            t = tNext;
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    private static int clamp(int i, int min, int max) {
+        return i < min ? min : i > max ? max : i;
+    }
+
+    /**
+     * Intersect a ray with the two triangles of a cell
+     *
+     * @param zlo lowest height of the ray within the cell
+     * @param zhi highest height of the ray within the cell
+     * @return ray parameter of the first hit, {@link Float#POSITIVE_INFINITY} if no triangle is hit
+     */
+    private float cell(Ray ray, int c, int r, float zlo, float zhi) {
+        int i00 = r * cols + c;
+        int i01 = i00 + cols;
+        int i10 = i00 + 1;
+        int i11 = i01 + 1;
+        float zmin = Math.min(Math.min(pz[i00], pz[i01]), Math.min(pz[i10], pz[i11]));
+        float zmax = Math.max(Math.max(pz[i00], pz[i01]), Math.max(pz[i10], pz[i11]));
+        if (!(zlo <= zmax && zhi >= zmin))
+            return Float.POSITIVE_INFINITY;
+
+        float best = Float.POSITIVE_INFINITY;
+        int j = (r * (cols - 1) + c) * 8;
+        for (int k = 0; k < 2; ++k, j += 4) {
+            float t = (planes[j + 3] - planes[j] * ray.ox - planes[j + 1] * ray.oy - planes[j + 2] * ray.oz) /
+                    (planes[j] * ray.dx + planes[j + 1] * ray.dy + planes[j + 2] * ray.dz);
+            if (!(t >= 0 && t <= ray.maxT && t < best))
+                continue;
+
+            // Hit position within the cell, the first triangle has u + v <= 1
+            float u = ray.u0 + t * ray.du - c;
+            float v = ray.v0 + t * ray.dv - r;
+            if (u < -EDGE_SLACK || v < -EDGE_SLACK || u > 1 + EDGE_SLACK || v > 1 + EDGE_SLACK)
+                continue;
+            if (k == 0 ? u + v <= 1 + EDGE_SLACK : u + v >= 1 - EDGE_SLACK)
+                best = t;
+        }
+        return best;
+    }
+}
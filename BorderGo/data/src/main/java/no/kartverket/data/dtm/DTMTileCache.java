@@ -0,0 +1,507 @@
+package no.kartverket.data.dtm;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+/**
+ * A terrain surface made of fixed size tiles, aligned to the UTM33/ETRS89 grid.<p>
+ *
+ * Tiles are loaded on demand by a {@link TileLoader} and kept until the total size of the
+ * resident tiles exceeds a byte budget, when the least recently used tiles are evicted.
+ * Each tile grid extends at least one grid cell outside its tile, so interpolation is
+ * continuous across tile seams, and the closest facet search near a seam also looks in the
+ * neighbouring tiles. All tiles must have the grid spacing of the first tile loaded, tiles with
+ * another spacing are rejected.<p>
+ *
+ * Queries through the {@link DTMSurface} methods never block on loading. A query on a tile
+ * that is not resident starts loading it in the background and reports the position as not
+ * covered. Use {@link #ensureLoaded(double, double, double)} to load an area before use.
+ */
+public class DTMTileCache implements DTMSurface {
+    static final String TAG = DTMTileCache.class.getSimpleName();
+
+    /**
+     * Source of tile data
+     */
+    public interface TileLoader {
+        /**
+         * Load a grid covering an area, including at least one grid cell outside the area on all sides
+         *
+         * @param minN southern limit of area (UTM33/ETRS89)
+         * @param minE western limit of area
+         * @param maxN northern limit of area
+         * @param maxE eastern limit of area
+         * @return the grid, or null if there are no data for the area
+         * @throws IOException on errors reading the data
+         */
+        DTMGrid loadTile(double minN, double minE, double maxN, double maxE) throws IOException;
+    }
+
+    /** Default tile size in meters */
+    public static final double DEFAULT_TILE_SIZE = 128;
+    /** Default byte budget for resident tiles */
+    public static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+    // Failed tiles are not retried before this interval has passed
+    private static final long RETRY_INTERVAL_MS = 30000;
+    // Closest facet search extends this many grid cells from the point, see DTMGrid.getSurfacePlane
+    private static final int SEARCH_CELLS = DTMGrid.SEARCH_RADIUS + 1;
+
+    private final TileLoader loader;
+    private final double tileSize;
+    private final long byteBudget;
+
+    // Resident tiles, in access order
+    private final LinkedHashMap<Long, DTMGrid> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashSet<Long> pending = new HashSet<>();
+    private final HashMap<Long, Long> failed = new HashMap<>();
+    private long bytes = 0;
+    // UTM spacing of all tiles, or 0 before the first tile is loaded
+    private double utmSpacing = 0;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private volatile OriginData origin;
+    private volatile float quantization = 0;
+    private volatile float spacing = 0;
+
+    /**
+     * Create a cache with default tile size and budget
+     *
+     * @param loader source of tiles
+     */
+    public DTMTileCache(TileLoader loader) {
+        this(loader, DEFAULT_TILE_SIZE, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param loader source of tiles
+     * @param tileSize tile size in meters
+     * @param byteBudget max total size of resident tile heights, in bytes
+     */
+    public DTMTileCache(TileLoader loader, double tileSize, long byteBudget) {
+        this.loader = loader;
+        this.tileSize = tileSize;
+        this.byteBudget = byteBudget;
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    private static int keyRow(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int keyCol(long key) {
+        return (int) key;
+    }
+
+    /**
+     * @return first row, first column, last row and last column of the tiles within a distance of a position
+     */
+    private int[] tileRange(double lat, double lon, double radius) {
+        double[] NE = new double[2];
+        latLonToUtm(lat, lon, NE);
+
+        return new int[]{
+                (int) Math.floor((NE[0] - radius) / tileSize),
+                (int) Math.floor((NE[1] - radius) / tileSize),
+                (int) Math.floor((NE[0] + radius) / tileSize),
+                (int) Math.floor((NE[1] + radius) / tileSize)
+        };
+    }
+
+    /**
+     * Transform to UTM, with the fast transforms of the origin when it is set
+     */
+    private void latLonToUtm(double lat, double lon, double[] NE) {
+        OriginData o = origin;
+        if (o != null)
+            o.latLonToUtm(lat, lon, NE, 0);
+        else
+            Geodesy.latlon2utm(lat, lon, NE, 0);
+    }
+
+    private static long tileBytes(DTMGrid grid) {
+        return grid.getStorageBytes();
+    }
+
+    /**
+     * Store loaded tiles with quantized heights, see {@link DTMGrid#quantize(float)}. Only affects
+     * tiles loaded later.
+     *
+     * @param scale height resolution, or 0 to store tiles as loaded
+     */
+    public void setQuantization(float scale) {
+        quantization = scale;
+    }
+
+    @Override
+    public void setOrigin(OriginData origin) {
+        this.origin = origin;
+        synchronized (tiles) {
+            for (DTMGrid grid : tiles.values())
+                grid.setOrigin(origin);
+        }
+    }
+
+    /**
+     * Find a resident tile, and start loading it if it is not resident
+     *
+     * @param row tile row, from south
+     * @param col tile column, from west
+     * @return the tile, or null if not resident
+     */
+    private DTMGrid getTile(int row, int col) {
+        final long key = key(row, col);
+        synchronized (tiles) {
+            DTMGrid grid = tiles.get(key);
+            if (grid != null || !claim(key))
+                return grid;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadClaimed(key);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error loading tile " + keyRow(key) + " " + keyCol(key), e);
+                }
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Claim a tile for loading, unless it is being loaded or failed recently. Call with the lock
+     * on {@link #tiles} held.
+     *
+     * @return true if the caller is to load the tile with {@link #loadClaimed(long)}
+     */
+    private boolean claim(long key) {
+        if (pending.contains(key))
+            return false;
+
+        Long failTime = failed.get(key);
+        if (failTime != null && System.currentTimeMillis() - failTime < RETRY_INTERVAL_MS)
+            return false;
+
+        pending.add(key);
+        return true;
+    }
+
+    /**
+     * Load a tile claimed with {@link #claim(long)} in the calling thread, and release the claim
+     */
+    private DTMGrid loadClaimed(long key) throws IOException {
+        try {
+            return loadTile(key);
+        } finally {
+            synchronized (tiles) {
+                pending.remove(key);
+                tiles.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Load a tile in the calling thread and make it resident
+     */
+    private DTMGrid loadTile(long key) throws IOException {
+        double minN = keyRow(key) * tileSize;
+        double minE = keyCol(key) * tileSize;
+
+        DTMGrid grid;
+        try {
+            grid = loader.loadTile(minN, minE, minN + tileSize, minE + tileSize);
+            float scale = quantization;
+            if (grid != null && scale > 0)
+                grid = grid.quantize(scale);
+        } catch (IOException e) {
+            synchronized (tiles) {
+                failed.put(key, System.currentTimeMillis());
+            }
+            throw e;
+        }
+
+        synchronized (tiles) {
+            if (grid == null) {
+                failed.put(key, System.currentTimeMillis());
+                return null;
+            }
+            if (utmSpacing == 0) {
+                utmSpacing = grid.getUtmSpacing();
+                spacing = grid.getSpacing();
+            } else if (Math.abs(grid.getUtmSpacing() - utmSpacing) > 1e-6 * utmSpacing) {
+                failed.put(key, System.currentTimeMillis());
+                throw new IOException("Tile " + keyRow(key) + " " + keyCol(key) + " has spacing " +
+                        grid.getUtmSpacing() + ", other tiles " + utmSpacing);
+            }
+            failed.remove(key);
+
+            OriginData o = origin;
+            if (o != null)
+                grid.setOrigin(o);
+
+            DTMGrid old = tiles.put(key, grid);
+            if (old != null)
+                bytes -= tileBytes(old);
+            bytes += tileBytes(grid);
+
+            // Evict least recently used, but never the new tile
+            Iterator<Map.Entry<Long, DTMGrid>> it = tiles.entrySet().iterator();
+            while (bytes > byteBudget && it.hasNext()) {
+                Map.Entry<Long, DTMGrid> e = it.next();
+                if (e.getKey() == key)
+                    continue;
+                bytes -= tileBytes(e.getValue());
+                it.remove();
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Load all tiles within a distance of a position, in the calling thread. Tiles being loaded
+     * in the background are waited for, and tiles that failed recently are not retried.
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param radius distance in meters
+     * @return number of resident tiles in the area
+     * @throws IOException if no tile in the area could be loaded
+     */
+    public int ensureLoaded(double lat, double lon, double radius) throws IOException {
+        int[] range = tileRange(lat, lon, radius);
+        int row0 = range[0], col0 = range[1], row1 = range[2], col1 = range[3];
+
+        int count = 0;
+        IOException error = null;
+        for (int row = row0; row <= row1; ++row) {
+            for (int col = col0; col <= col1; ++col) {
+                long key = key(row, col);
+                synchronized (tiles) {
+                    try {
+                        while (pending.contains(key))
+                            tiles.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for tile " + row + " " + col);
+                    }
+                    if (tiles.get(key) != null) {
+                        count++;
+                        continue;
+                    }
+                    if (!claim(key))
+                        continue;
+                }
+                try {
+                    if (loadClaimed(key) != null)
+                        count++;
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+
+        if (count == 0 && error != null)
+            throw error;
+        return count;
+    }
+
+    /**
+     * Start loading all tiles within a distance of a position in the background
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param radius distance in meters
+     */
+    public void prefetch(double lat, double lon, double radius) {
+        int[] range = tileRange(lat, lon, radius);
+        int row0 = range[0], col0 = range[1], row1 = range[2], col1 = range[3];
+
+        for (int row = row0; row <= row1; ++row) {
+            for (int col = col0; col <= col1; ++col)
+                getTile(row, col);
+        }
+    }
+
+    /**
+     * Find the resident tiles within a distance of a position
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param radius distance in meters
+     * @return resident tile grids
+     */
+    public List<DTMGrid> getTiles(double lat, double lon, double radius) {
+        int[] range = tileRange(lat, lon, radius);
+        int row0 = range[0], col0 = range[1], row1 = range[2], col1 = range[3];
+
+        ArrayList<DTMGrid> result = new ArrayList<>();
+        synchronized (tiles) {
+            for (int row = row0; row <= row1; ++row) {
+                for (int col = col0; col <= col1; ++col) {
+                    DTMGrid grid = tiles.get(key(row, col));
+                    if (grid != null)
+                        result.add(grid);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public double getInterpolatedAltitude(double lat, double lng) {
+        double[] NE = new double[2];
+        latLonToUtm(lat, lng, NE);
+
+        DTMGrid grid = getTile((int) Math.floor(NE[0] / tileSize), (int) Math.floor(NE[1] / tileSize));
+        if (grid == null)
+            return Double.NEGATIVE_INFINITY;
+
+        return grid.getInterpolatedAltitude(lat, lng);
+    }
+
+    @Override
+    public void getInterpolatedAltitudes(double[] lat, double[] lng, double[] heights, int offset, int count) {
+        double[] NE = new double[2];
+
+        // Interpolate runs of positions in the same tile as one batch
+        int end = offset + count;
+        int start = offset;
+        long run_key = 0;
+        DTMGrid run_grid = null;
+        for (int i = offset; i <= end; ++i) {
+            long k = 0;
+            if (i < end) {
+                latLonToUtm(lat[i], lng[i], NE);
+                k = key((int) Math.floor(NE[0] / tileSize), (int) Math.floor(NE[1] / tileSize));
+                if (i > start && k == run_key)
+                    continue;
+            }
+
+            if (i > start) {
+                if (run_grid != null)
+                    run_grid.getInterpolatedAltitudes(lat, lng, heights, start, i - start);
+                else
+                    Arrays.fill(heights, start, i, Double.NEGATIVE_INFINITY);
+            }
+
+            if (i < end) {
+                start = i;
+                run_key = k;
+                run_grid = getTile(keyRow(k), keyCol(k));
+            }
+        }
+    }
+
+    @Override
+    public float[] getSurfacePlane(float x, float y, float z) {
+        OriginData o = origin;
+        if (o == null)
+            return null;
+
+        double[] NE = new double[2];
+        o.localOriginToUtm(x, y, NE, 0);
+
+        int row = (int) Math.floor(NE[0] / tileSize);
+        int col = (int) Math.floor(NE[1] / tileSize);
+        DTMGrid grid = getTile(row, col);
+        if (grid == null)
+            return null;
+
+        float[] retval = new float[4];
+        float[] tmp = new float[4];
+        float best_dist = grid.getSurfacePlane(x, y, z, retval);
+        boolean covered = best_dist >= 0;
+        if (!covered)
+            best_dist = Float.POSITIVE_INFINITY;
+
+        // Close to a seam, the closest facet may be in a neighbouring tile
+        double margin = SEARCH_CELLS * grid.getUtmSpacing();
+        double fN = NE[0] - row * tileSize;
+        double fE = NE[1] - col * tileSize;
+        int dr0 = fN < margin ? -1 : 0;
+        int dr1 = fN > tileSize - margin ? 1 : 0;
+        int dc0 = fE < margin ? -1 : 0;
+        int dc1 = fE > tileSize - margin ? 1 : 0;
+
+        for (int dr = dr0; dr <= dr1; ++dr) {
+            for (int dc = dc0; dc <= dc1; ++dc) {
+                if (dr == 0 && dc == 0)
+                    continue;
+                DTMGrid neighbour = getTile(row + dr, col + dc);
+                if (neighbour == null)
+                    continue;
+
+                float dist = neighbour.getSurfacePlane(x, y, z, tmp);
+                if (dist < 0)
+                    continue;
+                covered = true;
+                if (dist < best_dist) {
+                    best_dist = dist;
+                    System.arraycopy(tmp, 0, retval, 0, 4);
+                }
+            }
+        }
+
+        return covered ? retval : null;
+    }
+
+    /**
+     * @return spacing of the tiles, or 0 if no tile is loaded
+     */
+    @Override
+    public float getSpacing() {
+        return spacing;
+    }
+
+    /**
+     * Find the first point where a ray hits the resident tiles. Tiles that are not resident are
+     * not loaded, and do not stop the ray.
+     */
+    @Override
+    public float rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        if (origin == null)
+            return Float.POSITIVE_INFINITY;
+
+        ArrayList<DTMGrid> resident;
+        synchronized (tiles) {
+            resident = new ArrayList<>(tiles.values());
+        }
+
+        // A hit in one tile limits the search in the others
+        float best = Float.POSITIVE_INFINITY;
+        for (DTMGrid grid : resident) {
+            float t = grid.rayCast(ox, oy, oz, dx, dy, dz, Math.min(best, maxT));
+            if (t < best)
+                best = t;
+        }
+        return best;
+    }
+
+    /**
+     * Stop background loading. The resident tiles can still be used.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
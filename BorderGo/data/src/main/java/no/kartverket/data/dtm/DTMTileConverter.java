@@ -0,0 +1,64 @@
+package no.kartverket.data.dtm;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Desktop tool converting XYZ or ESRI ASCII grids to binary tiles, see {@link DTMTileFormat}.
+ * Used to produce the binary versions of the grids bundled as assets:
+ * <pre>
+ *  java no.kartverket.data.dtm.DTMTileConverter Sandvika_23.XYZ Sandvika_23.dtm
+ * </pre>
+ * Input files with extension .asc are read as ASCII grids, all others as XYZ. With the option
+ * {@code -q <scale>} the heights are stored quantized with the given resolution in meters.
+ */
+
+public class DTMTileConverter {
+
+    public static void main(String[] args) throws IOException {
+        float scale = 0;
+        if (args.length == 4 && args[0].equals("-q")) {
+            scale = Float.parseFloat(args[1]);
+            args = new String[]{args[2], args[3]};
+        }
+        if (args.length != 2) {
+            System.err.println("Usage: DTMTileConverter [-q <scale>] <input.XYZ|input.asc> <output" + DTMTileFormat.EXTENSION + ">");
+            System.exit(1);
+        }
+
+        DTMGrid grid = read(args[0]);
+        if (scale > 0) {
+            grid = grid.quantize(scale);
+            if (!grid.isQuantized())
+                System.err.println("Height range too large for scale " + scale + ", storing floats");
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+        try {
+            DTMTileFormat.write(out, grid);
+        } finally {
+            out.close();
+        }
+
+        System.out.println(args[1] + ": " + grid.getRows() + " x " + grid.getCols() +
+                ", upper left " + grid.getUpperLeftN() + " " + grid.getUpperLeftE() +
+                ", spacing " + grid.getUtmSpacing() +
+                (grid.isQuantized() ? ", quantized " + grid.getQuantizationScale() : ""));
+    }
+
+    private static DTMGrid read(String file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            if (file.toLowerCase().endsWith(".asc"))
+                return DTMGridReader.readAsciiGrid(is);
+            else
+                return DTMGridReader.readXYZ(is);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package no.kartverket.data.dtm;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact binary storage format for a {@link DTMGrid}.<p>
+ *
+ * A tile consists of a fixed 64 byte header followed by the heights, line by line from the upper
+ * left corner (same order as {@link DTMGrid#arrH}). Heights are either little endian 32 bit floats,
+ * or quantized little endian 16 bit integers where height = base + value * scale and
+ * {@link DTMGrid#NODATA_Q} marks missing heights (same as {@link DTMGrid#arrQ}).
+ * All header values are little endian:
+ * <pre>
+ *  offset  type    content
+ *       0  int     magic number, {@link #MAGIC}
+ *       4  int     format version, {@link #VERSION}
+ *       8  double  northing of upper left grid point (UTM33/ETRS89)
+ *      16  double  easting of upper left grid point (UTM33/ETRS89)
+ *      24  double  horizontal grid spacing
+ *      32  int     number of rows
+ *      36  int     number of columns
+ *      40  float   nodata value of float heights
+ *      44  int     height encoding, {@link #ENCODING_FLOAT32} or {@link #ENCODING_INT16}
+ *      48  float   base height of quantized heights
+ *      52  float   scale of quantized heights
+ *      56          reserved, zero filled
+ * </pre>
+ * Version 1 tiles have zeros from offset 44, and are read as float tiles.
+ *
+ * As the heights are stored in their final in-memory layout a tile may be memory mapped, and the
+ * grid used directly on the mapped buffer without any parsing or copying.
+ */
+public final class DTMTileFormat {
+    /** Magic number, "DTMB" in little endian byte order */
+    public static final int MAGIC = 0x424D5444;
+    /** Current format version */
+    public static final int VERSION = 2;
+    /** Heights stored as 32 bit floats */
+    public static final int ENCODING_FLOAT32 = 0;
+    /** Heights stored as quantized 16 bit integers */
+    public static final int ENCODING_INT16 = 1;
+    /** Size of header in bytes */
+    public static final int HEADER_SIZE = 64;
+    /** Default file extension of binary tiles */
+    public static final String EXTENSION = ".dtm";
+
+    private DTMTileFormat() {
+    }
+
+    /**
+     * Create a grid backed directly by a buffer containing a complete tile (header and heights).
+     * The heights are not copied, the grid will read from the buffer.
+     *
+     * @param buffer tile data, starting at the buffer position
+     * @return the grid
+     * @throws IOException if the buffer does not contain a valid tile
+     */
+    public static DTMGrid read(ByteBuffer buffer) throws IOException {
+        ByteBuffer bb = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < HEADER_SIZE || bb.getInt(0) != MAGIC)
+            throw new IOException("Not a binary DTM tile");
+        if (bb.getInt(4) < 1 || bb.getInt(4) > VERSION)
+            throw new IOException("Unsupported DTM tile version " + bb.getInt(4));
+
+        double ul_N = bb.getDouble(8);
+        double ul_E = bb.getDouble(16);
+        double space = bb.getDouble(24);
+        int rows = bb.getInt(32);
+        int cols = bb.getInt(36);
+        int encoding = bb.getInt(44);
+
+        int size;
+        if (encoding == ENCODING_FLOAT32)
+            size = 4;
+        else if (encoding == ENCODING_INT16)
+            size = 2;
+        else
+            throw new IOException("Unsupported DTM tile encoding " + encoding);
+
+        if (rows < 0 || cols < 0 || bb.remaining() - HEADER_SIZE < (long) size * rows * cols)
+            throw new IOException("Truncated DTM tile");
+
+        bb.position(HEADER_SIZE);
+        bb.limit(HEADER_SIZE + size * rows * cols);
+        ByteBuffer data = bb.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        DTMGrid grid;
+        if (encoding == ENCODING_INT16)
+            grid = new DTMGrid(rows, cols, data.asShortBuffer(), bb.getFloat(48), bb.getFloat(52));
+        else
+            grid = new DTMGrid(rows, cols, data.asFloatBuffer());
+        grid.setCoordinateParams(ul_N, ul_E, space);
+        return grid;
+    }
+
+    /**
+     * Memory map a tile from a file region and create a grid backed by the mapping.
+     *
+     * @param stream an open stream on the file containing the tile
+     * @param offset start of tile in file
+     * @param length length of tile in bytes
+     * @return the grid
+     * @throws IOException if the mapping fails or the file does not contain a valid tile
+     */
+    public static DTMGrid map(FileInputStream stream, long offset, long length) throws IOException {
+        FileChannel channel = stream.getChannel();
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        return read(mapped);
+    }
+
+    /**
+     * Read a tile from a stream into a single direct buffer. Used when the tile can not be mapped,
+     * for example when it is stored compressed.
+     *
+     * @param stream the stream, positioned at the start of the tile
+     * @param length length of tile in bytes
+     * @return the grid
+     * @throws IOException on read errors or invalid tile data
+     */
+    public static DTMGrid load(InputStream stream, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(length);
+        byte[] buf = new byte[8192];
+        while (bb.hasRemaining()) {
+            int n = stream.read(buf, 0, Math.min(buf.length, bb.remaining()));
+            if (n < 0)
+                throw new IOException("Truncated DTM tile");
+            bb.put(buf, 0, n);
+        }
+        bb.flip();
+        return read(bb);
+    }
+
+    /**
+     * Write a tile
+     *
+     * @param out destination stream
+     * @param ul_N northing of upper left grid point
+     * @param ul_E easting of upper left grid point
+     * @param space horizontal grid spacing
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param nodata nodata value
+     * @param heights heights, line by line from upper left, read from index 0
+     * @throws IOException on write errors
+     */
+    public static void write(OutputStream out, double ul_N, double ul_E, double space,
+                             int rows, int cols, float nodata, FloatBuffer heights) throws IOException {
+        ByteBuffer header = header(ul_N, ul_E, space, rows, cols);
+        header.putFloat(40, nodata);
+        header.putInt(44, ENCODING_FLOAT32);
+        out.write(header.array());
+
+        ByteBuffer data = ByteBuffer.allocate(4096 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        int n = rows * cols;
+        for (int i = 0; i < n; ++i) {
+            data.putFloat(heights.get(i));
+            if (!data.hasRemaining()) {
+                out.write(data.array(), 0, data.position());
+                data.clear();
+            }
+        }
+        out.write(data.array(), 0, data.position());
+    }
+
+    /**
+     * Write a tile with quantized heights
+     *
+     * @param out destination stream
+     * @param ul_N northing of upper left grid point
+     * @param ul_E easting of upper left grid point
+     * @param space horizontal grid spacing
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param base height of quantized value 0
+     * @param scale height difference between quantized values
+     * @param heights quantized heights, line by line from upper left, read from index 0
+     * @throws IOException on write errors
+     */
+    public static void write(OutputStream out, double ul_N, double ul_E, double space,
+                             int rows, int cols, float base, float scale, ShortBuffer heights) throws IOException {
+        ByteBuffer header = header(ul_N, ul_E, space, rows, cols);
+        header.putFloat(40, Float.NaN);
+        header.putInt(44, ENCODING_INT16);
+        header.putFloat(48, base);
+        header.putFloat(52, scale);
+        out.write(header.array());
+
+        ByteBuffer data = ByteBuffer.allocate(4096 * 2).order(ByteOrder.LITTLE_ENDIAN);
+        int n = rows * cols;
+        for (int i = 0; i < n; ++i) {
+            data.putShort(heights.get(i));
+            if (!data.hasRemaining()) {
+                out.write(data.array(), 0, data.position());
+                data.clear();
+            }
+        }
+        out.write(data.array(), 0, data.position());
+    }
+
+    private static ByteBuffer header(double ul_N, double ul_E, double space, int rows, int cols) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putDouble(8, ul_N);
+        header.putDouble(16, ul_E);
+        header.putDouble(24, space);
+        header.putInt(32, rows);
+        header.putInt(36, cols);
+        return header;
+    }
+
+    /**
+     * Write a grid as a tile, float or quantized as stored in the grid
+     *
+     * @param out destination stream
+     * @param grid the grid
+     * @throws IOException on write errors
+     */
+    public static void write(OutputStream out, DTMGrid grid) throws IOException {
+        if (grid.isQuantized())
+            write(out, grid.getUpperLeftN(), grid.getUpperLeftE(), grid.getUtmSpacing(),
+                    (int) grid.getRows(), (int) grid.getCols(),
+                    grid.getQuantizationBase(), grid.getQuantizationScale(), grid.arrQ);
+        else
+            write(out, grid.getUpperLeftN(), grid.getUpperLeftE(), grid.getUtmSpacing(),
+                    (int) grid.getRows(), (int) grid.getCols(), Float.NaN, grid.arrH);
+    }
+}
@@ -0,0 +1,268 @@
+package no.kartverket.data.dtm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Byte level scanner for the text grid formats. Reads numbers directly from the bytes of a
+ * stream or buffer, without creating strings for the values.<p>
+ *
+ * Numbers are decoded with an exact fast path: the decimal digits are collected in a long and
+ * scaled by a power of ten when both are exactly representable, which gives the correctly rounded
+ * result. All other numbers are handed to {@link Double#parseDouble} / {@link Float#parseFloat},
+ * so the results are always identical to those.
+ */
+
+class GridTextScanner {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final float[] POW10F = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    private final InputStream stream;
+    private final ByteBuffer source;
+    private final byte[] buf;
+    private int pos = 0;
+    private int lim = 0;
+
+    // Last decoded number
+    private long mantissa;
+    private int exp10;
+    private boolean negative;
+    private boolean exact;
+    private byte[] tok = new byte[32];
+    private int tok_len;
+
+    private final StringBuilder token = new StringBuilder(32);
+
+    GridTextScanner(InputStream stream) {
+        this.stream = stream;
+        this.source = null;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    GridTextScanner(ByteBuffer source) {
+        this.stream = null;
+        if (source.hasArray()) {
+            // Scan the backing array directly
+            this.source = null;
+            this.buf = source.array();
+            this.pos = source.arrayOffset() + source.position();
+            this.lim = source.arrayOffset() + source.limit();
+        } else {
+            this.source = source.slice();
+            this.buf = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (pos < lim)
+            return true;
+
+        int n = -1;
+        if (stream != null) {
+            n = stream.read(buf, 0, buf.length);
+        } else if (source != null && source.hasRemaining()) {
+            n = Math.min(buf.length, source.remaining());
+            source.get(buf, 0, n);
+        }
+
+        pos = 0;
+        lim = Math.max(n, 0);
+        return n > 0;
+    }
+
+    /**
+     * Skip spaces and tabs, but not line ends
+     *
+     * @return false if the end of the line or the input is reached
+     */
+    boolean skipBlanks() throws IOException {
+        while (fill()) {
+            byte b = buf[pos];
+            if (b == '\n' || b == '\r')
+                return false;
+            if (b != ' ' && b != '\t')
+                return true;
+            pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Skip all white space, including line ends
+     *
+     * @return false if the end of the input is reached
+     */
+    boolean skipSpace() throws IOException {
+        while (fill()) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r')
+                return true;
+            pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Skip the rest of the current line, including the line end
+     *
+     * @return false if the end of the input is reached
+     */
+    boolean nextLine() throws IOException {
+        while (fill()) {
+            if (buf[pos++] == '\n')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the next character is the start of a number
+     */
+    boolean atNumber() throws IOException {
+        if (!fill())
+            return false;
+        byte b = buf[pos];
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.';
+    }
+
+    /**
+     * Read the rest of the current line as text, without line end
+     *
+     * @return the line, or null at end of input
+     */
+    String readLine() throws IOException {
+        if (!fill())
+            return null;
+
+        token.setLength(0);
+        while (fill()) {
+            byte b = buf[pos++];
+            if (b == '\n')
+                break;
+            token.append((char) (b & 0xff));
+        }
+        int len = token.length();
+        if (len > 0 && token.charAt(len - 1) == '\r')
+            token.setLength(len - 1);
+        return token.toString();
+    }
+
+    /**
+     * Read a word, ending at white space. Leading blanks are skipped.
+     *
+     * @return the word, or null at end of input
+     */
+    String readWord() throws IOException {
+        if (!skipSpace())
+            return null;
+
+        token.setLength(0);
+        while (fill()) {
+            byte b = buf[pos];
+            if (b == ' ' || b == '\t' || b == '\n' || b == '\r')
+                break;
+            token.append((char) (b & 0xff));
+            pos++;
+        }
+        return token.toString();
+    }
+
+    /**
+     * Read a number. Leading white space is skipped.
+     *
+     * @return the value, exactly as {@link Double#parseDouble} would give
+     * @throws NumberFormatException if the next token is not a number
+     */
+    double readDouble() throws IOException {
+        scanNumber();
+        if (exact && exp10 >= -22 && exp10 <= 22 && mantissa < (1L << 53)) {
+            double v = exp10 < 0 ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+            return negative ? -v : v;
+        }
+        return Double.parseDouble(tokenString());
+    }
+
+    /**
+     * Read a number. Leading white space is skipped.
+     *
+     * @return the value, exactly as {@link Float#parseFloat} would give
+     * @throws NumberFormatException if the next token is not a number
+     */
+    float readFloat() throws IOException {
+        scanNumber();
+        if (exact && exp10 >= -10 && exp10 <= 10 && mantissa < (1L << 24)) {
+            float v = exp10 < 0 ? mantissa / POW10F[-exp10] : mantissa * POW10F[exp10];
+            return negative ? -v : v;
+        }
+        return Float.parseFloat(tokenString());
+    }
+
+    /**
+     * Scan the next token, collecting digits for the fast path and the bytes for the fallback
+     */
+    private void scanNumber() throws IOException {
+        if (!skipSpace())
+            throw new NumberFormatException("Unexpected end of grid data");
+
+        tok_len = 0;
+        mantissa = 0;
+        exp10 = 0;
+        negative = false;
+        exact = true;
+
+        int digits = 0;
+        boolean any_digit = false;
+        boolean fraction = false;
+
+        while (pos < lim || fill()) {
+            byte b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                any_digit = true;
+                if (mantissa == 0 && b == '0') {
+                    // Leading zeros do not count towards precision
+                    if (fraction)
+                        exp10--;
+                } else if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fraction)
+                        exp10--;
+                } else {
+                    // Too many significant digits for the long
+                    exact = false;
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else if ((b == '-' || b == '+') && tok_len == 0) {
+                negative = b == '-';
+            } else if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            } else {
+                // Exponent, nan, inf and anything else goes to the library parser
+                exact = false;
+            }
+
+            if (tok_len == tok.length)
+                tok = Arrays.copyOf(tok, tok_len * 2);
+            tok[tok_len++] = b;
+            pos++;
+        }
+
+        if (!any_digit)
+            exact = false;
+    }
+
+    private String tokenString() {
+        return new String(tok, 0, tok_len, Charset.forName("ISO-8859-1"));
+    }
+}
@@ -0,0 +1,137 @@
+package no.kartverket.data.dtm;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decoder for height images from WMS height services, where the height is encoded in the
+ * 24 bits of the red, green and blue channels as a linear value between a min and max height.
+ * Transparent pixels have no height.<p>
+ *
+ * Works on ARGB pixel arrays as given by {@code Bitmap.getPixels}, and does not depend on
+ * Android. Large images are decoded in parallel, a band of rows per task.
+ */
+public final class RgbHeightDecoder {
+    /** Height of encoded value 0 used by the height services */
+    public static final float DEFAULT_MIN_H = -25000;
+    /** Height of encoded value 0xffffff used by the height services */
+    public static final float DEFAULT_MAX_H = 25000;
+
+    private final float min_h;
+    private final float max_h;
+
+    public RgbHeightDecoder() {
+        this(DEFAULT_MIN_H, DEFAULT_MAX_H);
+    }
+
+    /**
+     * @param min_h height of encoded value 0
+     * @param max_h height of encoded value 0xffffff
+     */
+    public RgbHeightDecoder(float min_h, float max_h) {
+        this.min_h = min_h;
+        this.max_h = max_h;
+    }
+
+    /**
+     * Decode one pixel
+     *
+     * @param pixel ARGB pixel
+     * @return the height, NaN if the pixel is transparent
+     */
+    public float decode(int pixel) {
+        if ((pixel >>> 24) == 0)
+            return Float.NaN;
+        return (max_h - min_h) * (pixel & 0xffffff) / 16777215.f + min_h;
+    }
+
+    /**
+     * Decode an image
+     *
+     * @param pixels ARGB pixels
+     * @param offset index of first pixel of the first row
+     * @param stride distance between rows in the pixel array
+     * @param width number of columns
+     * @param height number of rows
+     * @param heights receives the heights, line by line from index 0, NaN for transparent pixels
+     * @return number of transparent pixels
+     */
+    public int decode(int[] pixels, int offset, int stride, int width, int height, float[] heights) {
+        if ((long) width * height > DTMGrid.PARALLEL_THRESHOLD) {
+            DecodeTask task = new DecodeTask(pixels, offset, stride, width, heights, 0, height);
+            DTMGrid.getPool().invoke(task);
+            return task.nodata;
+        }
+        return decodeRows(pixels, offset, stride, width, heights, 0, height);
+    }
+
+    /**
+     * Decode an image to a grid. The georeference of the grid must be set by the caller.
+     *
+     * @param pixels ARGB pixels, line by line from the upper left
+     * @param width number of columns
+     * @param height number of rows
+     * @return the grid
+     */
+    DTMGrid decodeGrid(int[] pixels, int width, int height) {
+        float[] heights = new float[width * height];
+        decode(pixels, 0, width, width, height, heights);
+        return new DTMGrid(height, width, FloatBuffer.wrap(heights));
+    }
+
+    private int decodeRows(int[] pixels, int offset, int stride, int width, float[] heights, int row0, int row1) {
+        final float range = max_h - min_h;
+        final float min = min_h;
+        int nodata = 0;
+        for (int j = row0; j < row1; ++j) {
+            int src = offset + j * stride;
+            int dst = j * width;
+            for (int i = 0; i < width; ++i) {
+                int pixel = pixels[src + i];
+                if ((pixel >>> 24) == 0) {
+                    heights[dst + i] = Float.NaN;
+                    nodata++;
+                } else {
+                    heights[dst + i] = range * (pixel & 0xffffff) / 16777215.f + min;
+                }
+            }
+        }
+        return nodata;
+    }
+
+    /**
+     * Splits the rows of a large image for parallel decoding
+     */
+    private class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int[] pixels;
+        final int offset, stride, width;
+        final float[] heights;
+        final int row0, row1;
+        int nodata;
+
+        DecodeTask(int[] pixels, int offset, int stride, int width, float[] heights, int row0, int row1) {
+            this.pixels = pixels;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.heights = heights;
+            this.row0 = row0;
+            this.row1 = row1;
+        }
+
+        @Override
+        protected void compute() {
+            if (row1 - row0 < 2 || (long) (row1 - row0) * width <= DTMGrid.PARALLEL_THRESHOLD) {
+                nodata = decodeRows(pixels, offset, stride, width, heights, row0, row1);
+                return;
+            }
+            int mid = (row0 + row1) / 2;
+            DecodeTask first = new DecodeTask(pixels, offset, stride, width, heights, row0, mid);
+            DecodeTask second = new DecodeTask(pixels, offset, stride, width, heights, mid, row1);
+            invokeAll(first, second);
+            nodata = first.nodata + second.nodata;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package no.kartverket.data.utils;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Locale;
 
 /**
  * Created by runaas on 29.09.2017.
@@ -9,4 +10,20 @@ import java.net.URL;
 
 public abstract class DTMRequest {
     public abstract URL createRequest(double minx, double miny, double maxx, double maxy, int width, int height) throws MalformedURLException;
+
+    /**
+     * @return identification of service and data set, equal for requests giving the same data
+     */
+    public abstract String getServiceKey();
+
+    /**
+     * Create a key identifying the response to a request, for caching. Coordinates are rounded to
+     * centimeters, so requests that differ only by numerical noise get the same key.
+     *
+     * @return the key
+     */
+    public String cacheKey(double minx, double miny, double maxx, double maxy, int width, int height) {
+        return String.format(Locale.ROOT, "%s|%.2f,%.2f,%.2f,%.2f|%d,%d",
+                getServiceKey(), minx, miny, maxx, maxy, width, height);
+    }
 }
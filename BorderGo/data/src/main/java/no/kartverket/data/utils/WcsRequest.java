@@ -61,4 +61,14 @@ public class WcsRequest extends DTMRequest {
 
         return new URL(url_str);
     }
+
+    public String getServiceKey() {
+        return "WCS|" + base_url_str + (old_request_type ? "|" + srs_str : "");
+    }
+
+    @Override
+    public String cacheKey(double minx, double miny, double maxx, double maxy, int dum_width, int dum_height) {
+        // Coverages are returned in native resolution, the size is not part of the request
+        return super.cacheKey(minx, miny, maxx, maxy, 0, 0);
+    }
 }
@@ -50,4 +50,8 @@ public final class WmsRequest extends DTMRequest {
 
         return new URL(url_str);
     }
+
+    public String getServiceKey() {
+        return "WMS|" + base_url_str;
+    }
 }
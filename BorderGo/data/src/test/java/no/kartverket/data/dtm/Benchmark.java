@@ -0,0 +1,71 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for the benchmarks of this module. They are run as unit tests, but only
+ * when enabled with {@code ./gradlew test -Pbenchmark}, as they take a while and the numbers are
+ * only meaningful on an otherwise idle machine.
+ */
+final class Benchmark {
+    /** Time spent warming up each task before it is measured, milliseconds */
+    private static final long WARMUP_MS = 2000;
+    /** Time each task is measured for, milliseconds */
+    private static final long MEASURE_MS = 3000;
+
+    /**
+     * A unit of work to time
+     */
+    interface Task {
+        /**
+         * @return a value depending on the result, so the work can not be optimized away
+         */
+        double run() throws Exception;
+    }
+
+    /** Sink for the task results */
+    private static volatile double sink;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks are enabled
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    }
+
+    /**
+     * Time a task, after running it until the JIT has warmed up
+     *
+     * @return mean time per run, nanoseconds
+     */
+    static double nanosPerRun(Task task) throws Exception {
+        run(task, WARMUP_MS);
+        return run(task, MEASURE_MS);
+    }
+
+    private static double run(Task task, long ms) throws Exception {
+        double sum = 0;
+        int runs = 0;
+        final long start = System.nanoTime(), end = start + ms * 1000000;
+        long now;
+        do {
+            sum += task.run();
+            ++runs;
+            now = System.nanoTime();
+        } while (now < end);
+        sink = sum;
+        return (double) (now - start) / runs;
+    }
+
+    /**
+     * Print a result line of a benchmark
+     */
+    static void report(String benchmark, String task, double value, String unit) {
+        System.out.println(String.format(Locale.US, "%-28s %-24s %10.2f %s", benchmark, task, value, unit));
+    }
+}
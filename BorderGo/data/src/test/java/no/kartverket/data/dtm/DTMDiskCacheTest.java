@@ -0,0 +1,173 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.FloatBuffer;
+
+import no.kartverket.data.utils.DTMRequest;
+import no.kartverket.data.utils.WcsRequest;
+import no.kartverket.data.utils.WmsRequest;
+
+import static org.junit.Assert.*;
+
+/**
+ * The disk cache must give requests for the same data the same key, keep its total size within
+ * the limit by deleting the least recently used entries, keep the validation data across
+ * restarts, and find the closest cached grid covering an area for offline use.
+ */
+public class DTMDiskCacheTest {
+    private static final int SIZE = 20;
+    private static final String SERVICE = "WCS|test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return grid with all heights set to a value, to tell the grids apart
+     */
+    private static DTMGrid grid(float value, double minx, double maxy) {
+        float[] heights = new float[SIZE * SIZE];
+        for (int i = 0; i < heights.length; ++i)
+            heights[i] = value;
+        DTMGrid grid = new DTMGrid(SIZE, SIZE, FloatBuffer.wrap(heights));
+        grid.setCoordinateParams(maxy, minx, 1);
+        return grid;
+    }
+
+    /**
+     * Store a grid of a square area, with key and grid value from the position
+     */
+    private static void put(DTMDiskCache cache, double minx, double miny, double size) {
+        cache.put(key(minx, miny), SERVICE, minx, miny, minx + size, miny + size,
+                grid((float) (minx + miny), minx, miny + size), null, null);
+    }
+
+    private static String key(double minx, double miny) {
+        return SERVICE + "|" + minx + "," + miny;
+    }
+
+    private static long tileBytes() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DTMTileFormat.write(out, grid(0, 0, 0));
+        return out.size();
+    }
+
+    @Test
+    public void cacheKey_normalized() throws Exception {
+        DTMRequest wcs = new WcsRequest("http://wcs.example.com/dtm", "EPSG:25833", "image/x-aaigrid", "all", false);
+        DTMRequest wms = new WmsRequest("http://wms.example.com/dtm", "EPSG:25833", "image/png", "dtm");
+
+        // Numerical noise below the centimeter is ignored
+        assertEquals(wcs.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                wcs.cacheKey(260000.001, 6649999.999, 260100.0004, 6650100.002, 100, 100));
+        assertNotEquals(wcs.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                wcs.cacheKey(260000.02, 6650000, 260100, 6650100, 100, 100));
+
+        // Coverages are returned in native resolution, images in the requested size
+        assertEquals(wcs.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                wcs.cacheKey(260000, 6650000, 260100, 6650100, 50, 50));
+        assertNotEquals(wms.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                wms.cacheKey(260000, 6650000, 260100, 6650100, 50, 50));
+
+        // Services are kept apart
+        assertNotEquals(wcs.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                wms.cacheKey(260000, 6650000, 260100, 6650100, 100, 100));
+        assertNotEquals(wcs.cacheKey(260000, 6650000, 260100, 6650100, 100, 100),
+                new WcsRequest("http://wcs.example.com/dtm", "EPSG:25833", "image/x-aaigrid", "other", false)
+                        .cacheKey(260000, 6650000, 260100, 6650100, 100, 100));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() throws Exception {
+        File dir = folder.newFolder();
+        DTMDiskCache cache = new DTMDiskCache(dir, 3 * tileBytes());
+
+        for (int i = 0; i < 3; ++i) {
+            put(cache, 100 * i, 0, 100);
+            Thread.sleep(5);
+        }
+        // Use the oldest entry, the second oldest is then deleted first
+        assertNotNull(cache.read(cache.lookup(key(0, 0))));
+        Thread.sleep(5);
+
+        put(cache, 300, 0, 100);
+        assertNotNull(cache.lookup(key(0, 0)));
+        assertNull(cache.lookup(key(100, 0)));
+        assertNotNull(cache.lookup(key(200, 0)));
+        assertNotNull(cache.lookup(key(300, 0)));
+
+        // The files of deleted entries are gone, and a new cache finds the rest
+        assertEquals(6, dir.listFiles().length);
+        DTMDiskCache reopened = new DTMDiskCache(dir, 3 * tileBytes());
+        assertNull(reopened.lookup(key(100, 0)));
+        DTMGrid grid = reopened.read(reopened.lookup(key(200, 0)));
+        assertEquals(200, grid.gridValue(3, 4), 0);
+
+        // An entry larger than the limit is kept, as the last one stored
+        DTMDiskCache small = new DTMDiskCache(folder.newFolder(), tileBytes() / 2);
+        put(small, 0, 0, 100);
+        put(small, 100, 0, 100);
+        assertNull(small.lookup(key(0, 0)));
+        assertNotNull(small.lookup(key(100, 0)));
+    }
+
+    @Test
+    public void validated_keptAcrossRestarts() throws Exception {
+        File dir = folder.newFolder();
+        DTMDiskCache cache = new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES);
+        cache.put(key(0, 0), SERVICE, 0, 0, 100, 100, grid(1, 0, 100), "\"abc\"", "Tue, 10 Oct 2017 08:00:00 GMT");
+        cache.put(key(100, 0), SERVICE, 100, 0, 200, 100, grid(2, 100, 100), null, null);
+
+        DTMDiskCache.Entry entry = new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES).lookup(key(0, 0));
+        assertEquals("\"abc\"", entry.getETag());
+        assertEquals("Tue, 10 Oct 2017 08:00:00 GMT", entry.getLastModified());
+        assertTrue(entry.isFresh());
+        entry = new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES).lookup(key(100, 0));
+        assertNull(entry.getETag());
+        assertNull(entry.getLastModified());
+
+        // A stale entry is fresh again when validated
+        DTMDiskCache reopened = new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES);
+        entry = reopened.lookup(key(0, 0));
+        entry.fetched = System.currentTimeMillis() - DTMDiskCache.MAX_AGE_MS - 1;
+        assertFalse(entry.isFresh());
+        reopened.validated(entry);
+        assertTrue(entry.isFresh());
+        entry = new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES).lookup(key(0, 0));
+        assertTrue(entry.isFresh());
+        assertEquals("\"abc\"", entry.getETag());
+
+        // Entries without their tile are dropped
+        assertTrue(new File(dir, entry.name + DTMTileFormat.EXTENSION).delete());
+        assertNull(new DTMDiskCache(dir, DTMDiskCache.DEFAULT_MAX_BYTES).lookup(key(0, 0)));
+    }
+
+    @Test
+    public void findCovering_nearestCoveringGrid() throws Exception {
+        DTMDiskCache cache = new DTMDiskCache(folder.newFolder(), DTMDiskCache.DEFAULT_MAX_BYTES);
+        cache.setOffline(true);
+        put(cache, 0, 0, 200);
+        put(cache, 50, 50, 200);
+        put(cache, 150, 0, 100);
+        cache.put("other", "WMS|other", 0, 0, 1000, 1000, grid(-1, 0, 1000), null, null);
+
+        // Covered by the first two, the center of the second is closer
+        DTMGrid grid = cache.findCovering(SERVICE, 110, 110, 150, 150);
+        assertEquals(100, grid.gridValue(0, 0), 0);
+        grid = cache.findCovering(SERVICE, 10, 10, 60, 60);
+        assertEquals(0, grid.gridValue(0, 0), 0);
+
+        // Only the last covers the area
+        grid = cache.findCovering(SERVICE, 200, 10, 240, 90);
+        assertEquals(150, grid.gridValue(0, 0), 0);
+
+        // Partly covered areas, and grids of other services, are not used
+        assertNull(cache.findCovering(SERVICE, 220, 10, 260, 90));
+        assertNull(cache.findCovering(SERVICE, 500, 500, 600, 600));
+        assertEquals(-1, cache.findCovering("WMS|other", 500, 500, 600, 600).gridValue(0, 0), 0);
+    }
+}
@@ -0,0 +1,143 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time per point of the batch height interpolation against the single point interpolation, on
+ * the Sandvika grid of the app, read into memory and mapped from the binary tile. Batches above
+ * {@link DTMGrid#PARALLEL_THRESHOLD} are interpolated in parallel. Run with
+ * {@code ./gradlew :data:test -Pbenchmark --tests '*DTMGridInterpolationBenchmark.interpolate_heap'}
+ * and then {@code interpolate_mapped}: the JIT compiles the interpolation for the storage it saw
+ * first, so the grid timed second in the same JVM is slowed down.
+ */
+public class DTMGridInterpolationBenchmark {
+    private static final String ASSETS = "../app/src/main/assets/";
+    private static final int[] SIZES = {4000, 200000};
+
+    /**
+     * The single point interpolation before the batch API: through the origin to local
+     * coordinates, then to grid coordinates, for every point
+     */
+    private static double scalar(DTMGrid grid, OriginData origin, double lat, double lng) {
+        final int w = (int) grid.getCols(), h = (int) grid.getRows();
+        float x_w = (float) origin.longitudeToLocalOrigin(lng);
+        float y_w = (float) origin.latitudeToLocalOrigin(lat);
+        float x = grid.worldToGridX(x_w, y_w);
+        float y = grid.worldToGridY(x_w, y_w);
+
+        int cellX = (int) Math.floor(x);
+        int cellY = (int) Math.floor(y);
+        if (cellY >= h - 1 || cellX >= w - 1 || cellY < 0 || cellX < 0)
+            return Double.NEGATIVE_INFINITY;
+        float dX = x % 1, dY = y % 1;
+        float h00 = grid.gridValue(cellX, cellY), h10 = grid.gridValue(cellX + 1, cellY);
+        float h01 = grid.gridValue(cellX, cellY + 1), h11 = grid.gridValue(cellX + 1, cellY + 1);
+        return h00 * (1 - dX) * (1 - dY) + h10 * dX * (1 - dY) + h01 * (1 - dX) * dY + h11 * dX * dY;
+    }
+
+    private static void report(String grid, String path, int n, double nanos) {
+        Benchmark.report(grid + " " + n, path, nanos / n, "ns/point");
+    }
+
+    private static void run(String name, final DTMGrid grid) throws Exception {
+        // Origin in the middle of the grid, points spread over it
+        final double rows = grid.getRows(), cols = grid.getCols(), space = grid.getUtmSpacing();
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(grid.getUpperLeftN() - rows * space / 2,
+                grid.getUpperLeftE() + cols * space / 2), latlon);
+        final OriginData origin = new OriginData(latlon._x, latlon._y, 0);
+        grid.setOrigin(origin);
+
+        Random random = new Random(7);
+        for (final int n : SIZES) {
+            final double[] lat = new double[n], lng = new double[n], x = new double[n], y = new double[n];
+            final double[] heights = new double[n];
+            for (int i = 0; i < n; ++i) {
+                Geodesy.utm2latlon(new Geodesy.Coords_xy(grid.getUpperLeftN() - random.nextDouble() * rows * space,
+                        grid.getUpperLeftE() + random.nextDouble() * cols * space), latlon);
+                lat[i] = latlon._x;
+                lng[i] = latlon._y;
+                x[i] = origin.longitudeToLocalOrigin(lng[i]);
+                y[i] = origin.latitudeToLocalOrigin(lat[i]);
+            }
+
+            // The paths agree
+            grid.getInterpolatedAltitudes(lat, lng, heights, 0, n);
+            for (int i = 0; i < n; i += 97) {
+                assertEquals(grid.getInterpolatedAltitude(lat[i], lng[i]), heights[i], 0);
+                assertEquals(scalar(grid, origin, lat[i], lng[i]), heights[i], 1e-3);
+            }
+
+            report(name, "scalar, before", n, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    double sum = 0;
+                    for (int i = 0; i < n; ++i)
+                        sum += scalar(grid, origin, lat[i], lng[i]);
+                    return sum;
+                }
+            }));
+            report(name, "scalar", n, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    double sum = 0;
+                    for (int i = 0; i < n; ++i)
+                        sum += grid.getInterpolatedAltitude(lat[i], lng[i]);
+                    return sum;
+                }
+            }));
+            report(name, "batch lat/lon", n, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    grid.getInterpolatedAltitudes(lat, lng, heights, 0, n);
+                    return heights[n / 2];
+                }
+            }));
+            report(name, "batch local", n, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    grid.getInterpolatedAltitudesLocal(x, y, heights, 0, n);
+                    return heights[n / 2];
+                }
+            }));
+        }
+    }
+
+    @Test
+    public void interpolate_heap() throws Exception {
+        Benchmark.assumeEnabled();
+        File xyz = new File(ASSETS + "Sandvika_23.XYZ");
+        Assume.assumeTrue(xyz.isFile());
+
+        FileInputStream is = new FileInputStream(xyz);
+        try {
+            run("heap", DTMGridReader.readXYZ(is));
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void interpolate_mapped() throws Exception {
+        Benchmark.assumeEnabled();
+        File tile = new File(ASSETS + "Sandvika_23.dtm");
+        Assume.assumeTrue(tile.isFile());
+
+        FileInputStream is = new FileInputStream(tile);
+        try {
+            run("mapped", DTMTileFormat.map(is, 0, tile.length()));
+        } finally {
+            is.close();
+        }
+    }
+}
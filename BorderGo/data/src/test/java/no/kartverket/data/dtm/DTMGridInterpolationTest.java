@@ -0,0 +1,131 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * The batch interpolation must give the same heights as the interpolation of single points.
+ */
+public class DTMGridInterpolationTest {
+    private static final int ROWS = 40, COLS = 50;
+    private static final double UL_N = 6650000, UL_E = 260000, SPACE = 10;
+
+    private static final OriginData ORIGIN = origin();
+
+    /**
+     * @return origin near the middle of the grid
+     */
+    private static OriginData origin() {
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(UL_N - 200, UL_E + 250), latlon);
+        return new OriginData(latlon._x, latlon._y, 0);
+    }
+
+    private static DTMGrid grid(boolean missing) {
+        float[] heights = new float[ROWS * COLS];
+        for (int r = 0; r < ROWS; ++r) {
+            for (int c = 0; c < COLS; ++c)
+                heights[r * COLS + c] = (float) (100 + 5 * Math.sin(0.3 * c) + 0.7 * r + 0.01 * r * c);
+        }
+        if (missing)
+            heights[10 * COLS + 20] = Float.NaN;
+
+        DTMGrid grid = new DTMGrid(ROWS, COLS, FloatBuffer.wrap(heights));
+        grid.setCoordinateParams(UL_N, UL_E, SPACE);
+        grid.setOrigin(ORIGIN);
+        return grid;
+    }
+
+    /**
+     * Positions at grid coordinates, inside, on and just outside the edges, and far outside
+     */
+    private static double[][] positions(DTMGrid grid) {
+        Random random = new Random(42);
+        int n = 2000;
+        double[] gx = new double[n], gy = new double[n];
+        int i = 0;
+        for (; i < 1000; ++i) {
+            gx[i] = random.nextDouble() * (COLS - 1);
+            gy[i] = random.nextDouble() * (ROWS - 1);
+        }
+        // Grid nodes and cell edges
+        for (; i < 1200; ++i) {
+            gx[i] = random.nextInt(COLS);
+            gy[i] = random.nextInt(ROWS) + (i % 2 == 0 ? 0 : random.nextDouble());
+        }
+        // Around the borders of the grid
+        double[] border = {-1, -1e-3, 1e-3, COLS - 2, COLS - 1 - 1e-3, COLS - 1 + 1e-3, COLS};
+        for (; i < 1800; ++i) {
+            if (i % 2 == 0) {
+                gx[i] = border[random.nextInt(border.length)];
+                gy[i] = random.nextDouble() * (ROWS + 2) - 1;
+            } else {
+                gx[i] = random.nextDouble() * (COLS + 2) - 1;
+                gy[i] = border[random.nextInt(border.length)] * (ROWS - 1) / (COLS - 1);
+            }
+        }
+        // Far outside
+        for (; i < n; ++i) {
+            gx[i] = (random.nextDouble() - 0.5) * 10 * COLS;
+            gy[i] = (random.nextDouble() - 0.5) * 10 * ROWS;
+        }
+
+        double[] lat = new double[n], lng = new double[n];
+        for (i = 0; i < n; ++i) {
+            double x = grid.gridToWorldX((float) gx[i], (float) gy[i]);
+            double y = grid.gridToWorldY((float) gx[i], (float) gy[i]);
+            lat[i] = ORIGIN.localOriginToLatitude(y);
+            lng[i] = ORIGIN.localOriginToLongitude(x);
+        }
+        return new double[][] {lat, lng};
+    }
+
+    private static void assertSame(DTMGrid grid) {
+        double[][] pos = positions(grid);
+        double[] lat = pos[0], lng = pos[1];
+        final int n = lat.length;
+
+        // Offset, and a batch large enough to be split
+        int copies = DTMGrid.PARALLEL_THRESHOLD * 3 / n + 1;
+        double[] lats = new double[3 + copies * n], lngs = new double[lats.length];
+        for (int k = 0; k < copies; ++k) {
+            System.arraycopy(lat, 0, lats, 3 + k * n, n);
+            System.arraycopy(lng, 0, lngs, 3 + k * n, n);
+        }
+
+        double[] small = new double[n], large = new double[lats.length];
+        grid.getInterpolatedAltitudes(lat, lng, small, 0, n);
+        grid.getInterpolatedAltitudes(lats, lngs, large, 3, copies * n);
+
+        int outside = 0;
+        for (int i = 0; i < n; ++i) {
+            double expected = grid.getInterpolatedAltitude(lat[i], lng[i]);
+            if (expected == Double.NEGATIVE_INFINITY)
+                ++outside;
+            assertEquals("position " + i, expected, small[i], 0);
+            for (int k = 0; k < copies; ++k)
+                assertEquals("position " + i, small[i], large[3 + k * n + i], 0);
+        }
+        assertTrue(outside > 0 && outside < n);
+    }
+
+    @Test
+    public void batch_equalsScalar() throws Exception {
+        assertSame(grid(false));
+        assertSame(grid(true));
+    }
+
+    @Test
+    public void batch_equalsScalarQuantized() throws Exception {
+        DTMGrid quantized = grid(true).quantize(DTMGrid.DEFAULT_QUANTIZATION);
+        quantized.setOrigin(ORIGIN);
+        assertSame(quantized);
+    }
+}
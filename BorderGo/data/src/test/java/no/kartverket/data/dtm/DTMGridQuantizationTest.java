@@ -0,0 +1,67 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Quantized grids must keep heights within half the quantization step, keep missing heights, and
+ * survive the binary tile format.
+ */
+public class DTMGridQuantizationTest {
+
+    @Test
+    public void quantize_withinHalfStep() throws Exception {
+        DTMGrid grid = DTMTileFormatTest.grid();
+        // Without the one huge height, which does not fit in 16 bits
+        grid.arrH.put((int) (grid.getRows() * grid.getCols() / 2), 120f);
+
+        DTMGrid quantized = grid.quantize(DTMGrid.DEFAULT_QUANTIZATION);
+        assertTrue(quantized.isQuantized());
+        assertEquals(grid.getStorageBytes() / 2, quantized.getStorageBytes());
+
+        final float tolerance = DTMGrid.DEFAULT_QUANTIZATION / 2 * 1.001f;
+        for (int r = 0; r < grid.getRows(); ++r) {
+            for (int c = 0; c < grid.getCols(); ++c) {
+                float h = grid.gridValue(c, r);
+                if (Float.isNaN(h))
+                    assertTrue(Float.isNaN(quantized.gridValue(c, r)));
+                else
+                    assertEquals(h, quantized.gridValue(c, r), tolerance);
+            }
+        }
+
+        // Quantizing again changes nothing
+        assertSame(quantized, quantized.quantize(DTMGrid.DEFAULT_QUANTIZATION));
+    }
+
+    @Test
+    public void quantize_keepsLargeRange() throws Exception {
+        // Range of more than 65536 centimeters stays float
+        float[] heights = {-10, 0, 0, 700};
+        DTMGrid grid = new DTMGrid(2, 2, FloatBuffer.wrap(heights));
+        assertSame(grid, grid.quantize(DTMGrid.DEFAULT_QUANTIZATION));
+        assertTrue(grid.quantize(0.1f).isQuantized());
+    }
+
+    @Test
+    public void quantize_roundTrip() throws Exception {
+        DTMGrid grid = DTMTileFormatTest.grid();
+        grid.arrH.put((int) (grid.getRows() * grid.getCols() / 2), 120f);
+        DTMGrid quantized = grid.quantize(DTMGrid.DEFAULT_QUANTIZATION);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DTMTileFormat.write(out, quantized);
+        byte[] tile = out.toByteArray();
+        assertEquals(DTMTileFormat.HEADER_SIZE + 2 * grid.getRows() * grid.getCols(), tile.length);
+
+        DTMGrid read = DTMTileFormat.read(ByteBuffer.wrap(tile));
+        assertEquals(quantized.getQuantizationBase(), read.getQuantizationBase(), 0);
+        assertEquals(quantized.getQuantizationScale(), read.getQuantizationScale(), 0);
+        DTMTileFormatTest.assertSameGrid(quantized, read);
+    }
+}
@@ -0,0 +1,88 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+/**
+ * Time per ray of {@link DTMGrid#rayCast} on the Sandvika grid of the app, for rays from eye
+ * height above the terrain in all directions, from looking down to just above the horizon, as
+ * cast for hidden line removal. Run with
+ * {@code ./gradlew :data:test -Pbenchmark --tests '*DTMRayCastBenchmark'}.
+ */
+public class DTMRayCastBenchmark {
+    private static final String ASSETS = "../app/src/main/assets/";
+    private static final int RAYS = 4096;
+    private static final float EYE_HEIGHT = 1.6f;
+
+    @Test
+    public void rayCast() throws Exception {
+        Benchmark.assumeEnabled();
+        File xyz = new File(ASSETS + "Sandvika_23.XYZ");
+        Assume.assumeTrue(xyz.isFile());
+
+        final DTMGrid grid;
+        FileInputStream is = new FileInputStream(xyz);
+        try {
+            grid = DTMGridReader.readXYZ(is);
+        } finally {
+            is.close();
+        }
+        final double rows = grid.getRows(), cols = grid.getCols(), space = grid.getUtmSpacing();
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(grid.getUpperLeftN() - rows * space / 2,
+                grid.getUpperLeftE() + cols * space / 2), latlon);
+        grid.setOrigin(new OriginData(latlon._x, latlon._y, 0));
+        final String name = "Sandvika " + (int) cols + "x" + (int) rows;
+
+        for (final float maxT : new float[]{100, 500}) {
+            Random random = new Random(3);
+            final float[] rays = new float[RAYS * 6];
+            for (int i = 0; i < RAYS; ++i) {
+                float gx = (float) (random.nextDouble() * (cols - 1)), gy = (float) (random.nextDouble() * (rows - 1));
+                float h = grid.gridValue((int) gx, (int) gy);
+                double azimuth = 2 * Math.PI * random.nextDouble();
+                double pitch = Math.toRadians(-30 + 35 * random.nextDouble());
+                rays[i * 6] = grid.gridToWorldX(gx, gy);
+                rays[i * 6 + 1] = grid.gridToWorldY(gx, gy);
+                rays[i * 6 + 2] = (h == h ? h : 0) + EYE_HEIGHT;
+                rays[i * 6 + 3] = (float) (Math.cos(pitch) * Math.sin(azimuth));
+                rays[i * 6 + 4] = (float) (Math.cos(pitch) * Math.cos(azimuth));
+                rays[i * 6 + 5] = (float) Math.sin(pitch);
+            }
+            final float[] t = new float[RAYS];
+            grid.rayCast(rays, maxT, t, 0, RAYS);
+            int hits = 0;
+            for (float v : t) {
+                if (v != Float.POSITIVE_INFINITY)
+                    hits++;
+            }
+            String task = "max " + (int) maxT + " m, " + 100 * hits / RAYS + "% hit";
+
+            Benchmark.report(name, task + ", single", Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    double sum = 0;
+                    for (int i = 0; i < RAYS; ++i) {
+                        int j = i * 6;
+                        sum += grid.rayCast(rays[j], rays[j + 1], rays[j + 2], rays[j + 3], rays[j + 4], rays[j + 5], maxT);
+                    }
+                    return sum;
+                }
+            }) / RAYS / 1000, "us/ray");
+            Benchmark.report(name, task + ", batch", Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    grid.rayCast(rays, maxT, t, 0, RAYS);
+                    return t[RAYS / 2];
+                }
+            }) / RAYS / 1000, "us/ray");
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * A ray cast through the height pyramid of the {@link DTMSurfaceIndex} must find the same first
+ * hit as intersecting the ray with every triangle of the grid: for rays hitting and missing the
+ * terrain, grazing a ridge, starting below the terrain, running along the grid borders and
+ * crossing missing heights, one by one and in parallel batches.
+ */
+public class DTMRayCastTest {
+    private static final double N0 = 6650000, E0 = 260000;
+    // Height of the origin
+    private static final float H0 = 90;
+    // Tolerance of hit distances, meters
+    private static final float EPS = 1e-3f;
+
+    /**
+     * @return grid with heights from an array, origin in the middle
+     */
+    private static DTMGrid grid(int rows, int cols, float[] h, double spacing) {
+        DTMGrid grid = new DTMGrid(rows, cols, FloatBuffer.wrap(h));
+        grid.setCoordinateParams(N0, E0, spacing);
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(N0 - rows * spacing / 2, E0 + cols * spacing / 2), latlon);
+        grid.setOrigin(new OriginData(latlon._x, latlon._y, H0));
+        return grid;
+    }
+
+    /**
+     * @return grid of hills and a ridge, with missing heights, larger than one block of the pyramid
+     */
+    private static DTMGrid hills(Random random) {
+        final int rows = 60, cols = 70;
+        float[] h = new float[rows * cols];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c) {
+                h[r * cols + c] = (float) (100 + 5 * Math.sin(c / 4.0) * Math.cos(r / 6.0)
+                        + 8 * Math.max(0, 1 - Math.abs(c - 40) / 5.0) + random.nextGaussian() * 0.2);
+            }
+        }
+        for (int r = 30; r < 34; ++r) {
+            for (int c = 10; c < 14; ++c)
+                h[r * cols + c] = Float.NaN;
+        }
+        return grid(rows, cols, h, 1);
+    }
+
+    /**
+     * First hit of a ray with any triangle of the grid, in double precision, accepting hits
+     * within the same tolerance of the triangle edges as the index, 1e-4 cells
+     *
+     * @return ray parameter of the hit, {@link Float#POSITIVE_INFINITY} if no triangle is hit
+     */
+    private static float bruteForce(DTMGrid grid, float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < grid.getRows() - 1; ++r) {
+            for (int c = 0; c < grid.getCols() - 1; ++c) {
+                double[] p00 = corner(grid, c, r), p01 = corner(grid, c, r + 1);
+                double[] p10 = corner(grid, c + 1, r), p11 = corner(grid, c + 1, r + 1);
+                best = Math.min(best, triangle(p00, p01, p10, ox, oy, oz, dx, dy, dz, maxT));
+                best = Math.min(best, triangle(p11, p01, p10, ox, oy, oz, dx, dy, dz, maxT));
+            }
+        }
+        return (float) best;
+    }
+
+    private static double[] corner(DTMGrid grid, int c, int r) {
+        return new double[]{grid.gridToWorldX(c, r), grid.gridToWorldY(c, r), grid.gridValue(c, r) - H0};
+    }
+
+    /**
+     * Moller-Trumbore ray triangle intersection
+     */
+    private static double triangle(double[] a, double[] b, double[] c, double ox, double oy, double oz,
+                                   double dx, double dy, double dz, double maxT) {
+        double e1x = b[0] - a[0], e1y = b[1] - a[1], e1z = b[2] - a[2];
+        double e2x = c[0] - a[0], e2y = c[1] - a[1], e2z = c[2] - a[2];
+        double px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+        double det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) < 1e-12 || Double.isNaN(det))
+            return Double.POSITIVE_INFINITY;
+        double sx = ox - a[0], sy = oy - a[1], sz = oz - a[2];
+        double u = (sx * px + sy * py + sz * pz) / det;
+        double qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+        double v = (dx * qx + dy * qy + dz * qz) / det;
+        double t = (e2x * qx + e2y * qy + e2z * qz) / det;
+        final double tol = 1e-4;
+        if (u < -tol || v < -tol || u + v > 1 + tol || t < 0 || t > maxT)
+            return Double.POSITIVE_INFINITY;
+        return t;
+    }
+
+    private static void check(DTMGrid grid, float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        float expected = bruteForce(grid, ox, oy, oz, dx, dy, dz, maxT);
+        float actual = grid.rayCast(ox, oy, oz, dx, dy, dz, maxT);
+        String ray = ox + " " + oy + " " + oz + " " + dx + " " + dy + " " + dz;
+        if (expected == Float.POSITIVE_INFINITY)
+            assertEquals(ray, Float.POSITIVE_INFINITY, actual, 0);
+        else
+            assertEquals(ray, expected, actual, EPS);
+    }
+
+    /**
+     * @return world position and terrain height of a point given in grid coordinates
+     */
+    private static float[] at(DTMGrid grid, float gx, float gy) {
+        int c = Math.min((int) gx, (int) grid.getCols() - 1), r = Math.min((int) gy, (int) grid.getRows() - 1);
+        return new float[]{grid.gridToWorldX(gx, gy), grid.gridToWorldY(gx, gy), grid.gridValue(c, r) - H0};
+    }
+
+    @Test
+    public void rayCast_hitsAndMisses() throws Exception {
+        Random random = new Random(21);
+        DTMGrid grid = hills(random);
+        final float cols = grid.getCols(), rows = grid.getRows();
+        int hits = 0, misses = 0;
+        for (int i = 0; i < 3000; ++i) {
+            float[] p = at(grid, random.nextFloat() * (cols - 1), random.nextFloat() * (rows - 1));
+            float z = Float.isNaN(p[2]) ? 15 : p[2] + 1 + 30 * random.nextFloat();
+            // Down, level and up, some rays leave the grid before hitting
+            double azimuth = 2 * Math.PI * random.nextDouble();
+            double pitch = Math.toRadians(-60 + 80 * random.nextDouble());
+            float dx = (float) (Math.cos(pitch) * Math.sin(azimuth));
+            float dy = (float) (Math.cos(pitch) * Math.cos(azimuth));
+            float dz = (float) Math.sin(pitch);
+            float maxT = i % 4 == 0 ? 5 : 200;
+
+            float t = bruteForce(grid, p[0], p[1], z, dx, dy, dz, maxT);
+            if (t == Float.POSITIVE_INFINITY)
+                misses++;
+            else
+                hits++;
+            check(grid, p[0], p[1], z, dx, dy, dz, maxT);
+        }
+        assertTrue(hits > 500 && misses > 500);
+
+        // Straight up and straight down
+        float[] p = at(grid, 20.5f, 20.5f);
+        assertEquals(Float.POSITIVE_INFINITY, grid.rayCast(p[0], p[1], p[2] + 10, 0, 0, 1, 100), 0);
+        check(grid, p[0], p[1], p[2] + 10, 0, 0, -1, 100);
+        assertEquals(10, grid.rayCast(p[0], p[1], p[2] + 10, 0, 0, -1, 100), 0.5);
+    }
+
+    @Test
+    public void rayCast_startsOutsideGrid() throws Exception {
+        Random random = new Random(22);
+        DTMGrid grid = hills(random);
+        for (int i = 0; i < 1000; ++i) {
+            // From a circle around the grid towards a point inside it
+            double angle = 2 * Math.PI * random.nextDouble();
+            float[] target = at(grid, 5 + random.nextFloat() * 60, 5 + random.nextFloat() * 50);
+            float ox = target[0] + (float) (80 * Math.sin(angle)), oy = target[1] + (float) (80 * Math.cos(angle));
+            float oz = 20 + 10 * random.nextFloat();
+            float dx = target[0] - ox, dy = target[1] - oy, dz = (Float.isNaN(target[2]) ? 10 : target[2]) - oz;
+            float len = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            check(grid, ox, oy, oz, dx / len, dy / len, dz / len, 200);
+        }
+    }
+
+    @Test
+    public void rayCast_startsBelowTerrain() throws Exception {
+        Random random = new Random(23);
+        DTMGrid grid = hills(random);
+        for (int i = 0; i < 1000; ++i) {
+            float[] p = at(grid, 15 + random.nextFloat() * 50, random.nextFloat() * 59);
+            if (Float.isNaN(p[2]))
+                continue;
+            float z = p[2] - 0.5f - 5 * random.nextFloat();
+            double azimuth = 2 * Math.PI * random.nextDouble();
+            double pitch = Math.toRadians(-30 + 120 * random.nextDouble());
+            float dx = (float) (Math.cos(pitch) * Math.sin(azimuth));
+            float dy = (float) (Math.cos(pitch) * Math.cos(azimuth));
+            float dz = (float) Math.sin(pitch);
+            check(grid, p[0], p[1], z, dx, dy, dz, 100);
+        }
+
+        // Straight up from below hits the surface from underneath
+        float[] p = at(grid, 50.3f, 20.6f);
+        assertEquals(3, grid.rayCast(p[0], p[1], p[2] - 3, 0, 0, 1, 100), 0.5);
+    }
+
+    @Test
+    public void rayCast_grazesRidge() throws Exception {
+        // Flat with a sharp ridge along column 20, the same in every row
+        final int rows = 30, cols = 40;
+        float[] h = new float[rows * cols];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c)
+                h[r * cols + c] = c == 20 ? 110 : 100;
+        }
+        DTMGrid grid = grid(rows, cols, h, 1);
+        final float crest = 110 - H0;
+
+        // Level rays across the ridge, in the direction of the grid rows
+        float[] a = at(grid, 2.5f, 0), b = at(grid, 37.5f, 0);
+        float dx = b[0] - a[0], dy = b[1] - a[1];
+        float len = (float) Math.sqrt(dx * dx + dy * dy);
+        dx /= len;
+        dy /= len;
+        for (float row = 1.5f; row < rows - 1; row += 3.1f) {
+            float[] o = at(grid, 2.5f, row);
+            for (float above : new float[]{0.05f, 0.01f, -0.01f, -0.05f, -1f}) {
+                float t = grid.rayCast(o[0], o[1], crest + above, dx, dy, 0, 100);
+                check(grid, o[0], o[1], crest + above, dx, dy, 0, 100);
+                if (above > 0) {
+                    assertEquals(Float.POSITIVE_INFINITY, t, 0);
+                } else {
+                    // On the near slope, which rises 10 m over the cell before the crest
+                    float expected = 20 - 2.5f + above / 10;
+                    assertEquals(expected, t, 0.01);
+                }
+            }
+        }
+
+        // Along the crest, just above and just below
+        float[] o = at(grid, 20, 0.5f), e = at(grid, 20, 28.5f);
+        dx = e[0] - o[0];
+        dy = e[1] - o[1];
+        len = (float) Math.sqrt(dx * dx + dy * dy);
+        assertEquals(Float.POSITIVE_INFINITY, grid.rayCast(o[0], o[1], crest + 0.01f, dx / len, dy / len, 0, 100), 0);
+        check(grid, o[0], o[1], crest + 0.01f, dx / len, dy / len, -0.002f, 100);
+    }
+
+    @Test
+    public void rayCast_alongBorders() throws Exception {
+        Random random = new Random(24);
+        DTMGrid grid = hills(random);
+        final float cols = grid.getCols() - 1, rows = grid.getRows() - 1;
+
+        // Gently descending along each border, on it and just inside
+        float[][] borders = {{0, 0, cols, 0}, {cols, 0, cols, rows}, {cols, rows, 0, rows}, {0, rows, 0, 0}};
+        for (float[] border : borders) {
+            for (float inside : new float[]{0, 1e-3f, 0.3f}) {
+                float u0 = border[0] == 0 ? inside : border[0] - inside, v0 = border[1] == 0 ? inside : border[1] - inside;
+                float u1 = border[2] == 0 ? inside : border[2] - inside, v1 = border[3] == 0 ? inside : border[3] - inside;
+                float[] a = at(grid, u0, v0), b = at(grid, u1, v1);
+                float dx = b[0] - a[0], dy = b[1] - a[1];
+                float len = (float) Math.sqrt(dx * dx + dy * dy);
+                for (float slope : new float[]{0, -0.05f, -0.2f}) {
+                    float z = a[2] + 3;
+                    float n = (float) Math.sqrt(1 + slope * slope);
+                    check(grid, a[0], a[1], z, dx / len / n, dy / len / n, slope / n, 200);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rayCast_quantized() throws Exception {
+        Random random = new Random(25);
+        DTMGrid grid = hills(random).quantize(DTMGrid.DEFAULT_QUANTIZATION);
+        assertTrue(grid.isQuantized());
+        for (int i = 0; i < 1000; ++i) {
+            float[] p = at(grid, random.nextFloat() * 69, random.nextFloat() * 59);
+            float z = Float.isNaN(p[2]) ? 15 : p[2] + 1 + 20 * random.nextFloat();
+            double azimuth = 2 * Math.PI * random.nextDouble();
+            double pitch = Math.toRadians(-45 + 50 * random.nextDouble());
+            check(grid, p[0], p[1], z, (float) (Math.cos(pitch) * Math.sin(azimuth)),
+                    (float) (Math.cos(pitch) * Math.cos(azimuth)), (float) Math.sin(pitch), 200);
+        }
+    }
+
+    @Test
+    public void rayCast_batchSameAsSingle() throws Exception {
+        Random random = new Random(26);
+        DTMGrid grid = hills(random);
+        final int n = 3 * DTMGrid.RAY_PARALLEL_THRESHOLD + 17, offset = 5;
+        float[] rays = new float[(offset + n) * 6];
+        for (int i = offset; i < offset + n; ++i) {
+            float[] p = at(grid, random.nextFloat() * 69, random.nextFloat() * 59);
+            double azimuth = 2 * Math.PI * random.nextDouble();
+            double pitch = Math.toRadians(-45 + 50 * random.nextDouble());
+            rays[i * 6] = p[0];
+            rays[i * 6 + 1] = p[1];
+            rays[i * 6 + 2] = Float.isNaN(p[2]) ? 15 : p[2] + 2;
+            rays[i * 6 + 3] = (float) (Math.cos(pitch) * Math.sin(azimuth));
+            rays[i * 6 + 4] = (float) (Math.cos(pitch) * Math.cos(azimuth));
+            rays[i * 6 + 5] = (float) Math.sin(pitch);
+        }
+
+        float[] t = new float[offset + n];
+        t[0] = -1;
+        grid.rayCast(rays, 100, t, offset, n);
+        assertEquals(-1, t[0], 0);
+        for (int i = offset; i < offset + n; ++i) {
+            int j = i * 6;
+            assertEquals(grid.rayCast(rays[j], rays[j + 1], rays[j + 2], rays[j + 3], rays[j + 4], rays[j + 5], 100), t[i], 0);
+        }
+    }
+}
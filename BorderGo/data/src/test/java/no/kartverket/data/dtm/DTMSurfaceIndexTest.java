@@ -0,0 +1,232 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+import no.kartverket.geometry.Triangle;
+
+import static org.junit.Assert.*;
+
+/**
+ * The closest facet search through the {@link DTMSurfaceIndex} must find the same facet, at the
+ * same distance, as the brute force search it replaced, for points anywhere in the grid, on cell
+ * edges and grid nodes, on the grid borders and next to missing heights.
+ */
+public class DTMSurfaceIndexTest {
+    private static final int ROWS = 40, COLS = 50;
+    private static final double SPACING = 1;
+    private static final double N0 = 6650000, E0 = 260000;
+    // Height of the origin
+    private static final float H0 = 90;
+
+    /**
+     * The search before the index, computing the corners of each cell from the grid, and trying
+     * every triangle within {@link DTMGrid#SEARCH_RADIUS} cells. Adds the planes of all facets at
+     * the closest distance to {@code planes}.<p>
+     *
+     * The old search walked a spiral of cells which left out the corners of the window, and
+     * stopped at the first cell farther away than the best facet so far, before closer cells later
+     * in the same ring. A missing height below the point ended it without a facet. The index
+     * searches the whole window in all these cases, and so does this copy.
+     *
+     * @return distance to the closest facet, {@link Float#POSITIVE_INFINITY} if no facet is found,
+     *         or -1 if the point is outside the grid
+     */
+    private static float bruteForce(DTMGrid grid, float x, float y, float z, List<float[]> planes) {
+        final long cols = grid.getCols(), rows = grid.getRows();
+        final float space = grid.getSpacing();
+        int x_i = (int) Math.floor(grid.worldToGridX(x, y));
+        int y_i = (int) Math.floor(grid.worldToGridY(x, y));
+        if (x_i < 0 || y_i < 0 || x_i >= cols - 1 || y_i >= rows - 1)
+            return -1;
+
+        float[] p = new float[]{x, y, z};
+        float best_dist = 2 * space + Math.abs(z - (grid.gridValue(x_i, y_i) - H0));
+        if (Float.isNaN(best_dist))
+            best_dist = Float.POSITIVE_INFINITY;
+
+        List<float[]> candidates = new ArrayList<>();
+        List<Float> distances = new ArrayList<>();
+        final int radius = DTMGrid.SEARCH_RADIUS;
+        for (int yi = y_i - radius; yi <= y_i + radius; ++yi) {
+            for (int xi = x_i - radius; xi <= x_i + radius; ++xi) {
+                if (xi < 0 || yi < 0 || xi >= cols - 1 || yi >= rows - 1)
+                    continue;
+
+                float[] p00 = corner(grid, xi, yi);
+                float[] p01 = corner(grid, xi, yi + 1);
+                float[] p10 = corner(grid, xi + 1, yi);
+                float[] p11 = corner(grid, xi + 1, yi + 1);
+
+                float[] plane = new float[4];
+                float dist = Triangle.pointTriangle(p00, p01, p10, p, plane);
+                if (dist < best_dist)
+                    best_dist = dist;
+                candidates.add(plane);
+                distances.add(dist);
+
+                plane = new float[4];
+                dist = Triangle.pointTriangle(p11, p01, p10, p, plane);
+                if (dist < best_dist)
+                    best_dist = dist;
+                candidates.add(plane);
+                distances.add(dist);
+            }
+        }
+
+        // Facets sharing the closest point, on an edge or a node, are equally close
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (distances.get(i) <= best_dist + 1e-5f)
+                planes.add(candidates.get(i));
+        }
+        return planes.isEmpty() ? Float.POSITIVE_INFINITY : best_dist;
+    }
+
+    private static float[] corner(DTMGrid grid, int c, int r) {
+        return new float[]{grid.gridToWorldX(c, r), grid.gridToWorldY(c, r), grid.gridValue(c, r) - H0};
+    }
+
+    /**
+     * @return grid of rough terrain with steps and blocks of missing heights, origin in the middle
+     */
+    private static DTMGrid grid(Random random) {
+        float[] h = new float[ROWS * COLS];
+        for (int r = 0; r < ROWS; ++r) {
+            for (int c = 0; c < COLS; ++c) {
+                h[r * COLS + c] = (float) (100 + 4 * Math.sin(c / 3.0) * Math.cos(r / 5.0)
+                        + (c > 30 ? 6 : 0) + random.nextGaussian() * 0.3);
+            }
+        }
+        // Missing heights alone, in a block, and along a border
+        h[5 * COLS + 5] = Float.NaN;
+        for (int r = 20; r < 24; ++r) {
+            for (int c = 10; c < 13; ++c)
+                h[r * COLS + c] = Float.NaN;
+        }
+        for (int r = 0; r < ROWS; r += 3)
+            h[r * COLS + COLS - 1] = Float.NaN;
+
+        DTMGrid grid = new DTMGrid(ROWS, COLS, FloatBuffer.wrap(h));
+        grid.setCoordinateParams(N0, E0, SPACING);
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(N0 - ROWS * SPACING / 2, E0 + COLS * SPACING / 2), latlon);
+        grid.setOrigin(new OriginData(latlon._x, latlon._y, H0));
+        return grid;
+    }
+
+    private static void check(DTMGrid grid, float gx, float gy, float dz, float[] retval) {
+        float x = grid.gridToWorldX(gx, gy);
+        float y = grid.gridToWorldY(gx, gy);
+        // Height above the grid node, or above the origin where heights are missing
+        int c = Math.max(0, Math.min((int) gx, (int) grid.getCols() - 1));
+        int r = Math.max(0, Math.min((int) gy, (int) grid.getRows() - 1));
+        float h = grid.gridValue(c, r);
+        float z = (Float.isNaN(h) ? 0 : h - H0) + dz;
+
+        List<float[]> planes = new ArrayList<>();
+        float expected = bruteForce(grid, x, y, z, planes);
+        float actual = grid.getSurfacePlane(x, y, z, retval);
+        String point = gx + " " + gy + " " + dz;
+        assertEquals(point, expected, actual, 1e-5f);
+        if (expected < 0 || expected == Float.POSITIVE_INFINITY)
+            return;
+
+        for (float[] plane : planes) {
+            if (Math.abs(plane[0] - retval[0]) < 1e-5f && Math.abs(plane[1] - retval[1]) < 1e-5f &&
+                    Math.abs(plane[2] - retval[2]) < 1e-5f && Math.abs(plane[3] - retval[3]) < 1e-3f)
+                return;
+        }
+        fail(point + " plane of another facet");
+    }
+
+    private static void checkAll(DTMGrid grid, Random random) {
+        float[] retval = new float[4];
+        final float rows = grid.getRows(), cols = grid.getCols();
+        final float[] spreads = {0.05f, 0.5f, 3f, 20f};
+
+        // Anywhere in the grid, at heights from close to the terrain to far above or below
+        for (int i = 0; i < 20000; ++i) {
+            float dz = (float) random.nextGaussian() * spreads[i % spreads.length];
+            check(grid, random.nextFloat() * (cols - 1), random.nextFloat() * (rows - 1), dz, retval);
+        }
+        // On cell edges and grid nodes
+        for (int i = 0; i < 5000; ++i) {
+            float dz = (float) random.nextGaussian() * spreads[i % spreads.length];
+            float gx = random.nextInt((int) cols - 1), gy = random.nextInt((int) rows - 1);
+            if (i % 3 != 0)
+                gx += random.nextFloat();
+            if (i % 3 == 1)
+                gy += random.nextFloat();
+            check(grid, gx, gy, dz, retval);
+            // The diagonal between the triangles of a cell
+            float u = random.nextFloat();
+            check(grid, (int) gx + u, (int) gy + 1 - u, dz, retval);
+        }
+        // On and just inside the grid borders, and outside
+        for (int i = 0; i < 5000; ++i) {
+            float dz = (float) random.nextGaussian() * spreads[i % spreads.length];
+            float along = random.nextFloat();
+            float inside = i % 2 == 0 ? 0 : 1e-3f;
+            switch (i % 4) {
+                case 0:
+                    check(grid, inside, along * (rows - 1), dz, retval);
+                    break;
+                case 1:
+                    check(grid, cols - 1 - inside, along * (rows - 1), dz, retval);
+                    break;
+                case 2:
+                    check(grid, along * (cols - 1), inside, dz, retval);
+                    break;
+                default:
+                    check(grid, along * (cols - 1), rows - 1 - inside, dz, retval);
+            }
+            check(grid, -1 - along, along * (rows - 1), dz, retval);
+        }
+        // Above and next to missing heights
+        for (int i = 0; i < 5000; ++i) {
+            float dz = (float) random.nextGaussian() * spreads[i % spreads.length];
+            int which = i % 3;
+            float gx = which == 0 ? 3 + 4 * random.nextFloat() : which == 1 ? 8 + 7 * random.nextFloat() : cols - 4 + 3 * random.nextFloat();
+            float gy = which == 0 ? 3 + 4 * random.nextFloat() : which == 1 ? 18 + 8 * random.nextFloat() : random.nextFloat() * (rows - 1);
+            check(grid, Math.min(gx, cols - 1.001f), gy, dz, retval);
+        }
+    }
+
+    @Test
+    public void getSurfacePlane_sameAsBruteForce() throws Exception {
+        Random random = new Random(11);
+        checkAll(grid(random), random);
+    }
+
+    @Test
+    public void getSurfacePlane_quantizedSameAsBruteForce() throws Exception {
+        Random random = new Random(12);
+        DTMGrid grid = grid(random);
+        DTMGrid quantized = grid.quantize(DTMGrid.DEFAULT_QUANTIZATION);
+        assertTrue(quantized.isQuantized());
+        checkAll(quantized, random);
+    }
+
+    @Test
+    public void getSurfacePlane_missingHeights() throws Exception {
+        DTMGrid grid = grid(new Random(13));
+        float[] retval = new float[4];
+
+        // Above the block of missing heights the closest facet is found outside the block
+        float x = grid.gridToWorldX(11.5f, 21.5f), y = grid.gridToWorldY(11.5f, 21.5f);
+        float dist = grid.getSurfacePlane(x, y, grid.gridValue(9, 21) - H0, retval);
+        assertTrue(dist > 1 && dist < 4);
+
+        // Facets with a missing corner are never returned
+        List<float[]> planes = new ArrayList<>();
+        assertEquals(bruteForce(grid, x, y, 0, planes), grid.getSurfacePlane(x, y, 0, retval), 1e-5f);
+        for (float v : retval)
+            assertFalse(Float.isNaN(v));
+    }
+}
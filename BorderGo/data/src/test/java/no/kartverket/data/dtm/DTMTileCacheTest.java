@@ -0,0 +1,242 @@
+package no.kartverket.data.dtm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import no.kartverket.geodesy.Geodesy;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * The tile cache must interpolate across tile seams as one grid of the whole area would, keep
+ * the most recently used tiles within its byte budget, and load each tile once, also when it is
+ * asked for by both {@link DTMTileCache#prefetch} and {@link DTMTileCache#ensureLoaded}.
+ */
+public class DTMTileCacheTest {
+    private static final double TILE_SIZE = 40, SPACING = 2;
+    // Corner of the test area, on tile boundaries
+    private static final double N0 = 6650000, E0 = 260000;
+
+    private static final OriginData ORIGIN = origin(N0 + 60, E0 + 60);
+
+    private DTMTileCache cache;
+
+    private static double[] latLon(double N, double E) {
+        Geodesy.Coords_xy latlon = new Geodesy.Coords_xy();
+        Geodesy.utm2latlon(new Geodesy.Coords_xy(N, E), latlon);
+        return new double[] {latlon._x, latlon._y};
+    }
+
+    private static OriginData origin(double N, double E) {
+        double[] latlon = latLon(N, E);
+        return new OriginData(latlon[0], latlon[1], 0);
+    }
+
+    private static float height(double N, double E) {
+        return (float) (100 + 5 * Math.sin(E / 7) + 3 * Math.cos(N / 11));
+    }
+
+    /**
+     * @return grid of {@link #height} with upper left node at N, E
+     */
+    private static DTMGrid grid(double N, double E, int rows, int cols, double spacing) {
+        float[] h = new float[rows * cols];
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c)
+                h[r * cols + c] = height(N - r * spacing, E + c * spacing);
+        }
+        DTMGrid grid = new DTMGrid(rows, cols, FloatBuffer.wrap(h));
+        grid.setCoordinateParams(N, E, spacing);
+        return grid;
+    }
+
+    /**
+     * Tiles of {@link #height} with one grid cell outside the tile, counting loads per tile
+     */
+    private static class Loader implements DTMTileCache.TileLoader {
+        final Map<String, Integer> loads = new HashMap<>();
+        double sleepMs = 0;
+
+        double spacing(double minN, double minE) {
+            return SPACING;
+        }
+
+        synchronized int loads() {
+            int sum = 0;
+            for (int n : loads.values())
+                sum += n;
+            return sum;
+        }
+
+        @Override
+        public DTMGrid loadTile(double minN, double minE, double maxN, double maxE) throws IOException {
+            synchronized (this) {
+                String key = minN + " " + minE;
+                Integer n = loads.get(key);
+                loads.put(key, n == null ? 1 : n + 1);
+            }
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep((long) sleepMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            double s = spacing(minN, minE);
+            int rows = (int) Math.round((maxN - minN) / s) + 3, cols = (int) Math.round((maxE - minE) / s) + 3;
+            return grid(maxN + s, minE - s, rows, cols, s);
+        }
+    }
+
+    /**
+     * @return latitude, longitude of the middle of a tile
+     */
+    private static double[] tile(int row, int col) {
+        return latLon(N0 + (row + 0.5) * TILE_SIZE, E0 + (col + 0.5) * TILE_SIZE);
+    }
+
+    private boolean resident(int row, int col) {
+        double[] latlon = tile(row, col);
+        return !cache.getTiles(latlon[0], latlon[1], 0).isEmpty();
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null)
+            cache.shutdown();
+    }
+
+    @Test
+    public void getInterpolatedAltitude_continuousAcrossSeams() throws Exception {
+        cache = new DTMTileCache(new Loader(), TILE_SIZE, DTMTileCache.DEFAULT_BUDGET);
+        cache.setOrigin(ORIGIN);
+        assertEquals(9, cache.ensureLoaded(ORIGIN.lat_0, ORIGIN.lon_0, 30));
+        assertEquals(SPACING, cache.getSpacing(), 1e-3);
+
+        // One grid over the three by three tiles
+        final int n = (int) (3 * TILE_SIZE / SPACING) + 1;
+        DTMGrid whole = grid(N0 + 3 * TILE_SIZE, E0, n, n, SPACING);
+        whole.setOrigin(ORIGIN);
+
+        // Each grid maps to local coordinates with the meridian convergence and scale at its own
+        // corner, which moves positions by a few millimeters between the tiles and the whole grid
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; ++i) {
+            double N = N0 + 1 + random.nextDouble() * (3 * TILE_SIZE - 2);
+            double E = E0 + 1 + random.nextDouble() * (3 * TILE_SIZE - 2);
+            double[] latlon = latLon(N, E);
+            double expected = whole.getInterpolatedAltitude(latlon[0], latlon[1]);
+            assertTrue(expected > 0);
+            assertEquals(N + " " + E, expected, cache.getInterpolatedAltitude(latlon[0], latlon[1]), 0.01);
+        }
+
+        // Just on either side of a seam
+        final double e = 1e-4;
+        for (int i = 0; i < 1000; ++i) {
+            double seam = TILE_SIZE * (1 + random.nextInt(2));
+            double along = 1 + random.nextDouble() * (3 * TILE_SIZE - 2);
+            boolean north = i % 2 == 0;
+            double[] a = north ? latLon(N0 + seam - e, E0 + along) : latLon(N0 + along, E0 + seam - e);
+            double[] b = north ? latLon(N0 + seam + e, E0 + along) : latLon(N0 + along, E0 + seam + e);
+            double ha = cache.getInterpolatedAltitude(a[0], a[1]), hb = cache.getInterpolatedAltitude(b[0], b[1]);
+            assertTrue(ha > 0);
+            assertEquals(seam + " " + along, ha, hb, 2e-3);
+        }
+
+        // The batch interpolation splits runs at the seams the same way
+        double[] lat = new double[200], lon = new double[200], heights = new double[200];
+        for (int i = 0; i < lat.length; ++i) {
+            double[] latlon = latLon(N0 + 2 * TILE_SIZE + 0.3 * i - 30, E0 + 2 * TILE_SIZE - 0.2 * i + 20);
+            lat[i] = latlon[0];
+            lon[i] = latlon[1];
+        }
+        cache.getInterpolatedAltitudes(lat, lon, heights, 0, lat.length);
+        for (int i = 0; i < lat.length; ++i)
+            assertEquals(cache.getInterpolatedAltitude(lat[i], lon[i]), heights[i], 1e-9);
+    }
+
+    @Test
+    public void ensureLoaded_evictsLeastRecentlyUsed() throws Exception {
+        Loader loader = new Loader();
+        final long tileBytes = loader.loadTile(0, 0, TILE_SIZE, TILE_SIZE).getStorageBytes();
+        cache = new DTMTileCache(loader, TILE_SIZE, 4 * tileBytes);
+        cache.setOrigin(ORIGIN);
+
+        for (int col = 0; col < 4; ++col) {
+            double[] latlon = tile(0, col);
+            assertEquals(1, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        }
+        // Use the oldest tile, the second oldest is then evicted first
+        assertTrue(resident(0, 0));
+
+        double[] latlon = tile(1, 0);
+        assertEquals(1, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        assertFalse(resident(0, 1));
+
+        // Next is the third oldest
+        latlon = tile(1, 1);
+        assertEquals(1, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        assertFalse(resident(0, 2));
+        assertTrue(resident(0, 0));
+        assertTrue(resident(0, 3));
+        assertTrue(resident(1, 0));
+        assertTrue(resident(1, 1));
+
+        // An evicted tile is loaded again
+        final int loads = loader.loads();
+        latlon = tile(0, 1);
+        assertEquals(1, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        assertEquals(loads + 1, loader.loads());
+        assertEquals(4, cache.getTiles(ORIGIN.lat_0, ORIGIN.lon_0, 200).size());
+    }
+
+    @Test
+    public void ensureLoaded_rejectsOtherSpacing() throws Exception {
+        Loader loader = new Loader() {
+            @Override
+            double spacing(double minN, double minE) {
+                return minE == E0 + TILE_SIZE ? 1 : SPACING;
+            }
+        };
+        cache = new DTMTileCache(loader, TILE_SIZE, DTMTileCache.DEFAULT_BUDGET);
+        cache.setOrigin(ORIGIN);
+
+        double[] latlon = tile(0, 0);
+        assertEquals(1, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        latlon = tile(0, 1);
+        try {
+            cache.ensureLoaded(latlon[0], latlon[1], 1);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse(resident(0, 1));
+        assertEquals(SPACING, cache.getSpacing(), 1e-3);
+
+        // Not retried at once
+        final int loads = loader.loads();
+        assertEquals(0, cache.ensureLoaded(latlon[0], latlon[1], 1));
+        assertEquals(loads, loader.loads());
+    }
+
+    @Test
+    public void ensureLoaded_waitsForPrefetch() throws Exception {
+        Loader loader = new Loader();
+        loader.sleepMs = 20;
+        cache = new DTMTileCache(loader, TILE_SIZE, DTMTileCache.DEFAULT_BUDGET);
+        cache.setOrigin(ORIGIN);
+
+        cache.prefetch(ORIGIN.lat_0, ORIGIN.lon_0, 30);
+        assertEquals(9, cache.ensureLoaded(ORIGIN.lat_0, ORIGIN.lon_0, 30));
+        assertEquals(9, loader.loads.size());
+        for (int n : loader.loads.values())
+            assertEquals(1, n);
+    }
+}
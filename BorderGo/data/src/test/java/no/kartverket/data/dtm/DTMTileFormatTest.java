@@ -0,0 +1,135 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Grids written as binary tiles must read back unchanged, from a buffer, a stream and a mapping.
+ */
+public class DTMTileFormatTest {
+    private static final int ROWS = 37, COLS = 53;
+    private static final double UL_N = 6650000.5, UL_E = 260000.25, SPACE = 10;
+
+    static DTMGrid grid() {
+        Random random = new Random(1);
+        float[] heights = new float[ROWS * COLS];
+        for (int i = 0; i < heights.length; ++i)
+            heights[i] = 100 + 50 * random.nextFloat();
+        heights[0] = Float.NaN;
+        heights[heights.length - 1] = -0.0f;
+        heights[ROWS * COLS / 2] = Float.MAX_VALUE;
+
+        DTMGrid grid = new DTMGrid(ROWS, COLS, FloatBuffer.wrap(heights));
+        grid.setCoordinateParams(UL_N, UL_E, SPACE);
+        return grid;
+    }
+
+    private static byte[] write(DTMGrid grid) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DTMTileFormat.write(out, grid);
+        return out.toByteArray();
+    }
+
+    static void assertSameGrid(DTMGrid expected, DTMGrid actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getCols(), actual.getCols());
+        assertEquals(expected.getUpperLeftN(), actual.getUpperLeftN(), 0);
+        assertEquals(expected.getUpperLeftE(), actual.getUpperLeftE(), 0);
+        assertEquals(expected.getUtmSpacing(), actual.getUtmSpacing(), 0);
+        assertEquals(expected.getSpacing(), actual.getSpacing(), 0);
+        assertEquals(expected.isQuantized(), actual.isQuantized());
+        for (int r = 0; r < expected.getRows(); ++r) {
+            for (int c = 0; c < expected.getCols(); ++c)
+                assertEquals(Float.floatToRawIntBits(expected.gridValue(c, r)), Float.floatToRawIntBits(actual.gridValue(c, r)));
+        }
+    }
+
+    @Test
+    public void read_roundTrip() throws Exception {
+        DTMGrid grid = grid();
+        byte[] tile = write(grid);
+        assertEquals(DTMTileFormat.HEADER_SIZE + 4 * ROWS * COLS, tile.length);
+
+        assertSameGrid(grid, DTMTileFormat.read(ByteBuffer.wrap(tile)));
+
+        // At a buffer position, as in a file of several tiles
+        ByteBuffer padded = ByteBuffer.allocate(tile.length + 7);
+        padded.position(7);
+        padded.put(tile);
+        padded.position(7);
+        assertSameGrid(grid, DTMTileFormat.read(padded));
+    }
+
+    @Test
+    public void load_roundTrip() throws Exception {
+        DTMGrid grid = grid();
+        byte[] tile = write(grid);
+        assertSameGrid(grid, DTMTileFormat.load(new ByteArrayInputStream(tile), tile.length));
+    }
+
+    @Test
+    public void map_roundTrip() throws Exception {
+        DTMGrid grid = grid();
+        byte[] tile = write(grid);
+        File file = File.createTempFile("tile", DTMTileFormat.EXTENSION);
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[100]);
+            out.write(tile);
+            out.close();
+
+            FileInputStream in = new FileInputStream(file);
+            try {
+                assertSameGrid(grid, DTMTileFormat.map(in, 100, tile.length));
+            } finally {
+                in.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void read_version1() throws Exception {
+        DTMGrid grid = grid();
+        byte[] tile = write(grid);
+        // Version 1 tiles have zeros from offset 44
+        ByteBuffer bb = ByteBuffer.wrap(tile).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(4, 1);
+        for (int i = 44; i < DTMTileFormat.HEADER_SIZE; ++i)
+            bb.put(i, (byte) 0);
+        assertSameGrid(grid, DTMTileFormat.read(ByteBuffer.wrap(tile)));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsMagic() throws Exception {
+        byte[] tile = write(grid());
+        tile[0] ^= 1;
+        DTMTileFormat.read(ByteBuffer.wrap(tile));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsVersion() throws Exception {
+        byte[] tile = write(grid());
+        ByteBuffer.wrap(tile).order(ByteOrder.LITTLE_ENDIAN).putInt(4, DTMTileFormat.VERSION + 1);
+        DTMTileFormat.read(ByteBuffer.wrap(tile));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsTruncated() throws Exception {
+        byte[] tile = write(grid());
+        DTMTileFormat.read(ByteBuffer.wrap(tile, 0, tile.length - 1));
+    }
+}
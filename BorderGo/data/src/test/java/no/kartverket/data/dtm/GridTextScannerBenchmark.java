@@ -0,0 +1,234 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.StringTokenizer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput of the streaming parsers of {@link DTMGridReader} against the tokenizing parsers
+ * they replaced, on the XYZ assets of the app and on ASCII grids made from them. Run with
+ * {@code ./gradlew :data:test -Pbenchmark}.
+ */
+public class GridTextScannerBenchmark {
+    private static final String ASSETS = "../app/src/main/assets/";
+    private static final String[] XYZ_ASSETS = {"Sandvika_23.XYZ", "Kartverket_23.XYZ"};
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The XYZ parser before {@link GridTextScanner}: the whole file as a String, split with
+     * StringTokenizers and parsed with {@link Double#parseDouble}
+     */
+    private static DTMGrid readXYZ(InputStream is) throws IOException {
+        double prev_N = -99.e99;
+
+        StringTokenizer token1 = null;
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(is.available(), 8192));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) > 0)
+                bytes.write(buffer, 0, n);
+
+            String str = bytes.toString();
+
+            token1 = new StringTokenizer(str, "\n");
+        }
+        int num_points = 0, rows = 0, cols = 0;
+        double ul_N = 0, ul_E = 0, space = 0;
+        FloatBuffer grid_buf = FloatBuffer.allocate(1024);
+        grid_buf.clear();
+
+        while (token1.hasMoreTokens()) {
+            int num_d = 0;
+            double[] xyz = {0, 0, 0};
+            String line = token1.nextToken();
+            StringTokenizer token2 = new StringTokenizer(line, " \r\n");
+            while (token2.hasMoreTokens() && num_d < 3) {
+                String strd = token2.nextToken();
+                xyz[num_d] = Double.parseDouble(strd);
+                num_d++;
+            }
+
+            if (num_d == 3) {
+                if (grid_buf.position() >= grid_buf.capacity()) {
+                    FloatBuffer tmp = FloatBuffer.allocate(grid_buf.capacity() * 2);
+                    tmp.clear();
+                    grid_buf.flip();
+                    tmp.put(grid_buf);
+                    grid_buf = tmp;
+                }
+                num_points++;
+                grid_buf.put((float) xyz[2]);
+            }
+
+            if (num_points == 1) {
+                ul_N = xyz[0];
+                ul_E = xyz[1];
+            }
+            if (num_points == 2) {
+                space = xyz[1] - ul_E;
+            }
+            if (xyz[0] != prev_N) {
+                rows++;
+                if (cols == 0 && num_points > 1)
+                    cols = num_points - 1;
+            }
+            prev_N = xyz[0];
+        }
+
+        grid_buf.flip();
+
+        DTMGrid grid = new DTMGrid(rows, cols);
+        grid.arrH.put(grid_buf);
+        grid.arrH.flip();
+        grid.setCoordinateParams(ul_N, ul_E, space);
+        return grid;
+    }
+
+    /**
+     * The ASCII grid parser before {@link GridTextScanner}: lines split with a regular expression
+     * and parsed with {@link Float#parseFloat}
+     */
+    private static DTMGrid readAsciiGrid(Reader inputReader) throws IOException {
+        BufferedReader reader = new BufferedReader(inputReader);
+
+        int ncols = -1;
+        int nrows = -1;
+        double xllcorner = Double.NEGATIVE_INFINITY;
+        double yllcorner = Double.NEGATIVE_INFINITY;
+        double cellsize = -1;
+
+        String line = reader.readLine();
+        while (line != null) {
+            String[] linesplit = line.trim().split("\\s+");
+
+            if (linesplit[0].equals("ncols"))
+                ncols = Integer.parseInt(linesplit[1]);
+            else if (linesplit[0].equals("nrows"))
+                nrows = Integer.parseInt(linesplit[1]);
+            else if (linesplit[0].equals("cellsize"))
+                cellsize = Double.parseDouble(linesplit[1]);
+            else if (linesplit[0].equals("xllcorner"))
+                xllcorner = Double.parseDouble(linesplit[1]);
+            else if (linesplit[0].equals("yllcorner"))
+                yllcorner = Double.parseDouble(linesplit[1]);
+            else
+                break;
+
+            line = reader.readLine();
+        }
+
+        DTMGrid grid = new DTMGrid(nrows, ncols);
+        while (line != null) {
+            String[] linesplit = line.trim().split("\\s+");
+            for (String s : linesplit)
+                grid.arrH.put(Float.parseFloat(s));
+            line = reader.readLine();
+        }
+
+        grid.arrH.rewind();
+        grid.setCoordinateParams(yllcorner + nrows * cellsize, xllcorner, cellsize);
+        return grid;
+    }
+
+    /**
+     * @return the grid as ESRI ASCII grid text, with heights printed like in the XYZ files
+     */
+    private static byte[] asciiGrid(DTMGrid grid) {
+        final int rows = (int) grid.getRows(), cols = (int) grid.getCols();
+        StringBuilder sb = new StringBuilder();
+        sb.append("ncols ").append(cols).append('\n');
+        sb.append("nrows ").append(rows).append('\n');
+        sb.append("xllcorner ").append(grid.getUpperLeftE()).append('\n');
+        sb.append("yllcorner ").append(grid.getUpperLeftN() - rows * grid.getUtmSpacing()).append('\n');
+        sb.append("cellsize ").append(grid.getUtmSpacing()).append('\n');
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c)
+                sb.append(c == 0 ? "" : " ").append(String.format(Locale.US, "%.3f", grid.gridValue(c, r)));
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(ASCII);
+    }
+
+    private static void assertSameHeights(DTMGrid expected, DTMGrid actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getCols(), actual.getCols());
+        for (int r = 0; r < expected.getRows(); ++r) {
+            for (int c = 0; c < expected.getCols(); ++c)
+                assertEquals(Float.floatToIntBits(expected.gridValue(c, r)), Float.floatToIntBits(actual.gridValue(c, r)));
+        }
+    }
+
+    private static void report(String name, String parser, int bytes, double nanos) {
+        Benchmark.report(name, parser, bytes / (nanos * 1e-9) / 1e6, "MB/s");
+    }
+
+    @Test
+    public void parse_assets() throws Exception {
+        Benchmark.assumeEnabled();
+
+        for (String name : XYZ_ASSETS) {
+            File file = new File(ASSETS + name);
+            Assume.assumeTrue(file.isFile());
+            final byte[] xyz = new byte[(int) file.length()];
+            try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+                is.readFully(xyz);
+            }
+            final byte[] ascii = asciiGrid(DTMGridReader.readXYZ(ByteBuffer.wrap(xyz)));
+
+            assertSameHeights(readXYZ(new ByteArrayInputStream(xyz)), DTMGridReader.readXYZ(new ByteArrayInputStream(xyz)));
+            assertSameHeights(readAsciiGrid(new InputStreamReader(new ByteArrayInputStream(ascii), ASCII)),
+                    DTMGridReader.readAsciiGrid(new ByteArrayInputStream(ascii)));
+
+            report(name, "StringTokenizer", xyz.length, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() throws Exception {
+                    return readXYZ(new ByteArrayInputStream(xyz)).gridValue(0, 0);
+                }
+            }));
+            report(name, "GridTextScanner stream", xyz.length, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() throws Exception {
+                    return DTMGridReader.readXYZ(new ByteArrayInputStream(xyz)).gridValue(0, 0);
+                }
+            }));
+            report(name, "GridTextScanner buffer", xyz.length, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() throws Exception {
+                    return DTMGridReader.readXYZ(ByteBuffer.wrap(xyz)).gridValue(0, 0);
+                }
+            }));
+
+            String grid = name.replace(".XYZ", ".asc");
+            report(grid, "String.split", ascii.length, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() throws Exception {
+                    return readAsciiGrid(new InputStreamReader(new ByteArrayInputStream(ascii), ASCII)).gridValue(0, 0);
+                }
+            }));
+            report(grid, "GridTextScanner stream", ascii.length, Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() throws Exception {
+                    return DTMGridReader.readAsciiGrid(new ByteArrayInputStream(ascii)).gridValue(0, 0);
+                }
+            }));
+        }
+    }
+}
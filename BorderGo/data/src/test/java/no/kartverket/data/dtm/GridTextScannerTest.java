@@ -0,0 +1,130 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * The scanner must decode numbers exactly as {@link Double#parseDouble} and
+ * {@link Float#parseFloat}, also at the limits of its fast path.
+ */
+public class GridTextScannerTest {
+    private static final String[] NUMBERS = {
+            "0", "-0", "+0", "0.0", "-0.0", "1", "-1", "+1", ".5", "-.5", "5.", "007.250",
+            "123.456", "-123.456", "0.1", "0.2", "0.3", "1234.5678", "-9999",
+            // Exponents at the limits of the double and float fast paths
+            "1e22", "1e23", "1e-22", "1e-23", "1e10", "1e11", "1e-10", "1e-11",
+            "1E22", "-1e-22", "2.5e+10", "2.5E-10",
+            "10000000000000000000000", "0.0000000000000000000001", "0.00000000000000000000001",
+            "10000000000", "100000000000", "0.0000000001", "0.00000000001",
+            // Mantissas around 2^53 and 2^24
+            "9007199254740991", "9007199254740992", "9007199254740993", "-9007199254740993",
+            "9007199254740993e-5", "900719925474099.3",
+            "16777215", "16777216", "16777217", "-16777217", "1677721.7", "16777217e-3",
+            // More digits than the long holds
+            "123456789012345678901234567890", "0.123456789012345678901234567890",
+            "3.14159265358979323846264338327950288",
+            "NaN", "-Infinity", "Infinity",
+    };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static String join(String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : NUMBERS)
+            sb.append(s).append(separator);
+        return sb.toString();
+    }
+
+    @Test
+    public void readDouble_isExact() throws Exception {
+        for (String separator : new String[] {" ", "\t", "\n", "\r\n"}) {
+            GridTextScanner scanner = new GridTextScanner(new ByteArrayInputStream(join(separator).getBytes(ASCII)));
+            for (String s : NUMBERS) {
+                double expected = Double.parseDouble(s);
+                assertEquals(s, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(scanner.readDouble()));
+            }
+            assertFalse(scanner.skipSpace());
+        }
+    }
+
+    @Test
+    public void readFloat_isExact() throws Exception {
+        for (String separator : new String[] {" ", "\t", "\n", "\r\n"}) {
+            GridTextScanner scanner = new GridTextScanner(ByteBuffer.wrap(join(separator).getBytes(ASCII)));
+            for (String s : NUMBERS) {
+                float expected = Float.parseFloat(s);
+                assertEquals(s, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(scanner.readFloat()));
+            }
+            assertFalse(scanner.skipSpace());
+        }
+    }
+
+    @Test
+    public void readDouble_acrossBuffers() throws Exception {
+        // Numbers split between the 16k reads of a stream
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 100000; ++i)
+            sb.append(NUMBERS[i % NUMBERS.length]).append(i % 2 == 0 ? " " : "\r\n");
+        GridTextScanner scanner = new GridTextScanner(new ByteArrayInputStream(sb.toString().getBytes(ASCII)));
+        for (int i = 0; scanner.skipSpace(); ++i) {
+            String s = NUMBERS[i % NUMBERS.length];
+            assertEquals(s, Double.doubleToRawLongBits(Double.parseDouble(s)), Double.doubleToRawLongBits(scanner.readDouble()));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void readDouble_rejectsText() throws Exception {
+        new GridTextScanner(ByteBuffer.wrap("1.0.0".getBytes(ASCII))).readDouble();
+    }
+
+    @Test
+    public void readAsciiGrid_crlfAndNodata() throws Exception {
+        String text = "ncols 3\r\n" +
+                "nrows 2\r\n" +
+                "xllcorner 100.5\r\n" +
+                "yllcorner 6500000\r\n" +
+                "cellsize 10\r\n" +
+                "NODATA_value -9999\r\n" +
+                "1.25 -9999 3e2\r\n" +
+                "-0.1 16777217 -9999.0\r\n";
+        DTMGrid grid = DTMGridReader.readAsciiGrid(new ByteArrayInputStream(text.getBytes(ASCII)));
+
+        assertEquals(2, grid.getRows());
+        assertEquals(3, grid.getCols());
+        assertEquals(100.5, grid.getUpperLeftE(), 0);
+        assertEquals(6500020, grid.getUpperLeftN(), 0);
+        assertEquals(10, grid.getUtmSpacing(), 0);
+
+        // Missing values are stored as NaN, not as the nodata value
+        assertEquals(1.25f, grid.gridValue(0, 0), 0);
+        assertTrue(Float.isNaN(grid.gridValue(1, 0)));
+        assertEquals(300f, grid.gridValue(2, 0), 0);
+        assertEquals(Float.parseFloat("-0.1"), grid.gridValue(0, 1), 0);
+        assertEquals(Float.parseFloat("16777217"), grid.gridValue(1, 1), 0);
+        assertTrue(Float.isNaN(grid.gridValue(2, 1)));
+    }
+
+    @Test
+    public void readXYZ_crlf() throws Exception {
+        String text = "6500020 100.5 1.25\r\n" +
+                "6500020 110.5 -2e1\r\n" +
+                "6500010 100.5 0.3\r\n" +
+                "6500010 110.5 16777217\r\n";
+        DTMGrid grid = DTMGridReader.readXYZ(ByteBuffer.wrap(text.getBytes(ASCII)));
+
+        assertEquals(2, grid.getRows());
+        assertEquals(2, grid.getCols());
+        assertEquals(6500020, grid.getUpperLeftN(), 0);
+        assertEquals(100.5, grid.getUpperLeftE(), 0);
+        assertEquals(10, grid.getUtmSpacing(), 0);
+        assertEquals(1.25f, grid.gridValue(0, 0), 0);
+        assertEquals(-20f, grid.gridValue(1, 0), 0);
+        assertEquals((float) 0.3, grid.gridValue(0, 1), 0);
+        assertEquals((float) 16777217.0, grid.gridValue(1, 1), 0);
+    }
+}
@@ -0,0 +1,131 @@
+package no.kartverket.data.dtm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The decoder must give the same heights as the per pixel decoding of the WMS response it
+ * replaced, bit for bit, for every opaque pixel, in the single threaded and the parallel path.
+ * Transparent pixels, which the old decoding turned into heights, must be missing.
+ */
+public class RgbHeightDecoderTest {
+
+    /**
+     * The old decoding of a pixel read with {@code Bitmap.getPixel}, with the {@code Color}
+     * channel calls written out
+     */
+    private static float wms(int pixel) {
+        float wms_max_h = 25000, wms_min_h = -25000;
+        int r = (pixel >> 16) & 0xff;
+        int g = (pixel >> 8) & 0xff;
+        int b = pixel & 0xff;
+        return (wms_max_h - wms_min_h) * ((r << 16) | (g << 8) | b) / 16777215.f + wms_min_h;
+    }
+
+    /**
+     * @return random pixels around typical heights, with some fully transparent ones
+     */
+    private static int[] pixels(Random random, int n, int transparentEvery) {
+        int[] pixels = new int[n];
+        for (int i = 0; i < n; ++i) {
+            float h = 100 + 400 * random.nextFloat();
+            int rgb = Math.round((h + 25000) / 50000 * 16777215.f) + random.nextInt(64) - 32;
+            int alpha = i % transparentEvery == 0 ? 0 : 0xff;
+            pixels[i] = (alpha << 24) | (rgb & 0xffffff);
+        }
+        return pixels;
+    }
+
+    @Test
+    public void decode_sameAsWms() throws Exception {
+        RgbHeightDecoder decoder = new RgbHeightDecoder();
+        Random random = new Random(5);
+        for (int i = 0; i < 100000; ++i) {
+            int pixel = 0xff000000 | random.nextInt(0x1000000);
+            assertEquals(Float.floatToIntBits(wms(pixel)), Float.floatToIntBits(decoder.decode(pixel)));
+        }
+
+        // The ends of the range, and partly transparent pixels, which are kept
+        assertEquals(RgbHeightDecoder.DEFAULT_MIN_H, decoder.decode(0xff000000), 0);
+        assertEquals(RgbHeightDecoder.DEFAULT_MAX_H, decoder.decode(0xffffffff), 0);
+        assertEquals(wms(0x01123456), decoder.decode(0x01123456), 0);
+        assertEquals(wms(0x80123456), decoder.decode(0x80123456), 0);
+
+        // Fully transparent pixels have no height, the old decoding gave them one
+        assertTrue(Float.isNaN(decoder.decode(0x00000000)));
+        assertTrue(Float.isNaN(decoder.decode(0x00123456)));
+        assertEquals(RgbHeightDecoder.DEFAULT_MIN_H, wms(0x00000000), 0);
+    }
+
+    @Test
+    public void decode_customRange() throws Exception {
+        RgbHeightDecoder decoder = new RgbHeightDecoder(-100, 1000);
+        assertEquals(-100, decoder.decode(0xff000000), 0);
+        assertEquals(1000, decoder.decode(0xffffffff), 0);
+        assertEquals(450, decoder.decode(0xff800000), 1e-3);
+    }
+
+    /**
+     * Decode an image in a larger pixel array, with and without the parallel path, and check
+     * every height and the count of transparent pixels
+     */
+    private static void checkImage(int width, int height) {
+        RgbHeightDecoder decoder = new RgbHeightDecoder();
+        final int offset = 3, stride = width + 5;
+        int[] pixels = pixels(new Random(width), offset + stride * height, 7);
+        float[] heights = new float[width * height];
+        // Filled with a value the decoder must overwrite
+        Arrays.fill(heights, -1);
+
+        int nodata = decoder.decode(pixels, offset, stride, width, height, heights);
+        int expected = 0;
+        for (int j = 0; j < height; ++j) {
+            for (int i = 0; i < width; ++i) {
+                int pixel = pixels[offset + j * stride + i];
+                float h = heights[j * width + i];
+                if ((pixel >>> 24) == 0) {
+                    assertTrue(Float.isNaN(h));
+                    expected++;
+                } else {
+                    assertEquals(i + " " + j, Float.floatToIntBits(wms(pixel)), Float.floatToIntBits(h));
+                }
+            }
+        }
+        assertEquals(expected, nodata);
+        assertTrue(nodata > 0);
+    }
+
+    @Test
+    public void decode_image() throws Exception {
+        checkImage(37, 23);
+    }
+
+    @Test
+    public void decode_imageParallel() throws Exception {
+        // Larger than the threshold, in an odd number of rows
+        checkImage(301, 97);
+        assertTrue(301 * 97 > DTMGrid.PARALLEL_THRESHOLD);
+    }
+
+    @Test
+    public void decodeGrid_rowsFromTop() throws Exception {
+        RgbHeightDecoder decoder = new RgbHeightDecoder();
+        int[] pixels = pixels(new Random(9), 4 * 3, 5);
+        DTMGrid grid = decoder.decodeGrid(pixels, 4, 3);
+        assertEquals(3, grid.getRows());
+        assertEquals(4, grid.getCols());
+        for (int j = 0; j < 3; ++j) {
+            for (int i = 0; i < 4; ++i) {
+                int pixel = pixels[j * 4 + i];
+                if ((pixel >>> 24) == 0)
+                    assertTrue(Float.isNaN(grid.gridValue(i, j)));
+                else
+                    assertEquals(wms(pixel), grid.gridValue(i, j), 0);
+            }
+        }
+    }
+}
@@ -1,6 +1,15 @@
 package no.kartverket.geodesy;
 
 import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Created by hg on 30.05.2017.
@@ -35,7 +44,38 @@ public class Geodesy {
     static final double UTM_N0 = 0.0;
     static final double UTM_E0 = 500000.0;
 
-    static Href_grid _hrefGrid;
+    // Constants of the transforms, same expressions as when they were computed on every call
+    static final double WGS84_ee = WGS84_f*(2.-WGS84_f);
+    static final double WGS84_e = Math.sqrt(WGS84_ee);
+    static final double UTM_l0 = (UTM_zone - 30.5)*6.0;     // Central meridian (deg)
+
+    private static final double WGS84_ff = WGS84_f*WGS84_f;
+    private static final double WGS84_fff = WGS84_f*WGS84_ff;
+
+    // Gauss Kruger series, geographic to UTM
+    static final double GK_b0 = WGS84_a * ( 1. - WGS84_f/2. + WGS84_ff/16. + WGS84_fff/32. );	// 6367449.1458..
+    static final double GK_b1 = WGS84_a * ( WGS84_f/4. - WGS84_ff/6. - 11./384.*WGS84_fff );
+    static final double GK_b2 = WGS84_a * ( 13./192.*WGS84_ff - 79./1920.*WGS84_fff );
+    static final double GK_b3 = WGS84_a * ( 61./1920. * WGS84_fff );
+
+    // Gauss Kruger series, UTM to geographic
+    static final double GK_c1 = WGS84_f/4.0 - WGS84_ff/24.0 - WGS84_fff*43.0/768.0;
+    static final double GK_c2 = WGS84_ff/192.0 + WGS84_fff*13.0/960.0;
+    static final double GK_c3 = WGS84_fff*17.0/3840.0;
+
+    // Conformal to geodetic latitude series
+    static final double LAT_d2 = WGS84_f + WGS84_ff/3.0 - WGS84_fff/6.0;
+    static final double LAT_d4 = WGS84_ff*7.0/12.0 + WGS84_fff*23.0/60.0;
+    static final double LAT_d6 = WGS84_fff* 7.0/15.0;
+
+    /** Batches larger than this are split and transformed in parallel */
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    private static ForkJoinPool pool;
+
+    static volatile Href_grid _hrefGrid;
+    // Loading of _hrefGrid, null until started
+    private static FutureTask<Href_grid> _hrefLoading;
 
 
     public static boolean IsPositionCloseNorkart(double lat_deg, double lon_deg){
@@ -56,15 +96,59 @@ public class Geodesy {
      * @param NE
      */
     public static void latlon2utm( Coords_xy latlon_deg, Coords_xy NE){
-        double a = WGS84_a;
-        double f = WGS84_f;
-        double ee = f*(2.-f);
-        double e = Math.sqrt(ee);
+        double[] tmp = new double[2];
+        latlon2utm(latlon_deg._x, latlon_deg._y, tmp, 0, tmp, 1);
+        NE._x = tmp[0];
+        NE._y = tmp[1];
+    }
 
-        double lat = Math.toRadians(latlon_deg._x);
 
-        double l0 = (UTM_zone - 30.5)*6.0;
-        double dl = Math.toRadians( latlon_deg._y - l0 );
+    /**
+     * From lat,lon (deg) to UTM (north, east)
+     * @param lat_deg
+     * @param lon_deg
+     * @param NE receives north at {@code offset} and east at {@code offset+1}
+     * @param offset
+     */
+    public static void latlon2utm( double lat_deg, double lon_deg, double[] NE, int offset ){
+        latlon2utm(lat_deg, lon_deg, NE, offset, NE, offset + 1);
+    }
+
+
+    /**
+     * From lat,lon (deg) to UTM (north, east) for a set of positions stored as pairs.
+     * Large batches are transformed in parallel.
+     * @param latlon_deg lat,lon of position {@code i} at {@code 2*i} and {@code 2*i+1}
+     * @param NE receives north,east of position {@code i} at {@code 2*i} and {@code 2*i+1}, may be the same array as {@code latlon_deg}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public static void latlon2utm( double[] latlon_deg, double[] NE, int offset, int count ){
+        transform(true, latlon_deg, latlon_deg, NE, NE, 2, 1, offset, count);
+    }
+
+
+    /**
+     * From lat,lon (deg) to UTM (north, east) for a set of positions stored in separate arrays.
+     * Large batches are transformed in parallel.
+     * @param lat_deg
+     * @param lon_deg
+     * @param N receives north, may be the same array as {@code lat_deg}
+     * @param E receives east, may be the same array as {@code lon_deg}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public static void latlon2utm( double[] lat_deg, double[] lon_deg, double[] N, double[] E, int offset, int count ){
+        transform(true, lat_deg, lon_deg, N, E, 1, 0, offset, count);
+    }
+
+
+    private static void latlon2utm( double lat_deg, double lon_deg, double[] N, int iN, double[] E, int iE ){
+        double e = WGS84_e;
+
+        double lat = Math.toRadians(lat_deg);
+
+        double dl = Math.toRadians( lon_deg - UTM_l0 );
 
         double	sf	= Math.sin( lat );
         double	esf = e*sf;
@@ -86,21 +170,13 @@ public class Geodesy {
         double u = Math.atan( tc / cl );
         double v  = 0.5 * Math.log( (1.+sp)/(1.-sp) );		// = atanh( sp );
 
-
-        double	ff = f*f;
-        double	fff = f*ff;
-        double b0 = a * ( 1. - f/2. + ff/16. + fff/32. );	// 6367449.1458..
-        double b1 = a * ( f/4. - ff/6. - 11./384.*fff );
-        double b2 = a * ( 13./192.*ff - 79./1920.*fff );
-        double b3 = a * ( 61./1920. * fff );
-
         // Gauss Kruger
-        double x = b0*u + b1*Math.sin(2*u)*Math.cosh(2*v) + b2*Math.sin(4*u)*Math.cosh(4*v) + b3*Math.sin(6*u)*Math.cosh(6*v);
-        double y = b0*v + b1*Math.cos(2*u)*Math.sinh(2*v) + b2*Math.cos(4*u)*Math.sinh(4*v) + b3*Math.cos(6*u)*Math.sinh(6*v);
+        double x = GK_b0*u + GK_b1*Math.sin(2*u)*Math.cosh(2*v) + GK_b2*Math.sin(4*u)*Math.cosh(4*v) + GK_b3*Math.sin(6*u)*Math.cosh(6*v);
+        double y = GK_b0*v + GK_b1*Math.cos(2*u)*Math.sinh(2*v) + GK_b2*Math.cos(4*u)*Math.sinh(4*v) + GK_b3*Math.cos(6*u)*Math.sinh(6*v);
 
         // UTM
-        NE._x = UTM_f*x + UTM_N0;
-        NE._y = UTM_f*y + UTM_E0;
+        N[iN] = UTM_f*x + UTM_N0;
+        E[iE] = UTM_f*y + UTM_E0;
     }
 
 
@@ -110,27 +186,62 @@ public class Geodesy {
      * @param latlon_deg
      */
     public static void utm2latlon( Coords_xy NE, Coords_xy latlon_deg) {
-        double a = WGS84_a;
-        double f = WGS84_f;
-        double ee = f*(2.-f);
-        double e = Math.sqrt(ee);
+        double[] tmp = new double[2];
+        utm2latlon(NE._x, NE._y, tmp, 0, tmp, 1);
+        latlon_deg._x = tmp[0];
+        latlon_deg._y = tmp[1];
+    }
+
+
+    /**
+     * From UTM (north, east) to lat,lon (deg)
+     * @param N
+     * @param E
+     * @param latlon_deg receives lat at {@code offset} and lon at {@code offset+1}
+     * @param offset
+     */
+    public static void utm2latlon( double N, double E, double[] latlon_deg, int offset ) {
+        utm2latlon(N, E, latlon_deg, offset, latlon_deg, offset + 1);
+    }
+
+
+    /**
+     * From UTM (north, east) to lat,lon (deg) for a set of positions stored as pairs.
+     * Large batches are transformed in parallel.
+     * @param NE north,east of position {@code i} at {@code 2*i} and {@code 2*i+1}
+     * @param latlon_deg receives lat,lon of position {@code i} at {@code 2*i} and {@code 2*i+1}, may be the same array as {@code NE}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public static void utm2latlon( double[] NE, double[] latlon_deg, int offset, int count ) {
+        transform(false, NE, NE, latlon_deg, latlon_deg, 2, 1, offset, count);
+    }
 
-        double l0 = (UTM_zone - 30.5)*6.0;
 
-        double N = NE._x;
-        double E = NE._y;
+    /**
+     * From UTM (north, east) to lat,lon (deg) for a set of positions stored in separate arrays.
+     * Large batches are transformed in parallel.
+     * @param N
+     * @param E
+     * @param lat_deg receives latitude, may be the same array as {@code N}
+     * @param lon_deg receives longitude, may be the same array as {@code E}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public static void utm2latlon( double[] N, double[] E, double[] lat_deg, double[] lon_deg, int offset, int count ) {
+        transform(false, N, E, lat_deg, lon_deg, 1, 0, offset, count);
+    }
 
+
+    private static void utm2latlon( double N, double E, double[] lat_deg, int iLat, double[] lon_deg, int iLon ) {
         // Gauss Kruger
         double x = (N - UTM_N0) / UTM_f;
         double y = (E - UTM_E0) / UTM_f;
 
-        double	ff = f*f;
-        double	fff = f*ff;
-
-        double b0 = a * ( 1.0 - f/2.0 + ff/16.0 + fff/32.0 );
-        double c1 = f/4.0 - ff/24.0 - fff*43.0/768.0;
-        double c2 = ff/192.0 + fff*13.0/960.0;
-        double c3 = fff*17.0/3840.0;
+        double b0 = GK_b0;
+        double c1 = GK_c1;
+        double c2 = GK_c2;
+        double c3 = GK_c3;
 
         double x2 = 2.0*x;
         double y2 = 2.0*y;
@@ -152,10 +263,82 @@ public class Geodesy {
 
         double w = Math.atan2( su , cu*Math.cos(dl) + tp*Math.sin(dl) );
 
-        double lat = w + (f + ff/3.0 - fff/6.0) * Math.sin(2.0*w) + (ff*7.0/12.0 + fff*23.0/60.0) * Math.sin(4.0*w) + fff* 7.0/15.0 * Math.sin(6.0*w);
+        double lat = w + LAT_d2 * Math.sin(2.0*w) + LAT_d4 * Math.sin(4.0*w) + LAT_d6 * Math.sin(6.0*w);
+
+        lat_deg[iLat] = Math.toDegrees(lat);
+        lon_deg[iLon] = Math.toDegrees(dl) + UTM_l0;
+    }
+
+
+    /**
+     * @return pool for parallel transforms
+     */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+
+    /**
+     * Transform a batch, position {@code i} read from {@code a[i*stride]} and {@code b[i*stride+shift]}
+     * and written to the same indexes in {@code dstA} and {@code dstB}
+     */
+    private static void transform( boolean toUtm, double[] a, double[] b, double[] dstA, double[] dstB,
+                                   int stride, int shift, int offset, int count ) {
+        if ( count > PARALLEL_THRESHOLD )
+            getPool().invoke(new TransformTask(toUtm, a, b, dstA, dstB, stride, shift, offset, count));
+        else
+            transformRange(toUtm, a, b, dstA, dstB, stride, shift, offset, offset + count);
+    }
+
+
+    private static void transformRange( boolean toUtm, double[] a, double[] b, double[] dstA, double[] dstB,
+                                        int stride, int shift, int start, int end ) {
+        for ( int i=start ; i<end ; i++ ) {
+            int iA = i*stride;
+            int iB = iA + shift;
+            if ( toUtm )
+                latlon2utm(a[iA], b[iB], dstA, iA, dstB, iB);
+            else
+                utm2latlon(a[iA], b[iB], dstA, iA, dstB, iB);
+        }
+    }
+
+
+    /**
+     * Splits a large batch for parallel transformation
+     */
+    private static class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final boolean toUtm;
+        final double[] a, b, dstA, dstB;
+        final int stride, shift, offset, count;
+
+        TransformTask( boolean toUtm, double[] a, double[] b, double[] dstA, double[] dstB,
+                       int stride, int shift, int offset, int count ) {
+            this.toUtm = toUtm;
+            this.a = a;
+            this.b = b;
+            this.dstA = dstA;
+            this.dstB = dstB;
+            this.stride = stride;
+            this.shift = shift;
+            this.offset = offset;
+            this.count = count;
+        }
 
-        latlon_deg._x = Math.toDegrees(lat);
-        latlon_deg._y = Math.toDegrees(dl) + l0;
+        @Override
+        protected void compute() {
+            if ( count <= PARALLEL_THRESHOLD ) {
+                transformRange(toUtm, a, b, dstA, dstB, stride, shift, offset, offset + count);
+                return;
+            }
+            int half = count / 2;
+            invokeAll(new TransformTask(toUtm, a, b, dstA, dstB, stride, shift, offset, half),
+                    new TransformTask(toUtm, a, b, dstA, dstB, stride, shift, offset + half, count - half));
+        }
     }
 
 
@@ -167,10 +350,9 @@ public class Geodesy {
      */
     public static double meridian_convergence( double lat_deg, double lon_deg ){
 
-        double f = WGS84_f;
-        double ee = f*(2.-f);
+        double ee = WGS84_ee;
 
-        double l0 = (UTM_zone - 30.5)*6.0;
+        double l0 = UTM_l0;
 
         double lat = Math.toRadians(lat_deg);
 
@@ -204,10 +386,9 @@ public class Geodesy {
      */
     public static double scale( double lat_deg, double lon_deg ) {
 
-        double f = WGS84_f;
-        double ee = f*(2.-f);
+        double ee = WGS84_ee;
 
-        double l0 = (UTM_zone - 30.5)*6.0;
+        double l0 = UTM_l0;
 
         double lat = Math.toRadians(lat_deg);
 
@@ -241,14 +422,83 @@ public class Geodesy {
         return N;
     }
 
+    /**
+     * Load the geoid model in the calling thread, or wait for it if loading is already started
+     * @param context
+     */
     public static void initHREF(Context context)
     {
-        _hrefGrid = new Href_grid();
-        _hrefGrid.ReadHrefFile(context.getAssets());
+        initHREFAsync(context, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        waitForHREF();
+    }
+
+    /**
+     * Start loading the geoid model. GetGeoidHeight waits for the loading to finish.
+     * Only the first call starts loading, later calls return the same future.
+     * @param context
+     * @param executor runs the loading
+     * @return future giving the model, or null if it could not be read
+     */
+    public static synchronized Future<Href_grid> initHREFAsync(Context context, Executor executor)
+    {
+        if ( _hrefLoading == null )
+        {
+            final AssetManager assets = context.getAssets();
+            _hrefLoading = new FutureTask<>(new Callable<Href_grid>() {
+                @Override
+                public Href_grid call() {
+                    Href_grid grid = new Href_grid();
+                    if ( !grid.ReadHrefFile(assets) )
+                        return null;
+                    _hrefGrid = grid;
+                    return grid;
+                }
+            });
+            executor.execute(_hrefLoading);
+        }
+        return _hrefLoading;
+    }
+
+    /**
+     * @return true if the geoid model is loaded, or failed to load
+     */
+    public static synchronized boolean isHREFReady()
+    {
+        return _hrefLoading != null && _hrefLoading.isDone();
+    }
+
+    /**
+     * Wait for the geoid model, if loading is started. Returns at once when it is loaded. Callers
+     * of {@link #GetGeoidHeight(double, double)} holding a lock call this first, outside the
+     * lock, so other threads are not blocked while the model loads.
+     */
+    public static void waitForHREF()
+    {
+        Future<Href_grid> loading;
+        synchronized (Geodesy.class) {
+            loading = _hrefLoading;
+        }
+        if ( loading == null )
+            return;
+
+        try {
+            loading.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            // Not loaded, the default height is used
+        }
     }
 
     /**
-     * Read geoid height from href file.
+     * Read geoid height from href file. Waits for the file if it is being loaded.
      * @param lat_deg
      * @param lon_deg
      * @return Geoid height
@@ -256,9 +506,11 @@ public class Geodesy {
     public static double GetGeoidHeight( double lat_deg, double lon_deg ) {
         double N = 40;
 
-        if (null != _hrefGrid)
+        waitForHREF();
+        Href_grid grid = _hrefGrid;
+        if (null != grid)
         {
-            double dVal = _hrefGrid.GetVal(lat_deg, lon_deg);
+            double dVal = grid.GetVal(lat_deg, lon_deg);
             if ( Math.abs(dVal) < 200 )
                 N = dVal;
         }
@@ -3,16 +3,21 @@ package no.kartverket.geodesy;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 
-import java.nio.ByteBuffer;
-import java.io.BufferedInputStream;
 import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
  * Created by hg on 18.08.2017.
+ *
+ * Geoid model grid. The href file is memory mapped, or read into one direct buffer if the asset
+ * can not be mapped, and values are read from a little-endian view of the file where they are
+ * used. Only the pages of the file around the positions looked up are ever loaded.
  */
 
 
@@ -25,6 +30,7 @@ public class Href_grid {
     private static double dDUMMY = -999.0;
     private static float NO_VAL = 9999.0f;
     private static int BLOCK_SIZE = 64;
+    private static int HEADER_SIZE = 64;
 
     private double _dNMin=0, _dEMin=0, _dNMax=0, _dEMax=0;
     private double _ddN=0, _ddE=0;
@@ -32,7 +38,10 @@ public class Href_grid {
     private int _nCols =0;
     private int _nVals =0;
     private int _nOk=0;
-    private float[] _afVals = null;
+
+    // Values in file order, rows from north, each row padded to whole blocks
+    private FloatBuffer _fbVals = null;
+    private int _nRowStride = 0;
 
 
     @Override
@@ -42,12 +51,14 @@ public class Href_grid {
 
 
     /**
-     * Parse header and data from byte buffer
-     * @param data
+     * Parse header and set up data view of buffer. Package private for tests, which read the
+     * file without an AssetManager.
+     * @param data buffer with the whole file, not copied
      * @return
      */
-    private boolean SetData( byte [] data )
+    boolean SetData( ByteBuffer data )
     {
+        data.order( ByteOrder.LITTLE_ENDIAN );
         if ( ReadHeader( data ) )
         {
             if ( ReadData( data ) )
@@ -61,99 +72,43 @@ public class Href_grid {
     }
 
 
-    private int ReadInt( int index, byte [] data )
-    {
-        int i0 = data[index];
-        int i1 = data[index+1];
-        int i2 = data[index+2];
-        int i3 = data[index+3];
-
-        int n = i0 + 256*( i1 + 256*( i2 +( 256*i3 ) ) );	// Reverse
-
-        return n;
-    }
-
-
-    private double ReadDouble( int index, byte [] data )
-    {
-        byte[] tmp = new byte[8];
-        for ( int i=0 ; i<8 ; i++ )
-            tmp[i] = data[index+7-i];	// Reverse
-
-        ByteBuffer bb = ByteBuffer.wrap( tmp );
-
-        double	d = bb.getDouble();
-
-        return d;
-    }
-
-
-    private float ReadFloat( int index, byte [] data )
-    {
-        byte[] tmp = new byte[4];
-        for ( int i=0 ; i<4 ; i++ )
-            tmp[i] = data[index+3-i];	// Reverse
-
-        ByteBuffer bb = ByteBuffer.wrap( tmp );
-
-        float	f = bb.getFloat();
-
-        return f;
-    }
-
-
     /**
      * Parse header
      * @param data
      * @return
      */
-    private boolean ReadHeader( byte [] data )
+    private boolean ReadHeader( ByteBuffer data )
     {
-        int Code = ReadInt( 0, data );
-        if ( Code != 777 )
+        if ( data.capacity() < HEADER_SIZE )
             return false;
 
-        _dNMin = ReadDouble(  4, data );
-        _dNMax = ReadDouble( 12, data );
-        _dEMin = ReadDouble( 20, data );
-        _dEMax = ReadDouble( 28, data );
-        _ddN   = ReadDouble( 36, data );
-        _ddE   = ReadDouble( 44, data );
-
-        int nUTM  = ReadInt( 52, data );
-        int nEll  = ReadInt( 56, data );
-        int nZone = ReadInt( 60, data );
-
-        return true;
-    }
-
-
-    private boolean SaveVal( int nN, int nE, float fVal )
-    {
-        if ( nN<0 || nN>= _nRows)
-            return false;
-        if ( nE<0 || nE>= _nCols)
+        int Code = data.getInt( 0 );
+        if ( Code != 777 )
             return false;
 
-        //double	N = _dNMin + lN*_ddN;
-        //double	E = _dEMin + lE*_ddE;
+        _dNMin = data.getDouble(  4 );
+        _dNMax = data.getDouble( 12 );
+        _dEMin = data.getDouble( 20 );
+        _dEMax = data.getDouble( 28 );
+        _ddN   = data.getDouble( 36 );
+        _ddE   = data.getDouble( 44 );
 
-        int	nIndex = nN* _nCols + nE;
-        _afVals[nIndex] = fVal;
+        int nUTM  = data.getInt( 52 );
+        int nEll  = data.getInt( 56 );
+        int nZone = data.getInt( 60 );
 
         return true;
     }
 
 
     /**
-     * Parse data from byte buffer and save to float array
+     * Compute grid size and make a float view of the data part of the buffer.
+     * Values are not decoded until they are used, see GetTabVal.
      * @param data
      * @return
      */
-    private boolean ReadData( byte [] data )
+    private boolean ReadData( ByteBuffer data )
     {
-        int pos = 64;
-
         _nRows = (int)(( ( _dNMax - _dNMin ) / _ddN) + 0.5 ) + 1;
         _nCols = (int)(( ( _dEMax - _dEMin ) / _ddE) + 0.5 ) + 1;
 
@@ -162,46 +117,19 @@ public class Href_grid {
         _ddE = ( _dEMax - _dEMin ) / ( _nCols - 1.0 );
 
         _nVals = _nRows * _nCols;
-        _afVals = new float[_nVals];
 
         int nNum_Vals_Block = BLOCK_SIZE / 4;									// 64/4 = 16	= Vals/block
         int nNum_Blocks_Row = (int)Math.ceil( (double) _nCols / (double)nNum_Vals_Block );		// Blocks/Row, rounding up
+        _nRowStride = nNum_Blocks_Row * nNum_Vals_Block;
 
-        int	lNumNoVal = 0;
-        int	lRealVals	= 0;
+        if ( _nRows <= 0 || _nCols <= 0 || HEADER_SIZE + (long) _nRows * _nRowStride * 4 > data.capacity() )
+            return false;
 
-        for (int i = (_nRows -1); i>=0 ; i-- )				// All rows from north
-        {
-            //double	N = _dNMin + i*_ddN;
+        ByteBuffer vals = data.duplicate();
+        vals.position( HEADER_SIZE );
+        _fbVals = vals.slice().order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer();
 
-            for ( int j=0 ; j<nNum_Blocks_Row ; j++ )			// All blocks in one row
-            {
-                for ( int k=0 ; k<nNum_Vals_Block ; k++ )			// All vals in one block
-                {
-                    int	lEInd = j*nNum_Vals_Block + k;
-                    if ( lEInd >= _nCols)
-                    {
-                        pos += ( 4*(16-k) );
-                        break;	// End of row, jump over padding in this block.
-                    }
-                    float fVal = ReadFloat(pos, data);
-                    pos += 4;
-                    SaveVal( i, lEInd, fVal );
-
-                    //double	E = _dEMin + lEInd*_ddE;
-
-                    if ( fVal == NO_VAL )
-                    {
-                        lNumNoVal++;
-                        continue;
-                    }
-
-                    lRealVals++;
-                }
-            }
-        }
-
-        return ( pos>0 );
+        return true;
     }
 
 
@@ -232,8 +160,9 @@ public class Href_grid {
         if ( nE<0 || nE>= _nCols)
             return NO_VAL;
 
-        int	nIndex = nN* _nCols + nE;
-        float	f = _afVals[nIndex];
+        // Rows are stored from north
+        int	nIndex = ( _nRows - 1 - nN ) * _nRowStride + nE;
+        float	f = _fbVals.get( nIndex );
         return f;
     }
 
@@ -304,57 +233,97 @@ public class Href_grid {
 
 
     /**
-     * Read href file to byte buffer and parse header and data
+     * Map href file, or read it to a direct buffer if it can not be mapped, and parse header
      * @param assetManager
      * @return
      */
     public boolean ReadHrefFile(AssetManager assetManager)
     {
-
-        long file_len = 0;
-        FileInputStream stream;
-
+        ByteBuffer data_href;
         try {
-            AssetFileDescriptor descr = assetManager.openFd(href_file);
-            file_len = descr.getLength();
-            stream = descr.createInputStream();
+            data_href = MapAsset( assetManager );
         }
-        catch(IOException ex){
-            return false;
+        catch (IOException ex) {
+            data_href = null;
         }
 
-        if ( file_len <= 0 )
-            return false;
+        if ( data_href == null )
+        {
+            try {
+                data_href = ReadAsset( assetManager );
+            }
+            catch (IOException ex) {
+                return false;
+            }
+        }
 
-        byte[] data_href = new byte[(int)file_len];
+        boolean bOk = SetData( data_href );
 
+        return bOk;
+    }
+
+
+    /**
+     * Map the asset read only. Only works for assets stored uncompressed.
+     * @param assetManager
+     * @return the mapped file, or null if empty
+     * @throws IOException if the asset is compressed or can not be mapped
+     */
+    private ByteBuffer MapAsset(AssetManager assetManager) throws IOException
+    {
+        AssetFileDescriptor descr = assetManager.openFd(href_file);
         try {
-            InputStream input = null;
+            long file_len = descr.getLength();
+            if ( file_len <= 0 )
+                return null;
+
+            FileInputStream stream = descr.createInputStream();
             try {
-                int totalBytesRead = 0;
-                input = new BufferedInputStream(stream);
-                while(totalBytesRead < data_href.length){
-                    int bytesRemaining = data_href.length - totalBytesRead;
-                    int bytesRead = input.read(data_href, totalBytesRead, bytesRemaining);
-                    if (bytesRead > 0){
-                        totalBytesRead = totalBytesRead + bytesRead;
-                    }
-                }
+                // The mapping stays valid when the stream is closed
+                FileChannel channel = stream.getChannel();
+                return channel.map( FileChannel.MapMode.READ_ONLY, descr.getStartOffset(), file_len );
             }
             finally {
-                input.close();
+                stream.close();
             }
         }
-        catch (FileNotFoundException ex) {
-            return false;
-        }
-        catch (IOException ex) {
-            return false;
+        finally {
+            descr.close();
         }
+    }
 
-        boolean bOk = SetData( data_href );
 
-        return bOk;
+    /**
+     * Read the whole asset to a direct buffer
+     * @param assetManager
+     * @return
+     * @throws IOException
+     */
+    private ByteBuffer ReadAsset(AssetManager assetManager) throws IOException
+    {
+        InputStream input = assetManager.open(href_file);
+        try {
+            byte[] chunk = new byte[64 * 1024];
+            ByteBuffer data = ByteBuffer.allocateDirect( Math.max( input.available(), chunk.length ) );
+            int bytesRead;
+            while ( ( bytesRead = input.read( chunk ) ) > 0 )
+            {
+                if ( data.remaining() < bytesRead )
+                {
+                    // Grow, available() is only an estimate
+                    ByteBuffer larger = ByteBuffer.allocateDirect( 2 * data.capacity() + bytesRead );
+                    data.flip();
+                    larger.put( data );
+                    data = larger;
+                }
+                data.put( chunk, 0, bytesRead );
+            }
+            data.flip();
+            return data.slice();
+        }
+        finally {
+            input.close();
+        }
     }
 
 }
@@ -0,0 +1,175 @@
+package no.kartverket.geodesy;
+
+/**
+ * Polynomial approximation of the transforms between the local frame of an {@link OriginData}
+ * and UTM, valid in a square around the origin.<p>
+ *
+ * Each direction is a tensor product Chebyshev interpolant of degree {@link #DEGREE}, made from
+ * exact transforms in the Chebyshev nodes of the square. The local to UTM direction covers
+ * local coordinates within the radius from the origin, the UTM to local direction covers UTM
+ * coordinates within the radius from the UTM position of the origin. The max error of both is
+ * measured on a grid of points when the approximation is made, and the approximation is not
+ * used if the error is larger than {@link #MAX_ERROR}.
+ */
+final class LocalProjection {
+    /** Degree of the polynomials along each axis */
+    static final int DEGREE = 4;
+    /** Max accepted error, meters */
+    static final double MAX_ERROR = 1e-3;
+
+    // Points along each axis of the grid the error is measured on
+    private static final int CHECK_POINTS = 17;
+
+    private static final int N = DEGREE + 1;
+
+    final double radius;
+    // UTM position of the origin
+    final double N_0, E_0;
+    // Max error of the approximation, meters
+    final double maxError;
+
+    // Chebyshev coefficients, index i * N + j for degree i in the first and j in the second variable
+    private final double[] toN = new double[N * N];
+    private final double[] toE = new double[N * N];
+    private final double[] toX = new double[N * N];
+    private final double[] toY = new double[N * N];
+
+    /**
+     * Make the approximation for an origin
+     *
+     * @param origin the origin
+     * @param radius half side of the squares covered, meters
+     */
+    LocalProjection(OriginData origin, double radius) {
+        this.radius = radius;
+
+        double[] tmp = new double[2];
+        Geodesy.latlon2utm(origin.lat_0, origin.lon_0, tmp, 0);
+        N_0 = tmp[0];
+        E_0 = tmp[1];
+
+        // Exact transforms in the nodes, first variable along rows
+        double[] nodes = new double[N];
+        for (int k = 0; k < N; ++k)
+            nodes[k] = Math.cos(Math.PI * (k + 0.5) / N);
+
+        double[] fN = new double[N * N], fE = new double[N * N];
+        double[] fX = new double[N * N], fY = new double[N * N];
+        for (int k = 0; k < N; ++k) {
+            for (int l = 0; l < N; ++l) {
+                double x = nodes[k] * radius, y = nodes[l] * radius;
+                Geodesy.latlon2utm(origin.localOriginToLatitude(y), origin.localOriginToLongitude(x), tmp, 0);
+                fN[k * N + l] = tmp[0] - N_0;
+                fE[k * N + l] = tmp[1] - E_0;
+
+                Geodesy.utm2latlon(N_0 + nodes[k] * radius, E_0 + nodes[l] * radius, tmp, 0);
+                fX[k * N + l] = origin.longitudeToLocalOrigin(tmp[1]);
+                fY[k * N + l] = origin.latitudeToLocalOrigin(tmp[0]);
+            }
+        }
+        fit(fN, toN);
+        fit(fE, toE);
+        fit(fX, toX);
+        fit(fY, toY);
+
+        // Error on a grid, including the edges of the squares
+        double error = 0;
+        double[] exact = new double[2];
+        for (int k = 0; k < CHECK_POINTS; ++k) {
+            for (int l = 0; l < CHECK_POINTS; ++l) {
+                double u = -1 + 2.0 * k / (CHECK_POINTS - 1), v = -1 + 2.0 * l / (CHECK_POINTS - 1);
+
+                double x = u * radius, y = v * radius;
+                Geodesy.latlon2utm(origin.localOriginToLatitude(y), origin.localOriginToLongitude(x), exact, 0);
+                localToUtm(x, y, tmp, 0);
+                error = Math.max(error, Math.hypot(tmp[0] - exact[0], tmp[1] - exact[1]));
+
+                Geodesy.utm2latlon(N_0 + u * radius, E_0 + v * radius, exact, 0);
+                utmToLocal(N_0 + u * radius, E_0 + v * radius, tmp, 0);
+                error = Math.max(error, Math.hypot(tmp[0] - origin.longitudeToLocalOrigin(exact[1]),
+                        tmp[1] - origin.latitudeToLocalOrigin(exact[0])));
+            }
+        }
+        maxError = error;
+    }
+
+    /**
+     * Chebyshev coefficients of the interpolant through values in the nodes
+     */
+    private static void fit(double[] f, double[] c) {
+        for (int i = 0; i < N; ++i) {
+            for (int j = 0; j < N; ++j) {
+                double sum = 0;
+                for (int k = 0; k < N; ++k) {
+                    double ti = Math.cos(Math.PI * i * (k + 0.5) / N);
+                    for (int l = 0; l < N; ++l)
+                        sum += f[k * N + l] * ti * Math.cos(Math.PI * j * (l + 0.5) / N);
+                }
+                c[i * N + j] = sum * (i == 0 ? 1 : 2) * (j == 0 ? 1 : 2) / (N * N);
+            }
+        }
+    }
+
+    /**
+     * Evaluate a Chebyshev series in one variable, for the coefficients from {@code c[off]}
+     */
+    private static double series(double[] c, int off, double t) {
+        double b1 = 0, b2 = 0;
+        for (int i = N - 1; i >= 1; --i) {
+            double b0 = c[off + i] + 2 * t * b1 - b2;
+            b2 = b1;
+            b1 = b0;
+        }
+        return c[off] + t * b1 - b2;
+    }
+
+    /**
+     * Evaluate a tensor product Chebyshev series, Clenshaw's recurrence over the first variable
+     * on series in the second
+     */
+    private static double series2(double[] c, double u, double v) {
+        double b1 = 0, b2 = 0;
+        for (int i = N - 1; i >= 1; --i) {
+            double b0 = series(c, i * N, v) + 2 * u * b1 - b2;
+            b2 = b1;
+            b1 = b0;
+        }
+        return series(c, 0, v) + u * b1 - b2;
+    }
+
+    /**
+     * @return true if a local position is covered
+     */
+    boolean coversLocal(double x, double y) {
+        return Math.abs(x) <= radius && Math.abs(y) <= radius;
+    }
+
+    /**
+     * @return true if a UTM position is covered
+     */
+    boolean coversUtm(double north, double east) {
+        return Math.abs(north - N_0) <= radius && Math.abs(east - E_0) <= radius;
+    }
+
+    /**
+     * Local to UTM, the position must be covered
+     *
+     * @param NE receives north and east at {@code offset} and {@code offset+1}
+     */
+    void localToUtm(double x, double y, double[] NE, int offset) {
+        double u = x / radius, v = y / radius;
+        NE[offset] = N_0 + series2(toN, u, v);
+        NE[offset + 1] = E_0 + series2(toE, u, v);
+    }
+
+    /**
+     * UTM to local, the position must be covered
+     *
+     * @param xy receives east and north of origin at {@code offset} and {@code offset+1}
+     */
+    void utmToLocal(double north, double east, double[] xy, int offset) {
+        double u = (north - N_0) / radius, v = (east - E_0) / radius;
+        xy[offset] = series2(toX, u, v);
+        xy[offset + 1] = series2(toY, u, v);
+    }
+}
@@ -3,7 +3,11 @@ package no.kartverket.geodesy;
 /**
  * Data for the local origin, for transforming to and from local cartesian coordinates.
  *
- *
+ * Transforms between the local coordinates, lat/lon and UTM33 near the origin use a polynomial
+ * approximation of the UTM projection (see {@link LocalProjection}), made on first use. It is
+ * valid within a radius from the origin, and the exact {@link Geodesy} transforms are used
+ * outside it. The error of the approximation is measured when it is made, see
+ * {@link #getProjectionError()}. With the default radius it is well below a millimeter.
  */
 public class OriginData {
     /**
@@ -15,6 +19,13 @@ public class OriginData {
      */
     final public double lat_scale, lon_scale;
 
+    /** Default radius of the fast UTM transforms, meters */
+    public static final double DEFAULT_PROJECTION_RADIUS = 2000;
+
+    private final double projectionRadius;
+    // Made on first use
+    private volatile LocalProjection projection;
+
     /**
      * Initialize origin
      *
@@ -23,9 +34,23 @@ public class OriginData {
      * @param h_0
      */
     public OriginData(double lat_0, double lon_0, double h_0) {
+        this(lat_0, lon_0, h_0, DEFAULT_PROJECTION_RADIUS);
+    }
+
+    /**
+     * Initialize origin
+     *
+     * @param lat_0
+     * @param lon_0
+     * @param h_0
+     * @param projectionRadius distance from the origin, in meters along north and east, where the
+     *                         fast UTM transforms are used
+     */
+    public OriginData(double lat_0, double lon_0, double h_0, double projectionRadius) {
         this.lat_0 = lat_0;
         this.lon_0 = lon_0;
         this.h_0 = h_0;
+        this.projectionRadius = projectionRadius;
 
         // Compute scaling from degrees to meters
         this.lat_scale = Geodesy.meridionalRadius(lat_0) * Math.PI / 180;
@@ -61,4 +86,167 @@ public class OriginData {
     final public double heightToLocalOrigin(final double h) {
         return h - h_0;
     }
+
+    /**
+     * Transform from position relative to a local origin
+     *
+     * @param y a local coordinate, meters north of origin
+     * @return latitude
+     */
+    final public double localOriginToLatitude(final double y) {
+        return y / lat_scale + lat_0;
+    }
+
+    /**
+     * Transform from position relative to a local origin
+     *
+     * @param x a local coordinate, meters east of origin
+     * @return longitude
+     */
+    final public double localOriginToLongitude(final double x) {
+        return x / lon_scale + lon_0;
+    }
+
+    private LocalProjection projection() {
+        LocalProjection p = projection;
+        if (p == null) {
+            synchronized (this) {
+                p = projection;
+                if (p == null)
+                    projection = p = new LocalProjection(this, projectionRadius);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the approximation for the fast UTM transforms, or null if it is not accurate enough
+     */
+    private LocalProjection fastProjection() {
+        if (!(projectionRadius > 0))
+            return null;
+        LocalProjection p = projection();
+        return p.maxError <= LocalProjection.MAX_ERROR ? p : null;
+    }
+
+    /**
+     * @return distance from the origin, in meters along north and east, where the fast UTM transforms are used
+     */
+    public double getProjectionRadius() {
+        return projectionRadius;
+    }
+
+    /**
+     * @return max error of the fast UTM transforms in meters, measured when they were made. If it
+     *         is larger than 1 mm, the exact transforms are always used.
+     */
+    public double getProjectionError() {
+        return projectionRadius > 0 ? projection().maxError : 0;
+    }
+
+    /**
+     * Transform from position relative to a local origin to UTM
+     *
+     * @param x a local coordinate, meters east of origin
+     * @param y a local coordinate, meters north of origin
+     * @param NE receives north at {@code offset} and east at {@code offset+1}
+     * @param offset
+     */
+    public void localOriginToUtm(double x, double y, double[] NE, int offset) {
+        LocalProjection p = fastProjection();
+        if (p != null && p.coversLocal(x, y))
+            p.localToUtm(x, y, NE, offset);
+        else
+            Geodesy.latlon2utm(localOriginToLatitude(y), localOriginToLongitude(x), NE, offset);
+    }
+
+    /**
+     * Transform from UTM to position relative to a local origin
+     *
+     * @param N
+     * @param E
+     * @param xy receives meters east of origin at {@code offset} and meters north at {@code offset+1}
+     * @param offset
+     */
+    public void utmToLocalOrigin(double N, double E, double[] xy, int offset) {
+        LocalProjection p = fastProjection();
+        if (p != null && p.coversUtm(N, E)) {
+            p.utmToLocal(N, E, xy, offset);
+        } else {
+            Geodesy.utm2latlon(N, E, xy, offset);
+            double lat = xy[offset];
+            xy[offset] = longitudeToLocalOrigin(xy[offset + 1]);
+            xy[offset + 1] = latitudeToLocalOrigin(lat);
+        }
+    }
+
+    /**
+     * Transform from lat,lon (deg) to UTM, see {@link Geodesy#latlon2utm(double, double, double[], int)}
+     *
+     * @param lat
+     * @param lon
+     * @param NE receives north at {@code offset} and east at {@code offset+1}
+     * @param offset
+     */
+    public void latLonToUtm(double lat, double lon, double[] NE, int offset) {
+        localOriginToUtm(longitudeToLocalOrigin(lon), latitudeToLocalOrigin(lat), NE, offset);
+    }
+
+    /**
+     * Transform from UTM to lat,lon (deg), see {@link Geodesy#utm2latlon(double, double, double[], int)}
+     *
+     * @param N
+     * @param E
+     * @param latlon receives latitude at {@code offset} and longitude at {@code offset+1}
+     * @param offset
+     */
+    public void utmToLatLon(double N, double E, double[] latlon, int offset) {
+        LocalProjection p = fastProjection();
+        if (p != null && p.coversUtm(N, E)) {
+            p.utmToLocal(N, E, latlon, offset);
+            double x = latlon[offset];
+            latlon[offset] = localOriginToLatitude(latlon[offset + 1]);
+            latlon[offset + 1] = localOriginToLongitude(x);
+        } else {
+            Geodesy.utm2latlon(N, E, latlon, offset);
+        }
+    }
+
+    /**
+     * Transform a set of positions from lat,lon (deg) to UTM
+     *
+     * @param lat
+     * @param lon
+     * @param N receives north, may be the same array as {@code lat}
+     * @param E receives east, may be the same array as {@code lon}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public void latLonToUtm(double[] lat, double[] lon, double[] N, double[] E, int offset, int count) {
+        double[] NE = new double[2];
+        for (int i = offset; i < offset + count; ++i) {
+            latLonToUtm(lat[i], lon[i], NE, 0);
+            N[i] = NE[0];
+            E[i] = NE[1];
+        }
+    }
+
+    /**
+     * Transform a set of positions from UTM to lat,lon (deg)
+     *
+     * @param N
+     * @param E
+     * @param lat receives latitude, may be the same array as {@code N}
+     * @param lon receives longitude, may be the same array as {@code E}
+     * @param offset index of first position
+     * @param count number of positions
+     */
+    public void utmToLatLon(double[] N, double[] E, double[] lat, double[] lon, int offset, int count) {
+        double[] latlon = new double[2];
+        for (int i = offset; i < offset + count; ++i) {
+            utmToLatLon(N[i], E[i], latlon, 0);
+            lat[i] = latlon[0];
+            lon[i] = latlon[1];
+        }
+    }
 }
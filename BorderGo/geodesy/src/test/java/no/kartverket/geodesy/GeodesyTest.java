@@ -0,0 +1,129 @@
+package no.kartverket.geodesy;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The batch transforms must give the same results, bit for bit, as the transforms of single
+ * positions, for both array layouts, in place, and when split across the pool.
+ */
+public class GeodesyTest {
+    // More than PARALLEL_THRESHOLD, so batches are split
+    private static final int COUNT = 3 * Geodesy.PARALLEL_THRESHOLD + 17;
+    private static final int OFFSET = 5;
+
+    private static double[][] latlon() {
+        Random random = new Random(11);
+        double[] lat = new double[OFFSET + COUNT], lon = new double[OFFSET + COUNT];
+        for (int i = OFFSET; i < lat.length; ++i) {
+            // Mainland Norway and Svalbard, and far from the central meridian
+            lat[i] = 58 + 23 * random.nextDouble();
+            lon[i] = 4 + 28 * random.nextDouble();
+        }
+        return new double[][] {lat, lon};
+    }
+
+    private static void assertBits(double expected, double actual) {
+        assertEquals(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+    }
+
+    @Test
+    public void latlon2utm_batchEqualsScalar() throws Exception {
+        double[][] ll = latlon();
+        double[] lat = ll[0], lon = ll[1];
+
+        double[] N = new double[lat.length], E = new double[lat.length];
+        Geodesy.latlon2utm(lat, lon, N, E, OFFSET, COUNT);
+
+        double[] pairs = new double[2 * lat.length];
+        for (int i = OFFSET; i < lat.length; ++i) {
+            pairs[2 * i] = lat[i];
+            pairs[2 * i + 1] = lon[i];
+        }
+        double[] NE = new double[pairs.length];
+        Geodesy.latlon2utm(pairs, NE, OFFSET, COUNT);
+        // In place
+        Geodesy.latlon2utm(pairs, pairs, OFFSET, COUNT);
+
+        double[] single = new double[2];
+        Geodesy.Coords_xy coords = new Geodesy.Coords_xy();
+        for (int i = OFFSET; i < lat.length; ++i) {
+            Geodesy.latlon2utm(new Geodesy.Coords_xy(lat[i], lon[i]), coords);
+            Geodesy.latlon2utm(lat[i], lon[i], single, 0);
+            assertBits(coords._x, single[0]);
+            assertBits(coords._y, single[1]);
+            assertBits(coords._x, N[i]);
+            assertBits(coords._y, E[i]);
+            assertBits(coords._x, NE[2 * i]);
+            assertBits(coords._y, NE[2 * i + 1]);
+            assertBits(coords._x, pairs[2 * i]);
+            assertBits(coords._y, pairs[2 * i + 1]);
+        }
+        // Outside the range
+        assertEquals(0, N[OFFSET - 1], 0);
+        assertEquals(0, NE[2 * OFFSET - 1], 0);
+    }
+
+    @Test
+    public void utm2latlon_batchEqualsScalar() throws Exception {
+        double[][] ll = latlon();
+        double[] N = ll[0], E = ll[1];
+        Geodesy.latlon2utm(N, E, N, E, OFFSET, COUNT);
+
+        double[] lat = new double[N.length], lon = new double[N.length];
+        Geodesy.utm2latlon(N, E, lat, lon, OFFSET, COUNT);
+
+        double[] pairs = new double[2 * N.length];
+        for (int i = OFFSET; i < N.length; ++i) {
+            pairs[2 * i] = N[i];
+            pairs[2 * i + 1] = E[i];
+        }
+        double[] latlon = new double[pairs.length];
+        Geodesy.utm2latlon(pairs, latlon, OFFSET, COUNT);
+        Geodesy.utm2latlon(pairs, pairs, OFFSET, COUNT);
+
+        double[] single = new double[2];
+        Geodesy.Coords_xy coords = new Geodesy.Coords_xy();
+        for (int i = OFFSET; i < N.length; ++i) {
+            Geodesy.utm2latlon(new Geodesy.Coords_xy(N[i], E[i]), coords);
+            Geodesy.utm2latlon(N[i], E[i], single, 0);
+            assertBits(coords._x, single[0]);
+            assertBits(coords._y, single[1]);
+            assertBits(coords._x, lat[i]);
+            assertBits(coords._y, lon[i]);
+            assertBits(coords._x, latlon[2 * i]);
+            assertBits(coords._y, latlon[2 * i + 1]);
+            assertBits(coords._x, pairs[2 * i]);
+            assertBits(coords._y, pairs[2 * i + 1]);
+        }
+    }
+
+    @Test
+    public void utm_roundTrip() throws Exception {
+        double[][] ll = latlon();
+        double[] lat = ll[0], lon = ll[1];
+        double[] N = new double[lat.length], E = new double[lat.length];
+        Geodesy.latlon2utm(lat, lon, N, E, OFFSET, COUNT);
+
+        double[] lat2 = new double[lat.length], lon2 = new double[lat.length];
+        Geodesy.utm2latlon(N, E, lat2, lon2, OFFSET, COUNT);
+        for (int i = OFFSET; i < lat.length; ++i) {
+            // About 1 mm
+            assertEquals(lat[i], lat2[i], 1e-8);
+            assertEquals(lon[i], lon2[i], 1e-8 / Math.cos(Math.toRadians(lat[i])));
+        }
+    }
+
+    @Test
+    public void latlon2utm_knownPoint() throws Exception {
+        // On the central meridian of zone 33 the easting is the false easting
+        double[] NE = new double[2];
+        Geodesy.latlon2utm(60, 15, NE, 0);
+        assertEquals(500000, NE[1], 1e-6);
+        // Meridian arc to 60 degrees times the scale on the central meridian, 0.9996
+        assertEquals(6651411.19, NE[0], 0.01);
+    }
+}
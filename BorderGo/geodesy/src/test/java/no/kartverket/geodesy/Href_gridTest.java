@@ -0,0 +1,197 @@
+package no.kartverket.geodesy;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The geoid grid read from a view of the file must give the same values, bit for bit, as the
+ * grid decoded up front into a float array.
+ */
+public class Href_gridTest {
+    private static final float NO_VAL = 9999.0f;
+    private static final String ASSET = "../app/src/main/assets/" + Href_grid.href_file;
+
+    /**
+     * Reference grid, decoded value by value into an array in south to north order
+     */
+    private static final class Decoded {
+        double NMin, NMax, EMin, EMax, dN, dE;
+        int rows, cols;
+        float[] vals;
+
+        Decoded(byte[] data) {
+            NMin = readDouble(4, data);
+            NMax = readDouble(12, data);
+            EMin = readDouble(20, data);
+            EMax = readDouble(28, data);
+            dN = readDouble(36, data);
+            dE = readDouble(44, data);
+            rows = (int) (((NMax - NMin) / dN) + 0.5) + 1;
+            cols = (int) (((EMax - EMin) / dE) + 0.5) + 1;
+            dN = (NMax - NMin) / (rows - 1.0);
+            dE = (EMax - EMin) / (cols - 1.0);
+            vals = new float[rows * cols];
+
+            int pos = 64;
+            int blocks = (int) Math.ceil(cols / 16.0);
+            for (int i = rows - 1; i >= 0; i--) {
+                for (int j = 0; j < blocks; j++) {
+                    for (int k = 0; k < 16; k++) {
+                        int e = j * 16 + k;
+                        if (e >= cols) {
+                            pos += 4 * (16 - k);
+                            break;
+                        }
+                        vals[i * cols + e] = readFloat(pos, data);
+                        pos += 4;
+                    }
+                }
+            }
+        }
+
+        private static double readDouble(int index, byte[] data) {
+            byte[] tmp = new byte[8];
+            for (int i = 0; i < 8; i++)
+                tmp[i] = data[index + 7 - i];
+            return ByteBuffer.wrap(tmp).getDouble();
+        }
+
+        private static float readFloat(int index, byte[] data) {
+            byte[] tmp = new byte[4];
+            for (int i = 0; i < 4; i++)
+                tmp[i] = data[index + 3 - i];
+            return ByteBuffer.wrap(tmp).getFloat();
+        }
+
+        private float tab(int n, int e) {
+            if (n < 0 || n >= rows || e < 0 || e >= cols)
+                return NO_VAL;
+            return vals[n * cols + e];
+        }
+
+        double get(double N, double E) {
+            double NInd = (NMin > N || NMax < N) ? -1.0 : (N - NMin) / dN;
+            double EInd = (EMin > E || EMax < E) ? -1.0 : (E - EMin) / dE;
+            int n = (int) Math.floor(NInd);
+            int e = (int) Math.floor(EInd);
+            double EFrac = EInd - e;
+            double NFrac = NInd - n;
+            float fLL = tab(n, e), fLR = tab(n, e + 1), fUL = tab(n + 1, e), fUR = tab(n + 1, e + 1);
+
+            if ((fLL == NO_VAL && !(EFrac == 1.0 || NFrac == 1.0)) ||
+                    (fLR == NO_VAL && !(EFrac == 0.0 || NFrac == 1.0)) ||
+                    (fUL == NO_VAL && !(EFrac == 1.0 || NFrac == 0.0)) ||
+                    (fUR == NO_VAL && !(EFrac == 0.0 || NFrac == 0.0)))
+                return -999.0;
+
+            return fLL + (fUL - fLL) * NFrac + (fLR - fLL) * EFrac + (fLL - fLR - fUL + fUR) * EFrac * NFrac;
+        }
+    }
+
+    /**
+     * Synthetic href file with a number of columns that is not a whole number of blocks, and
+     * missing values
+     */
+    private static byte[] synthetic() {
+        final int rows = 23, cols = 37, stride = 48;
+        ByteBuffer bb = ByteBuffer.allocate(64 + rows * stride * 4).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(0, 777);
+        bb.putDouble(4, 57.5);
+        bb.putDouble(12, 57.5 + (rows - 1) * 0.025);
+        bb.putDouble(20, 4.0);
+        bb.putDouble(28, 4.0 + (cols - 1) * 0.05);
+        bb.putDouble(36, 0.025);
+        bb.putDouble(44, 0.05);
+
+        Random random = new Random(3);
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < stride; ++c) {
+                float v = c >= cols ? 0 : random.nextInt(20) == 0 ? NO_VAL : 30 + 20 * random.nextFloat();
+                bb.putFloat(64 + (r * stride + c) * 4, v);
+            }
+        }
+        return bb.array();
+    }
+
+    private static void assertSameValues(byte[] file, ByteBuffer view) {
+        Decoded expected = new Decoded(file);
+        Href_grid grid = new Href_grid();
+        assertTrue(grid.SetData(view));
+
+        Random random = new Random(7);
+        double spanN = expected.NMax - expected.NMin, spanE = expected.EMax - expected.EMin;
+        for (int i = 0; i < 200000; ++i) {
+            double N, E;
+            if (i % 4 == 0) {
+                // Grid nodes, including the edges
+                N = expected.NMin + random.nextInt(expected.rows) * expected.dN;
+                E = expected.EMin + random.nextInt(expected.cols) * expected.dE;
+            } else {
+                // Inside, and a little outside
+                N = expected.NMin + (random.nextDouble() * 1.02 - 0.01) * spanN;
+                E = expected.EMin + (random.nextDouble() * 1.02 - 0.01) * spanE;
+            }
+            assertEquals(Double.doubleToRawLongBits(expected.get(N, E)), Double.doubleToRawLongBits(grid.GetVal(N, E)));
+        }
+    }
+
+    private static void assertSameValues(byte[] file) {
+        // Heap and direct buffers, also at an offset
+        assertSameValues(file, ByteBuffer.wrap(file));
+        ByteBuffer direct = ByteBuffer.allocateDirect(file.length + 5);
+        direct.position(5);
+        direct.put(file);
+        direct.position(5);
+        assertSameValues(file, direct.slice());
+    }
+
+    @Test
+    public void getVal_synthetic() throws Exception {
+        assertSameValues(synthetic());
+    }
+
+    @Test
+    public void getVal_asset() throws Exception {
+        File file = new File(ASSET);
+        Assume.assumeTrue(file.isFile());
+
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int n = 0;
+            while (n < data.length) {
+                int r = stream.read(data, n, data.length - n);
+                if (r < 0)
+                    throw new IOException("Truncated " + file);
+                n += r;
+            }
+            assertSameValues(data);
+
+            FileChannel channel = stream.getChannel();
+            assertSameValues(data, channel.map(FileChannel.MapMode.READ_ONLY, 0, data.length));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void setData_rejectsInvalid() throws Exception {
+        byte[] file = synthetic();
+        assertFalse(new Href_grid().SetData(ByteBuffer.wrap(file, 0, 32).slice()));
+        assertFalse(new Href_grid().SetData(ByteBuffer.wrap(file, 0, file.length - 4).slice()));
+        file[0] = 0;
+        Href_grid grid = new Href_grid();
+        assertFalse(grid.SetData(ByteBuffer.wrap(file)));
+        assertEquals(-999.0, grid.GetVal(58, 5), 0);
+    }
+}
@@ -0,0 +1,108 @@
+package no.kartverket.geodesy;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fast UTM transforms of {@link OriginData} must stay within their error bound of the exact
+ * {@link Geodesy} transforms, and fall back to the exact ones outside the radius.
+ */
+public class LocalProjectionTest {
+    // Origins across Norway, including far from the central meridian of zone 33
+    private static final double[][] ORIGINS = {
+            {58.0, 6.0}, {59.91, 10.75}, {60.39, 5.32}, {63.43, 10.39}, {69.65, 18.96}, {70.07, 29.75}, {78.22, 15.65}
+    };
+
+    /**
+     * @return max distance between fast and exact transforms in both directions, meters
+     */
+    private static double maxError(OriginData origin, double extent, Random random) {
+        double error = 0;
+        double[] fast = new double[2], exact = new double[2];
+        for (int i = 0; i < 2000; ++i) {
+            double x = (2 * random.nextDouble() - 1) * extent, y = (2 * random.nextDouble() - 1) * extent;
+
+            origin.localOriginToUtm(x, y, fast, 0);
+            Geodesy.latlon2utm(origin.localOriginToLatitude(y), origin.localOriginToLongitude(x), exact, 0);
+            error = Math.max(error, Math.hypot(fast[0] - exact[0], fast[1] - exact[1]));
+
+            // The inverse, at a UTM position near the origin
+            double N = exact[0], E = exact[1];
+            origin.utmToLocalOrigin(N, E, fast, 0);
+            Geodesy.utm2latlon(N, E, exact, 0);
+            error = Math.max(error, Math.hypot(fast[0] - origin.longitudeToLocalOrigin(exact[1]),
+                    fast[1] - origin.latitudeToLocalOrigin(exact[0])));
+
+            origin.utmToLatLon(N, E, fast, 0);
+            error = Math.max(error, Math.hypot(origin.longitudeToLocalOrigin(fast[1]) - origin.longitudeToLocalOrigin(exact[1]),
+                    origin.latitudeToLocalOrigin(fast[0]) - origin.latitudeToLocalOrigin(exact[0])));
+        }
+        return error;
+    }
+
+    @Test
+    public void defaultRadius_withinMicrometer() throws Exception {
+        Random random = new Random(5);
+        for (double[] o : ORIGINS) {
+            OriginData origin = new OriginData(o[0], o[1], 0);
+            assertTrue(origin.getProjectionError() < 1e-6);
+            // Within the square, but not further than the radius from the UTM position of the origin
+            double error = maxError(origin, OriginData.DEFAULT_PROJECTION_RADIUS * 0.7, random);
+            assertTrue("error " + error + " at " + o[0] + ", " + o[1], error < 1e-6);
+        }
+    }
+
+    @Test
+    public void largeRadius_withinBound() throws Exception {
+        Random random = new Random(6);
+        for (double[] o : ORIGINS) {
+            OriginData origin = new OriginData(o[0], o[1], 0, 20000);
+            assertTrue(origin.getProjectionError() < 1e-4);
+            double error = maxError(origin, 20000 * 0.7, random);
+            assertTrue("error " + error + " at " + o[0] + ", " + o[1], error < 1e-4);
+        }
+    }
+
+    @Test
+    public void outsideRadius_isExact() throws Exception {
+        OriginData origin = new OriginData(63.43, 10.39, 0);
+        double[] fast = new double[2], exact = new double[2];
+        double x = 3 * OriginData.DEFAULT_PROJECTION_RADIUS, y = -2.5 * OriginData.DEFAULT_PROJECTION_RADIUS;
+
+        origin.localOriginToUtm(x, y, fast, 0);
+        Geodesy.latlon2utm(origin.localOriginToLatitude(y), origin.localOriginToLongitude(x), exact, 0);
+        assertEquals(exact[0], fast[0], 0);
+        assertEquals(exact[1], fast[1], 0);
+
+        origin.utmToLatLon(exact[0], exact[1], fast, 0);
+        Geodesy.utm2latlon(exact[0], exact[1], exact, 0);
+        assertEquals(exact[0], fast[0], 0);
+        assertEquals(exact[1], fast[1], 0);
+    }
+
+    @Test
+    public void zeroRadius_isExact() throws Exception {
+        OriginData origin = new OriginData(59.91, 10.75, 0, 0);
+        assertEquals(0, origin.getProjectionError(), 0);
+        double[] fast = new double[2], exact = new double[2];
+        origin.localOriginToUtm(10, 20, fast, 0);
+        Geodesy.latlon2utm(origin.localOriginToLatitude(20), origin.localOriginToLongitude(10), exact, 0);
+        assertEquals(exact[0], fast[0], 0);
+        assertEquals(exact[1], fast[1], 0);
+    }
+
+    @Test
+    public void tooLargeRadius_isExact() throws Exception {
+        // The approximation is not accurate enough over 500 km, the exact transforms are used
+        OriginData origin = new OriginData(65, 14, 0, 500000);
+        assertTrue(origin.getProjectionError() > LocalProjection.MAX_ERROR);
+        double[] fast = new double[2], exact = new double[2];
+        origin.localOriginToUtm(1000, -2000, fast, 0);
+        Geodesy.latlon2utm(origin.localOriginToLatitude(-2000), origin.localOriginToLongitude(1000), exact, 0);
+        assertEquals(exact[0], fast[0], 0);
+        assertEquals(exact[1], fast[1], 0);
+    }
+}
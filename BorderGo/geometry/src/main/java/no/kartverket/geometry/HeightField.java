@@ -0,0 +1,37 @@
+package no.kartverket.geometry;
+
+/**
+ * A regular grid of terrain points in world coordinates, as used by {@link TerrainMeshBuilder}
+ */
+public interface HeightField {
+    /**
+     * @return number of rows
+     */
+    int getRowCount();
+
+    /**
+     * @return number of columns
+     */
+    int getColumnCount();
+
+    /**
+     * @param col column index
+     * @param row row index
+     * @return world x coordinate of grid point
+     */
+    float x(int col, int row);
+
+    /**
+     * @param col column index
+     * @param row row index
+     * @return world y coordinate of grid point
+     */
+    float y(int col, int row);
+
+    /**
+     * @param col column index
+     * @param row row index
+     * @return world z coordinate of grid point, NaN if missing
+     */
+    float z(int col, int row);
+}
@@ -0,0 +1,34 @@
+package no.kartverket.geometry;
+
+/**
+ * A part of a terrain surface with meshes in several levels of detail, see {@link TerrainMeshBuilder}.
+ * Level 0 has all grid points, and each following level every second grid point of the previous.
+ */
+public class TerrainChunk {
+    /** Meshes, from full resolution to coarsest */
+    public IndexedTriangleMesh[] levels;
+    /** Max height difference between each level and the full resolution surface, meters */
+    public float[] errors;
+    /** Center of chunk */
+    public float centerX, centerY, centerZ;
+    /** Radius of sphere around center containing the chunk */
+    public float radius;
+
+    /**
+     * Choose level of detail for a viewpoint
+     *
+     * @param x viewpoint
+     * @param y viewpoint
+     * @param z viewpoint
+     * @param maxError max height error relative to the distance from the viewpoint
+     * @return the coarsest level with error below the limit
+     */
+    public int selectLevel(float x, float y, float z, float maxError) {
+        float dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+        float dist = Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius, 0);
+        int level = 0;
+        while (level + 1 < levels.length && errors[level + 1] <= maxError * dist)
+            level++;
+        return level;
+    }
+}
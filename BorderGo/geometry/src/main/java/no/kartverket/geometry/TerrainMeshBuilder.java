@@ -0,0 +1,267 @@
+package no.kartverket.geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Builds triangle meshes for a terrain surface given as a {@link HeightField}.<p>
+ *
+ * The surface is split in square chunks, small enough for 16 bit vertex indexes. Each chunk gets
+ * meshes in several levels of detail, where level {@code l} uses every {@code 2^l}-th grid point
+ * along the rows and columns, plus the last row and column of the chunk. Neighbouring chunks share
+ * the grid points on their common edge, so the edges match when both use the same level. To hide
+ * the cracks between chunks drawn at different levels, every mesh has a skirt hanging down from
+ * its edge, as deep as the largest height difference the levels make along the edges.<p>
+ *
+ * Grid cells are split in two triangles along the same diagonal as in the terrain model, so the
+ * full resolution mesh matches the surface used by {@code DTMGrid}. Triangles with a missing
+ * height are left out.
+ */
+public class TerrainMeshBuilder {
+    /** Max number of vertices in a mesh, limited by 16 bit unsigned indexes */
+    public static final int MAX_VERTICES = 65536;
+    /** Default number of grid cells along each side of a chunk */
+    public static final int DEFAULT_CHUNK_CELLS = 64;
+    /** Default number of levels of detail */
+    public static final int DEFAULT_LEVELS = 4;
+
+    // Extra depth of skirts, meters
+    private static final float SKIRT_MARGIN = 0.1f;
+
+    private final int chunkCells;
+    private final int levels;
+
+    public TerrainMeshBuilder() {
+        this(DEFAULT_CHUNK_CELLS, DEFAULT_LEVELS);
+    }
+
+    /**
+     * @param chunkCells number of grid cells along each side of a chunk
+     * @param levels number of levels of detail, at least 1
+     */
+    public TerrainMeshBuilder(int chunkCells, int levels) {
+        int side = chunkCells + 1;
+        if (chunkCells < 1 || levels < 1 || side * side + 4 * side > MAX_VERTICES)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkCells + " or levels " + levels);
+        this.chunkCells = chunkCells;
+        this.levels = levels;
+    }
+
+    /**
+     * Build the chunks covering a height field
+     *
+     * @param field the height field
+     * @return the chunks, with meshes for all levels
+     */
+    public TerrainChunk[] build(HeightField field) {
+        int rows = field.getRowCount();
+        int cols = field.getColumnCount();
+
+        ArrayList<TerrainChunk> chunks = new ArrayList<>();
+        for (int r0 = 0; r0 < rows - 1; r0 += chunkCells) {
+            for (int c0 = 0; c0 < cols - 1; c0 += chunkCells) {
+                TerrainChunk chunk = buildChunk(field, c0, r0,
+                        Math.min(c0 + chunkCells, cols - 1), Math.min(r0 + chunkCells, rows - 1));
+                if (chunk != null)
+                    chunks.add(chunk);
+            }
+        }
+        return chunks.toArray(new TerrainChunk[chunks.size()]);
+    }
+
+    /**
+     * Sample positions from {@code first} to {@code last}, with a given step
+     */
+    private static int[] samples(int first, int last, int step) {
+        int n = (last - first + step - 1) / step + 1;
+        int[] s = new int[n];
+        for (int i = 0; i < n - 1; ++i)
+            s[i] = first + i * step;
+        s[n - 1] = last;
+        return s;
+    }
+
+    private TerrainChunk buildChunk(HeightField field, int c0, int r0, int c1, int r1) {
+        // Bounding sphere
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (int r = r0; r <= r1; ++r) {
+            for (int c = c0; c <= c1; ++c) {
+                float z = field.z(c, r);
+                if (z != z)
+                    continue;
+                float x = field.x(c, r), y = field.y(c, r);
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                minZ = Math.min(minZ, z);
+                maxZ = Math.max(maxZ, z);
+            }
+        }
+        if (minZ > maxZ)
+            return null;
+
+        // All chunks get all levels, so skirts cover the same levels on both sides of an edge
+        int n = levels;
+
+        TerrainChunk chunk = new TerrainChunk();
+        chunk.centerX = (minX + maxX) / 2;
+        chunk.centerY = (minY + maxY) / 2;
+        chunk.centerZ = (minZ + maxZ) / 2;
+        chunk.radius = (float) Math.sqrt((maxX - minX) * (maxX - minX) +
+                (maxY - minY) * (maxY - minY) + (maxZ - minZ) * (maxZ - minZ)) / 2;
+        chunk.levels = new IndexedTriangleMesh[n];
+        chunk.errors = new float[n];
+
+        float skirt = 0;
+        for (int l = 1; l < n; ++l) {
+            int[] cs = samples(c0, c1, 1 << l);
+            int[] rs = samples(r0, r1, 1 << l);
+            chunk.errors[l] = surfaceError(field, cs, rs);
+            skirt = Math.max(skirt, edgeError(field, cs, rs));
+        }
+        skirt += SKIRT_MARGIN;
+
+        for (int l = 0; l < n; ++l)
+            chunk.levels[l] = buildMesh(field, samples(c0, c1, 1 << l), samples(r0, r1, 1 << l), skirt);
+        return chunk;
+    }
+
+    /**
+     * Max height difference between the surface through the sampled grid points and the full
+     * resolution surface, in the sampled grid points' triangles
+     */
+    private static float surfaceError(HeightField field, int[] cs, int[] rs) {
+        float error = 0;
+        for (int j = 0; j < rs.length - 1; ++j) {
+            for (int i = 0; i < cs.length - 1; ++i) {
+                int ca = cs[i], cb = cs[i + 1], ra = rs[j], rb = rs[j + 1];
+                float z00 = field.z(ca, ra);
+                float z01 = field.z(cb, ra);
+                float z10 = field.z(ca, rb);
+                float z11 = field.z(cb, rb);
+                for (int r = ra; r <= rb; ++r) {
+                    float v = (float) (r - ra) / (rb - ra);
+                    for (int c = ca; c <= cb; ++c) {
+                        float u = (float) (c - ca) / (cb - ca);
+                        // Same diagonal as the mesh, from (cb, ra) to (ca, rb)
+                        float z = u + v <= 1
+                                ? z00 + u * (z01 - z00) + v * (z10 - z00)
+                                : z11 + (1 - u) * (z10 - z11) + (1 - v) * (z01 - z11);
+                        float e = Math.abs(field.z(c, r) - z);
+                        if (e > error)
+                            error = e;
+                    }
+                }
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Max height difference along the chunk edges between the sampled grid points and the full
+     * resolution surface
+     */
+    private static float edgeError(HeightField field, int[] cs, int[] rs) {
+        int ca = cs[0], cb = cs[cs.length - 1], ra = rs[0], rb = rs[rs.length - 1];
+        float error = 0;
+        for (int i = 0; i < cs.length - 1; ++i) {
+            for (int c = cs[i]; c <= cs[i + 1]; ++c) {
+                float u = (float) (c - cs[i]) / (cs[i + 1] - cs[i]);
+                error = maxError(error, field.z(c, ra), field.z(cs[i], ra), field.z(cs[i + 1], ra), u);
+                error = maxError(error, field.z(c, rb), field.z(cs[i], rb), field.z(cs[i + 1], rb), u);
+            }
+        }
+        for (int j = 0; j < rs.length - 1; ++j) {
+            for (int r = rs[j]; r <= rs[j + 1]; ++r) {
+                float v = (float) (r - rs[j]) / (rs[j + 1] - rs[j]);
+                error = maxError(error, field.z(ca, r), field.z(ca, rs[j]), field.z(ca, rs[j + 1]), v);
+                error = maxError(error, field.z(cb, r), field.z(cb, rs[j]), field.z(cb, rs[j + 1]), v);
+            }
+        }
+        return error;
+    }
+
+    private static float maxError(float error, float z, float za, float zb, float t) {
+        float e = Math.abs(z - (za + t * (zb - za)));
+        return e > error ? e : error;
+    }
+
+    /**
+     * Mesh through the sampled grid points, with a skirt along the edge
+     */
+    private static IndexedTriangleMesh buildMesh(HeightField field, int[] cs, int[] rs, float skirt) {
+        int w = cs.length, h = rs.length;
+        int perimeter = 2 * (w - 1) + 2 * (h - 1);
+
+        Pos[] positions = new Pos[w * h + perimeter];
+        for (int j = 0; j < h; ++j) {
+            for (int i = 0; i < w; ++i) {
+                Pos p = new Pos();
+                p.x = field.x(cs[i], rs[j]);
+                p.y = field.y(cs[i], rs[j]);
+                p.z = field.z(cs[i], rs[j]);
+                positions[j * w + i] = p;
+            }
+        }
+
+        // Edge grid points, around the chunk
+        int[] edge = new int[perimeter];
+        int k = 0;
+        for (int i = 0; i < w - 1; ++i)
+            edge[k++] = i;
+        for (int j = 0; j < h - 1; ++j)
+            edge[k++] = j * w + w - 1;
+        for (int i = w - 1; i > 0; --i)
+            edge[k++] = (h - 1) * w + i;
+        for (int j = h - 1; j > 0; --j)
+            edge[k++] = j * w;
+
+        // Skirt grid points, below the edge
+        for (k = 0; k < perimeter; ++k) {
+            Pos e = positions[edge[k]];
+            Pos p = new Pos();
+            p.x = e.x;
+            p.y = e.y;
+            p.z = e.z - skirt;
+            positions[w * h + k] = p;
+        }
+
+        short[] indexes = new short[((w - 1) * (h - 1) + perimeter) * 6];
+        int ix = 0;
+        for (int j = 0; j < h - 1; ++j) {
+            for (int i = 0; i < w - 1; ++i) {
+                int i00 = j * w + i;
+                int i10 = (j + 1) * w + i;
+                int i01 = j * w + i + 1;
+                int i11 = (j + 1) * w + i + 1;
+                ix = triangle(positions, indexes, ix, i00, i10, i01);
+                ix = triangle(positions, indexes, ix, i11, i01, i10);
+            }
+        }
+        for (k = 0; k < perimeter; ++k) {
+            int a = edge[k], b = edge[(k + 1) % perimeter];
+            int sa = w * h + k, sb = w * h + (k + 1) % perimeter;
+            ix = triangle(positions, indexes, ix, a, sa, b);
+            ix = triangle(positions, indexes, ix, b, sa, sb);
+        }
+
+        IndexedTriangleMesh mesh = new IndexedTriangleMesh();
+        mesh.positions = positions;
+        mesh.indexes = ix == indexes.length ? indexes : Arrays.copyOf(indexes, ix);
+        return mesh;
+    }
+
+    /**
+     * Add a triangle, unless a corner has a missing height
+     */
+    private static int triangle(Pos[] positions, short[] indexes, int ix, int a, int b, int c) {
+        if (positions[a].z != positions[a].z || positions[b].z != positions[b].z || positions[c].z != positions[c].z)
+            return ix;
+        indexes[ix++] = (short) a;
+        indexes[ix++] = (short) b;
+        indexes[ix++] = (short) c;
+        return ix;
+    }
+}
@@ -63,18 +63,18 @@ public class Triangle {
      * @return distance between point and triangle
      */
     static public float pointTriangle(float[] p1, float[] p2, float[] p3, float[] p, float[] res) {
-        // rewrite triangle in normal form
+        // rewrite triangle in normal form, kept in scalars to avoid allocation in this hot path
         float[] B = p1;
-        float[] E0 = new float[]{p2[0] - B[0], p2[1] - B[1], p2[2] - B[2]};
-        float[] E1 = new float[]{p3[0] - B[0], p3[1] - B[1], p3[2] - B[2]};
-        float[] D = new float[]{B[0] - p[0], B[1] - p[1], B[2] - p[2]};
+        float E0x = p2[0] - B[0], E0y = p2[1] - B[1], E0z = p2[2] - B[2];
+        float E1x = p3[0] - B[0], E1y = p3[1] - B[1], E1z = p3[2] - B[2];
+        float Dx = B[0] - p[0], Dy = B[1] - p[1], Dz = B[2] - p[2];
 
-        float a = dot(E0, E0);
-        float b = dot(E0, E1);
-        float c = dot(E1, E1);
-        float d = dot(E0, D);
-        float e = dot(E1, D);
-        float f = dot(D, D);
+        float a = E0x * E0x + E0y * E0y + E0z * E0z;
+        float b = E0x * E1x + E0y * E1y + E0z * E1z;
+        float c = E1x * E1x + E1y * E1y + E1z * E1z;
+        float d = E0x * Dx + E0y * Dy + E0z * Dz;
+        float e = E1x * Dx + E1y * Dy + E1z * Dz;
+        float f = Dx * Dx + Dy * Dy + Dz * Dz;
 
         float det = a * c - b * b; // do we have to use abs here?
         float s = b * e - c * d;
@@ -245,18 +245,18 @@ public class Triangle {
         if (res == null)
             return sqrDistance <= 0 ? 0 : (float) Math.sqrt(sqrDistance);
 
-        d = B[0] + s * E0[0] + t * E1[0];
-        e = B[1] + s * E0[1] + t * E1[1];
-        f = B[2] + s * E0[2] + t * E1[2];
+        d = B[0] + s * E0x + t * E1x;
+        e = B[1] + s * E0y + t * E1y;
+        f = B[2] + s * E0z + t * E1z;
         a = p[0] - d;
         b = p[1] - e;
         c = p[2] - f;
 
         float invLen, len = 0;
         if (sqrDistance < 1e-4) {
-            a = E0[1] * E1[2] - E0[2] * E1[1];
-            b = E0[2] * E1[0] - E0[0] * E1[2];
-            c = E0[0] * E1[1] - E0[1] * E1[0];
+            a = E0y * E1z - E0z * E1y;
+            b = E0z * E1x - E0x * E1z;
+            c = E0x * E1y - E0y * E1x;
             invLen = 1 / (float) Math.sqrt(a * a + b * b + c * c);
         } else {
             len = (float) Math.sqrt(a * a + b * b + c * c);
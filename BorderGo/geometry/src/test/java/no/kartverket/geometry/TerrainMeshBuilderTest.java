@@ -0,0 +1,299 @@
+package no.kartverket.geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The mesh builder must cover a height field with chunks whose levels have the expected number of
+ * vertices and triangles, split cells along the same diagonal as the terrain model, leave out the
+ * triangles with a missing height, hang the skirts below the largest edge error, and keep the
+ * vertex indexes within 16 bits.
+ */
+public class TerrainMeshBuilderTest {
+    private static final float SPACING = 2;
+
+    /**
+     * Grid with x east and y north from the upper left, and heights from an array
+     */
+    private static class Field implements HeightField {
+        final int rows, cols;
+        final float[] z;
+
+        Field(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            z = new float[rows * cols];
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows;
+        }
+
+        @Override
+        public int getColumnCount() {
+            return cols;
+        }
+
+        @Override
+        public float x(int col, int row) {
+            return col * SPACING;
+        }
+
+        @Override
+        public float y(int col, int row) {
+            return -row * SPACING;
+        }
+
+        @Override
+        public float z(int col, int row) {
+            return z[row * cols + col];
+        }
+
+        void set(int col, int row, float value) {
+            z[row * cols + col] = value;
+        }
+    }
+
+    private static Field hills(int rows, int cols) {
+        Field field = new Field(rows, cols);
+        for (int r = 0; r < rows; ++r) {
+            for (int c = 0; c < cols; ++c)
+                field.set(c, r, (float) (100 + 3 * Math.sin(c / 5.0) + 2 * Math.cos(r / 7.0)));
+        }
+        return field;
+    }
+
+    /**
+     * @return number of grid points along a side of {@code cells} cells at a level
+     */
+    private static int points(int cells, int level) {
+        int step = 1 << level;
+        return (cells + step - 1) / step + 1;
+    }
+
+    private static int vertices(int cellsX, int cellsY, int level) {
+        int w = points(cellsX, level), h = points(cellsY, level);
+        return w * h + 2 * (w - 1) + 2 * (h - 1);
+    }
+
+    /**
+     * @return number of index values with all triangles kept, two per cell and two per skirt segment
+     */
+    private static int indexes(int cellsX, int cellsY, int level) {
+        int w = points(cellsX, level), h = points(cellsY, level);
+        return ((w - 1) * (h - 1) + 2 * (w - 1) + 2 * (h - 1)) * 6;
+    }
+
+    /**
+     * Check that the indexes are in range and refer to positions with a height
+     */
+    private static void checkIndexes(IndexedTriangleMesh mesh) {
+        assertEquals(0, mesh.indexes.length % 3);
+        for (short index : mesh.indexes) {
+            int i = index & 0xffff;
+            assertTrue(i < mesh.positions.length);
+            assertFalse(Float.isNaN(mesh.positions[i].z));
+        }
+    }
+
+    private static Pos pos(HeightField field, int col, int row) {
+        Pos p = new Pos();
+        p.x = field.x(col, row);
+        p.y = field.y(col, row);
+        p.z = field.z(col, row);
+        return p;
+    }
+
+    private static void assertPos(Pos expected, Pos actual) {
+        assertEquals(expected.x, actual.x, 0);
+        assertEquals(expected.y, actual.y, 0);
+        assertEquals(expected.z, actual.z, 0);
+    }
+
+    @Test
+    public void build_counts() throws Exception {
+        // 129 x 69 cells, in chunks of 64, 64 and 1 columns and 64 and 5 rows
+        Field field = hills(70, 130);
+        TerrainChunk[] chunks = new TerrainMeshBuilder().build(field);
+        assertEquals(6, chunks.length);
+
+        final int[] cellsX = {64, 64, 1}, cellsY = {64, 5};
+        for (int k = 0; k < chunks.length; ++k) {
+            TerrainChunk chunk = chunks[k];
+            int cx = cellsX[k % 3], cy = cellsY[k / 3];
+            assertEquals(TerrainMeshBuilder.DEFAULT_LEVELS, chunk.levels.length);
+            assertEquals(TerrainMeshBuilder.DEFAULT_LEVELS, chunk.errors.length);
+            assertEquals(0, chunk.errors[0], 0);
+            for (int l = 0; l < chunk.levels.length; ++l) {
+                IndexedTriangleMesh mesh = chunk.levels[l];
+                String level = k + " " + l;
+                assertEquals(level, vertices(cx, cy, l), mesh.positions.length);
+                assertEquals(level, indexes(cx, cy, l), mesh.indexes.length);
+                checkIndexes(mesh);
+            }
+
+            // All grid points inside the bounding sphere, the skirt points follow them
+            Pos[] positions = chunk.levels[0].positions;
+            for (int i = 0; i < points(cx, 0) * points(cy, 0); ++i) {
+                Pos p = positions[i];
+                float dx = p.x - chunk.centerX, dy = p.y - chunk.centerY, dz = p.z - chunk.centerZ;
+                assertTrue(Math.sqrt(dx * dx + dy * dy + dz * dz) <= chunk.radius * 1.0001f);
+            }
+        }
+
+        // The coarser levels have fewer vertices
+        assertEquals(65 * 65 + 4 * 64, chunks[0].levels[0].positions.length);
+        assertEquals(9 * 9 + 4 * 8, chunks[0].levels[3].positions.length);
+    }
+
+    @Test
+    public void build_sameDiagonalAsGrid() throws Exception {
+        Field field = hills(20, 30);
+        TerrainChunk[] chunks = new TerrainMeshBuilder().build(field);
+        assertEquals(1, chunks.length);
+
+        // Level 0 has the grid points line by line, and cells split from (c + 1, r) to (c, r + 1)
+        IndexedTriangleMesh mesh = chunks[0].levels[0];
+        final int w = 30;
+        for (int r = 0; r < 19; ++r) {
+            for (int c = 0; c < 29; ++c) {
+                int t = (r * 29 + c) * 6;
+                assertPos(pos(field, c, r), mesh.positions[mesh.indexes[t]]);
+                assertPos(pos(field, c, r + 1), mesh.positions[mesh.indexes[t + 1]]);
+                assertPos(pos(field, c + 1, r), mesh.positions[mesh.indexes[t + 2]]);
+                assertPos(pos(field, c + 1, r + 1), mesh.positions[mesh.indexes[t + 3]]);
+                assertPos(pos(field, c + 1, r), mesh.positions[mesh.indexes[t + 4]]);
+                assertPos(pos(field, c, r + 1), mesh.positions[mesh.indexes[t + 5]]);
+            }
+        }
+        assertEquals(w * 20 + 2 * 29 + 2 * 19, mesh.positions.length);
+    }
+
+    @Test
+    public void build_skirtBelowEdgeError() throws Exception {
+        // A plane has no error, and a skirt of only the margin
+        Field field = new Field(17, 17);
+        for (int r = 0; r < 17; ++r) {
+            for (int c = 0; c < 17; ++c)
+                field.set(c, r, 0.3f * c - 0.2f * r);
+        }
+        TerrainChunk chunk = new TerrainMeshBuilder(16, 3).build(field)[0];
+        for (float error : chunk.errors)
+            assertEquals(0, error, 1e-5);
+        IndexedTriangleMesh mesh = chunk.levels[0];
+        for (int k = 17 * 17; k < mesh.positions.length; ++k)
+            assertEquals(0.1, lowestAbove(mesh, mesh.positions[k]) - mesh.positions[k].z, 1e-5);
+
+        // A spike of 5 m on the edge, left out at level 1 and 2, deepens the skirts of all levels
+        field.set(3, 0, 0.3f * 3 + 5);
+        chunk = new TerrainMeshBuilder(16, 3).build(field)[0];
+        assertEquals(0, chunk.errors[0], 0);
+        assertEquals(5, chunk.errors[1], 1e-5);
+        assertEquals(5, chunk.errors[2], 1e-5);
+        for (IndexedTriangleMesh level : chunk.levels) {
+            for (int k = 0; k < level.positions.length; ++k) {
+                Pos p = level.positions[k];
+                float above = lowestAbove(level, p);
+                if (above != p.z)
+                    assertEquals(5.1, above - p.z, 1e-4);
+            }
+        }
+    }
+
+    /**
+     * @return height of the grid point at the same position as a skirt point, or the point's own
+     *         height for grid points
+     */
+    private static float lowestAbove(IndexedTriangleMesh mesh, Pos p) {
+        float z = p.z;
+        for (Pos q : mesh.positions) {
+            if (q.x == p.x && q.y == p.y && q.z > z)
+                z = q.z;
+        }
+        return z;
+    }
+
+    @Test
+    public void build_leavesOutMissingHeights() throws Exception {
+        Field field = hills(33, 33);
+        TerrainChunk[] full = new TerrainMeshBuilder(32, 4).build(field);
+
+        // An inner grid point is a corner of six triangles. Levels 2 and 3 do not sample it.
+        field.set(10, 10, Float.NaN);
+        TerrainChunk[] chunks = new TerrainMeshBuilder(32, 4).build(field);
+        assertEquals(1, chunks.length);
+        for (int l = 0; l < 4; ++l) {
+            IndexedTriangleMesh mesh = chunks[0].levels[l];
+            int removed = l < 2 ? 6 : 0;
+            assertEquals(full[0].levels[l].positions.length, mesh.positions.length);
+            assertEquals(full[0].levels[l].indexes.length - removed * 3, mesh.indexes.length);
+            checkIndexes(mesh);
+        }
+
+        // An edge grid point is a corner of three triangles, and of four skirt triangles through
+        // its skirt point, which is missing too
+        field.set(0, 12, Float.NaN);
+        chunks = new TerrainMeshBuilder(32, 4).build(field);
+        for (int l = 0; l < 4; ++l) {
+            IndexedTriangleMesh mesh = chunks[0].levels[l];
+            int removed = (l < 2 ? 6 : 0) + (l < 3 ? 7 : 0);
+            assertEquals(full[0].levels[l].indexes.length - removed * 3, mesh.indexes.length);
+            checkIndexes(mesh);
+        }
+        // The error and skirt ignore missing heights
+        for (float error : chunks[0].errors)
+            assertFalse(Float.isNaN(error));
+    }
+
+    @Test
+    public void build_skipsChunksWithoutHeights() throws Exception {
+        Field field = hills(10, 20);
+        // The last chunk, columns 16 to 19, has no heights
+        for (int r = 0; r < 10; ++r) {
+            for (int c = 16; c < 20; ++c)
+                field.set(c, r, Float.NaN);
+        }
+        TerrainChunk[] chunks = new TerrainMeshBuilder(8, 2).build(field);
+        assertEquals(2 * 2, chunks.length);
+        for (TerrainChunk chunk : chunks) {
+            for (IndexedTriangleMesh mesh : chunk.levels)
+                checkIndexes(mesh);
+        }
+        // The chunk next to it loses the triangles of its last column of cells, the skirt along
+        // its missing edge column and the two skirt triangles at each end of it
+        IndexedTriangleMesh mesh = chunks[1].levels[0];
+        assertEquals(indexes(8, 8, 0) - (8 * 2 + 8 * 2 + 4) * 3, mesh.indexes.length);
+    }
+
+    @Test
+    public void build_largestChunkWithinShortIndexes() throws Exception {
+        try {
+            new TerrainMeshBuilder(254, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        TerrainChunk[] chunks = new TerrainMeshBuilder(253, 1).build(hills(254, 254));
+        assertEquals(1, chunks.length);
+        IndexedTriangleMesh mesh = chunks[0].levels[0];
+        assertEquals(254 * 254 + 4 * 253, mesh.positions.length);
+        assertTrue(mesh.positions.length <= TerrainMeshBuilder.MAX_VERTICES);
+        int max = 0;
+        for (short index : mesh.indexes)
+            max = Math.max(max, index & 0xffff);
+        assertEquals(mesh.positions.length - 1, max);
+        checkIndexes(mesh);
+    }
+
+    @Test
+    public void selectLevel_byDistance() throws Exception {
+        TerrainChunk chunk = new TerrainMeshBuilder(16, 4).build(hills(17, 17))[0];
+        assertTrue(chunk.errors[3] > 0);
+        assertEquals(0, chunk.selectLevel(chunk.centerX, chunk.centerY, chunk.centerZ, 0.005f));
+        float far = chunk.radius + chunk.errors[3] / 0.005f + 1;
+        assertEquals(3, chunk.selectLevel(chunk.centerX + far, chunk.centerY, chunk.centerZ, 0.005f));
+    }
+}
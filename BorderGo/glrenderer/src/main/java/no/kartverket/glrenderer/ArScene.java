@@ -4,6 +4,7 @@ import android.opengl.GLES20;
 import android.opengl.Matrix;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import no.kartverket.geometry.IndexedTriangleMesh;
@@ -12,6 +13,7 @@ import no.kartverket.geometry.PolyLine;
 import no.kartverket.geometry.PolyLineGroup;
 import no.kartverket.geometry.Pos;
 import no.kartverket.geometry.PosGroup;
+import no.kartverket.geometry.TerrainChunk;
 
 
 /**
@@ -30,6 +32,7 @@ public class ArScene {
     private CopyOnWriteArrayList<ColorPolyLine> borderPolyLines = new CopyOnWriteArrayList<ColorPolyLine>();
     //private ColorPolyLineGroup borderPolyLines = new ColorPolyLineGroup(); // do later
     private CopyOnWriteArrayList<IndexedTriangleMesh> depthFillMeshes = new CopyOnWriteArrayList<>();
+    private CopyOnWriteArrayList<TerrainChunk> depthFillChunks = new CopyOnWriteArrayList<>();
     private CopyOnWriteArrayList<Pos> calibrationMarkers = new CopyOnWriteArrayList<>();
 
     private boolean linesDirty = true;
@@ -52,6 +55,7 @@ public class ArScene {
     private ArrayList<GlPosGroup> glPosGroups = new ArrayList<GlPosGroup>();
 
     private ArrayList<GlIndexedTriangleMesh> glDepthFillSurfaces = new ArrayList<>();
+    private ArrayList<GlTerrainChunk> glDepthFillChunks = new ArrayList<>();
 
     private GlPos highlightPos = new GlPos(){};
 
@@ -74,10 +78,15 @@ public class ArScene {
     };
     private final float[] mvMatrix = new float[16];
     private final float[] tmpMatrix = new float[16];
+    private final float[] invMatrix = new float[16];
+    private final float[] eye = new float[3];
 
     public static final float NEAR = 0.1f;
     public static final float FAR = 600f;
 
+    /** Max height error of terrain chunks relative to the distance from the camera */
+    public static final float TERRAIN_LOD_ERROR = 0.005f;
+
     public ArScene(){
         Pos[] markerMeshVertex = new Pos[] { new Pos(), new Pos(), new Pos(), new Pos()};
         markerMeshVertex[0].x = 0;
@@ -115,6 +124,13 @@ public class ArScene {
         Matrix.multiplyMM(tmpMatrix, 0, mvMatrix, 0, mTangoWorldMatrix, 0);
         Matrix.multiplyMM(mvMatrix, 0, mProjectionMatrix, 0, tmpMatrix, 0);
 
+        // Camera position in world coordinates, for choosing terrain level of detail
+        if (Matrix.invertM(invMatrix, 0, tmpMatrix, 0)) {
+            eye[0] = invMatrix[12];
+            eye[1] = invMatrix[13];
+            eye[2] = invMatrix[14];
+        }
+
         // POINTS
         for (GlPos pos: glPositions) {
             pos.draw(mvMatrix);
@@ -149,6 +165,9 @@ public class ArScene {
             for(GlIndexedTriangleMesh mesh: glDepthFillSurfaces) {
                 mesh.draw(mvMatrix);
             }
+            for(GlTerrainChunk chunk: glDepthFillChunks) {
+                chunk.draw(mvMatrix, eye, TERRAIN_LOD_ERROR);
+            }
             GLES20.glColorMask(true, true, true, true);
             GLES20.glPolygonOffset(0.0f, 0.0f);
 
@@ -224,6 +243,8 @@ public class ArScene {
     public void clearScene(){
         // Todo: hook up to gl renderer
         depthFillMeshes.clear();
+        depthFillChunks.clear();
+        depthFillMeshesDirty = true;
         colorLines.clear();
         colorPositions.clear();
         colorPolyLines.clear();
@@ -470,6 +491,17 @@ public class ArScene {
         depthFillMeshesDirty = true;
     }
 
+    /**
+     * Add terrain chunks used for hidden line removal. Each chunk is drawn in the level of detail
+     * given by its distance from the camera, see {@link #TERRAIN_LOD_ERROR}.
+     *
+     * @param chunks
+     */
+    public void addDepthSurface(TerrainChunk[] chunks) {
+        depthFillChunks.addAll(Arrays.asList(chunks));
+        depthFillMeshesDirty = true;
+    }
+
 
 
     /**
@@ -647,6 +679,9 @@ public class ArScene {
                 glMesh.setData(mesh.positions, mesh.indexes);
                 glDepthFillSurfaces.add(glMesh);
             }
+            glDepthFillChunks.clear();
+            for (TerrainChunk chunk : depthFillChunks)
+                glDepthFillChunks.add(new GlTerrainChunk(chunk));
             depthFillMeshesDirty = false;
         }
     }
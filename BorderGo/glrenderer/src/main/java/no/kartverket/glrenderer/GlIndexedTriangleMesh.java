@@ -53,6 +53,8 @@ public class GlIndexedTriangleMesh extends GlDrawItem {
 
     private boolean buffersDirty = false;
 
+    private int drawMode = GLES20.GL_TRIANGLE_STRIP;
+
     void clearGl() {
         bufId = null;
         GlProgram = -1;
@@ -128,6 +130,15 @@ public class GlIndexedTriangleMesh extends GlDrawItem {
         resetBuffers();
     }
 
+    /**
+     * Set how the indexes are drawn
+     *
+     * @param mode {@link GLES20#GL_TRIANGLE_STRIP} (default) or {@link GLES20#GL_TRIANGLES}
+     */
+    public void setDrawMode(int mode) {
+        drawMode = mode;
+    }
+
     /**
      *
      * @param mvpMatrix
@@ -200,7 +211,7 @@ public class GlIndexedTriangleMesh extends GlDrawItem {
         GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, bufId[1]);
 
         // Draw
-        GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, IndexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+        GLES20.glDrawElements(drawMode, IndexCount, GLES20.GL_UNSIGNED_SHORT, 0);
 
         // Unbind buffers
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
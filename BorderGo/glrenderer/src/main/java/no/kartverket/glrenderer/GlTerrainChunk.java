@@ -0,0 +1,36 @@
+package no.kartverket.glrenderer;
+
+import android.opengl.GLES20;
+
+import no.kartverket.geometry.TerrainChunk;
+
+/**
+ * Draws a {@link TerrainChunk}, in the level of detail chosen for the viewpoint. The buffers of
+ * a level are made the first time the level is used.
+ */
+public class GlTerrainChunk {
+    private final TerrainChunk chunk;
+    private final GlIndexedTriangleMesh[] meshes;
+
+    public GlTerrainChunk(TerrainChunk chunk) {
+        this.chunk = chunk;
+        meshes = new GlIndexedTriangleMesh[chunk.levels.length];
+    }
+
+    /**
+     * @param mvpMatrix
+     * @param eye viewpoint in world coordinates
+     * @param maxError max height error relative to the distance from the viewpoint
+     */
+    public void draw(float[] mvpMatrix, float[] eye, float maxError) {
+        int level = chunk.selectLevel(eye[0], eye[1], eye[2], maxError);
+        GlIndexedTriangleMesh mesh = meshes[level];
+        if (mesh == null) {
+            mesh = new GlIndexedTriangleMesh();
+            mesh.setData(chunk.levels[level].positions, chunk.levels[level].indexes);
+            mesh.setDrawMode(GLES20.GL_TRIANGLES);
+            meshes[level] = mesh;
+        }
+        mesh.draw(mvpMatrix);
+    }
+}
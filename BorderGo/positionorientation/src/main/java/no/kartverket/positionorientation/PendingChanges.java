@@ -0,0 +1,62 @@
+package no.kartverket.positionorientation;
+
+import java.util.ArrayList;
+
+/**
+ * Changes to the observation list not yet given to the {@link Transform}.<p>
+ *
+ * An observation removed while its addition is still pending was never seen by the transform, and
+ * one added back while its removal is pending is still in the transform, so opposite changes to
+ * the same observation cancel. The transform then gets each observation at most once, as an
+ * addition or a removal, and the order the changes are given in does not matter. Observations
+ * are compared by identity.
+ */
+final class PendingChanges {
+    private final ArrayList<Transform.Observation> added = new ArrayList<>();
+    private final ArrayList<Transform.Observation> removed = new ArrayList<>();
+    private boolean clear = false;
+
+    /**
+     * Add an observation not in the observation list
+     */
+    void add(Transform.Observation obs) {
+        if (!removed.remove(obs))
+            added.add(obs);
+    }
+
+    /**
+     * Remove an observation in the observation list
+     */
+    void remove(Transform.Observation obs) {
+        if (!added.remove(obs))
+            removed.add(obs);
+    }
+
+    /**
+     * Remove all observations, dropping the changes before
+     */
+    void clear() {
+        added.clear();
+        removed.clear();
+        clear = true;
+    }
+
+    /**
+     * @return true if there are no changes
+     */
+    boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && !clear;
+    }
+
+    /**
+     * Give the changes to a transform
+     */
+    void applyTo(Transform xform) {
+        if (clear)
+            xform.clearObservations();
+        for (Transform.Observation obs : removed)
+            xform.removeObservation(obs);
+        for (Transform.Observation obs : added)
+            xform.addObservation(obs);
+    }
+}
@@ -0,0 +1,195 @@
+package no.kartverket.positionorientation;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Aggregation of the points of a point cloud snap into planar patches.<p>
+ *
+ * The points are divided into square cells of the horizontal tango plane, and a plane
+ * {@code z = z_0 + b_x*(x - x_0) + b_y*(y - y_0)} is fitted to the points of each cell by least
+ * squares. Outliers are rejected iteratively, against a robust estimate of the scatter from the
+ * median absolute residual. A patch is represented by the centroid of its inliers, which lies on
+ * the fitted plane. The scatter of the inliers about the plane is random noise, and averages out
+ * with the square root of the number of inliers. The a priori standard deviation of the points,
+ * of the terrain model and of the point cloud, is taken to be correlated within a cell, and does
+ * not. The standard deviation of the representative is
+ * {@code sqrt(scatter^2 / inliers + sd^2)}.<p>
+ *
+ * The points of cells with too few points, or points on a line, are kept as they are.
+ */
+final class PlanePatches {
+    /** Default side of the cells, meters */
+    static final float DEFAULT_PATCH_SIZE = 0.5f;
+    /** Least number of points in a patch */
+    static final int MIN_POINTS = 8;
+    /** Points with residuals larger than this many times the scatter are outliers */
+    static final double OUTLIER_LIMIT = 3.0;
+    /** Max number of outlier rejection passes */
+    static final int MAX_ITERATIONS = 4;
+
+    // Consistency of the median absolute deviation for normal distributed residuals
+    private static final double MAD_SCALE = 1.4826;
+
+    /** Number of patches and points kept as they are */
+    int size;
+    /** Coordinates of the representatives, in tango coordinates */
+    float[] x, y, z;
+    /** Standard deviation of the representatives */
+    float[] sd;
+    /** Number of inliers of each patch, 1 for points kept as they are */
+    int[] inliers;
+    /** Scatter of the inliers about the plane of each patch, 0 for points kept as they are */
+    float[] rms;
+
+    /**
+     * Fit the patches of a snap
+     *
+     * @param numPoints the number of points
+     * @param points point data with stride 4, as x1, y1, z1, w1, x2, y2, z2, w2... in tango
+     *               coordinates, where w is not used
+     * @param sd a priori standard deviation of the points
+     * @param patchSize side of the cells, meters
+     */
+    PlanePatches(int numPoints, FloatBuffer points, float sd, float patchSize) {
+        x = new float[numPoints];
+        y = new float[numPoints];
+        z = new float[numPoints];
+        this.sd = new float[numPoints];
+        inliers = new int[numPoints];
+        rms = new float[numPoints];
+
+        // Points of each cell, as a linked list through next
+        HashMap<Long, int[]> cells = new HashMap<>();
+        int[] next = new int[numPoints];
+        for (int i = 0; i < numPoints; ++i) {
+            long ix = (long) Math.floor(points.get(i*4 + 0) / patchSize);
+            long iy = (long) Math.floor(points.get(i*4 + 1) / patchSize);
+            Long key = (ix << 32) ^ (iy & 0xffffffffL);
+            int[] cell = cells.get(key);
+            if (cell == null) {
+                // First point and count
+                cells.put(key, new int[] {i, 1});
+                next[i] = -1;
+            } else {
+                next[i] = cell[0];
+                cell[0] = i;
+                cell[1]++;
+            }
+        }
+
+        double[] px = new double[numPoints], py = new double[numPoints], pz = new double[numPoints];
+        double[] r = new double[numPoints], abs = new double[numPoints];
+        boolean[] in = new boolean[numPoints];
+        for (int[] cell : cells.values()) {
+            int n = 0;
+            for (int i = cell[0]; i >= 0; i = next[i]) {
+                px[n] = points.get(i*4 + 0);
+                py[n] = points.get(i*4 + 1);
+                pz[n] = points.get(i*4 + 2);
+                ++n;
+            }
+            if (n < MIN_POINTS || !fit(n, px, py, pz, sd, r, abs, in)) {
+                for (int k = 0; k < n; ++k)
+                    add((float) px[k], (float) py[k], (float) pz[k], sd, 1, 0);
+            }
+        }
+    }
+
+    private void add(float x, float y, float z, float sd, int inliers, float rms) {
+        this.x[size] = x;
+        this.y[size] = y;
+        this.z[size] = z;
+        this.sd[size] = sd;
+        this.inliers[size] = inliers;
+        this.rms[size] = rms;
+        ++size;
+    }
+
+    /**
+     * Fit a plane to the points of a cell, and add the patch
+     *
+     * @param r, abs, in work arrays of at least n elements
+     * @return false if there are too few inliers, or they are on a line
+     */
+    private boolean fit(int n, double[] px, double[] py, double[] pz, float sd, double[] r, double[] abs, boolean[] in) {
+        Arrays.fill(in, 0, n, true);
+        int numIn = n;
+        double x0 = 0, y0 = 0, z0 = 0, bx = 0, by = 0;
+
+        for (int iter = 0; ; ++iter) {
+            if (numIn < MIN_POINTS)
+                return false;
+
+            // Centroid and centered normal equations of the inliers
+            x0 = 0; y0 = 0; z0 = 0;
+            for (int k = 0; k < n; ++k) {
+                if (in[k]) {
+                    x0 += px[k];
+                    y0 += py[k];
+                    z0 += pz[k];
+                }
+            }
+            x0 /= numIn;
+            y0 /= numIn;
+            z0 /= numIn;
+
+            double sxx = 0, sxy = 0, syy = 0, sxz = 0, syz = 0;
+            for (int k = 0; k < n; ++k) {
+                if (in[k]) {
+                    double dx = px[k] - x0, dy = py[k] - y0, dz = pz[k] - z0;
+                    sxx += dx * dx;
+                    sxy += dx * dy;
+                    syy += dy * dy;
+                    sxz += dx * dz;
+                    syz += dy * dz;
+                }
+            }
+            double det = sxx * syy - sxy * sxy;
+            // Points on a line, relative to the spread of the points
+            if (!(det > 1e-6 * (sxx + syy) * (sxx + syy)))
+                return false;
+            bx = (syy * sxz - sxy * syz) / det;
+            by = (sxx * syz - sxy * sxz) / det;
+
+            for (int k = 0; k < n; ++k)
+                r[k] = pz[k] - z0 - bx * (px[k] - x0) - by * (py[k] - y0);
+
+            if (iter == MAX_ITERATIONS)
+                break;
+
+            // Robust scatter, not below the a priori standard deviation
+            for (int k = 0; k < n; ++k)
+                abs[k] = Math.abs(r[k]);
+            Arrays.sort(abs, 0, n);
+            double median = (n % 2 == 1) ? abs[n / 2] : 0.5 * (abs[n / 2 - 1] + abs[n / 2]);
+            double limit = OUTLIER_LIMIT * Math.max(MAD_SCALE * median, sd);
+
+            int count = 0;
+            boolean changed = false;
+            for (int k = 0; k < n; ++k) {
+                boolean inlier = Math.abs(r[k]) <= limit;
+                changed |= inlier != in[k];
+                in[k] = inlier;
+                if (inlier)
+                    ++count;
+            }
+            numIn = count;
+            if (!changed)
+                break;
+        }
+
+        // Scatter of the inliers about the plane, 3 parameters
+        double sum = 0;
+        for (int k = 0; k < n; ++k) {
+            if (in[k])
+                sum += r[k] * r[k];
+        }
+        double s = Math.sqrt(sum / (numIn - 3));
+        double sigma = Math.sqrt(s * s / numIn + (double) sd * sd);
+
+        add((float) x0, (float) y0, (float) z0, (float) sigma, numIn, (float) s);
+        return true;
+    }
+}
@@ -0,0 +1,301 @@
+package no.kartverket.positionorientation;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import no.kartverket.data.dtm.DTMSurface;
+
+/**
+ * Thins point cloud snaps on a voxel grid in tango coordinates, before they become
+ * {@link Transform.PointCloudObservation}s.<p>
+ *
+ * Each occupied voxel is represented by the weighted mean of its points, with the information of
+ * all of them: the standard deviation of the representative is {@code 1 / sqrt(sum(1 / sd^2))},
+ * so a voxel of {@code n} points with the same standard deviation weighs as the {@code n} points
+ * did.
+ * Voxels are kept across snaps, so repeated snaps of the same spot add to existing voxels instead
+ * of adding observations, and the number of observed points is bounded by the surveyed area.<p>
+ *
+ * A voxel is owned by the snap that first occupied it, and each snap has one observation of the
+ * voxels it owns. When a later snap adds points to voxels of earlier snaps, their observations
+ * are replaced by new ones with the updated representatives. The voxels keep the points of each
+ * snap apart, so a snap can be removed with all its points, also those merged into voxels of
+ * other snaps. Voxels left with points of later snaps only are handed over to the oldest of them.
+ * <p>
+ *
+ * A snap is identified by the observation returned when it was added, which stays valid as a
+ * handle for {@link #remove} when the observations of the snap are replaced.
+ */
+public final class PointCloudThinning {
+    /** Default side of the voxels, meters */
+    public static final float DEFAULT_VOXEL_SIZE = 0.15f;
+
+    // Bits for each voxel index in a key, the indexes are offset to be positive
+    private static final int KEY_BITS = 21;
+    private static final int KEY_OFFSET = 1 << (KEY_BITS - 1);
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private static final class Snap {
+        /** Observation returned when the snap was added */
+        Transform.PointCloudObservation handle;
+        /** Observation of the voxels owned by the snap, or null if it owns none */
+        Transform.PointCloudObservation obs;
+        /** Voxels owned by the snap, in the order of the points of {@link #obs} */
+        final ArrayList<Voxel> owned = new ArrayList<>();
+        /** Voxels holding points of the snap */
+        final ArrayList<Voxel> touched = new ArrayList<>();
+        final DTMSurface grid;
+
+        Snap(DTMSurface grid) {
+            this.grid = grid;
+        }
+    }
+
+    /**
+     * Points of one snap in a voxel, as sums weighted by 1 / sd^2
+     */
+    private static final class Points {
+        final Snap snap;
+        double sum_x, sum_y, sum_z, sum_info;
+
+        Points(Snap snap) {
+            this.snap = snap;
+        }
+    }
+
+    private static final class Voxel {
+        final long key;
+        /** Points of each snap, oldest snap first */
+        final ArrayList<Points> points = new ArrayList<>(1);
+        Snap owner;
+
+        Voxel(long key, Snap owner) {
+            this.key = key;
+            this.owner = owner;
+        }
+    }
+
+    private final float voxelSize;
+    private final HashMap<Long, Voxel> voxels = new HashMap<>();
+    /** Snaps by their handles and their current observations */
+    private final IdentityHashMap<Transform.Observation, Snap> snaps = new IdentityHashMap<>();
+
+    public PointCloudThinning() {
+        this(DEFAULT_VOXEL_SIZE);
+    }
+
+    /**
+     * @param voxelSize side of the voxels, meters
+     */
+    public PointCloudThinning(float voxelSize) {
+        if (!(voxelSize > 0))
+            throw new IllegalArgumentException("Invalid voxel size " + voxelSize);
+        this.voxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * @return number of occupied voxels
+     */
+    public synchronized int size() {
+        return voxels.size();
+    }
+
+    /**
+     * Forget all voxels
+     */
+    public synchronized void clear() {
+        voxels.clear();
+        snaps.clear();
+    }
+
+    private long key(float x, float y, float z) {
+        long ix = ((int) Math.floor(x / voxelSize) + KEY_OFFSET) & KEY_MASK;
+        long iy = ((int) Math.floor(y / voxelSize) + KEY_OFFSET) & KEY_MASK;
+        long iz = ((int) Math.floor(z / voxelSize) + KEY_OFFSET) & KEY_MASK;
+        return (ix << (2 * KEY_BITS)) | (iy << KEY_BITS) | iz;
+    }
+
+    /**
+     * Add the points of a snap
+     *
+     * @param xform the transform the observations are made for
+     * @param numPoints the number of points
+     * @param points point data with stride 4, as x1, y1, z1, w1, x2, y2, z2, w2... in tango
+     *               coordinates, where w is not used
+     * @param grid the terrain surface
+     * @param sd a priori standard deviation of distance between surface and points
+     * @param removed receives the observations of earlier snaps that are replaced
+     * @param added receives the new observations, replacing the removed ones and of the voxels
+     *              first occupied by this snap
+     * @return the handle of the snap. It is the observation of the voxels first occupied by the
+     *         snap, or an observation of no points if there are none.
+     */
+    public Transform.PointCloudObservation add(Transform xform, int numPoints, FloatBuffer points,
+                                               DTMSurface grid, float sd,
+                                               List<Transform.Observation> removed,
+                                               List<Transform.Observation> added) {
+        float[] x = new float[numPoints], y = new float[numPoints], z = new float[numPoints];
+        float[] sds = new float[numPoints];
+        for (int i = 0; i < numPoints; ++i) {
+            x[i] = points.get(i*4 + 0);
+            y[i] = points.get(i*4 + 1);
+            z[i] = points.get(i*4 + 2);
+            sds[i] = sd;
+        }
+        return add(xform, numPoints, x, y, z, sds, grid, removed, added);
+    }
+
+    /**
+     * Add points with individual standard deviations, e.g. the patches of {@link PlanePatches}
+     *
+     * @param x, y, z tango coordinates of the points
+     * @param sd a priori standard deviation of distance between surface and each point
+     * @see #add(Transform, int, FloatBuffer, DTMSurface, float, List, List)
+     */
+    public synchronized Transform.PointCloudObservation add(Transform xform, int numPoints,
+                                                         float[] x, float[] y, float[] z, float[] sd,
+                                                         DTMSurface grid,
+                                                         List<Transform.Observation> removed,
+                                                         List<Transform.Observation> added) {
+        Snap snap = new Snap(grid);
+        IdentityHashMap<Snap, Boolean> changed = new IdentityHashMap<>();
+
+        for (int i = 0; i < numPoints; ++i) {
+            long key = key(x[i], y[i], z[i]);
+            Voxel v = voxels.get(key);
+            if (v == null) {
+                v = new Voxel(key, snap);
+                voxels.put(key, v);
+                snap.owned.add(v);
+            } else if (v.owner != snap) {
+                changed.put(v.owner, Boolean.TRUE);
+            }
+
+            // The points of this snap come last, as it is the newest
+            Points p = v.points.isEmpty() ? null : v.points.get(v.points.size() - 1);
+            if (p == null || p.snap != snap) {
+                p = new Points(snap);
+                v.points.add(p);
+                snap.touched.add(v);
+            }
+            // Information weighted mean
+            final double info = 1.0 / (sd[i] * sd[i]);
+            p.sum_x += info * x[i];
+            p.sum_y += info * y[i];
+            p.sum_z += info * z[i];
+            p.sum_info += info;
+        }
+
+        for (Snap s : changed.keySet())
+            replace(xform, s, removed, added);
+
+        snap.obs = observation(xform, snap);
+        snap.handle = snap.obs;
+        if (snap.obs != null) {
+            added.add(snap.obs);
+        } else {
+            snap.handle = xform.new PointCloudObservation(new float[0], new float[0], new float[0], new float[0], grid);
+            snaps.put(snap.handle, snap);
+        }
+        return snap.handle;
+    }
+
+    /**
+     * Remove all points of a snap
+     *
+     * @param xform the transform the observations are made for
+     * @param handle the handle of the snap, or its current observation
+     * @param removed receives the observations that are removed, of this snap and of the snaps
+     *                sharing voxels with it
+     * @param added receives the observations replacing those of the snaps sharing voxels
+     * @return true if the snap was found
+     */
+    public synchronized boolean remove(Transform xform, Transform.Observation handle,
+                                       List<Transform.Observation> removed,
+                                       List<Transform.Observation> added) {
+        Snap snap = snaps.get(handle);
+        if (snap == null)
+            return false;
+
+        snaps.remove(snap.handle);
+        if (snap.obs != null) {
+            snaps.remove(snap.obs);
+            removed.add(snap.obs);
+        }
+
+        IdentityHashMap<Snap, Boolean> changed = new IdentityHashMap<>();
+        for (Voxel v : snap.touched) {
+            for (int i = 0; i < v.points.size(); ++i) {
+                if (v.points.get(i).snap == snap) {
+                    v.points.remove(i);
+                    break;
+                }
+            }
+            if (v.points.isEmpty()) {
+                voxels.remove(v.key);
+                continue;
+            }
+            if (v.owner == snap) {
+                v.owner = v.points.get(0).snap;
+                v.owner.owned.add(v);
+            }
+            changed.put(v.owner, Boolean.TRUE);
+        }
+
+        for (Snap s : changed.keySet())
+            replace(xform, s, removed, added);
+        return true;
+    }
+
+    /**
+     * Replace the observation of a snap with one of the current representatives of its voxels
+     */
+    private void replace(Transform xform, Snap snap, List<Transform.Observation> removed,
+                         List<Transform.Observation> added) {
+        if (snap.obs != null) {
+            removed.add(snap.obs);
+            if (snap.obs != snap.handle)
+                snaps.remove(snap.obs);
+        }
+        snap.obs = observation(xform, snap);
+        if (snap.obs != null)
+            added.add(snap.obs);
+    }
+
+    /**
+     * Make an observation of the representatives of the voxels owned by a snap, and register it
+     * for the snap
+     *
+     * @return the observation, or null if the snap owns no voxels
+     */
+    private Transform.PointCloudObservation observation(Transform xform, Snap snap) {
+        final List<Voxel> m = snap.owned;
+        final int n = m.size();
+        if (n == 0)
+            return null;
+        float[] x_t = new float[n], y_t = new float[n], z_t = new float[n], sd = new float[n];
+        for (int i = 0; i < n; ++i) {
+            double sum_x = 0, sum_y = 0, sum_z = 0, sum_info = 0;
+            for (Points p : m.get(i).points) {
+                sum_x += p.sum_x;
+                sum_y += p.sum_y;
+                sum_z += p.sum_z;
+                sum_info += p.sum_info;
+            }
+            x_t[i] = (float) (sum_x / sum_info);
+            y_t[i] = (float) (sum_y / sum_info);
+            z_t[i] = (float) (sum_z / sum_info);
+            sd[i] = (float) (1 / Math.sqrt(sum_info));
+        }
+        Transform.PointCloudObservation obs = xform.new PointCloudObservation(x_t, y_t, z_t, sd, snap.grid);
+        snaps.put(obs, snap);
+        return obs;
+    }
+}
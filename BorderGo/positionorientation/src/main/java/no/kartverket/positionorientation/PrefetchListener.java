@@ -0,0 +1,18 @@
+package no.kartverket.positionorientation;
+
+/**
+ * Objects that load geographic data for an area should implement this interface to be told, by a
+ * {@link PrefetchScheduler}, where the user is expected to be in the near future. Data for the
+ * area should be loaded in the background, so it is available when the user arrives.
+ */
+public interface PrefetchListener {
+
+    /**
+     * Data for an area is likely to be needed soon. Called from a low priority background thread.
+     *
+     * @param lat latitude of predicted position
+     * @param lon longitude of predicted position
+     * @param radius radius of area around the position, meters
+     */
+    void prefetch(double lat, double lon, double radius);
+}
@@ -0,0 +1,148 @@
+package no.kartverket.positionorientation;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import no.kartverket.geodesy.Geodesy;
+
+/**
+ * Predicts where the user is going, and asks {@link PrefetchListener}s to load data ahead of the
+ * walking direction.<p>
+ *
+ * The position and velocity filtered by the {@link PositionOrientationProvider} is sampled at a
+ * fixed interval on a low priority background thread. Positions are extrapolated along the
+ * direction of travel for a set of look ahead times, and the listeners are called for each
+ * predicted position that is not close to one already requested.
+ */
+public class PrefetchScheduler {
+    static final String TAG = PrefetchScheduler.class.getSimpleName();
+
+    /** Sampling interval of position and velocity */
+    static final long INTERVAL_MS = 2000;
+    /** Look ahead times, seconds */
+    static final double[] LOOK_AHEAD = {10, 30, 60};
+    /** Max look ahead distance, meters */
+    static final double MAX_DISTANCE = 150;
+    /** Below this speed (m/s) the user is considered standing still */
+    static final double MIN_SPEED = 0.3;
+    /** Radius of prefetched area, meters */
+    static final double RADIUS = 80;
+    /** Positions closer than this to the previous request for the same look ahead are not requested again */
+    static final double MIN_MOVE = 20;
+
+    private final PositionOrientationProvider provider;
+    private final List<PrefetchListener> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService executor;
+
+    // Previous requested position for each look ahead time
+    private final double[] prevLat = new double[LOOK_AHEAD.length];
+    private final double[] prevLon = new double[LOOK_AHEAD.length];
+    private final boolean[] prevValid = new boolean[LOOK_AHEAD.length];
+
+    public PrefetchScheduler(PositionOrientationProvider provider) {
+        this.provider = provider;
+    }
+
+    public void addPrefetchListener(PrefetchListener l) {
+        listeners.add(l);
+    }
+
+    public void removePrefetchListener(PrefetchListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Start periodic prediction
+     */
+    public synchronized void start() {
+        if (executor != null)
+            return;
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setPriority(Thread.MIN_PRIORITY);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    update();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Prefetch failed", e);
+                }
+            }
+        }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop periodic prediction
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void update() {
+        Location location = provider.getLocation();
+        if (location == null || !location.hasSpeed())
+            return;
+
+        update(location.getLatitude(), location.getLongitude(), location.getSpeed(), location.getBearing());
+    }
+
+    /**
+     * Predict positions from a filtered position and velocity, and call the listeners for those
+     * not close to the previous requests
+     *
+     * @param lat latitude of position
+     * @param lon longitude of position
+     * @param speed speed, m/s
+     * @param bearingDeg direction of travel, degrees clockwise from north
+     */
+    synchronized void update(double lat, double lon, double speed, double bearingDeg) {
+        if (speed < MIN_SPEED)
+            return;
+
+        double bearing = Math.toRadians(bearingDeg);
+
+        // Meters per degree at current position
+        double lat_scale = Geodesy.meridionalRadius(lat) * Math.PI / 180;
+        double lon_scale = Geodesy.normalRadius(lat) * Math.PI / 180 * Math.cos(Math.toRadians(lat));
+
+        for (int i = 0; i < LOOK_AHEAD.length; ++i) {
+            double dist = Math.min(speed * LOOK_AHEAD[i], MAX_DISTANCE);
+            double p_lat = lat + dist * Math.cos(bearing) / lat_scale;
+            double p_lon = lon + dist * Math.sin(bearing) / lon_scale;
+
+            if (prevValid[i]) {
+                double moved = Math.hypot((p_lat - prevLat[i]) * lat_scale, (p_lon - prevLon[i]) * lon_scale);
+                if (moved < MIN_MOVE)
+                    continue;
+            }
+            prevLat[i] = p_lat;
+            prevLon[i] = p_lon;
+            prevValid[i] = true;
+
+            for (PrefetchListener l : listeners)
+                l.prefetch(p_lat, p_lon, RADIUS);
+
+            // Longer look ahead times give the same position when the distance is capped
+            if (dist >= MAX_DISTANCE)
+                break;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package no.kartverket.positionorientation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aggregates the streams of GPS positions and compass orientations into one observation for each
+ * window of consecutive observations.<p>
+ *
+ * A window is closed when it spans more than a fixed time, or for positions when the device has
+ * moved more than a fixed distance in tango coordinates. The first observation of a window is
+ * given to the transform at once, and is replaced by the aggregate when the window is closed, so
+ * the observations in between cause no work for the transform.<p>
+ *
+ * The aggregate is the weighted mean of the observations, with the same weights for tango and
+ * world coordinates so the mean observations satisfy the transform as the single ones do. The
+ * errors of consecutive GPS fixes and compass readings are far from independent, so the variance
+ * of the mean is computed with an exponential correlation in time between the errors, instead of
+ * decreasing with the number of observations. Tango positions drift slowly, and their errors are
+ * taken to be fully correlated within a window. A position window spans about the correlation
+ * time of the GPS errors, so the transform, which takes the windows to be independent, weighs
+ * the stream evenly in time as it weighs single fixes.<p>
+ *
+ * The number of windows kept for each stream is capped. When the cap is exceeded, the closed
+ * window with the lowest value by a {@link RetentionPolicy} is merged with a neighbouring closed
+ * window, into the aggregate of both. No observations are dropped, so a long session keeps the
+ * accuracy of all its observations, and old windows just get longer. The errors of two windows
+ * are taken to be correlated as those of two observations at their mean times.
+ */
+public final class StreamAggregator {
+    /** Max time span of a position window, milliseconds */
+    static final long POSITION_WINDOW_MS = 5000;
+    /** Max distance moved in a position window, meters */
+    static final double POSITION_WINDOW_DISTANCE = 10.0;
+    /** Time constant of the correlation between GPS errors, milliseconds */
+    static final double POSITION_CORRELATION_MS = 5000;
+    /** Max time span of an orientation window, milliseconds */
+    static final long ORIENTATION_WINDOW_MS = 30000;
+    /** Time constant of the correlation between compass errors, milliseconds */
+    static final double ORIENTATION_CORRELATION_MS = 10000;
+
+    /** Default max number of windows of each stream */
+    public static final int DEFAULT_MAX_WINDOWS = 1000;
+    /** Half life of {@link #DEFAULT_POLICY} */
+    public static final long DEFAULT_HALF_LIFE_MS = 15 * 60 * 1000;
+
+    /**
+     * Selects the windows to merge when there are too many
+     */
+    public interface RetentionPolicy {
+        /**
+         * @param window a closed window
+         * @param now current time, milliseconds
+         * @return the value of keeping the window apart, the window with the lowest value is
+         *         merged with the neighbour of lower value
+         */
+        double retention(Window window, long now);
+    }
+
+    /** Merge the oldest windows */
+    public static final RetentionPolicy OLDEST_FIRST = new RetentionPolicy() {
+        @Override
+        public double retention(Window window, long now) {
+            return window.getEnd();
+        }
+    };
+
+    /**
+     * Weigh the information of windows down with their age, and merge the window with the least
+     * weighted information. Old windows are merged to longer ones than recent windows, and a
+     * window of many precise observations is kept apart longer than a window of a few poor ones.
+     *
+     * @param halfLife the age where information is weighted by one half, milliseconds
+     */
+    public static RetentionPolicy recencyWeightedDecay(final long halfLife) {
+        return new RetentionPolicy() {
+            @Override
+            public double retention(Window window, long now) {
+                return window.getInformation() * Math.pow(0.5, (double) (now - window.getEnd()) / halfLife);
+            }
+        };
+    }
+
+    public static final RetentionPolicy DEFAULT_POLICY = recencyWeightedDecay(DEFAULT_HALF_LIFE_MS);
+
+    /**
+     * Consecutive observations of one stream, and the observation representing them
+     */
+    public static final class Window {
+        private long start, end;
+        /** Mean time of the observations, weighted as in the aggregate */
+        private double time;
+        private int count;
+        // Observations of the open window
+        private final ArrayList<Transform.Observation> members = new ArrayList<>();
+        private final ArrayList<Long> times = new ArrayList<>();
+        /** Observation given to the transform */
+        private Transform.Observation obs;
+        /** Inverse variance of the representing observation */
+        private double information;
+
+        private Window(long time, Transform.Observation first, double information) {
+            start = end = time;
+            this.time = time;
+            count = 1;
+            members.add(first);
+            times.add(time);
+            obs = first;
+            this.information = information;
+        }
+
+        private void add(long time, Transform.Observation obs) {
+            members.add(obs);
+            times.add(time);
+            end = time;
+            ++count;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getInformation() {
+            return information;
+        }
+    }
+
+    private int maxWindows = DEFAULT_MAX_WINDOWS;
+    private RetentionPolicy policy = DEFAULT_POLICY;
+
+    // Windows of each stream, the open window last
+    private final ArrayList<Window> positions = new ArrayList<>();
+    private final ArrayList<Window> orientations = new ArrayList<>();
+    private boolean positionOpen, orientationOpen;
+
+    public synchronized void setMaxWindows(int maxWindows) {
+        this.maxWindows = Math.max(maxWindows, 1);
+    }
+
+    public synchronized void setRetentionPolicy(RetentionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return the number of windows of both streams
+     */
+    public synchronized int size() {
+        return positions.size() + orientations.size();
+    }
+
+    /**
+     * Forget all windows
+     */
+    public synchronized void clear() {
+        positions.clear();
+        orientations.clear();
+        positionOpen = orientationOpen = false;
+    }
+
+    /**
+     * Add a GPS position
+     *
+     * @param xform the transform the observations are made for
+     * @param time time of the position, milliseconds
+     * @param obs the position
+     * @param removed receives the observations to remove from the transform
+     * @param added receives the observations to add to the transform
+     * @return the observation representing the window of the position
+     */
+    public synchronized Transform.Observation addPosition(Transform xform, long time, Transform.PositionObservation3D obs,
+                                                          List<Transform.Observation> removed,
+                                                          List<Transform.Observation> added) {
+        if (positionOpen) {
+            Window open = positions.get(positions.size() - 1);
+            Transform.PositionObservation3D first = (Transform.PositionObservation3D) open.members.get(0);
+            double dx = obs.x_t - first.x_t, dy = obs.y_t - first.y_t, dz = obs.z_t - first.z_t;
+            if (time - open.start <= POSITION_WINDOW_MS &&
+                    dx * dx + dy * dy + dz * dz <= POSITION_WINDOW_DISTANCE * POSITION_WINDOW_DISTANCE) {
+                open.add(time, obs);
+                return open.obs;
+            }
+            close(open, aggregatePositions(xform, open), removed, added);
+        }
+
+        positions.add(new Window(time, obs, 1 / (obs.x_w_sd * obs.x_w_sd)));
+        positionOpen = true;
+        added.add(obs);
+        compact(xform, positions, true, time, removed, added);
+        return obs;
+    }
+
+    /**
+     * Add a compass orientation
+     *
+     * @param xform the transform the observations are made for
+     * @param time time of the orientation, milliseconds
+     * @param obs the orientation
+     * @param removed receives the observations to remove from the transform
+     * @param added receives the observations to add to the transform
+     * @return the observation representing the window of the orientation
+     */
+    public synchronized Transform.Observation addOrientation(Transform xform, long time, Transform.OrientationObservation obs,
+                                                             List<Transform.Observation> removed,
+                                                             List<Transform.Observation> added) {
+        if (orientationOpen) {
+            Window open = orientations.get(orientations.size() - 1);
+            if (time - open.start <= ORIENTATION_WINDOW_MS) {
+                open.add(time, obs);
+                return open.obs;
+            }
+            close(open, aggregateOrientations(xform, open), removed, added);
+        }
+
+        orientations.add(new Window(time, obs, 1 / (obs.orient_sd * obs.orient_sd)));
+        orientationOpen = true;
+        added.add(obs);
+        compact(xform, orientations, false, time, removed, added);
+        return obs;
+    }
+
+    /**
+     * Remove an observation from the transform, or from the observations to add if it was made
+     * in the same call
+     */
+    private static void drop(Transform.Observation obs, List<Transform.Observation> removed,
+                             List<Transform.Observation> added) {
+        if (!added.remove(obs))
+            removed.add(obs);
+    }
+
+    /**
+     * Replace the observation of a window by the aggregate, if it has more than one member
+     */
+    private static void close(Window window, Transform.Observation aggregate,
+                              List<Transform.Observation> removed, List<Transform.Observation> added) {
+        if (aggregate != null) {
+            drop(window.obs, removed, added);
+            added.add(aggregate);
+            window.obs = aggregate;
+        }
+        // Members are not needed any more
+        window.members.clear();
+        window.times.clear();
+    }
+
+    /**
+     * Merge closed windows while there are too many. There are always two closed windows left.
+     */
+    private void compact(Transform xform, ArrayList<Window> windows, boolean isPosition, long now,
+                         List<Transform.Observation> removed, List<Transform.Observation> added) {
+        // The open window is last
+        while (windows.size() > maxWindows && windows.size() > 3) {
+            final int closed = windows.size() - 1;
+            double[] retention = new double[closed];
+            int min = 0;
+            for (int i = 0; i < closed; ++i) {
+                retention[i] = policy.retention(windows.get(i), now);
+                if (retention[i] < retention[min])
+                    min = i;
+            }
+
+            int other;
+            if (min == 0)
+                other = 1;
+            else if (min == closed - 1)
+                other = min - 1;
+            else
+                other = retention[min - 1] <= retention[min + 1] ? min - 1 : min + 1;
+
+            Window a = windows.get(Math.min(min, other)), b = windows.remove(Math.max(min, other));
+            Transform.Observation merged = isPosition ? mergePositions(xform, a, b) : mergeOrientations(xform, a, b);
+            drop(a.obs, removed, added);
+            drop(b.obs, removed, added);
+            added.add(merged);
+            a.obs = merged;
+            a.end = b.end;
+            a.count += b.count;
+        }
+    }
+
+    /**
+     * Weighted sum of correlated errors, {@code sum_ij w_i*w_j*sd_i*sd_j*exp(-|t_i - t_j|/tau)}
+     */
+    private static double correlatedSum(double[] w, double[] sd, double[] t, double tau) {
+        double sum = 0;
+        for (int i = 0; i < w.length; ++i) {
+            sum += w[i] * w[i] * sd[i] * sd[i];
+            for (int j = i + 1; j < w.length; ++j)
+                sum += 2 * w[i] * w[j] * sd[i] * sd[j] * Math.exp(-Math.abs(t[i] - t[j]) / tau);
+        }
+        return sum;
+    }
+
+    private static double[] times(Window window) {
+        double[] t = new double[window.times.size()];
+        for (int i = 0; i < t.length; ++i)
+            t[i] = window.times.get(i);
+        return t;
+    }
+
+    /**
+     * @return the weighted mean of values, with normalized weights
+     */
+    private static double mean(double[] w, double[] values) {
+        double sum = 0;
+        for (int i = 0; i < w.length; ++i)
+            sum += w[i] * values[i];
+        return sum;
+    }
+
+    /**
+     * @return the aggregate of a position window, or null if it has only one member
+     */
+    private static Transform.Observation aggregatePositions(Transform xform, Window window) {
+        final int n = window.members.size();
+        if (n < 2)
+            return null;
+
+        // Normalized weights from the horizontal accuracy
+        double[] w = new double[n], sd_xy = new double[n], sd_z = new double[n];
+        double sum_w = 0;
+        for (int i = 0; i < n; ++i) {
+            Transform.PositionObservation3D o = (Transform.PositionObservation3D) window.members.get(i);
+            sd_xy[i] = o.x_w_sd;
+            sd_z[i] = o.z_w_sd;
+            w[i] = 1 / (sd_xy[i] * sd_xy[i]);
+            sum_w += w[i];
+        }
+
+        double x_t = 0, y_t = 0, z_t = 0, x_w = 0, y_w = 0, z_w = 0, sd_t = 0, sd_zt = 0;
+        for (int i = 0; i < n; ++i) {
+            Transform.PositionObservation3D o = (Transform.PositionObservation3D) window.members.get(i);
+            w[i] /= sum_w;
+            x_t += w[i] * o.x_t;
+            y_t += w[i] * o.y_t;
+            z_t += w[i] * o.z_t;
+            x_w += w[i] * o.x_w;
+            y_w += w[i] * o.y_w;
+            z_w += w[i] * o.z_w;
+            // Fully correlated
+            sd_t += w[i] * o.x_t_sd;
+            sd_zt += w[i] * o.z_t_sd;
+        }
+
+        double[] t = times(window);
+        double var_xy = correlatedSum(w, sd_xy, t, POSITION_CORRELATION_MS);
+        double var_z = correlatedSum(w, sd_z, t, POSITION_CORRELATION_MS);
+        window.time = mean(w, t);
+
+        Transform.PositionObservation3D obs = xform.new PositionObservation3D();
+        obs.x_t = (float) x_t;
+        obs.y_t = (float) y_t;
+        obs.z_t = (float) z_t;
+        obs.x_t_sd = obs.y_t_sd = (float) sd_t;
+        obs.z_t_sd = (float) sd_zt;
+        obs.x_w = (float) x_w;
+        obs.y_w = (float) y_w;
+        obs.z_w = (float) z_w;
+        obs.x_w_sd = obs.y_w_sd = (float) Math.sqrt(var_xy);
+        obs.z_w_sd = (float) Math.sqrt(var_z);
+
+        window.information = 1 / var_xy;
+        return obs;
+    }
+
+    /**
+     * @return the aggregate of an orientation window, or null if it has only one member
+     */
+    private static Transform.Observation aggregateOrientations(Transform xform, Window window) {
+        final int n = window.members.size();
+        if (n < 2)
+            return null;
+
+        double[] w = new double[n], sd = new double[n];
+        double sum_w = 0;
+        for (int i = 0; i < n; ++i) {
+            sd[i] = ((Transform.OrientationObservation) window.members.get(i)).orient_sd;
+            w[i] = 1 / (sd[i] * sd[i]);
+            sum_w += w[i];
+        }
+
+        // Mean of the differences from the first, across +-pi
+        final double orient_0 = ((Transform.OrientationObservation) window.members.get(0)).orient;
+        double d = 0;
+        for (int i = 0; i < n; ++i) {
+            w[i] /= sum_w;
+            d += w[i] * Transform.normalizeAngle(((Transform.OrientationObservation) window.members.get(i)).orient - orient_0);
+        }
+
+        double[] t = times(window);
+        double var = correlatedSum(w, sd, t, ORIENTATION_CORRELATION_MS);
+        window.time = mean(w, t);
+
+        Transform.OrientationObservation obs = xform.new OrientationObservation();
+        obs.orient = (float) Transform.normalizeAngle(orient_0 + d);
+        obs.orient_sd = (float) Math.sqrt(var);
+
+        window.information = 1 / var;
+        return obs;
+    }
+
+    /**
+     * Normalized weights of two windows by their information
+     */
+    private static double[] weights(Window a, Window b) {
+        final double w_a = a.information / (a.information + b.information);
+        return new double[] {w_a, 1 - w_a};
+    }
+
+    /**
+     * Merge the aggregate of window b into window a, as the aggregate of their members
+     *
+     * @return the aggregate of both windows
+     */
+    private static Transform.Observation mergePositions(Transform xform, Window a, Window b) {
+        Transform.PositionObservation3D o_a = (Transform.PositionObservation3D) a.obs;
+        Transform.PositionObservation3D o_b = (Transform.PositionObservation3D) b.obs;
+        double[] w = weights(a, b), t = {a.time, b.time};
+        double var_xy = correlatedSum(w, new double[] {o_a.x_w_sd, o_b.x_w_sd}, t, POSITION_CORRELATION_MS);
+        double var_z = correlatedSum(w, new double[] {o_a.z_w_sd, o_b.z_w_sd}, t, POSITION_CORRELATION_MS);
+
+        Transform.PositionObservation3D obs = xform.new PositionObservation3D();
+        obs.x_t = (float) (w[0] * o_a.x_t + w[1] * o_b.x_t);
+        obs.y_t = (float) (w[0] * o_a.y_t + w[1] * o_b.y_t);
+        obs.z_t = (float) (w[0] * o_a.z_t + w[1] * o_b.z_t);
+        // Fully correlated
+        obs.x_t_sd = obs.y_t_sd = (float) (w[0] * o_a.x_t_sd + w[1] * o_b.x_t_sd);
+        obs.z_t_sd = (float) (w[0] * o_a.z_t_sd + w[1] * o_b.z_t_sd);
+        obs.x_w = (float) (w[0] * o_a.x_w + w[1] * o_b.x_w);
+        obs.y_w = (float) (w[0] * o_a.y_w + w[1] * o_b.y_w);
+        obs.z_w = (float) (w[0] * o_a.z_w + w[1] * o_b.z_w);
+        obs.x_w_sd = obs.y_w_sd = (float) Math.sqrt(var_xy);
+        obs.z_w_sd = (float) Math.sqrt(var_z);
+
+        a.time = mean(w, t);
+        a.information = 1 / var_xy;
+        return obs;
+    }
+
+    /**
+     * Merge the aggregate of window b into window a, as the aggregate of their members
+     *
+     * @return the aggregate of both windows
+     */
+    private static Transform.Observation mergeOrientations(Transform xform, Window a, Window b) {
+        Transform.OrientationObservation o_a = (Transform.OrientationObservation) a.obs;
+        Transform.OrientationObservation o_b = (Transform.OrientationObservation) b.obs;
+        double[] w = weights(a, b), t = {a.time, b.time};
+        double var = correlatedSum(w, new double[] {o_a.orient_sd, o_b.orient_sd}, t, ORIENTATION_CORRELATION_MS);
+
+        Transform.OrientationObservation obs = xform.new OrientationObservation();
+        obs.orient = (float) Transform.normalizeAngle(o_a.orient + w[1] * Transform.normalizeAngle(o_b.orient - o_a.orient));
+        obs.orient_sd = (float) Math.sqrt(var);
+
+        a.time = mean(w, t);
+        a.information = 1 / var;
+        return obs;
+    }
+}
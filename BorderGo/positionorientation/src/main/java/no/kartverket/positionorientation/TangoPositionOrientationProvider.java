@@ -11,10 +11,14 @@ import org.ejml.data.DMatrixRMaj;
 
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 
-import no.kartverket.data.dtm.DTMGrid;
+import no.kartverket.data.dtm.DTMSurface;
 import no.kartverket.geodesy.Geodesy;
 import no.kartverket.geodesy.OriginData;
 
@@ -72,9 +76,28 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
     private KalmanFilter kalmanFilter = new KalmanFilter(numParameters);
 
     /**
-     * List of observations used in determining the transformation between TAngo and external coordiantes
+     * Set of observations used in determining the transformation between TAngo and external coordiantes,
+     * by identity, guarded by {@code pendingLock}. The worker reads the changes from
+     * {@code pending}, not the set.
      */
-    private CopyOnWriteArrayList<Transform.Observation> observations = new CopyOnWriteArrayList<Transform.Observation>();
+    private final Set<Transform.Observation> observations =
+            Collections.newSetFromMap(new IdentityHashMap<Transform.Observation, Boolean>());
+
+    /**
+     * Changes to the observation list not yet given to the transform, guarded by {@code pendingLock}.
+     * The worker moves them to the incremental adjustment of the transform.
+     */
+    private final Object pendingLock = new Object();
+    private PendingChanges pending = new PendingChanges();
+    /** Number of 3D positions and orientations in the observation list, guarded by {@code pendingLock} */
+    private int numPositions3D = 0, numOrientations = 0;
+
+    /** Thinning of point cloud snaps, or null if all points are used */
+    private volatile PointCloudThinning thinning = new PointCloudThinning();
+    /** Aggregation of GPS positions and compass orientations */
+    private final StreamAggregator aggregator = new StreamAggregator();
+    /** Side of the planar patches point cloud snaps are aggregated to, or 0 for no aggregation */
+    private volatile float patchSize = PlanePatches.DEFAULT_PATCH_SIZE;
 
     // Logging of directions
     private float declination;
@@ -161,10 +184,7 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
     }
 
     public void onDestroy() {
-        synchronized (transformWorker) {
-            transformWorker.running = false;
-            transformWorker.notifyAll();
-        }
+        scheduler.stop();
     }
 
 
@@ -182,7 +202,16 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
 
         kalmanFilter.initialize(x_init, P_init);
 
-        observations.clear();
+        synchronized (pendingLock) {
+            observations.clear();
+            PointCloudThinning t = thinning;
+            if (t != null)
+                t.clear();
+            aggregator.clear();
+            pending.clear();
+            numPositions3D = numOrientations = 0;
+        }
+        scheduler.markDirty();
         prevCompTime = -1;
 
         origin = null;
@@ -203,54 +232,116 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
     }
 
     private Thread transformWorkerThread;
+    private final TransformScheduler scheduler = new TransformScheduler();
     private TransformWorker transformWorker = new TransformWorker();
 
     /**
-     * Worker run in the background, recomputing the transform parameters when new data is present
+     * Update the counts of observations needed for a transform, {@code pendingLock} must be held
+     *
+     * @param sign 1 for an added observation, -1 for a removed one
      */
-    private class TransformWorker implements Runnable {
-        volatile boolean running = true;
+    private void count(Transform.Observation obs, int sign) {
+        if (obs instanceof Transform.PositionObservation3D)
+            numPositions3D += sign;
+        else if (obs instanceof Transform.OrientationObservation)
+            numOrientations += sign;
+    }
+
+    private void addObservation(Transform.Observation obs) {
+        synchronized (pendingLock) {
+            if (!observations.add(obs))
+                return;
+            pending.add(obs);
+            count(obs, 1);
+        }
+        scheduler.markDirty();
+    }
+
+    /**
+     * Remove an observation from the observation list, {@code pendingLock} must be held
+     *
+     * @return true if the observation was in the list
+     */
+    private boolean removeFromList(Transform.Observation obs) {
+        if (!observations.remove(obs))
+            return false;
+        pending.remove(obs);
+        count(obs, -1);
+        scheduler.markDirty();
+        return true;
+    }
+
+    /**
+     * Add the changes from {@link #aggregator} or {@link #thinning} to the observation list,
+     * {@code pendingLock} must be held
+     */
+    private void applyChanges(List<Transform.Observation> removed, List<Transform.Observation> added) {
+        for (Transform.Observation obs : removed)
+            removeFromList(obs);
+        for (Transform.Observation obs : added)
+            addObservation(obs);
+    }
+
+    /**
+     * @return the number of observations in the observation list
+     */
+    private int numObservations() {
+        synchronized (pendingLock) {
+            return observations.size();
+        }
+    }
 
+    /**
+     * @return true if there are enough observations for a transform, at least one 3D position and
+     *         one orientation
+     */
+    private boolean hasSufficientObservations() {
+        synchronized (pendingLock) {
+            return numPositions3D > 0 && numOrientations > 0;
+        }
+    }
+
+    /**
+     * Give the changes to the observation list to the transform
+     *
+     * @return true if there were any changes
+     */
+    private boolean applyPendingChanges() {
+        PendingChanges changes;
+        synchronized (pendingLock) {
+            if (pending.isEmpty())
+                return false;
+            changes = pending;
+            pending = new PendingChanges();
+        }
+
+        changes.applyTo(xform);
+        return true;
+    }
+
+    /**
+     * Worker run in the background, recomputing the transform parameters when the observations
+     * change, as scheduled by {@link TransformScheduler}
+     */
+    private class TransformWorker implements Runnable {
         @Override
         public void run() {
-            int prevObsSize = 0;
-            boolean sufficientObs = false;
-            while (running) {
-                synchronized (this) {
-                    try {
-                        wait(5000);
-                    } catch (InterruptedException e) {
-
-                    }
-                }
-                if (!running)
-                    break;
-
-                // Check if number of observations have changed
-                if (observations.size() == prevObsSize)
+            while (scheduler.awaitWork() >= 0) {
+                // Check if the observations have changed
+                if (!applyPendingChanges())
                     continue;
-                prevObsSize = observations.size();
-
-                // Check if we have at least one 3D position and one orientation observation
-                if (!sufficientObs) {
-                    boolean hasPos = false;
-                    boolean hasOrient = false;
-                    for (Transform.Observation obs : observations) {
-                        if (obs instanceof Transform.PositionObservation3D)
-                            hasPos = true;
-                        if (obs instanceof Transform.OrientationObservation)
-                            hasOrient = true;
-                        if (hasPos && hasOrient) {
-                            sufficientObs = true;
-                            break;
-                        }
-                    }
-                }
-                if (!sufficientObs)
+
+                if (!hasSufficientObservations())
                     continue;
 
-                // Do the work
-                xform.adjust(new ArrayList<Transform.Observation>(observations));
+                // Do the work, only new and removed observations are linearized unless the parameters move
+                if (!xform.update()) {
+                    // The parameters are left from a failed adjustment, and the next update runs a
+                    // full adjustment
+                    xformOk = false;
+                    Log.e(TAG, "Transform adjustment failed, N " + numObservations());
+                    continue;
+                }
 
                 // Don't accept transform unless estimated standard deviations of parameters are within limits
                 xformOk = Math.sqrt(xform.xySigma2()) < 10.0 &&
@@ -272,7 +363,7 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 // Log results
                 StringBuilder stringBuilder = new StringBuilder();
                 stringBuilder.append(" N ");
-                stringBuilder.append(observations.size());
+                stringBuilder.append(numObservations());
                 stringBuilder.append(" x ");
                 stringBuilder.append(xform.x0());
                 stringBuilder.append(" y ");
@@ -293,6 +384,12 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 stringBuilder.append(" compass compass_az ");
                 stringBuilder.append(compass_az);
 
+                long lookups = xform.planeLookups();
+                if (lookups > 0) {
+                    stringBuilder.append(" plane_hits ");
+                    stringBuilder.append((double) xform.planeHits() / lookups);
+                }
+
                 Log.e(TAG, stringBuilder.toString());
             }
         }
@@ -352,12 +449,17 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      * Create a {@link no.kartverket.positionorientation.Transform.PositionObservation3D Transform.PositionObservation3D}
      * object from a GPS (or similar observation). This method is
      * typically called from a {@link android.location.LocationListener} registred to a
-     * {@link android.location.LocationManager}.
+     * {@link android.location.LocationManager}.<p>
+     *
+     * Consecutive positions are aggregated to one observation, see {@link StreamAggregator}.
      *
      * @param location location data from GPS or similar location services
-     * @return the created {@link no.kartverket.positionorientation.Transform.PositionObservation3D} object
+     * @return the {@link no.kartverket.positionorientation.Transform.PositionObservation3D} object
+     *         representing the position, until the aggregate replaces it
      */
     public Transform.Observation handleLocationObservation(final Location location) {
+        // The origin needs the geoid model, wait for it before taking the filter lock
+        Geodesy.waitForHREF();
         synchronized (kalmanFilter) {
             lastLocation = location;
 
@@ -393,6 +495,7 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
             double z = origin.heightToLocalOrigin(location.getAltitude()) - geoidH_0;
 
             Transform.PositionObservation3D pos_obs = xform.new PositionObservation3D();
+            Transform.Observation obs = pos_obs;
             pos_obs.x_w = (float) x;
             pos_obs.y_w = (float) y;
             pos_obs.z_w = (float) z;
@@ -408,12 +511,17 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 pos_obs.z_t = (float) kalmanFilter.getX().get(2, 0);
                 pos_obs.x_t_sd = pos_obs.y_t_sd = pos_obs.z_t_sd = 0.1f;
 
-                observations.add(pos_obs);
+                ArrayList<Transform.Observation> removed = new ArrayList<>();
+                ArrayList<Transform.Observation> added = new ArrayList<>();
+                synchronized (pendingLock) {
+                    obs = aggregator.addPosition(xform, currTime, pos_obs, removed, added);
+                    applyChanges(removed, added);
+                }
             }
 
             prevCompTime = currTime;
 
-            return pos_obs;
+            return obs;
         }
     }
 
@@ -427,6 +535,8 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      * @return the created {@link no.kartverket.positionorientation.Transform.PositionObservation2D} object
      */
     public Transform.Observation handleLatLngObservation(final double latitude, final double longitude, final float accuracy) {
+        // The origin needs the geoid model, wait for it before taking the filter lock
+        Geodesy.waitForHREF();
         synchronized (kalmanFilter) {
 
             long currTime = System.currentTimeMillis();
@@ -471,7 +581,7 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 pos_obs.y_t = (float) kalmanFilter.getX().get(1, 0);
                 pos_obs.x_t_sd = pos_obs.y_t_sd  = 0.1f;
 
-                observations.add(pos_obs);
+                addObservation(pos_obs);
             }
 
             prevCompTime = currTime;
@@ -492,6 +602,8 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      * @return the created {@link no.kartverket.positionorientation.Transform.PositionObservation3D} object
      */
     public Transform.Observation handleLatLngHObservation(final double latitude, final double longitude, final double height, final float horizontal_accuracy, final float vertical_accuracy) {
+        // The origin needs the geoid model, wait for it before taking the filter lock
+        Geodesy.waitForHREF();
         synchronized (kalmanFilter) {
 
             long currTime = System.currentTimeMillis();
@@ -541,7 +653,7 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 pos_obs.z_t = (float) kalmanFilter.getX().get(2, 0);
                 pos_obs.x_t_sd = pos_obs.y_t_sd = pos_obs.z_t_sd = 0.1f;
 
-                observations.add(pos_obs);
+                addObservation(pos_obs);
             }
 
             prevCompTime = currTime;
@@ -554,10 +666,13 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      * Create a {@link no.kartverket.positionorientation.Transform.OrientationObservation Transform.OrientationObservation}
      * from a rotationVector as given from a {@link android.hardware.Sensor#TYPE_ROTATION_VECTOR Rotation Vector Sensor}.
      * This method is typically called from a {@link android.hardware.SensorEventListener SensorEventListener},
-     * where the rotationVector is read from a {@link android.hardware.SensorEvent SensorEvent}.
+     * where the rotationVector is read from a {@link android.hardware.SensorEvent SensorEvent}.<p>
+     *
+     * Consecutive orientations are aggregated to one observation, see {@link StreamAggregator}.
      *
      * @param rotationVector value from a {@link android.hardware.SensorEvent SensorEvent}
-     * @return the created {@link no.kartverket.positionorientation.Transform.OrientationObservation} object
+     * @return the {@link no.kartverket.positionorientation.Transform.OrientationObservation} object
+     *         representing the orientation, until the aggregate replaces it
      */
     public Transform.Observation handleRotationVectorObservation(float[] rotationVector) {
 
@@ -576,8 +691,14 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
                 orient_obs.orient_sd = rotationVector[4]/2;
             else
                 orient_obs.orient_sd = (float)Math.PI/2;
-            observations.add(orient_obs);
-            return orient_obs;
+
+            ArrayList<Transform.Observation> removed = new ArrayList<>();
+            ArrayList<Transform.Observation> added = new ArrayList<>();
+            synchronized (pendingLock) {
+                Transform.Observation obs = aggregator.addOrientation(xform, System.currentTimeMillis(), orient_obs, removed, added);
+                applyChanges(removed, added);
+                return obs;
+            }
             /*
             if (observations.size() > 20)
                 xform.adjust(observations);
@@ -642,9 +763,55 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
     }
 
     /**
-     * Create a set of {@link no.kartverket.positionorientation.Transform.PointInTerrainObservation} from
+     * Set the voxel size for thinning of point cloud snaps, see {@link PointCloudThinning}.
+     * Snaps already added are not thinned again.
+     *
+     * @param voxelSize side of the voxels in meters, or 0 to use all points
+     */
+    public void setVoxelSize(float voxelSize) {
+        synchronized (pendingLock) {
+            thinning = voxelSize > 0 ? new PointCloudThinning(voxelSize) : null;
+        }
+    }
+
+    /**
+     * Set the max number of windows of GPS positions and compass orientations kept, see
+     * {@link StreamAggregator}
+     */
+    public void setMaxStreamWindows(int maxWindows) {
+        aggregator.setMaxWindows(maxWindows);
+    }
+
+    /**
+     * Set the policy for which windows of GPS positions and compass orientations to merge when
+     * there are too many, e.g. {@link StreamAggregator#recencyWeightedDecay(long)}
+     */
+    public void setStreamRetentionPolicy(StreamAggregator.RetentionPolicy policy) {
+        aggregator.setRetentionPolicy(policy);
+    }
+
+    /**
+     * Set the size of the planar patches point cloud snaps are aggregated to, see
+     * {@link PlanePatches}.
+     *
+     * @param patchSize side of the patches in meters, or 0 to use the points as they are
+     */
+    public void setPatchSize(float patchSize) {
+        this.patchSize = Math.max(patchSize, 0);
+    }
+
+    /**
+     * Create {@link no.kartverket.positionorientation.Transform.PointCloudObservation}s from
      * a point cloud observation and a gridded terrain model.<p>
      *
+     * The points are first aggregated to planar patches, see {@link #setPatchSize(float)}, and
+     * a patch is observed as one point with the combined standard deviation of its inliers.
+     * Then the points are thinned on a voxel grid, see {@link #setVoxelSize(float)}, together with
+     * the points of earlier snaps. Points falling in voxels already occupied are merged into the
+     * observations of earlier snaps, which are then replaced. The returned observation is a handle
+     * for removal of the snap that stays valid when its observations are replaced, and removing it
+     * removes all the points of the snap.<p>
+     *
      * Typically called from {@link com.google.atap.tangoservice.Tango.OnTangoUpdateListener#onPointCloudAvailable}
      *
      * @param numPoints the number of points
@@ -652,44 +819,68 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      *               x1, y1, z1, w1, x2, y2, z2, w2.... where w is a "reliability" measure (not used here)
      * @param grid A gridded terrain model
      * @param cloud_accuracy apriori standard deviation of a point to terrain model distance observation
+     * @return the observation of the snap, or with thinning the handle of the snap, see
+     *         {@link PointCloudThinning#add(Transform, int, FloatBuffer, DTMSurface, float, List, List)}
      */
-    public ArrayList<Transform.Observation> handlePointCloudObservation(int numPoints, FloatBuffer points, DTMGrid grid, float cloud_accuracy) {
-        ArrayList<Transform.Observation> obs_list = new ArrayList<>(numPoints);
-        for (int i = 0; i < numPoints; ++i) {
-            float x = points.get(i*4 + 0);
-            float y = points.get(i*4 + 1);
-            float z = points.get(i*4 + 2);
-
-            Transform.PointInTerrainObservation obs = xform.new PointInTerrainObservation();
-            obs.x_t = x;
-            obs.y_t = y;
-            obs.z_t = z;
-            obs.sd = cloud_accuracy;
-            obs.grid = grid;
-            obs_list.add(obs);
+    public Transform.Observation handlePointCloudObservation(int numPoints, FloatBuffer points, DTMSurface grid, float cloud_accuracy) {
+        float size = patchSize;
+        PlanePatches patches = size > 0 ? new PlanePatches(numPoints, points, cloud_accuracy, size) : null;
+
+        Transform.PointCloudObservation obs;
+        synchronized (pendingLock) {
+            PointCloudThinning t = thinning;
+            if (t == null) {
+                if (patches == null) {
+                    obs = xform.new PointCloudObservation(numPoints, points, grid, cloud_accuracy);
+                } else {
+                    int n = patches.size;
+                    obs = xform.new PointCloudObservation(Arrays.copyOf(patches.x, n), Arrays.copyOf(patches.y, n),
+                            Arrays.copyOf(patches.z, n), Arrays.copyOf(patches.sd, n), grid);
+                }
+                addObservation(obs);
+            } else {
+                ArrayList<Transform.Observation> removed = new ArrayList<>();
+                ArrayList<Transform.Observation> added = new ArrayList<>();
+                if (patches == null)
+                    obs = t.add(xform, numPoints, points, grid, cloud_accuracy, removed, added);
+                else
+                    obs = t.add(xform, patches.size, patches.x, patches.y, patches.z, patches.sd, grid, removed, added);
+                applyChanges(removed, added);
+            }
         }
-        observations.addAll(obs_list);
+        return obs;
+    }
 
-        synchronized (transformWorker) {
-            transformWorker.notifyAll();
+    /**
+     * Remove an observation, or all points of a point cloud snap given its handle or one of its
+     * observations, {@code pendingLock} must be held
+     *
+     * @return true if the observation was in the observation list, or the snap was found
+     */
+    private boolean remove(Transform.Observation obs) {
+        PointCloudThinning t = thinning;
+        if (t != null) {
+            ArrayList<Transform.Observation> removed = new ArrayList<>();
+            ArrayList<Transform.Observation> added = new ArrayList<>();
+            if (t.remove(xform, obs, removed, added)) {
+                applyChanges(removed, added);
+                return true;
+            }
         }
-        return obs_list;
+        return removeFromList(obs);
     }
 
     /**
-     * Remove an observation and initialize recompute of parameters
+     * Remove an observation and initialize recompute of parameters. For a point cloud snap all
+     * its points are removed, see {@link #handlePointCloudObservation(int, FloatBuffer, DTMSurface, float)}.
      *
      * @param obs the observation to remove
      * @return true if the observation was in the observation list
      */
     public boolean removeObservation(Transform.Observation obs) {
-        if (observations.remove(obs)) {
-            synchronized (transformWorker) {
-                transformWorker.notifyAll();
-            }
-            return true;
+        synchronized (pendingLock) {
+            return remove(obs);
         }
-        return false;
     }
 
     /**
@@ -699,12 +890,11 @@ public final class TangoPositionOrientationProvider extends PositionOrientationP
      * @return true if at least one of the argument observations was removed from the observation list
      */
     public boolean removeObservations(Collection<Transform.Observation> obs_set) {
-        if (observations.removeAll(obs_set)) {
-            synchronized (transformWorker) {
-                transformWorker.notifyAll();
-            }
-            return true;
+        boolean removed = false;
+        synchronized (pendingLock) {
+            for (Transform.Observation obs : obs_set)
+                removed |= remove(obs);
         }
-        return false;
+        return removed;
     }
 }
@@ -6,10 +6,15 @@ import org.ejml.data.DMatrixRMaj;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.dense.row.MatrixFeatures_DDRM;
 
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import no.kartverket.data.dtm.DTMGrid;
+import no.kartverket.data.dtm.DTMSurface;
 
 /**
  * Builds and maintains a transform between two coordinate systems by a robust estimation of
@@ -57,6 +62,19 @@ public class Transform {
     private class Parameters {
         double x0, y0, z0, sigma2, xy_sigma2, z_sigma2;
         double az = 0, sin_az = 0, cos_az = 1, az_sigma2;
+
+        void set(Parameters p) {
+            x0 = p.x0;
+            y0 = p.y0;
+            z0 = p.z0;
+            sigma2 = p.sigma2;
+            xy_sigma2 = p.xy_sigma2;
+            z_sigma2 = p.z_sigma2;
+            az = p.az;
+            sin_az = p.sin_az;
+            cos_az = p.cos_az;
+            az_sigma2 = p.az_sigma2;
+        }
     }
 
     /**
@@ -87,21 +105,18 @@ public class Transform {
     public double azSigma2() { return parameters[2].az_sigma2; }
 
     /**
-     * All matrixes of the model equations for a set of observations.
+     * Moves of the transformed point, as a fraction of the grid spacing, within which terrain
+     * observations use the facet found before instead of searching the terrain surface again
      */
-    private class ModelEquations {
-        final DMatrixRMaj A, B, f, Q, We, v, Qvv;
+    static final float PLANE_CACHE_FRACTION = 0.1f;
 
-        ModelEquations(int numEquations, int numObservations, int numParameters) {
-            A = new DMatrixRMaj(numEquations, numObservations);
-            B = new DMatrixRMaj(numEquations, numParameters);
-            f = new DMatrixRMaj(numEquations, 1);
-            Q = new DMatrixRMaj(numObservations, numObservations);
-            We = new DMatrixRMaj(numEquations, numEquations);
-            v = new DMatrixRMaj(numObservations, 1);
-            Qvv = new DMatrixRMaj(numObservations, numObservations);
-        }
-    }
+    // Terrain plane lookups since the transform was made, and lookups answered from the cached planes
+    private long planeLookups, planeHits;
+
+    /** Number of terrain plane lookups by terrain observations */
+    public synchronized long planeLookups() { return planeLookups; }
+    /** Number of terrain plane lookups answered by the facet found before */
+    public synchronized long planeHits() { return planeHits; }
 
     // Matrixes
     /**
@@ -126,17 +141,218 @@ public class Transform {
     private final DMatrixRMaj vWv;
 
     /**
-     *  Model equations for observations
+     * Adjustments with more observations than this build the normal equations and compute the
+     * residuals in parallel
      */
-    private final ModelEquations posEquations2D = new ModelEquations(2, 4, num_parameters);
-    private final ModelEquations posEquations3D = new ModelEquations(3, 6, num_parameters);
-    private final ModelEquations orientEquations = new ModelEquations(1, 1, num_parameters);
-    private final ModelEquations planeEquations = new ModelEquations(1, 1, num_parameters);
+    static final int PARALLEL_THRESHOLD = 2048;
 
-    /** Temp matrix for internal use */
-    private final DMatrixRMaj tmp1 = new DMatrixRMaj(num_parameters, num_parameters);
-    private final DMatrixRMaj tmp2 = new DMatrixRMaj(num_parameters, num_parameters);
-    private final DMatrixRMaj tmp3 = new DMatrixRMaj(num_parameters, num_parameters);
+    private static ForkJoinPool pool;
+
+    /**
+     * @return pool for parallel adjustments
+     */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool();
+        return pool;
+    }
+
+    /**
+     * Sums of the normal equations for the observations added by one thread.<p>
+     *
+     * The observations add their condition equations with the closed form kernels below instead of
+     * general matrix products, as {@code B} has only 4 columns and {@code We} is diagonal. The
+     * matrixes are 4x4 and 4x1, stored row by row.
+     */
+    private class Workspace {
+        /** Normal equations system matrix */
+        final DMatrixRMaj N = new DMatrixRMaj(num_parameters, num_parameters);
+        /** Normal equations system vector */
+        final DMatrixRMaj t = new DMatrixRMaj(num_parameters, 1);
+        /** Weighted sum squared of residuals */
+        final DMatrixRMaj vWv = new DMatrixRMaj(1, 1);
+        /** Terrain plane lookups, and lookups answered from the cached planes */
+        int planeLookups, planeHits;
+
+        void zero() {
+            N.zero();
+            t.zero();
+            vWv.zero();
+            planeLookups = planeHits = 0;
+        }
+
+        /**
+         * Add a condition equation with {@code B = e_k + b3 * e_3}, the derivatives of a
+         * translated and rotated coordinate
+         *
+         * @param k index of the translation parameter, 0 to 2
+         * @param b3 derivative by the rotation
+         * @param w weight
+         * @param f constant term
+         */
+        void addAxisRow(int k, double b3, double w, double f) {
+            final double[] n = N.data;
+            final double wb3 = w * b3;
+            n[k * 4 + k] += w;
+            n[k * 4 + 3] += wb3;
+            n[12 + k] += wb3;
+            n[15] += wb3 * b3;
+            t.data[k] += w * f;
+            t.data[3] += wb3 * f;
+            vWv.data[0] += w * f * f;
+        }
+
+        /**
+         * Add a condition equation with {@code B = e_3}, an observation of the rotation
+         *
+         * @param w weight
+         * @param f constant term
+         */
+        void addRotationRow(double w, double f) {
+            N.data[15] += w;
+            t.data[3] += w * f;
+            vWv.data[0] += w * f * f;
+        }
+
+        /**
+         * Add a condition equation with a general {@code B = [b0, b1, b2, b3]}
+         *
+         * @param w weight
+         * @param f constant term
+         */
+        void addRow(double b0, double b1, double b2, double b3, double w, double f) {
+            final double[] n = N.data;
+            final double wb0 = w * b0, wb1 = w * b1, wb2 = w * b2, wb3 = w * b3;
+            final double n01 = wb0 * b1, n02 = wb0 * b2, n03 = wb0 * b3;
+            final double n12 = wb1 * b2, n13 = wb1 * b3, n23 = wb2 * b3;
+            n[0] += wb0 * b0;
+            n[1] += n01;
+            n[2] += n02;
+            n[3] += n03;
+            n[4] += n01;
+            n[5] += wb1 * b1;
+            n[6] += n12;
+            n[7] += n13;
+            n[8] += n02;
+            n[9] += n12;
+            n[10] += wb2 * b2;
+            n[11] += n23;
+            n[12] += n03;
+            n[13] += n13;
+            n[14] += n23;
+            n[15] += wb3 * b3;
+            t.data[0] += wb0 * f;
+            t.data[1] += wb1 * f;
+            t.data[2] += wb2 * f;
+            t.data[3] += wb3 * f;
+            vWv.data[0] += w * f * f;
+        }
+    }
+
+    /*
+     * Closed form products with the solution, used for the residuals. The residuals are
+     * {@code v = Q * A' * We * (f - B * x)}, and their cofactors are the diagonal of
+     * {@code Qvv = Q * A' * (We - We * B * Ninv * B' * We) * A * Q}.
+     */
+
+    /**
+     * @return {@code Bi * Ninv * Bj'} for {@code Bi = e_i + bi * e_3} and {@code Bj = e_j + bj * e_3}
+     */
+    private double axisProduct(int i, double bi, int j, double bj) {
+        final double[] n = Ninv.data;
+        return n[i * 4 + j] + bj * n[i * 4 + 3] + bi * n[12 + j] + bi * bj * n[15];
+    }
+
+    /**
+     * @return {@code B * x} for {@code B = e_k + b3 * e_3}
+     */
+    private double axisSolution(int k, double b3) {
+        return x.data[k] + b3 * x.data[3];
+    }
+
+    /**
+     * @return {@code B * Ninv * B'} for {@code B = [b0, b1, b2, b3]}
+     */
+    private double rowProduct(double b0, double b1, double b2, double b3) {
+        final double[] n = Ninv.data;
+        return b0 * (b0 * n[0] + b1 * n[1] + b2 * n[2] + b3 * n[3]) +
+                b1 * (b0 * n[4] + b1 * n[5] + b2 * n[6] + b3 * n[7]) +
+                b2 * (b0 * n[8] + b1 * n[9] + b2 * n[10] + b3 * n[11]) +
+                b3 * (b0 * n[12] + b1 * n[13] + b2 * n[14] + b3 * n[15]);
+    }
+
+    /**
+     * @return {@code B * x} for {@code B = [b0, b1, b2, b3]}
+     */
+    private double rowSolution(double b0, double b1, double b2, double b3) {
+        return b0 * x.data[0] + b1 * x.data[1] + b2 * x.data[2] + b3 * x.data[3];
+    }
+
+    /**
+     * @return the larger of {@code max} and the normalized residual {@code |v| / sqrt(qvv * sigma2)}
+     */
+    private static double maxNormalized(double max, double v, double qvv, double sigma2) {
+        double r = Math.abs(v) / Math.sqrt(qvv * sigma2);
+        return max < r ? r : max;
+    }
+
+    /** Workspace of each thread working on this transform */
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /*
+     * Incremental adjustment, see {@link #update()}
+     */
+
+    /**
+     * Max change of the translation parameters, in meters, before the observations are linearized
+     * again. The model is linear in the translations, but terrain observations may move to other facets.
+     */
+    static final double RELINEARIZE_DISTANCE = 1.0;
+    /**
+     * Max change of the rotation, in radians, before the observations are linearized again
+     */
+    static final double RELINEARIZE_ANGLE = 0.01;
+    /**
+     * Max number of added and removed observations, as a fraction of all observations, before
+     * a full adjustment is run to update the weights of the observations
+     */
+    static final double REWEIGHT_FRACTION = 0.25;
+    /**
+     * Scale and exponent of {@link #robustWeight(float, double, double)} for observations added
+     * between full adjustments, as in the last reweighting of {@link #adjust(List)}
+     */
+    static final double INCREMENTAL_K = 0.6, INCREMENTAL_A = 6;
+
+    /**
+     * Contribution of one observation to the normal equations, at the linearization parameters
+     */
+    private static class Contribution {
+        final double[] N = new double[num_parameters * num_parameters];
+        final double[] t = new double[num_parameters];
+        double vWv;
+        int conditions;
+    }
+
+    /**
+     * Observations of the incremental adjustment, with their contributions, or null contributions
+     * when not linearized
+     */
+    private final IdentityHashMap<Observation, Contribution> contributions = new IdentityHashMap<>();
+    /** Parameters the contributions are computed at */
+    private final Parameters linearization = new Parameters();
+    private boolean linearized = false;
+    /** Number of observations added or removed since the last full adjustment */
+    private int changes = 0;
+    /** Sums of the contributions */
+    private final double[] sumN = new double[num_parameters * num_parameters];
+    private final double[] sumT = new double[num_parameters];
+    private double sumVWv;
+    private int sumConditions;
 
     /**
      * Generic observation
@@ -145,18 +361,20 @@ public class Transform {
         /**
          * Add data for this observation to the normal equation system
          *
+         * @param w Workspace of the current thread, receiving the data
          * @param p The current model parameters
          * @param weight The current observation weight
          */
-        void addToNormalEquations(Parameters p, float weight);
+        void addToNormalEquations(Workspace w, Parameters p, float weight);
 
         /**
          * Compute maximum normalized residual for this observation
          *
+         * @param w Workspace of the current thread
          * @param p The current model parameters
          * @return the normalized residual
          */
-        float computeResiduals(Parameters p);
+        float computeResiduals(Workspace w, Parameters p);
 
         /**
          * Return number of condition equations for this observation
@@ -205,63 +423,71 @@ public class Transform {
         float y_t_v_sd;
 
         @Override
-        public void addToNormalEquations(Parameters p, float weight) {
-            posEquations2D.B.set(0, 3, -x_t * p.sin_az - y_t * p.cos_az);
-            posEquations2D.B.set(1, 3, x_t * p.cos_az - y_t * p.sin_az);
-
-            posEquations2D.f.set(0, 0, x_w - p.cos_az * x_t + p.sin_az * y_t - p.x0);
-            posEquations2D.f.set(1, 0, y_w - p.sin_az * x_t - p.cos_az * y_t - p.y0);
-
-            posEquations2D.We.set(0, 0, weight / (x_w_sd * x_w_sd + x_t_sd * x_t_sd));
-            posEquations2D.We.set(1, 1, weight / (y_w_sd * y_w_sd + y_t_sd * y_t_sd));
-
-            updateN(posEquations2D.B, posEquations2D.We, N);
-            updateT(posEquations2D.B, posEquations2D.We, posEquations2D.f, t);
-
-            updateN(posEquations2D.f, posEquations2D.We, vWv);
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
+            w.addAxisRow(0, -x_t * p.sin_az - y_t * p.cos_az,
+                    weight / (x_w_sd * x_w_sd + x_t_sd * x_t_sd),
+                    x_w - p.cos_az * x_t + p.sin_az * y_t - p.x0);
+            w.addAxisRow(1, x_t * p.cos_az - y_t * p.sin_az,
+                    weight / (y_w_sd * y_w_sd + y_t_sd * y_t_sd),
+                    y_w - p.sin_az * x_t - p.cos_az * y_t - p.y0);
         }
 
         @Override
-        public float computeResiduals(Parameters p) {
-            posEquations2D.A.set(0, 0, p.cos_az);
-            posEquations2D.A.set(1, 1, p.cos_az);
-            posEquations2D.A.set(1, 0, p.sin_az);
-            posEquations2D.A.set(0, 1, -p.sin_az);
-
-            posEquations2D.B.set(0, 3, -x_t * p.sin_az - y_t * p.cos_az);
-            posEquations2D.B.set(1, 3, x_t * p.cos_az - y_t * p.sin_az);
-
-            posEquations2D.f.set(0, 0, x_w - p.cos_az * x_t + p.sin_az * y_t - p.x0);
-            posEquations2D.f.set(1, 0, y_w - p.sin_az * x_t - p.cos_az * y_t - p.y0);
-
-            posEquations2D.We.set(0, 0, 1 / (x_w_sd * x_w_sd + x_t_sd * x_t_sd));
-            posEquations2D.We.set(1, 1, 1 / (y_w_sd * y_w_sd + y_t_sd * y_t_sd));
-
-            posEquations2D.Q.set(0, 0, x_t_sd * x_t_sd);
-            posEquations2D.Q.set(1, 1, y_t_sd * y_t_sd);
-            posEquations2D.Q.set(2, 2, x_w_sd * x_w_sd);
-            posEquations2D.Q.set(3, 3, y_w_sd * y_w_sd);
-
-            computeQvv(posEquations2D.Q, posEquations2D.A, posEquations2D.We, posEquations2D.B, Ninv, posEquations2D.Qvv);
-            computeV(posEquations2D.Q, posEquations2D.A, posEquations2D.We, posEquations2D.f, posEquations2D.B, x, posEquations2D.v);
-
-            x_t_v = (float)posEquations2D.v.get(0,0);
-            y_t_v = (float)posEquations2D.v.get(1,0);
-            x_w_v = (float)posEquations2D.v.get(2,0);
-            y_w_v = (float)posEquations2D.v.get(3,0);
+        public float computeResiduals(Workspace w, Parameters p) {
+            return (float) computeHorizontalResiduals(p);
+        }
 
-            x_t_v_sd = (float) Math.sqrt(posEquations2D.Qvv.get(0,0) * p.sigma2);
-            y_t_v_sd = (float) Math.sqrt(posEquations2D.Qvv.get(1,1) * p.sigma2);
-            x_w_v_sd = (float) Math.sqrt(posEquations2D.Qvv.get(2,2) * p.sigma2);
-            y_w_v_sd = (float) Math.sqrt(posEquations2D.Qvv.get(3,3) * p.sigma2);
+        /**
+         * Compute residuals of the x and y coordinates, with
+         * {@code A = [[cos, -sin, -1, 0], [sin, cos, 0, -1]]} for {@code [x_t, y_t, x_w, y_w]}
+         *
+         * @param p The current model parameters
+         * @return the maximum normalized residual
+         */
+        double computeHorizontalResiduals(Parameters p) {
+            final double c = p.cos_az, s = p.sin_az;
+            final double b0 = -x_t * s - y_t * c;
+            final double b1 = x_t * c - y_t * s;
+            final double w0 = 1 / (x_w_sd * x_w_sd + x_t_sd * x_t_sd);
+            final double w1 = 1 / (y_w_sd * y_w_sd + y_t_sd * y_t_sd);
+
+            // We * (f - B * x)
+            final double e0 = w0 * (x_w - c * x_t + s * y_t - p.x0 - axisSolution(0, b0));
+            final double e1 = w1 * (y_w - s * x_t - c * y_t - p.y0 - axisSolution(1, b1));
+
+            // We - We * B * Ninv * B' * We
+            final double m00 = w0 - w0 * w0 * axisProduct(0, b0, 0, b0);
+            final double m01 = -w0 * w1 * axisProduct(0, b0, 1, b1);
+            final double m11 = w1 - w1 * w1 * axisProduct(1, b1, 1, b1);
+
+            final double q_xt = x_t_sd * x_t_sd, q_yt = y_t_sd * y_t_sd;
+            final double q_xw = x_w_sd * x_w_sd, q_yw = y_w_sd * y_w_sd;
+
+            final double v_xt = q_xt * (c * e0 + s * e1);
+            final double v_yt = q_yt * (-s * e0 + c * e1);
+            final double v_xw = -q_xw * e0;
+            final double v_yw = -q_yw * e1;
+            final double qvv_xt = q_xt * q_xt * (c * c * m00 + 2 * c * s * m01 + s * s * m11);
+            final double qvv_yt = q_yt * q_yt * (s * s * m00 - 2 * c * s * m01 + c * c * m11);
+            final double qvv_xw = q_xw * q_xw * m00;
+            final double qvv_yw = q_yw * q_yw * m11;
+
+            x_t_v = (float) v_xt;
+            y_t_v = (float) v_yt;
+            x_w_v = (float) v_xw;
+            y_w_v = (float) v_yw;
+
+            x_t_v_sd = (float) Math.sqrt(qvv_xt * p.sigma2);
+            y_t_v_sd = (float) Math.sqrt(qvv_yt * p.sigma2);
+            x_w_v_sd = (float) Math.sqrt(qvv_xw * p.sigma2);
+            y_w_v_sd = (float) Math.sqrt(qvv_yw * p.sigma2);
 
             double max_residual = 0;
-            for (int i = 0; i < 4; ++i) {
-                double r = Math.abs(posEquations2D.v.get(i,0)) / Math.sqrt(posEquations2D.Qvv.get(i,i) * p.sigma2);
-                if (max_residual < r)
-                    max_residual = r;
-            }
-            return (float)max_residual;
+            max_residual = maxNormalized(max_residual, v_xt, qvv_xt, p.sigma2);
+            max_residual = maxNormalized(max_residual, v_yt, qvv_yt, p.sigma2);
+            max_residual = maxNormalized(max_residual, v_xw, qvv_xw, p.sigma2);
+            max_residual = maxNormalized(max_residual, v_yw, qvv_yw, p.sigma2);
+            return max_residual;
         }
 
 
@@ -294,73 +520,37 @@ public class Transform {
         float z_t_v_sd;
 
         @Override
-        public void addToNormalEquations(Parameters p, float weight) {
-            posEquations3D.B.set(0, 3, -x_t * p.sin_az - y_t * p.cos_az);
-            posEquations3D.B.set(1, 3, x_t * p.cos_az - y_t * p.sin_az);
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
+            super.addToNormalEquations(w, p, weight);
+            w.addAxisRow(2, 0,
+                    weight / (z_w_sd * z_w_sd + z_t_sd * z_t_sd),
+                    z_w - z_t - p.z0);
+        }
 
-            posEquations3D.f.set(0, 0, x_w - p.cos_az * x_t + p.sin_az * y_t - p.x0);
-            posEquations3D.f.set(1, 0, y_w - p.sin_az * x_t - p.cos_az * y_t - p.y0);
-            posEquations3D.f.set(2, 0, z_w - z_t - p.z0);
+        @Override
+        public float computeResiduals(Workspace w, Parameters p) {
+            double max_residual = computeHorizontalResiduals(p);
 
-            posEquations3D.We.set(0, 0, weight / (x_w_sd * x_w_sd + x_t_sd * x_t_sd));
-            posEquations3D.We.set(1, 1, weight / (y_w_sd * y_w_sd + y_t_sd * y_t_sd));
-            posEquations3D.We.set(2, 2, weight / (z_w_sd * z_w_sd + z_t_sd * z_t_sd));
+            // The z coordinates have A = [1, -1] and B = e_2
+            final double w2 = 1 / (z_w_sd * z_w_sd + z_t_sd * z_t_sd);
+            final double e2 = w2 * (z_w - z_t - p.z0 - axisSolution(2, 0));
+            final double m22 = w2 - w2 * w2 * axisProduct(2, 0, 2, 0);
 
-            updateN(posEquations3D.B, posEquations3D.We, N);
-            updateT(posEquations3D.B, posEquations3D.We, posEquations3D.f, t);
+            final double q_zt = z_t_sd * z_t_sd, q_zw = z_w_sd * z_w_sd;
+            final double v_zt = q_zt * e2;
+            final double v_zw = -q_zw * e2;
+            final double qvv_zt = q_zt * q_zt * m22;
+            final double qvv_zw = q_zw * q_zw * m22;
 
-            updateN(posEquations3D.f, posEquations3D.We, vWv);
-        }
+            z_t_v = (float) v_zt;
+            z_w_v = (float) v_zw;
 
-        @Override
-        public float computeResiduals(Parameters p) {
-            posEquations3D.A.set(0, 0, p.cos_az);
-            posEquations3D.A.set(1, 1, p.cos_az);
-            posEquations3D.A.set(1, 0, p.sin_az);
-            posEquations3D.A.set(0, 1, -p.sin_az);
-
-            posEquations3D.B.set(0, 3, -x_t * p.sin_az - y_t * p.cos_az);
-            posEquations3D.B.set(1, 3, x_t * p.cos_az - y_t * p.sin_az);
-
-            posEquations3D.f.set(0, 0, x_w - p.cos_az * x_t + p.sin_az * y_t - p.x0);
-            posEquations3D.f.set(1, 0, y_w - p.sin_az * x_t - p.cos_az * y_t - p.y0);
-            posEquations3D.f.set(2, 0, z_w - z_t - p.z0);
-
-            posEquations3D.We.set(0, 0, 1 / (x_w_sd * x_w_sd + x_t_sd * x_t_sd));
-            posEquations3D.We.set(1, 1, 1 / (y_w_sd * y_w_sd + y_t_sd * y_t_sd));
-            posEquations3D.We.set(2, 2, 1 / (z_w_sd * z_w_sd + z_t_sd * z_t_sd));
-
-            posEquations3D.Q.set(0, 0, x_t_sd * x_t_sd);
-            posEquations3D.Q.set(1, 1, y_t_sd * y_t_sd);
-            posEquations3D.Q.set(2, 2, z_t_sd * z_t_sd);
-            posEquations3D.Q.set(3, 3, x_w_sd * x_w_sd);
-            posEquations3D.Q.set(4, 4, y_w_sd * y_w_sd);
-            posEquations3D.Q.set(5, 5, z_w_sd * z_w_sd);
-
-            computeQvv(posEquations3D.Q, posEquations3D.A, posEquations3D.We, posEquations3D.B, Ninv, posEquations3D.Qvv);
-            computeV(posEquations3D.Q, posEquations3D.A, posEquations3D.We, posEquations3D.f, posEquations3D.B, x, posEquations3D.v);
-
-            x_t_v = (float)posEquations3D.v.get(0,0);
-            y_t_v = (float)posEquations3D.v.get(1,0);
-            z_t_v = (float)posEquations3D.v.get(2,0);
-            x_w_v = (float)posEquations3D.v.get(3,0);
-            y_w_v = (float)posEquations3D.v.get(4,0);
-            z_w_v = (float)posEquations3D.v.get(5,0);
-
-            x_t_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(0,0) * p.sigma2);
-            y_t_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(1,1) * p.sigma2);
-            z_t_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(2,2) * p.sigma2);
-            x_w_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(3,3) * p.sigma2);
-            y_w_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(4,4) * p.sigma2);
-            z_w_v_sd = (float) Math.sqrt(posEquations3D.Qvv.get(5,5) * p.sigma2);
+            z_t_v_sd = (float) Math.sqrt(qvv_zt * p.sigma2);
+            z_w_v_sd = (float) Math.sqrt(qvv_zw * p.sigma2);
 
-            double max_residual = 0;
-            for (int i = 0; i < 6; ++i) {
-                double r = Math.abs(posEquations3D.v.get(i,0)) / Math.sqrt(posEquations3D.Qvv.get(i,i) * p.sigma2);
-                if (max_residual < r)
-                    max_residual = r;
-            }
-            return (float)max_residual;
+            max_residual = maxNormalized(max_residual, v_zt, qvv_zt, p.sigma2);
+            max_residual = maxNormalized(max_residual, v_zw, qvv_zw, p.sigma2);
+            return (float) max_residual;
         }
 
 
@@ -385,29 +575,20 @@ public class Transform {
         float orient_v_sd;
 
         @Override
-        public void addToNormalEquations(Parameters p, float weight) {
-            orientEquations.f.set(0, 0, normalizeAngle(orient - p.az));
-
-            orientEquations.We.set(0, 0, weight / (orient_sd * orient_sd + 0.1*0.1));
-
-            updateN(orientEquations.B, orientEquations.We, N);
-            updateT(orientEquations.B, orientEquations.We, orientEquations.f, t);
-
-            updateN(orientEquations.f, orientEquations.We, vWv);
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
+            w.addRotationRow(weight / (orient_sd * orient_sd + 0.1*0.1), normalizeAngle(orient - p.az));
         }
 
         @Override
-        public float computeResiduals(Parameters p) {
-            orientEquations.f.set(0, 0, normalizeAngle(orient - p.az));
-            orientEquations.We.set(0, 0, 1 / (orient_sd * orient_sd + 0.1*0.1));
-            orientEquations.Q.set(0, 0, orient_sd * orient_sd + 0.1*0.1);
+        public float computeResiduals(Workspace w, Parameters p) {
+            // A = -1 and B = e_3
+            final double q = orient_sd * orient_sd + 0.1*0.1;
+            final double we = 1 / q;
+            final double m = we - we * we * Ninv.data[15];
 
-            computeQvv(orientEquations.Q, orientEquations.A, orientEquations.We, orientEquations.B, Ninv, orientEquations.Qvv);
-            computeV(orientEquations.Q, orientEquations.A, orientEquations.We, orientEquations.f, orientEquations.B, x, orientEquations.v);
+            orient_v = (float) (-q * we * (normalizeAngle(orient - p.az) - x.data[3]));
 
-            orient_v = (float)orientEquations.v.get(0,0);
-
-            orient_v_sd = (float) Math.sqrt(orientEquations.Qvv.get(0,0) * p.sigma2);
+            orient_v_sd = (float) Math.sqrt(q * q * m * p.sigma2);
 
             return Math.abs(orient_v) / orient_v_sd;
         }
@@ -442,38 +623,24 @@ public class Transform {
         float plane_v_sd;
 
         @Override
-        public void addToNormalEquations(Parameters p, float weight) {
-            planeEquations.B.set(0,0,a);
-            planeEquations.B.set(0,1,b);
-            planeEquations.B.set(0,2,c);
-            planeEquations.B.set(0,3, -a*x_t* p.sin_az - a*y_t* p.cos_az + b*x_t* p.cos_az - b*y_t* p.sin_az);
-
-            planeEquations.f.set(0, 0, d - a*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - b*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - c*(z_t + p.z0));
-
-            planeEquations.We.set(0, 0, weight / (plane_sd * plane_sd));
-
-            updateN(planeEquations.B, planeEquations.We, N);
-            updateT(planeEquations.B, planeEquations.We, planeEquations.f, t);
-
-            updateN(planeEquations.f, planeEquations.We, vWv);
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
+            w.addRow(a, b, c, -a*x_t* p.sin_az - a*y_t* p.cos_az + b*x_t* p.cos_az - b*y_t* p.sin_az,
+                    weight / (plane_sd * plane_sd),
+                    d - a*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - b*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - c*(z_t + p.z0));
         }
 
         @Override
-        public float computeResiduals(Parameters p) {
-            planeEquations.B.set(0,0,a);
-            planeEquations.B.set(0,1,b);
-            planeEquations.B.set(0,2,c);
-            planeEquations.B.set(0,3, -a*x_t* p.sin_az - a*y_t* p.cos_az + b*x_t* p.cos_az - b*y_t* p.sin_az);
-            planeEquations.f.set(0, 0, d - a*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - b*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - c*(z_t + p.z0));
-            planeEquations.We.set(0, 0, 1 / (plane_sd * plane_sd));
-            planeEquations.Q.set(0, 0, plane_sd * plane_sd);
+        public float computeResiduals(Workspace w, Parameters p) {
+            // A = -1
+            final double b3 = -a*x_t* p.sin_az - a*y_t* p.cos_az + b*x_t* p.cos_az - b*y_t* p.sin_az;
+            final double f = d - a*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - b*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - c*(z_t + p.z0);
+            final double q = plane_sd * plane_sd;
+            final double we = 1 / (plane_sd * plane_sd);
+            final double m = we - we * we * rowProduct(a, b, c, b3);
 
-            computeQvv(planeEquations.Q, planeEquations.A, planeEquations.We, planeEquations.B, Ninv, planeEquations.Qvv);
-            computeV(planeEquations.Q, planeEquations.A, planeEquations.We, planeEquations.f, planeEquations.B, x, planeEquations.v);
+            plane_v = (float) (-q * we * (f - rowSolution(a, b, c, b3)));
 
-            plane_v = (float)planeEquations.v.get(0,0);
-
-            plane_v_sd = (float) Math.sqrt(planeEquations.Qvv.get(0,0) * p.sigma2);
+            plane_v_sd = (float) Math.sqrt(q * q * m * p.sigma2);
 
             return Math.abs(plane_v) / plane_v_sd;
         }
@@ -507,67 +674,236 @@ public class Transform {
          * {@code [plane[0], plane[1], plane[2]]} should be normalized to unity
          */
         float[] plane;
+        /** World position {@link #plane} was found for */
+        float plane_x, plane_y, plane_z;
 
         /**
          * A surface model describing the terrain. The surface grid should be able to find the
          * plane equation of the closest facet to a point in world coordinates using the method
-         * {@link DTMGrid#getSurfacePlane(float, float, float)}.
+         * {@link DTMSurface#getSurfacePlane(float, float, float)}.
          */
-        DTMGrid grid;
+        DTMSurface grid;
 
         @Override
-        public void addToNormalEquations(Parameters p, float weight) {
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
             float x_w = (float)(x_t* p.cos_az - y_t* p.sin_az + p.x0);
             float y_w = (float)(x_t* p.sin_az + y_t* p.cos_az + p.y0);
             float z_w = (float)(z_t + p.z0);
 
-            plane = grid.getSurfacePlane(x_w, y_w, z_w);
+            ++w.planeLookups;
+            if (plane != null && isCached(x_w - plane_x, y_w - plane_y, z_w - plane_z, planeCacheLimit2(grid))) {
+                ++w.planeHits;
+            } else {
+                plane = grid.getSurfacePlane(x_w, y_w, z_w);
+                plane_x = x_w;
+                plane_y = y_w;
+                plane_z = z_w;
+            }
 
             if (plane != null) {
-                planeEquations.B.set(0, 0, plane[0]);
-                planeEquations.B.set(0, 1, plane[1]);
-                planeEquations.B.set(0, 2, plane[2]);
-                planeEquations.B.set(0, 3, -plane[0] * (x_t * p.sin_az + y_t * p.cos_az) + plane[1] * (x_t * p.cos_az - y_t * p.sin_az));
+                w.addRow(plane[0], plane[1], plane[2],
+                        -plane[0] * (x_t * p.sin_az + y_t * p.cos_az) + plane[1] * (x_t * p.cos_az - y_t * p.sin_az),
+                        weight / (sd * sd),
+                        plane[3] - plane[0] * (p.cos_az * x_t - p.sin_az * y_t + p.x0) - plane[1] * (p.sin_az * x_t + p.cos_az * y_t + p.y0) - plane[2] * (z_t + p.z0));
+            }
+        }
 
-                planeEquations.f.set(0, 0, plane[3] - plane[0] * (p.cos_az * x_t - p.sin_az * y_t + p.x0) - plane[1] * (p.sin_az * x_t + p.cos_az * y_t + p.y0) - plane[2] * (z_t + p.z0));
+        @Override
+        public float computeResiduals(Workspace w, Parameters p) {
+            if (plane == null)
+                return Float.MAX_VALUE;
 
-                planeEquations.We.set(0, 0, weight / (sd * sd));
+            // A = -1
+            final double b3 = -plane[0]*(x_t* p.sin_az + y_t* p.cos_az) + plane[1]*(x_t* p.cos_az - y_t* p.sin_az);
+            final double f = plane[3] - plane[0]*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - plane[1]*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - plane[2]*(z_t + p.z0);
+            final double q = sd * sd;
+            final double we = 1 / (sd * sd);
+            final double m = we - we * we * rowProduct(plane[0], plane[1], plane[2], b3);
 
-                updateN(planeEquations.B, planeEquations.We, N);
-                updateT(planeEquations.B, planeEquations.We, planeEquations.f, t);
+            v = (float) (-q * we * (f - rowSolution(plane[0], plane[1], plane[2], b3)));
 
-                updateN(planeEquations.f, planeEquations.We, vWv);
+            v_sd = (float) Math.sqrt(q * q * m * p.sigma2);
+
+            return Math.abs(v) / v_sd;
+        }
+
+        @Override
+        public int numConditions() {
+            return plane != null ? 1 : 0;
+        }
+    }
+
+    /**
+     * Observation of a set of tango points that should lie on a terrain model surface, typically
+     * the points of one point cloud snap. Works as a set of {@link PointInTerrainObservation}, but
+     * the points are stored column by column in arrays, and are added to the normal equations in
+     * one loop. Each point has its own weight, so points with gross errors are weighted down one
+     * by one.
+     */
+    public class PointCloudObservation implements Observation {
+        /** Flag for points where a facet of the terrain surface is found */
+        static final byte HAS_PLANE = 1;
+
+        /** Number of points */
+        final int size;
+        /** Coordinates for tango positions */
+        final float[] x_t, y_t, z_t;
+        /** a priori standard deviation of distance between surface and point */
+        final float[] sd;
+        /**
+         * Plane equations in world coordinates for the closest facets of the terrain surface to
+         * the points, 4 values per point as in {@link PointInTerrainObservation#plane}
+         */
+        final float[] plane;
+        /** World positions the planes were found for, 3 values per point */
+        final float[] plane_pos;
+        /** a posteriori estimate of residuals (distance between surface and point) */
+        final float[] v;
+        /** a posteriori estimate of standard deviation of residuals */
+        final float[] v_sd;
+        /** Weights from the robust estimation */
+        final float[] weight;
+        /** {@link #HAS_PLANE} */
+        final byte[] flags;
+        /** Number of points with a plane */
+        int conditions;
+
+        /**
+         * A surface model describing the terrain, see {@link PointInTerrainObservation#grid}
+         */
+        final DTMSurface grid;
+
+        /**
+         * @param numPoints the number of points
+         * @param points point data with stride 4, as x1, y1, z1, w1, x2, y2, z2, w2...
+         *               in tango coordinates, where w is not used
+         * @param grid the terrain surface
+         * @param sd a priori standard deviation of distance between surface and points
+         */
+        public PointCloudObservation(int numPoints, FloatBuffer points, DTMSurface grid, float sd) {
+            this(new float[numPoints], new float[numPoints], new float[numPoints], new float[numPoints], grid);
+            for (int i = 0; i < numPoints; ++i) {
+                x_t[i] = points.get(i*4 + 0);
+                y_t[i] = points.get(i*4 + 1);
+                z_t[i] = points.get(i*4 + 2);
+                this.sd[i] = sd;
             }
         }
 
+        /**
+         * Make an observation holding the given arrays, e.g. from {@link PointCloudThinning}
+         *
+         * @param x_t, y_t, z_t coordinates for tango positions
+         * @param sd a priori standard deviation of distance between surface and each point
+         * @param grid the terrain surface
+         */
+        PointCloudObservation(float[] x_t, float[] y_t, float[] z_t, float[] sd, DTMSurface grid) {
+            final int numPoints = x_t.length;
+            this.size = numPoints;
+            this.grid = grid;
+            this.x_t = x_t;
+            this.y_t = y_t;
+            this.z_t = z_t;
+            this.sd = sd;
+            plane = new float[4 * numPoints];
+            plane_pos = new float[3 * numPoints];
+            v = new float[numPoints];
+            v_sd = new float[numPoints];
+            weight = new float[numPoints];
+            flags = new byte[numPoints];
+            Arrays.fill(weight, 1);
+        }
+
+        /**
+         * Set the weights of all points to 1
+         */
+        void resetWeights() {
+            Arrays.fill(weight, 1);
+        }
+
         @Override
-        public float computeResiduals(Parameters p) {
-            if (plane == null)
-                return Float.MAX_VALUE;
+        public void addToNormalEquations(Workspace w, Parameters p, float weight) {
+            final float limit2 = planeCacheLimit2(grid);
+            int hits = 0;
+            conditions = 0;
+            for (int i = 0; i < size; ++i) {
+                float x_w = (float)(x_t[i]* p.cos_az - y_t[i]* p.sin_az + p.x0);
+                float y_w = (float)(x_t[i]* p.sin_az + y_t[i]* p.cos_az + p.y0);
+                float z_w = (float)(z_t[i] + p.z0);
+
+                final int k = 4 * i, j = 3 * i;
+                if ((flags[i] & HAS_PLANE) != 0 &&
+                        isCached(x_w - plane_pos[j], y_w - plane_pos[j+1], z_w - plane_pos[j+2], limit2)) {
+                    ++hits;
+                } else {
+                    float[] pl = grid.getSurfacePlane(x_w, y_w, z_w);
+                    if (pl == null) {
+                        flags[i] &= ~HAS_PLANE;
+                        continue;
+                    }
+                    flags[i] |= HAS_PLANE;
+                    System.arraycopy(pl, 0, plane, k, 4);
+                    plane_pos[j] = x_w;
+                    plane_pos[j+1] = y_w;
+                    plane_pos[j+2] = z_w;
+                }
+                ++conditions;
 
-            planeEquations.B.set(0,0,plane[0]);
-            planeEquations.B.set(0,1,plane[1]);
-            planeEquations.B.set(0,2,plane[2]);
-            planeEquations.B.set(0,3, -plane[0]*(x_t* p.sin_az + y_t* p.cos_az) + plane[1]*(x_t* p.cos_az - y_t* p.sin_az));
+                w.addRow(plane[k], plane[k+1], plane[k+2],
+                        -plane[k] * (x_t[i] * p.sin_az + y_t[i] * p.cos_az) + plane[k+1] * (x_t[i] * p.cos_az - y_t[i] * p.sin_az),
+                        weight * this.weight[i] / (sd[i] * sd[i]),
+                        plane[k+3] - plane[k] * (p.cos_az * x_t[i] - p.sin_az * y_t[i] + p.x0) - plane[k+1] * (p.sin_az * x_t[i] + p.cos_az * y_t[i] + p.y0) - plane[k+2] * (z_t[i] + p.z0));
+            }
+            w.planeLookups += size;
+            w.planeHits += hits;
+        }
+
+        /**
+         * Compute the residual of one point, as in {@link PointInTerrainObservation#computeResiduals(Workspace, Parameters)}
+         *
+         * @return the normalized residual
+         */
+        private float computeResidual(int i, Parameters p) {
+            if ((flags[i] & HAS_PLANE) == 0)
+                return Float.MAX_VALUE;
 
-            planeEquations.f.set(0, 0, plane[3] - plane[0]*(p.cos_az*x_t - p.sin_az*y_t + p.x0) - plane[1]*(p.sin_az*x_t + p.cos_az*y_t + p.y0) - plane[2]*(z_t + p.z0));
+            final int k = 4 * i;
+            // A = -1
+            final double b3 = -plane[k]*(x_t[i]* p.sin_az + y_t[i]* p.cos_az) + plane[k+1]*(x_t[i]* p.cos_az - y_t[i]* p.sin_az);
+            final double f = plane[k+3] - plane[k]*(p.cos_az*x_t[i] - p.sin_az*y_t[i] + p.x0) - plane[k+1]*(p.sin_az*x_t[i] + p.cos_az*y_t[i] + p.y0) - plane[k+2]*(z_t[i] + p.z0);
+            final double q = sd[i] * sd[i];
+            final double we = 1 / (sd[i] * sd[i]);
+            final double m = we - we * we * rowProduct(plane[k], plane[k+1], plane[k+2], b3);
 
-            planeEquations.We.set(0, 0, 1 / (sd * sd));
-            planeEquations.Q.set(0, 0, sd * sd);
+            v[i] = (float) (-q * we * (f - rowSolution(plane[k], plane[k+1], plane[k+2], b3)));
 
-            computeQvv(planeEquations.Q, planeEquations.A, planeEquations.We, planeEquations.B, Ninv, planeEquations.Qvv);
-            computeV(planeEquations.Q, planeEquations.A, planeEquations.We, planeEquations.f, planeEquations.B, x, planeEquations.v);
+            v_sd[i] = (float) Math.sqrt(q * q * m * p.sigma2);
 
-            v = (float)planeEquations.v.get(0,0);
+            return Math.abs(v[i]) / v_sd[i];
+        }
 
-            v_sd = (float) Math.sqrt(planeEquations.Qvv.get(0,0) * p.sigma2);
+        @Override
+        public float computeResiduals(Workspace w, Parameters p) {
+            float max_residual = 0;
+            for (int i = 0; i < size; ++i) {
+                float r = computeResidual(i, p);
+                if (r < Float.MAX_VALUE && max_residual < r)
+                    max_residual = r;
+            }
+            return max_residual;
+        }
 
-            return Math.abs(v) / v_sd;
+        /**
+         * Compute the residuals, and weight the points down as in {@link #robustWeight(float, double, double)}
+         */
+        void computeWeights(Parameters p, double k, double a) {
+            for (int i = 0; i < size; ++i)
+                weight[i] = robustWeight(computeResidual(i, p), k, a);
         }
 
         @Override
         public int numConditions() {
-            return plane != null ? 1 : 0;
+            return conditions;
         }
     }
 
@@ -581,34 +917,6 @@ public class Transform {
         t = new DMatrixRMaj(num_parameters, 1);
         x = new DMatrixRMaj(num_parameters, 1);
         vWv = new DMatrixRMaj(1, 1);
-
-        // Model equation matrixes for a 2D position observation
-        posEquations2D.A.set(0, 0, 1);
-        posEquations2D.A.set(1, 1, 1);
-        posEquations2D.A.set(0, 2, -1);
-        posEquations2D.A.set(1, 3, -1);
-
-        posEquations2D.B.set(0,0,1);
-        posEquations2D.B.set(1,1,1);
-
-        // Model equation matrixes for a 3D position observation
-        posEquations3D.A.set(0, 0, 1);
-        posEquations3D.A.set(1, 1, 1);
-        posEquations3D.A.set(2, 2, 1);
-        posEquations3D.A.set(0, 3, -1);
-        posEquations3D.A.set(1, 4, -1);
-        posEquations3D.A.set(2, 5, -1);
-
-        posEquations3D.B.set(0,0,1);
-        posEquations3D.B.set(1,1,1);
-        posEquations3D.B.set(2,2,1);
-
-        // Model equation matrixes for an orientation observation
-        orientEquations.A.set(0,0,-1);
-        orientEquations.B.set(0,3,1);
-
-        // Model equations for a point-in-plane observation
-        planeEquations.A.set(0,0,-1);
     }
 
     /**
@@ -618,9 +926,24 @@ public class Transform {
      * @return false if the computations failed (singular equation system, fail to converge)
      */
     synchronized public boolean adjust(List<Observation> observations) {
+        return adjust(observations, new float[observations.size()]);
+    }
+
+    /**
+     * Recompute the transform from a list of observation data.
+     *
+     * @param observations the list of observations
+     * @param weight receives the weights of the observations in the final step
+     * @return false if the computations failed (singular equation system, fail to converge)
+     */
+    private boolean adjust(List<Observation> list, float[] weight) {
         try {
-            float [] weight = new float[observations.size()];
+            Observation[] observations = list.toArray(new Observation[list.size()]);
             Arrays.fill(weight, 1);
+            for (Observation obs : observations) {
+                if (obs instanceof PointCloudObservation)
+                    ((PointCloudObservation) obs).resetWeights();
+            }
 
             for (int step = 1; step <= 3; ++step) {
                 /*
@@ -630,18 +953,8 @@ public class Transform {
                  *             in step 2 are considered probable gross errors and are weighted down
                  */
                 for (int iteration = 0; iteration < (step <= 2 ? 3 : 10); ++iteration) {
-                    N.zero();
-                    t.zero();
-                    vWv.zero();
-
-                    int r = -4;
-
                     // Build normal equations
-                    int i = 0;
-                    for (Observation obs : observations) {
-                        obs.addToNormalEquations(parameters[step-1], weight[i++]);
-                        r += obs.numConditions();
-                    }
+                    int r = buildNormalEquations(observations, parameters[step-1], weight) - num_parameters;
 
                     // Solve normal equations
                     if (!solveNormal(N, t, Ninv, x))
@@ -652,21 +965,7 @@ public class Transform {
                         return false;
 
 
-                    // Extract parameters
-                    parameters[step-1].x0 += x.get(0, 0);
-                    parameters[step-1].y0 += x.get(1, 0);
-                    parameters[step-1].z0 += x.get(2, 0);
-                    parameters[step-1].az = normalizeAngle(parameters[step-1].az + x.get(3, 0));
-                    parameters[step-1].sin_az = Math.sin(parameters[step-1].az);
-                    parameters[step-1].cos_az = Math.cos(parameters[step-1].az);
-
-                    // Compute sample variance
-                    computeVWV(x, t, vWv);
-
-                    parameters[step-1].sigma2 = vWv.get(0, 0) / r;
-                    parameters[step-1].xy_sigma2 = parameters[step-1].sigma2 * (Ninv.get(0, 0) + Ninv.get(1, 1) + Ninv.get(0, 1) + Ninv.get(1, 0));
-                    parameters[step-1].z_sigma2 = parameters[step-1].sigma2 * Ninv.get(2, 2);
-                    parameters[step-1].az_sigma2 = parameters[step-1].sigma2 * Ninv.get(3, 3);
+                    applyCorrections(parameters[step-1], r);
 
                     // Ok?
                     if (step <= 2) {
@@ -687,18 +986,13 @@ public class Transform {
 
                 if (step <= 2) {
                     // Check for gross errors
-                    int i = 0;
                     double k = step == 1 ? 1 : 0.6;
                     double a = step == 1 ? 4.4 : 6;
-                    for (Observation obs : observations) {
-                        float res = obs.computeResiduals(parameters[step-1]);// weight[i]);
-                        if (res > 1) {
-                            weight[i] = (float) Math.max(Math.exp(-0.05 * Math.pow(k * res, a)), 1e-6);
-                            // Log.e("Transform", "bad residual in: " + String.valueOf(i));
-                        } else
-                            weight[i] = 1;
-                        ++i;
-                    }
+                    WeightsTask task = new WeightsTask(observations, parameters[step-1], k, a, weight, 0, observations.length);
+                    if (observations.length > PARALLEL_THRESHOLD)
+                        getPool().invoke(task);
+                    else
+                        task.compute();
                 }
             }
         }
@@ -711,51 +1005,373 @@ public class Transform {
         return false;
     }
 
-    /*
-    * Axiliary functions
-    */
+    /**
+     * Build the normal equations N, t and vWv for a set of observations, in parallel for large sets
+     *
+     * @param observations the observations
+     * @param p the current model parameters
+     * @param weight the current observation weights
+     * @return number of condition equations
+     */
+    private int buildNormalEquations(Observation[] observations, Parameters p, float[] weight) {
+        NormalEquationsTask task = new NormalEquationsTask(observations, p, weight, 0, observations.length);
+        if (observations.length > PARALLEL_THRESHOLD)
+            getPool().invoke(task);
+        else
+            task.compute();
+
+        System.arraycopy(task.N, 0, N.data, 0, task.N.length);
+        System.arraycopy(task.t, 0, t.data, 0, task.t.length);
+        vWv.set(0, 0, task.vWv);
+        planeLookups += task.planeLookups;
+        planeHits += task.planeHits;
+        return task.conditions;
+    }
 
     /**
-     * Normalize an angle to the -pi, pi interval
+     * Builds the normal equations for a range of observations, splitting large ranges and
+     * adding the sums of the parts
+     */
+    private class NormalEquationsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Observation[] observations;
+        final Parameters p;
+        final float[] weight;
+        final int from, to;
+        final double[] N = new double[num_parameters * num_parameters];
+        final double[] t = new double[num_parameters];
+        double vWv;
+        int conditions, planeLookups, planeHits;
+
+        NormalEquationsTask(Observation[] observations, Parameters p, float[] weight, int from, int to) {
+            this.observations = observations;
+            this.p = p;
+            this.weight = weight;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                Workspace w = workspaces.get();
+                w.zero();
+                for (int i = from; i < to; ++i) {
+                    observations[i].addToNormalEquations(w, p, weight[i]);
+                    conditions += observations[i].numConditions();
+                }
+                System.arraycopy(w.N.data, 0, N, 0, N.length);
+                System.arraycopy(w.t.data, 0, t, 0, t.length);
+                vWv = w.vWv.get(0, 0);
+                planeLookups = w.planeLookups;
+                planeHits = w.planeHits;
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            NormalEquationsTask first = new NormalEquationsTask(observations, p, weight, from, mid);
+            NormalEquationsTask second = new NormalEquationsTask(observations, p, weight, mid, to);
+            invokeAll(first, second);
+            for (int i = 0; i < N.length; ++i)
+                N[i] = first.N[i] + second.N[i];
+            for (int i = 0; i < t.length; ++i)
+                t[i] = first.t[i] + second.t[i];
+            vWv = first.vWv + second.vWv;
+            conditions = first.conditions + second.conditions;
+            planeLookups = first.planeLookups + second.planeLookups;
+            planeHits = first.planeHits + second.planeHits;
+        }
+    }
+
+    /**
+     * @return square of the max move of a transformed point before the terrain plane is searched again,
+     *         see {@link #PLANE_CACHE_FRACTION}
+     */
+    static float planeCacheLimit2(DTMSurface grid) {
+        final float limit = PLANE_CACHE_FRACTION * grid.getSpacing();
+        return limit * limit;
+    }
+
+    /**
+     * @return true if a move of a transformed point is small enough to use the terrain plane found before
+     */
+    static boolean isCached(float dx, float dy, float dz, float limit2) {
+        return dx * dx + dy * dy + dz * dz <= limit2;
+    }
+
+    /**
+     * Weight for an observation in the robust estimation
      *
-     * @param a a possibly un-normalized angle
-     * @return the normalized angle int the -pi, pi interval
+     * @param res normalized residual of the observation
+     * @param k scale of residuals
+     * @param a exponent
+     * @return {@code exp(-0.05 * (k * res)^a)} for {@code res > 1}, at least 1e-6, or 1
      */
-    static public double normalizeAngle(double a) {
-        return a - 2 * Math.PI * Math.floor((a + Math.PI) / (2 * Math.PI));
+    static float robustWeight(float res, double k, double a) {
+        if (res > 1)
+            return (float) Math.max(Math.exp(-0.05 * Math.pow(k * res, a)), 1e-6);
+        return 1;
+    }
+
+    /**
+     * Computes the residuals for a range of observations, and weights them down by their
+     * normalized residuals, see {@link #robustWeight(float, double, double)}
+     */
+    private class WeightsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Observation[] observations;
+        final Parameters p;
+        final double k, a;
+        final float[] weight;
+        final int from, to;
+
+        WeightsTask(Observation[] observations, Parameters p, double k, double a, float[] weight, int from, int to) {
+            this.observations = observations;
+            this.p = p;
+            this.k = k;
+            this.a = a;
+            this.weight = weight;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                Workspace w = workspaces.get();
+                for (int i = from; i < to; ++i) {
+                    if (observations[i] instanceof PointCloudObservation)
+                        // Points are weighted one by one
+                        ((PointCloudObservation) observations[i]).computeWeights(p, k, a);
+                    else
+                        weight[i] = robustWeight(observations[i].computeResiduals(w, p), k, a);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new WeightsTask(observations, p, k, a, weight, from, mid),
+                    new WeightsTask(observations, p, k, a, weight, mid, to));
+        }
+    }
+
+    /**
+     * Add the solution of the normal equations to a parameter block, and compute the variances
+     *
+     * @param p the parameters the normal equations are linearized at
+     * @param r number of redundant conditions
+     */
+    private void applyCorrections(Parameters p, int r) {
+        // Extract parameters
+        p.x0 += x.get(0, 0);
+        p.y0 += x.get(1, 0);
+        p.z0 += x.get(2, 0);
+        p.az = normalizeAngle(p.az + x.get(3, 0));
+        p.sin_az = Math.sin(p.az);
+        p.cos_az = Math.cos(p.az);
+
+        // Compute sample variance
+        computeVWV(x, t, vWv);
+
+        p.sigma2 = vWv.get(0, 0) / r;
+        p.xy_sigma2 = p.sigma2 * (Ninv.get(0, 0) + Ninv.get(1, 1) + Ninv.get(0, 1) + Ninv.get(1, 0));
+        p.z_sigma2 = p.sigma2 * Ninv.get(2, 2);
+        p.az_sigma2 = p.sigma2 * Ninv.get(3, 3);
     }
 
     /**
-     * Update normal equation matrix N with observation matrixes B and weights We
+     * Add an observation to the incremental adjustment. The observation is linearized at the
+     * current parameters, so the cost does not depend on the number of other observations, and
+     * weighted down by its residuals from the current solution, as in a full adjustment.
      *
-     * N = N + B' * We * B
+     * @param obs the observation
+     */
+    synchronized public void addObservation(Observation obs) {
+        if (contributions.containsKey(obs))
+            return;
+
+        Contribution c = null;
+        if (linearized) {
+            c = linearizeWeighted(obs);
+            addContribution(c, 1);
+            ++changes;
+        }
+        contributions.put(obs, c);
+    }
+
+    /**
+     * Remove an observation from the incremental adjustment, by subtracting its contribution
      *
-     * @param B
-     * @param We
-     * @param N
+     * @param obs the observation
+     * @return true if the observation was in the adjustment
+     */
+    synchronized public boolean removeObservation(Observation obs) {
+        if (!contributions.containsKey(obs))
+            return false;
+
+        Contribution c = contributions.remove(obs);
+        if (c != null) {
+            addContribution(c, -1);
+            ++changes;
+        }
+        return true;
+    }
+
+    /**
+     * Remove all observations from the incremental adjustment
+     */
+    synchronized public void clearObservations() {
+        contributions.clear();
+        linearized = false;
+    }
+
+    /**
+     * @return number of observations in the incremental adjustment
      */
-    private void updateN(DMatrixRMaj B, DMatrixRMaj We, DMatrixRMaj N) {
-        tmp1.reshape(We.getNumRows(), B.getNumCols());
-        CommonOps_DDRM.mult(We, B, tmp1);
-        CommonOps_DDRM.multAddTransA(B, tmp1, N);
+    synchronized public int numObservations() {
+        return contributions.size();
     }
 
     /**
-     * Update normal equation vector t with observation
+     * Recompute the transform from the observations added with {@link #addObservation(Observation)}.<p>
      *
-     * t = t + B' * We * f
+     * The normal equations are kept as sums of the contributions of the observations, linearized at
+     * the parameters of the last full adjustment, so the sums are only solved here. A full
+     * adjustment, as in {@link #adjust(List)}, is run the first time, when the solution has moved
+     * more than {@link #RELINEARIZE_DISTANCE} or {@link #RELINEARIZE_ANGLE} from the linearization
+     * parameters, and when many observations are added or removed, as the weights of the other
+     * observations are only updated by a full adjustment.
      *
-     * @param B
-     * @param We
-     * @param f
-     * @param t
+     * @return false if the computations failed (singular equation system, fail to converge)
      */
-    private void updateT(DMatrixRMaj B, DMatrixRMaj We, DMatrixRMaj f, DMatrixRMaj t) {
-        tmp1.reshape(We.getNumRows(), f.getNumCols());
-        CommonOps_DDRM.mult(We, f, tmp1);
-        CommonOps_DDRM.multAddTransA(B, tmp1, t);
+    synchronized public boolean update() {
+        if (!linearized || changes > REWEIGHT_FRACTION * contributions.size())
+            return relinearize();
+
+        System.arraycopy(sumN, 0, N.data, 0, sumN.length);
+        System.arraycopy(sumT, 0, t.data, 0, sumT.length);
+        vWv.set(0, 0, sumVWv);
+
+        if (!solveNormal(N, t, Ninv, x) || MatrixFeatures_DDRM.hasNaN(x) || MatrixFeatures_DDRM.hasNaN(Ninv))
+            return relinearize();
+
+        if (Math.abs(x.get(0, 0)) > RELINEARIZE_DISTANCE ||
+                Math.abs(x.get(1, 0)) > RELINEARIZE_DISTANCE ||
+                Math.abs(x.get(2, 0)) > RELINEARIZE_DISTANCE ||
+                Math.abs(x.get(3, 0)) > RELINEARIZE_ANGLE)
+            return relinearize();
+
+        parameters[2].set(linearization);
+        applyCorrections(parameters[2], sumConditions - num_parameters);
+        return true;
     }
 
+    /**
+     * Run a full adjustment of the incremental observations, and linearize them at the result
+     */
+    private boolean relinearize() {
+        List<Observation> observations = new ArrayList<>(contributions.keySet());
+        float[] weight = new float[observations.size()];
+
+        linearized = false;
+        changes = 0;
+        Arrays.fill(sumN, 0);
+        Arrays.fill(sumT, 0);
+        sumVWv = 0;
+        sumConditions = 0;
+        for (Observation obs : observations)
+            contributions.put(obs, null);
+
+        if (!adjust(observations, weight))
+            return false;
+
+        linearization.set(parameters[2]);
+        // The solution relative to the linearization, used by the residuals of added observations
+        x.zero();
+        for (int i = 0; i < weight.length; ++i) {
+            Contribution c = linearize(observations.get(i), weight[i]);
+            addContribution(c, 1);
+            contributions.put(observations.get(i), c);
+        }
+        linearized = true;
+        return true;
+    }
+
+    /**
+     * Compute the contribution of an observation to the normal equations, at the linearization parameters
+     */
+    private Contribution linearize(Observation obs, float weight) {
+        Workspace w = workspaces.get();
+        w.zero();
+        obs.addToNormalEquations(w, linearization, weight);
+        planeLookups += w.planeLookups;
+        planeHits += w.planeHits;
+
+        Contribution c = new Contribution();
+        System.arraycopy(w.N.data, 0, c.N, 0, c.N.length);
+        System.arraycopy(w.t.data, 0, c.t, 0, c.t.length);
+        c.vWv = w.vWv.get(0, 0);
+        c.conditions = obs.numConditions();
+        return c;
+    }
+
+    /**
+     * Compute the contribution of an observation added between full adjustments, with robust
+     * weights from its residuals at the current solution
+     */
+    private Contribution linearizeWeighted(Observation obs) {
+        // Finds the terrain planes the residuals are computed from
+        Contribution c = linearize(obs, 1);
+        Workspace w = workspaces.get();
+
+        if (obs instanceof PointCloudObservation) {
+            PointCloudObservation cloud = (PointCloudObservation) obs;
+            cloud.computeWeights(linearization, INCREMENTAL_K, INCREMENTAL_A);
+            for (float weight : cloud.weight) {
+                if (weight != 1)
+                    // The planes are cached, so this costs no terrain searches
+                    return linearize(obs, 1);
+            }
+            return c;
+        }
+
+        final float weight = robustWeight(obs.computeResiduals(w, linearization), INCREMENTAL_K, INCREMENTAL_A);
+        if (weight != 1) {
+            // The contribution is proportional to the weight
+            for (int i = 0; i < c.N.length; ++i)
+                c.N[i] *= weight;
+            for (int i = 0; i < c.t.length; ++i)
+                c.t[i] *= weight;
+            c.vWv *= weight;
+        }
+        return c;
+    }
+
+    /**
+     * Add a contribution to the sums, or subtract it with sign -1
+     */
+    private void addContribution(Contribution c, int sign) {
+        for (int i = 0; i < sumN.length; ++i)
+            sumN[i] += sign * c.N[i];
+        for (int i = 0; i < sumT.length; ++i)
+            sumT[i] += sign * c.t[i];
+        sumVWv += sign * c.vWv;
+        sumConditions += sign * c.conditions;
+    }
+
+    /*
+    * Axiliary functions
+    */
+
+    /**
+     * Normalize an angle to the -pi, pi interval
+     *
+     * @param a a possibly un-normalized angle
+     * @return the normalized angle int the -pi, pi interval
+     */
+    static public double normalizeAngle(double a) {
+        return a - 2 * Math.PI * Math.floor((a + Math.PI) / (2 * Math.PI));
+    }
 
     /**
      * Solve normal equations
@@ -788,55 +1404,4 @@ public class Transform {
     static private void computeVWV(DMatrixRMaj x, DMatrixRMaj t, DMatrixRMaj vWv) {
         CommonOps_DDRM.multAddTransA(-1, x, t, vWv);
     }
-
-    /**
-     * Compute residual vector
-     *
-     * v = Q * A' * We * (f - B * x)
-     *
-     * @param Q
-     * @param A
-     * @param We
-     * @param f
-     * @param B
-     * @param x
-     * @param v
-     */
-    private void computeV(DMatrixRMaj Q, DMatrixRMaj A, DMatrixRMaj We,
-                                 DMatrixRMaj f, DMatrixRMaj B, DMatrixRMaj x, DMatrixRMaj v) {
-        tmp1.set(f);
-        CommonOps_DDRM.multAdd(-1, B, x, tmp1);
-        tmp2.reshape(We.getNumRows(), tmp1.getNumCols());
-        CommonOps_DDRM.mult(We, tmp1, tmp2);
-        tmp1.reshape(A.getNumCols(), tmp2.getNumCols());
-        CommonOps_DDRM.multTransA(A, tmp2, tmp1);
-        CommonOps_DDRM.mult(Q, tmp1, v);
-    }
-
-    /**
-     * Compute cofactor matrix for residuals
-     *
-     * Qvv = Q * A' * (We - We * B * Ninv * B' * We) * A * Q
-     *
-     * @param Q
-     * @param A
-     * @param We
-     * @param B
-     * @param Ninv
-     * @param Qvv
-     */
-    private void computeQvv(DMatrixRMaj Q, DMatrixRMaj A, DMatrixRMaj We, DMatrixRMaj B,
-                                   DMatrixRMaj Ninv, DMatrixRMaj Qvv) {
-        tmp1.reshape(We.getNumRows(), B.getNumCols());
-        CommonOps_DDRM.mult(We, B, tmp1);
-        tmp2.reshape(tmp1.getNumRows(), Ninv.getNumCols());
-        CommonOps_DDRM.mult(tmp1, Ninv, tmp2);
-        tmp3.set(We);
-        CommonOps_DDRM.multAddTransB(-1, tmp2, tmp1, tmp3);
-        tmp1.reshape(A.getNumRows(), Q.getNumCols());
-        CommonOps_DDRM.mult(A, Q, tmp1);
-        tmp2.reshape(tmp3.getNumRows(), tmp1.getNumCols());
-        CommonOps_DDRM.mult(tmp3, tmp1, tmp2);
-        CommonOps_DDRM.multTransA(tmp1, tmp2, Qvv);
-    }
 }
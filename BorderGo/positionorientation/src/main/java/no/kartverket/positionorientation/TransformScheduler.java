@@ -0,0 +1,124 @@
+package no.kartverket.positionorientation;
+
+/**
+ * Decides when the transform is recomputed after the observations change.<p>
+ *
+ * Every change increments a generation counter, and wakes the worker waiting in
+ * {@link #awaitWork()}. Bursts of changes, like the windows of GPS positions or the replaced
+ * observations of a point cloud snap, are coalesced: a run starts when no change has come for
+ * {@link #DEBOUNCE_MS}, but never later than {@link #DEADLINE_MS} after the first change not yet
+ * handled, and never sooner than {@link #MIN_INTERVAL_MS} after the previous run started. The
+ * time and the waiting come from a {@link Clock}, so the tests can run the schedule without
+ * sleeping.
+ */
+final class TransformScheduler {
+    /** Quiet time after a change before a run starts, milliseconds */
+    static final long DEBOUNCE_MS = 100;
+    /** Least time between the start of two runs, milliseconds */
+    static final long MIN_INTERVAL_MS = 250;
+    /** Max time from a change to the start of a run handling it, milliseconds */
+    static final long DEADLINE_MS = 1000;
+
+    /**
+     * Time source and waiting of the scheduler
+     */
+    interface Clock {
+        /**
+         * @return the time, milliseconds
+         */
+        long now();
+
+        /**
+         * Wait on a monitor held by the caller until notified, or for a time
+         *
+         * @param ms max time to wait, milliseconds, or 0 to wait until notified
+         */
+        void await(Object monitor, long ms) throws InterruptedException;
+    }
+
+    /** Clock of the system, waiting on the monitor */
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public void await(Object monitor, long ms) throws InterruptedException {
+            monitor.wait(ms);
+        }
+    };
+
+    private final Clock clock;
+    private long generation = 0;
+    // Generation handled by the last run
+    private long handled = 0;
+    // Time of the first change not handled, the last change and the start of the last run
+    private long firstChange, lastChange, lastRun = Long.MIN_VALUE / 2;
+    private boolean running = true;
+
+    TransformScheduler() {
+        this(SYSTEM_CLOCK);
+    }
+
+    TransformScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Tell that the observations have changed
+     */
+    synchronized void markDirty() {
+        long now = clock.now();
+        if (generation == handled)
+            firstChange = now;
+        lastChange = now;
+        ++generation;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of changes so far
+     */
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Wait until a run is due
+     *
+     * @return the generation to handle, or -1 if the scheduler is stopped
+     */
+    synchronized long awaitWork() {
+        while (running) {
+            try {
+                if (generation == handled) {
+                    clock.await(this, 0);
+                    continue;
+                }
+
+                long now = clock.now();
+                long due = Math.min(lastChange + DEBOUNCE_MS, firstChange + DEADLINE_MS);
+                due = Math.max(due, lastRun + MIN_INTERVAL_MS);
+                if (now >= due) {
+                    handled = generation;
+                    lastRun = now;
+                    return handled;
+                }
+                clock.await(this, due - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Stop the scheduler, {@link #awaitWork()} returns -1
+     */
+    synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+}
@@ -0,0 +1,375 @@
+package no.kartverket.positionorientation;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.dense.row.MatrixFeatures_DDRM;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The adjustment of {@link Transform#adjust(List)} with the model equations of each observation
+ * as small EJML matrixes, the way the transform built them before the closed form kernels:
+ * {@code N += B' We B}, {@code t += B' We f}, {@code vWv += f' We f}, and for the residuals
+ * {@code v = Q A' We (f - B x)} and {@code Qvv = Q A' (We - We B Ninv B' We) A Q}.<p>
+ *
+ * The steps, iterations, robust weights and terrain plane cache are those of the transform, so
+ * both give the same parameters up to rounding. The observations are only read, the weights,
+ * residuals and planes of the reference are kept here.
+ */
+final class EjmlAdjustment {
+    private static final int num_parameters = Transform.num_parameters;
+
+    /**
+     * Block of estimated parameters
+     */
+    static final class Parameters {
+        double x0, y0, z0, sigma2, xy_sigma2, z_sigma2;
+        double az = 0, sin_az = 0, cos_az = 1, az_sigma2;
+    }
+
+    /**
+     * Model equations of one observation
+     */
+    private static final class Equations {
+        final DMatrixRMaj A, B, f, Q, We;
+
+        Equations(int numEquations, int numObservations) {
+            A = new DMatrixRMaj(numEquations, numObservations);
+            B = new DMatrixRMaj(numEquations, num_parameters);
+            f = new DMatrixRMaj(numEquations, 1);
+            Q = new DMatrixRMaj(numObservations, numObservations);
+            We = new DMatrixRMaj(numEquations, numEquations);
+        }
+    }
+
+    /**
+     * Terrain planes, weights and residuals of the points of a point cloud
+     */
+    private static final class Cloud {
+        final float[] plane, plane_pos, weight;
+        final boolean[] hasPlane;
+        final double[] v, v_sd;
+
+        Cloud(int size) {
+            plane = new float[4 * size];
+            plane_pos = new float[3 * size];
+            weight = new float[size];
+            hasPlane = new boolean[size];
+            v = new double[size];
+            v_sd = new double[size];
+        }
+    }
+
+    /** Parameters of the three steps, kept between adjustments as in the transform */
+    final Parameters[] parameters = new Parameters[] {new Parameters(), new Parameters(), new Parameters()};
+
+    private final DMatrixRMaj N = new DMatrixRMaj(num_parameters, num_parameters);
+    private final DMatrixRMaj Ninv = new DMatrixRMaj(num_parameters, num_parameters);
+    private final DMatrixRMaj t = new DMatrixRMaj(num_parameters, 1);
+    private final DMatrixRMaj x = new DMatrixRMaj(num_parameters, 1);
+    private final DMatrixRMaj vWv = new DMatrixRMaj(1, 1);
+
+    private final IdentityHashMap<Transform.PointCloudObservation, Cloud> clouds = new IdentityHashMap<>();
+    /** Residuals and their standard deviations of the other observations, in the order of {@code A} */
+    private final IdentityHashMap<Transform.Observation, double[]> residuals = new IdentityHashMap<>();
+    private final IdentityHashMap<Transform.Observation, double[]> residualSds = new IdentityHashMap<>();
+
+    /**
+     * @return the final parameters
+     */
+    Parameters result() {
+        return parameters[2];
+    }
+
+    /**
+     * @return residuals of an observation from the last weighting, as in {@code A}, or per point for point clouds
+     */
+    double[] residuals(Transform.Observation obs) {
+        if (obs instanceof Transform.PointCloudObservation)
+            return clouds.get(obs).v;
+        return residuals.get(obs);
+    }
+
+    /**
+     * @return standard deviations of the residuals of {@link #residuals(Transform.Observation)}
+     */
+    double[] residualSds(Transform.Observation obs) {
+        if (obs instanceof Transform.PointCloudObservation)
+            return clouds.get(obs).v_sd;
+        return residualSds.get(obs);
+    }
+
+    /**
+     * @return weights of the points of a point cloud in the final step
+     */
+    float[] pointWeights(Transform.PointCloudObservation obs) {
+        return clouds.get(obs).weight;
+    }
+
+    /**
+     * Same steps as {@link Transform#adjust(List)}
+     *
+     * @return false if the system is singular or does not converge
+     */
+    boolean adjust(List<Transform.Observation> observations) {
+        final int n = observations.size();
+        float[] weight = new float[n];
+        Arrays.fill(weight, 1);
+        for (Transform.Observation obs : observations) {
+            if (obs instanceof Transform.PointCloudObservation) {
+                Transform.PointCloudObservation cloud = (Transform.PointCloudObservation) obs;
+                if (!clouds.containsKey(cloud))
+                    clouds.put(cloud, new Cloud(cloud.size));
+                Arrays.fill(clouds.get(cloud).weight, 1);
+            }
+        }
+
+        for (int step = 1; step <= 3; ++step) {
+            final Parameters p = parameters[step - 1];
+            for (int iteration = 0; iteration < (step <= 2 ? 3 : 10); ++iteration) {
+                N.zero();
+                t.zero();
+                vWv.zero();
+                int r = -num_parameters;
+                for (int i = 0; i < n; ++i)
+                    r += addToNormalEquations(observations.get(i), p, weight[i]);
+
+                if (!CommonOps_DDRM.invert(N, Ninv))
+                    return false;
+                CommonOps_DDRM.mult(Ninv, t, x);
+                if (MatrixFeatures_DDRM.hasNaN(x) || MatrixFeatures_DDRM.hasNaN(Ninv))
+                    return false;
+
+                applyCorrections(p, r);
+
+                final double limit = step <= 2 ? 0.3 : 0.1;
+                boolean converged = true;
+                for (int k = 0; k < num_parameters; ++k)
+                    converged &= Math.abs(x.get(k, 0)) < limit * Math.sqrt(Ninv.get(k, k) * p.sigma2);
+                if (converged) {
+                    if (step <= 2)
+                        break;
+                    return true;
+                }
+            }
+
+            if (step <= 2) {
+                double k = step == 1 ? 1 : 0.6;
+                double a = step == 1 ? 4.4 : 6;
+                for (int i = 0; i < n; ++i) {
+                    Transform.Observation obs = observations.get(i);
+                    if (obs instanceof Transform.PointCloudObservation)
+                        computeWeights((Transform.PointCloudObservation) obs, p, k, a);
+                    else
+                        weight[i] = Transform.robustWeight((float) computeResiduals(obs, p), k, a);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void applyCorrections(Parameters p, int r) {
+        p.x0 += x.get(0, 0);
+        p.y0 += x.get(1, 0);
+        p.z0 += x.get(2, 0);
+        p.az = Transform.normalizeAngle(p.az + x.get(3, 0));
+        p.sin_az = Math.sin(p.az);
+        p.cos_az = Math.cos(p.az);
+
+        CommonOps_DDRM.multAddTransA(-1, x, t, vWv);
+        p.sigma2 = vWv.get(0, 0) / r;
+        p.xy_sigma2 = p.sigma2 * (Ninv.get(0, 0) + Ninv.get(1, 1) + Ninv.get(0, 1) + Ninv.get(1, 0));
+        p.z_sigma2 = p.sigma2 * Ninv.get(2, 2);
+        p.az_sigma2 = p.sigma2 * Ninv.get(3, 3);
+    }
+
+    /**
+     * N += B' We B, t += B' We f, vWv += f' We f
+     */
+    private void add(Equations e) {
+        DMatrixRMaj tmp = new DMatrixRMaj(e.We.getNumRows(), num_parameters);
+        CommonOps_DDRM.mult(e.We, e.B, tmp);
+        CommonOps_DDRM.multAddTransA(e.B, tmp, N);
+        DMatrixRMaj tmp1 = new DMatrixRMaj(e.We.getNumRows(), 1);
+        CommonOps_DDRM.mult(e.We, e.f, tmp1);
+        CommonOps_DDRM.multAddTransA(e.B, tmp1, t);
+        CommonOps_DDRM.multAddTransA(e.f, tmp1, vWv);
+    }
+
+    /**
+     * Compute v and the diagonal of Qvv
+     *
+     * @return the max normalized residual
+     */
+    private double residuals(Equations e, Parameters p, double[] v_out, double[] sd_out) {
+        DMatrixRMaj e1 = new DMatrixRMaj(e.f);
+        CommonOps_DDRM.multAdd(-1, e.B, x, e1);
+        DMatrixRMaj e2 = new DMatrixRMaj(e.We.getNumRows(), 1);
+        CommonOps_DDRM.mult(e.We, e1, e2);
+        DMatrixRMaj e3 = new DMatrixRMaj(e.A.getNumCols(), 1);
+        CommonOps_DDRM.multTransA(e.A, e2, e3);
+        DMatrixRMaj v = new DMatrixRMaj(e.Q.getNumRows(), 1);
+        CommonOps_DDRM.mult(e.Q, e3, v);
+
+        DMatrixRMaj WeB = new DMatrixRMaj(e.We.getNumRows(), num_parameters);
+        CommonOps_DDRM.mult(e.We, e.B, WeB);
+        DMatrixRMaj WeBNinv = new DMatrixRMaj(e.We.getNumRows(), num_parameters);
+        CommonOps_DDRM.mult(WeB, Ninv, WeBNinv);
+        DMatrixRMaj M = new DMatrixRMaj(e.We);
+        CommonOps_DDRM.multAddTransB(-1, WeBNinv, WeB, M);
+        DMatrixRMaj AQ = new DMatrixRMaj(e.A.getNumRows(), e.Q.getNumCols());
+        CommonOps_DDRM.mult(e.A, e.Q, AQ);
+        DMatrixRMaj MAQ = new DMatrixRMaj(M.getNumRows(), AQ.getNumCols());
+        CommonOps_DDRM.mult(M, AQ, MAQ);
+        DMatrixRMaj Qvv = new DMatrixRMaj(AQ.getNumCols(), AQ.getNumCols());
+        CommonOps_DDRM.multTransA(AQ, MAQ, Qvv);
+
+        double max = 0;
+        for (int i = 0; i < v.getNumRows(); ++i) {
+            v_out[i] = v.get(i, 0);
+            sd_out[i] = Math.sqrt(Qvv.get(i, i) * p.sigma2);
+            double r = Math.abs(v_out[i]) / sd_out[i];
+            if (max < r)
+                max = r;
+        }
+        return max;
+    }
+
+    /**
+     * @return number of condition equations added
+     */
+    private int addToNormalEquations(Transform.Observation obs, Parameters p, float weight) {
+        if (obs instanceof Transform.PositionObservation2D) {
+            Equations e = position((Transform.PositionObservation2D) obs, p, weight);
+            add(e);
+            return e.f.getNumRows();
+        }
+        if (obs instanceof Transform.OrientationObservation) {
+            add(orientation((Transform.OrientationObservation) obs, p, weight));
+            return 1;
+        }
+        Transform.PointCloudObservation cloud = (Transform.PointCloudObservation) obs;
+        Cloud c = clouds.get(cloud);
+        final float limit2 = Transform.planeCacheLimit2(cloud.grid);
+        int conditions = 0;
+        for (int i = 0; i < cloud.size; ++i) {
+            float x_w = (float) (cloud.x_t[i] * p.cos_az - cloud.y_t[i] * p.sin_az + p.x0);
+            float y_w = (float) (cloud.x_t[i] * p.sin_az + cloud.y_t[i] * p.cos_az + p.y0);
+            float z_w = (float) (cloud.z_t[i] + p.z0);
+            final int j = 3 * i;
+            if (!c.hasPlane[i] ||
+                    !Transform.isCached(x_w - c.plane_pos[j], y_w - c.plane_pos[j + 1], z_w - c.plane_pos[j + 2], limit2)) {
+                float[] pl = cloud.grid.getSurfacePlane(x_w, y_w, z_w);
+                c.hasPlane[i] = pl != null;
+                if (pl == null)
+                    continue;
+                System.arraycopy(pl, 0, c.plane, 4 * i, 4);
+                c.plane_pos[j] = x_w;
+                c.plane_pos[j + 1] = y_w;
+                c.plane_pos[j + 2] = z_w;
+            }
+            add(point(cloud, c, i, p, weight * c.weight[i] / (cloud.sd[i] * cloud.sd[i])));
+            ++conditions;
+        }
+        return conditions;
+    }
+
+    private double computeResiduals(Transform.Observation obs, Parameters p) {
+        Equations e;
+        if (obs instanceof Transform.PositionObservation2D) {
+            Transform.PositionObservation2D o = (Transform.PositionObservation2D) obs;
+            e = position(o, p, 1);
+            // A relates the residuals of the tango coordinates, rotated, and the world coordinates
+            e.A.set(0, 0, p.cos_az);
+            e.A.set(1, 1, p.cos_az);
+            e.A.set(1, 0, p.sin_az);
+            e.A.set(0, 1, -p.sin_az);
+        } else {
+            e = orientation((Transform.OrientationObservation) obs, p, 1);
+        }
+        double[] v = new double[e.Q.getNumRows()], sd = new double[v.length];
+        residuals.put(obs, v);
+        residualSds.put(obs, sd);
+        return residuals(e, p, v, sd);
+    }
+
+    private void computeWeights(Transform.PointCloudObservation cloud, Parameters p, double k, double a) {
+        Cloud c = clouds.get(cloud);
+        double[] v = new double[1], sd = new double[1];
+        for (int i = 0; i < cloud.size; ++i) {
+            float r = Float.MAX_VALUE;
+            if (c.hasPlane[i]) {
+                r = (float) residuals(point(cloud, c, i, p, 1 / (cloud.sd[i] * cloud.sd[i])), p, v, sd);
+                c.v[i] = v[0];
+                c.v_sd[i] = sd[0];
+            }
+            c.weight[i] = Transform.robustWeight(r, k, a);
+        }
+    }
+
+    /**
+     * Model equations of a 2D or 3D position, {@code A} set for the unrotated coordinates
+     */
+    private static Equations position(Transform.PositionObservation2D o, Parameters p, float weight) {
+        final boolean is3D = o instanceof Transform.PositionObservation3D;
+        final int n = is3D ? 3 : 2;
+        Equations e = new Equations(n, 2 * n);
+        for (int i = 0; i < n; ++i) {
+            e.A.set(i, i, 1);
+            e.A.set(i, n + i, -1);
+            e.B.set(i, i, 1);
+        }
+        e.B.set(0, 3, -o.x_t * p.sin_az - o.y_t * p.cos_az);
+        e.B.set(1, 3, o.x_t * p.cos_az - o.y_t * p.sin_az);
+        e.f.set(0, 0, o.x_w - p.cos_az * o.x_t + p.sin_az * o.y_t - p.x0);
+        e.f.set(1, 0, o.y_w - p.sin_az * o.x_t - p.cos_az * o.y_t - p.y0);
+        e.We.set(0, 0, weight / (o.x_w_sd * o.x_w_sd + o.x_t_sd * o.x_t_sd));
+        e.We.set(1, 1, weight / (o.y_w_sd * o.y_w_sd + o.y_t_sd * o.y_t_sd));
+        e.Q.set(0, 0, o.x_t_sd * o.x_t_sd);
+        e.Q.set(1, 1, o.y_t_sd * o.y_t_sd);
+        e.Q.set(n, n, o.x_w_sd * o.x_w_sd);
+        e.Q.set(n + 1, n + 1, o.y_w_sd * o.y_w_sd);
+        if (is3D) {
+            Transform.PositionObservation3D o3 = (Transform.PositionObservation3D) o;
+            e.f.set(2, 0, o3.z_w - o3.z_t - p.z0);
+            e.We.set(2, 2, weight / (o3.z_w_sd * o3.z_w_sd + o3.z_t_sd * o3.z_t_sd));
+            e.Q.set(2, 2, o3.z_t_sd * o3.z_t_sd);
+            e.Q.set(5, 5, o3.z_w_sd * o3.z_w_sd);
+        }
+        return e;
+    }
+
+    private static Equations orientation(Transform.OrientationObservation o, Parameters p, float weight) {
+        Equations e = new Equations(1, 1);
+        e.A.set(0, 0, -1);
+        e.B.set(0, 3, 1);
+        e.f.set(0, 0, Transform.normalizeAngle(o.orient - p.az));
+        e.We.set(0, 0, weight / (o.orient_sd * o.orient_sd + 0.1 * 0.1));
+        e.Q.set(0, 0, o.orient_sd * o.orient_sd + 0.1 * 0.1);
+        return e;
+    }
+
+    /**
+     * Model equations of a point of a point cloud in its terrain plane
+     *
+     * @param we weight
+     */
+    private static Equations point(Transform.PointCloudObservation cloud, Cloud c, int i, Parameters p, float we) {
+        final int k = 4 * i;
+        final float[] pl = c.plane;
+        final float x_t = cloud.x_t[i], y_t = cloud.y_t[i], z_t = cloud.z_t[i];
+        Equations e = new Equations(1, 1);
+        e.A.set(0, 0, -1);
+        e.B.set(0, 0, pl[k]);
+        e.B.set(0, 1, pl[k + 1]);
+        e.B.set(0, 2, pl[k + 2]);
+        e.B.set(0, 3, -pl[k] * (x_t * p.sin_az + y_t * p.cos_az) + pl[k + 1] * (x_t * p.cos_az - y_t * p.sin_az));
+        e.f.set(0, 0, pl[k + 3] - pl[k] * (p.cos_az * x_t - p.sin_az * y_t + p.x0) -
+                pl[k + 1] * (p.sin_az * x_t + p.cos_az * y_t + p.y0) - pl[k + 2] * (z_t + p.z0));
+        e.We.set(0, 0, we);
+        e.Q.set(0, 0, cloud.sd[i] * cloud.sd[i]);
+        return e;
+    }
+}
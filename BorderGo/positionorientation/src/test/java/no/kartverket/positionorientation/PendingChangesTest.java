@@ -0,0 +1,103 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The transform must end up with the observations of the observation list after the pending
+ * changes are given to it, whatever the order of the additions and removals of an observation.
+ */
+public class PendingChangesTest {
+
+    private static Transform.OrientationObservation orientation(Transform xform, float orient) {
+        Transform.OrientationObservation o = xform.new OrientationObservation();
+        o.orient = orient;
+        o.orient_sd = 0.1f;
+        return o;
+    }
+
+    @Test
+    public void applyTo_removedAndAddedBack() throws Exception {
+        Transform xform = new Transform();
+        Transform.Observation a = orientation(xform, 0.1f), b = orientation(xform, 0.2f);
+        xform.addObservation(a);
+
+        // Removed and added back before the worker runs, the observation stays in the transform
+        PendingChanges changes = new PendingChanges();
+        changes.remove(a);
+        changes.add(a);
+        assertTrue(changes.isEmpty());
+        changes.applyTo(xform);
+        assertEquals(1, xform.numObservations());
+
+        // Added and removed before the worker runs, the transform never gets the observation
+        changes = new PendingChanges();
+        changes.add(b);
+        changes.remove(b);
+        assertTrue(changes.isEmpty());
+        changes.applyTo(xform);
+        assertEquals(1, xform.numObservations());
+
+        // Removed, added back and removed again
+        changes = new PendingChanges();
+        changes.remove(a);
+        changes.add(a);
+        changes.remove(a);
+        assertFalse(changes.isEmpty());
+        changes.applyTo(xform);
+        assertEquals(0, xform.numObservations());
+    }
+
+    @Test
+    public void applyTo_afterClear() throws Exception {
+        Transform xform = new Transform();
+        Transform.Observation a = orientation(xform, 0.1f), b = orientation(xform, 0.2f);
+        xform.addObservation(a);
+
+        PendingChanges changes = new PendingChanges();
+        changes.add(b);
+        changes.clear();
+        assertFalse(changes.isEmpty());
+        changes.add(a);
+        changes.applyTo(xform);
+        assertEquals(1, xform.numObservations());
+        assertTrue(xform.removeObservation(a));
+    }
+
+    @Test
+    public void applyTo_sameAsList() throws Exception {
+        Transform xform = new Transform();
+        Random random = new Random(4);
+        List<Transform.Observation> all = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            all.add(orientation(xform, 0.01f * i));
+        Set<Transform.Observation> list =
+                Collections.newSetFromMap(new IdentityHashMap<Transform.Observation, Boolean>());
+
+        // Random additions and removals as the provider makes them, given to the transform now
+        // and then
+        for (int round = 0; round < 200; ++round) {
+            PendingChanges changes = new PendingChanges();
+            int n = random.nextInt(10);
+            for (int k = 0; k < n; ++k) {
+                Transform.Observation o = all.get(random.nextInt(all.size()));
+                if (list.add(o))
+                    changes.add(o);
+                else if (list.remove(o))
+                    changes.remove(o);
+            }
+            changes.applyTo(xform);
+            assertEquals(list.size(), xform.numObservations());
+        }
+        for (Transform.Observation o : all)
+            assertEquals(list.contains(o), xform.removeObservation(o));
+    }
+}
@@ -0,0 +1,137 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The patches of a point cloud snap must lie on the planes of the points, leave out the outliers,
+ * pass the points of cells that can not be fitted through as they are, and have the standard
+ * deviation {@code sqrt(scatter^2 / inliers + sd^2)}.
+ */
+public class PlanePatchesTest {
+    private static final float SIZE = PlanePatches.DEFAULT_PATCH_SIZE;
+    private static final float SD = 0.05f;
+
+    /**
+     * Plane of the terrain in tango coordinates
+     */
+    private static double plane(double x, double y) {
+        return -1.4 + 0.12 * x - 0.3 * y;
+    }
+
+    /**
+     * @return points with stride 4
+     */
+    private static FloatBuffer buffer(List<float[]> points) {
+        FloatBuffer buffer = FloatBuffer.allocate(points.size() * 4);
+        for (float[] p : points)
+            buffer.put(p[0]).put(p[1]).put(p[2]).put(1);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static float[] point(double x, double y, double dz) {
+        return new float[] {(float) x, (float) y, (float) (plane(x, y) + dz)};
+    }
+
+    @Test
+    public void patches_snapWithOutliers() throws Exception {
+        // 800 points over 3 x 3 cells, with 5 mm noise, and every 20th point far off the plane
+        Random random = new Random(8);
+        List<float[]> points = new ArrayList<>();
+        int[] outliers = new int[9], counts = new int[9];
+        for (int i = 0; i < 800; ++i) {
+            double x = random.nextDouble() * 3 * SIZE, y = random.nextDouble() * 3 * SIZE;
+            boolean outlier = i % 20 == 0;
+            double dz = outlier ? (i % 40 == 0 ? 1 : -1) * (0.2 + 0.3 * random.nextDouble()) : random.nextGaussian() * 0.005;
+            points.add(point(x, y, dz));
+            int cell = (int) (x / SIZE) * 3 + (int) (y / SIZE);
+            counts[cell]++;
+            if (outlier)
+                outliers[cell]++;
+        }
+
+        PlanePatches patches = new PlanePatches(points.size(), buffer(points), SD, SIZE);
+        assertEquals(9, patches.size);
+        int total = 0;
+        for (int k = 0; k < patches.size; ++k) {
+            // The representative is on the plane, within the cell of its points
+            assertEquals(plane(patches.x[k], patches.y[k]), patches.z[k], 0.002);
+            int cell = (int) (patches.x[k] / SIZE) * 3 + (int) (patches.y[k] / SIZE);
+            assertEquals(counts[cell] - outliers[cell], patches.inliers[k]);
+            assertEquals(0.005, patches.rms[k], 0.0015);
+            assertTrue(patches.sd[k] >= SD);
+            total += patches.inliers[k];
+        }
+        assertEquals(800 - 40, total);
+    }
+
+    @Test
+    public void patches_rejectOutliers() throws Exception {
+        // An exact plane of 20 points, and three points off it by more than three sd
+        Random random = new Random(9);
+        List<float[]> points = new ArrayList<>();
+        for (int i = 0; i < 20; ++i)
+            points.add(point(0.05 + 0.4 * random.nextDouble(), 0.05 + 0.4 * random.nextDouble(), 0));
+        points.add(point(0.25, 0.25, 3.5 * SD));
+        points.add(point(0.1, 0.4, -0.5));
+        points.add(point(0.4, 0.1, 2));
+
+        PlanePatches patches = new PlanePatches(points.size(), buffer(points), SD, SIZE);
+        assertEquals(1, patches.size);
+        assertEquals(20, patches.inliers[0]);
+        assertEquals(plane(patches.x[0], patches.y[0]), patches.z[0], 1e-5);
+        assertEquals(0, patches.rms[0], 1e-5);
+        assertEquals(SD, patches.sd[0], 1e-6);
+    }
+
+    @Test
+    public void patches_passThroughCellsNotFitted() throws Exception {
+        List<float[]> points = new ArrayList<>();
+        // Ten points on a line in one cell
+        for (int i = 0; i < 10; ++i)
+            points.add(point(0.05 + 0.04 * i, 0.2, 0));
+        // Fewer than the least number of points in another
+        for (int i = 0; i < PlanePatches.MIN_POINTS - 1; ++i)
+            points.add(point(1.1 + 0.03 * i, 0.1 + 0.05 * i, 0.01 * i));
+
+        PlanePatches patches = new PlanePatches(points.size(), buffer(points), SD, SIZE);
+        assertEquals(points.size(), patches.size);
+        for (int k = 0; k < patches.size; ++k) {
+            assertEquals(1, patches.inliers[k]);
+            assertEquals(0, patches.rms[k], 0);
+            assertEquals(SD, patches.sd[k], 0);
+            // The same point, in any order
+            boolean found = false;
+            for (float[] p : points)
+                found |= p[0] == patches.x[k] && p[1] == patches.y[k] && p[2] == patches.z[k];
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void patches_sdOfScatterAndAPriori() throws Exception {
+        // A 4 x 4 grid of points off the plane by +d and -d as a checkerboard, which is orthogonal
+        // to the plane, so the fitted plane is the plane and all residuals are d
+        final double d = 0.02;
+        List<float[]> points = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            for (int j = 0; j < 4; ++j)
+                points.add(point(0.05 + 0.1 * i, 0.05 + 0.1 * j, (i + j) % 2 == 0 ? d : -d));
+        }
+
+        PlanePatches patches = new PlanePatches(points.size(), buffer(points), SD, SIZE);
+        assertEquals(1, patches.size);
+        assertEquals(16, patches.inliers[0]);
+        assertEquals(plane(0.2, 0.2), patches.z[0], 1e-5);
+        double s = Math.sqrt(16 * d * d / (16 - 3));
+        assertEquals(s, patches.rms[0], 1e-5);
+        assertEquals(Math.sqrt(s * s / 16 + SD * SD), patches.sd[0], 1e-6);
+    }
+}
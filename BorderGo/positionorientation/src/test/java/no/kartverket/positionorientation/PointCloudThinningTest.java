@@ -0,0 +1,163 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The observations of the thinning must, after any sequence of added and removed snaps, hold the
+ * same representatives as thinning only the snaps left, and a snap must be removable by its handle
+ * with all its points.
+ */
+public class PointCloudThinningTest {
+    private static final float VOXEL_SIZE = 0.5f;
+
+    private final Random random = new Random(11);
+    private final Transform xform = new Transform();
+
+    /**
+     * Points of a snap, around a random spot of a small area so snaps share voxels
+     */
+    private static final class Snap {
+        final float[] x, y, z, sd;
+
+        Snap(Random random) {
+            final int n = 20 + random.nextInt(100);
+            x = new float[n];
+            y = new float[n];
+            z = new float[n];
+            sd = new float[n];
+            final float cx = random.nextFloat() * 4, cy = random.nextFloat() * 4;
+            for (int i = 0; i < n; ++i) {
+                x[i] = cx + random.nextFloat() * 2;
+                y[i] = cy + random.nextFloat() * 2;
+                z[i] = random.nextFloat() * 0.6f;
+                sd[i] = 0.05f + random.nextFloat() * 0.2f;
+            }
+        }
+    }
+
+    /**
+     * Observation list kept up to date with the changes from a thinning
+     */
+    private static final class Live {
+        final Set<Transform.Observation> observations =
+                Collections.newSetFromMap(new IdentityHashMap<Transform.Observation, Boolean>());
+
+        void apply(List<Transform.Observation> removed, List<Transform.Observation> added) {
+            for (Transform.Observation obs : removed)
+                assertTrue(observations.remove(obs));
+            for (Transform.Observation obs : added)
+                assertTrue(observations.add(obs));
+        }
+
+        /**
+         * @return the representatives by voxel, as x, y, z, sd
+         */
+        Map<Long, float[]> representatives() {
+            HashMap<Long, float[]> result = new HashMap<>();
+            for (Transform.Observation o : observations) {
+                Transform.PointCloudObservation obs = (Transform.PointCloudObservation) o;
+                assertTrue(obs.size > 0);
+                for (int i = 0; i < obs.size; ++i) {
+                    long key = ((long) Math.floor(obs.x_t[i] / VOXEL_SIZE) << 42) ^
+                            ((long) Math.floor(obs.y_t[i] / VOXEL_SIZE) << 21) ^ (long) Math.floor(obs.z_t[i] / VOXEL_SIZE);
+                    assertNull(result.put(key, new float[] {obs.x_t[i], obs.y_t[i], obs.z_t[i], obs.sd[i]}));
+                }
+            }
+            return result;
+        }
+    }
+
+    private Transform.Observation add(PointCloudThinning thinning, Live live, Snap snap) {
+        ArrayList<Transform.Observation> removed = new ArrayList<>(), added = new ArrayList<>();
+        Transform.Observation handle = thinning.add(xform, snap.x.length, snap.x, snap.y, snap.z, snap.sd, null, removed, added);
+        assertNotNull(handle);
+        live.apply(removed, added);
+        return handle;
+    }
+
+    private static void assertSameRepresentatives(Map<Long, float[]> expected, Map<Long, float[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Long, float[]> e : expected.entrySet()) {
+            float[] a = actual.get(e.getKey());
+            for (int k = 0; k < 4; ++k)
+                assertEquals(e.getValue()[k], a[k], 1e-5);
+        }
+    }
+
+    @Test
+    public void remove_matchesThinningOfSnapsLeft() throws Exception {
+        PointCloudThinning thinning = new PointCloudThinning(VOXEL_SIZE);
+        Live live = new Live();
+        List<Snap> snaps = new ArrayList<>();
+        List<Transform.Observation> handles = new ArrayList<>();
+
+        for (int round = 0; round < 200; ++round) {
+            if (snaps.isEmpty() || random.nextInt(3) != 0) {
+                Snap snap = new Snap(random);
+                snaps.add(snap);
+                handles.add(add(thinning, live, snap));
+            } else {
+                int i = random.nextInt(snaps.size());
+                ArrayList<Transform.Observation> removed = new ArrayList<>(), added = new ArrayList<>();
+                Transform.Observation handle = handles.remove(i);
+                snaps.remove(i);
+                assertTrue(thinning.remove(xform, handle, removed, added));
+                live.apply(removed, added);
+                assertFalse(thinning.remove(xform, handle, removed, added));
+            }
+
+            PointCloudThinning fresh = new PointCloudThinning(VOXEL_SIZE);
+            Live expected = new Live();
+            for (Snap snap : snaps)
+                add(fresh, expected, snap);
+            assertEquals(fresh.size(), thinning.size());
+            assertSameRepresentatives(expected.representatives(), live.representatives());
+        }
+
+        // Removing all snaps frees all voxels
+        for (Transform.Observation handle : handles)
+            assertTrue(thinning.remove(xform, handle, new ArrayList<Transform.Observation>(), new ArrayList<Transform.Observation>()));
+        assertEquals(0, thinning.size());
+    }
+
+    @Test
+    public void remove_byCurrentObservation() throws Exception {
+        PointCloudThinning thinning = new PointCloudThinning(VOXEL_SIZE);
+        Live live = new Live();
+        Snap first = new Snap(random);
+        Transform.Observation handle = add(thinning, live, first);
+        // Only hits the voxels of the first snap, and replaces its observation
+        Transform.Observation second = add(thinning, live, first);
+        assertEquals(1, live.observations.size());
+        assertFalse(live.observations.contains(handle));
+        assertFalse(live.observations.contains(second));
+
+        ArrayList<Transform.Observation> removed = new ArrayList<>(), added = new ArrayList<>();
+        Transform.Observation current = live.observations.iterator().next();
+        final int size = thinning.size();
+        assertTrue(thinning.remove(xform, current, removed, added));
+        live.apply(removed, added);
+        assertFalse(thinning.remove(xform, handle, removed, added));
+
+        // The voxels are handed over to the second snap
+        assertEquals(size, thinning.size());
+        assertEquals(1, live.observations.size());
+        removed.clear();
+        added.clear();
+        assertTrue(thinning.remove(xform, second, removed, added));
+        live.apply(removed, added);
+        assertTrue(live.observations.isEmpty());
+        assertEquals(0, thinning.size());
+    }
+}
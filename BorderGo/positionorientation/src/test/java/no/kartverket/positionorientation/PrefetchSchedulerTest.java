@@ -0,0 +1,94 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.kartverket.geodesy.Geodesy;
+
+import static org.junit.Assert.*;
+
+/**
+ * The scheduler must request areas ahead of the user along the direction of travel, at the look
+ * ahead distances and no farther than the max distance, and not request them again until the
+ * prediction has moved.
+ */
+public class PrefetchSchedulerTest {
+    private static final double LAT = 59.9, LON = 10.6;
+
+    /**
+     * Records the requested areas, as meters north and east of the start position
+     */
+    private static final class Recorder implements PrefetchListener {
+        final List<double[]> requests = new ArrayList<>();
+
+        @Override
+        public void prefetch(double lat, double lon, double radius) {
+            assertEquals(PrefetchScheduler.RADIUS, radius, 0);
+            double lat_scale = Math.PI / 180 * Geodesy.meridionalRadius(LAT);
+            double lon_scale = Math.PI / 180 * Geodesy.normalRadius(LAT) * Math.cos(Math.toRadians(LAT));
+            requests.add(new double[] {(lat - LAT) * lat_scale, (lon - LON) * lon_scale});
+        }
+    }
+
+    private static Recorder record(PrefetchScheduler scheduler) {
+        Recorder recorder = new Recorder();
+        scheduler.addPrefetchListener(recorder);
+        return recorder;
+    }
+
+    @Test
+    public void update_requestsAheadOfVelocity() throws Exception {
+        for (double bearing : new double[] {0, 45, 90, 200, 315}) {
+            PrefetchScheduler scheduler = new PrefetchScheduler(null);
+            Recorder recorder = record(scheduler);
+            final double speed = 1.4;
+            scheduler.update(LAT, LON, speed, bearing);
+
+            assertEquals(PrefetchScheduler.LOOK_AHEAD.length, recorder.requests.size());
+            for (int i = 0; i < PrefetchScheduler.LOOK_AHEAD.length; ++i) {
+                double[] ne = recorder.requests.get(i);
+                double dist = Math.min(speed * PrefetchScheduler.LOOK_AHEAD[i], PrefetchScheduler.MAX_DISTANCE);
+                assertEquals(dist * Math.cos(Math.toRadians(bearing)), ne[0], 0.01 * dist);
+                assertEquals(dist * Math.sin(Math.toRadians(bearing)), ne[1], 0.01 * dist);
+            }
+        }
+    }
+
+    @Test
+    public void update_capsDistance() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(null);
+        Recorder recorder = record(scheduler);
+        scheduler.update(LAT, LON, 10, 90);
+
+        // 100 m, then 150 m for both longer look ahead times, requested once
+        assertEquals(2, recorder.requests.size());
+        assertEquals(10 * PrefetchScheduler.LOOK_AHEAD[0], recorder.requests.get(0)[1], 1);
+        assertEquals(PrefetchScheduler.MAX_DISTANCE, recorder.requests.get(1)[1], 1);
+    }
+
+    @Test
+    public void update_waitsForMovement() throws Exception {
+        PrefetchScheduler scheduler = new PrefetchScheduler(null);
+        Recorder recorder = record(scheduler);
+
+        // Standing still
+        scheduler.update(LAT, LON, PrefetchScheduler.MIN_SPEED / 2, 0);
+        assertTrue(recorder.requests.isEmpty());
+
+        scheduler.update(LAT, LON, 1, 0);
+        assertEquals(PrefetchScheduler.LOOK_AHEAD.length, recorder.requests.size());
+
+        // A few meters further, the predictions are close to the requested ones
+        recorder.requests.clear();
+        scheduler.update(LAT + 5 / 111000.0, LON, 1, 0);
+        assertTrue(recorder.requests.isEmpty());
+
+        // Turning moves the farther predictions more
+        scheduler.update(LAT, LON, 1, 60);
+        assertEquals(2, recorder.requests.size());
+        assertEquals(PrefetchScheduler.LOOK_AHEAD[1] * Math.sin(Math.toRadians(60)), recorder.requests.get(0)[1], 0.5);
+        assertEquals(PrefetchScheduler.LOOK_AHEAD[2] * Math.sin(Math.toRadians(60)), recorder.requests.get(1)[1], 0.5);
+    }
+}
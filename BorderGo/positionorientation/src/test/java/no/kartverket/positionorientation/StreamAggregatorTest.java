@@ -0,0 +1,165 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * A transform from the aggregated streams of GPS positions and compass orientations must be as
+ * accurate as one from all the single observations, also when windows are merged to stay within
+ * the cap.
+ */
+public class StreamAggregatorTest {
+    private static final double X0 = 10, Y0 = -5, Z0 = 2, AZ = 0.3;
+    /** Time between GPS fixes, milliseconds */
+    private static final long FIX_MS = 500;
+    /** Compass readings per GPS fix */
+    private static final int FIXES_PER_ORIENTATION = 10;
+
+    /**
+     * Observations of a walk around a circle, with errors correlated in time as an AR(1) process
+     */
+    private static final class Walk {
+        final Random random;
+        double ex, ey, ez, eo;
+
+        Walk(long seed) {
+            random = new Random(seed);
+        }
+
+        private double next(double e, double sd, double tau, double dt) {
+            double r = Math.exp(-dt / tau);
+            return r * e + Math.sqrt(1 - r * r) * random.nextGaussian() * sd;
+        }
+
+        Transform.PositionObservation3D position(Transform xform, int k) {
+            double s = k * 0.6;
+            double x_t = 50 * Math.cos(s / 50), y_t = 50 * Math.sin(s / 50);
+            ex = next(ex, 3, 5, 0.5);
+            ey = next(ey, 3, 5, 0.5);
+            ez = next(ez, 6, 5, 0.5);
+
+            Transform.PositionObservation3D o = xform.new PositionObservation3D();
+            o.x_t = (float) x_t;
+            o.y_t = (float) y_t;
+            o.z_t = 0;
+            o.x_t_sd = o.y_t_sd = o.z_t_sd = 0.1f;
+            o.x_w = (float) (x_t * Math.cos(AZ) - y_t * Math.sin(AZ) + X0 + ex);
+            o.y_w = (float) (x_t * Math.sin(AZ) + y_t * Math.cos(AZ) + Y0 + ey);
+            o.z_w = (float) (Z0 + ez);
+            o.x_w_sd = o.y_w_sd = 3;
+            o.z_w_sd = 6;
+            return o;
+        }
+
+        Transform.OrientationObservation orientation(Transform xform) {
+            eo = next(eo, 0.1, 10, 5);
+            Transform.OrientationObservation o = xform.new OrientationObservation();
+            o.orient = (float) (AZ + eo);
+            o.orient_sd = 0.1f;
+            return o;
+        }
+    }
+
+    /**
+     * Observation list kept up to date with the changes from an aggregator
+     */
+    private static final class Live {
+        final Set<Transform.Observation> observations =
+                Collections.newSetFromMap(new IdentityHashMap<Transform.Observation, Boolean>());
+
+        void apply(List<Transform.Observation> removed, List<Transform.Observation> added) {
+            for (Transform.Observation obs : removed)
+                assertTrue(observations.remove(obs));
+            for (Transform.Observation obs : added)
+                assertTrue(observations.add(obs));
+            removed.clear();
+            added.clear();
+        }
+    }
+
+    /**
+     * @return squared errors of x0, y0, z0 and az of the transform from a walk
+     */
+    private static double[] walk(long seed, int fixes, StreamAggregator aggregator) {
+        Transform xform = new Transform();
+        Walk walk = new Walk(seed);
+        Live live = new Live();
+        List<Transform.Observation> removed = new ArrayList<>(), added = new ArrayList<>();
+
+        for (int k = 0; k < fixes; ++k) {
+            long time = k * FIX_MS;
+            Transform.PositionObservation3D position = walk.position(xform, k);
+            if (aggregator != null) {
+                aggregator.addPosition(xform, time, position, removed, added);
+                live.apply(removed, added);
+            } else {
+                live.observations.add(position);
+            }
+
+            if (k % FIXES_PER_ORIENTATION == 0) {
+                Transform.OrientationObservation orientation = walk.orientation(xform);
+                if (aggregator != null) {
+                    aggregator.addOrientation(xform, time, orientation, removed, added);
+                    live.apply(removed, added);
+                } else {
+                    live.observations.add(orientation);
+                }
+            }
+        }
+        if (aggregator != null)
+            assertEquals(aggregator.size(), live.observations.size());
+
+        assertTrue(xform.adjust(new ArrayList<>(live.observations)));
+        double dx = xform.x0() - X0, dy = xform.y0() - Y0, dz = xform.z0() - Z0, daz = xform.az() - AZ;
+        return new double[] {dx * dx, dy * dy, dz * dz, daz * daz};
+    }
+
+    @Test
+    public void aggregate_asAccurateAsSingleObservations() throws Exception {
+        // An hour of walking, with more windows than the cap so windows are merged
+        final int seeds = 20, fixes = 7200;
+        double[] single = new double[4], aggregated = new double[4];
+        for (int seed = 0; seed < seeds; ++seed) {
+            double[] s = walk(seed, fixes, null);
+            StreamAggregator aggregator = new StreamAggregator();
+            aggregator.setMaxWindows(500);
+            double[] a = walk(seed, fixes, aggregator);
+            for (int i = 0; i < 4; ++i) {
+                single[i] += s[i];
+                aggregated[i] += a[i];
+            }
+        }
+
+        // Root mean square errors within 15 %
+        String[] names = {"x0", "y0", "z0", "az"};
+        for (int i = 0; i < 4; ++i)
+            assertTrue(names[i] + " " + Math.sqrt(aggregated[i] / seeds) + " " + Math.sqrt(single[i] / seeds),
+                    aggregated[i] < 1.15 * 1.15 * single[i]);
+    }
+
+    @Test
+    public void compact_staysWithinCap() throws Exception {
+        Transform xform = new Transform();
+        Walk walk = new Walk(1);
+        Live live = new Live();
+        List<Transform.Observation> removed = new ArrayList<>(), added = new ArrayList<>();
+        StreamAggregator aggregator = new StreamAggregator();
+        aggregator.setMaxWindows(20);
+
+        final int fixes = 2000;
+        for (int k = 0; k < fixes; ++k) {
+            aggregator.addPosition(xform, k * FIX_MS, walk.position(xform, k), removed, added);
+            live.apply(removed, added);
+            assertTrue(aggregator.size() <= 20);
+            assertEquals(aggregator.size(), live.observations.size());
+        }
+    }
+}
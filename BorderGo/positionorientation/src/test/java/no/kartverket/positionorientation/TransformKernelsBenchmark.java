@@ -0,0 +1,48 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time of a full {@link Transform#adjust(List)} with the closed form kernels against the same
+ * adjustment with the EJML matrix products of {@link EjmlAdjustment}, for mixed positions,
+ * orientations and point clouds. The sizes are below {@link Transform#PARALLEL_THRESHOLD}, so
+ * both run on one thread. Run with
+ * {@code ./gradlew :positionorientation:test -Pbenchmark --tests '*TransformKernelsBenchmark'}.
+ */
+public class TransformKernelsBenchmark {
+    private static final int[] SIZES = {500, 2000};
+
+    @Test
+    public void adjust() throws Exception {
+        Benchmark.assumeEnabled();
+
+        for (int n : SIZES) {
+            final List<Transform.Observation> observations = new TransformKernelsTest().observations(new Transform(), n);
+            assertTrue(new Transform().adjust(observations));
+            assertTrue(new EjmlAdjustment().adjust(observations));
+            final String name = n + " observations";
+
+            // A new transform each run, so every run starts from zero parameters
+            Benchmark.report(name, "EJML products", Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    EjmlAdjustment reference = new EjmlAdjustment();
+                    reference.adjust(observations);
+                    return reference.result().x0;
+                }
+            }) / 1e6, "ms");
+            Benchmark.report(name, "kernels", Benchmark.nanosPerRun(new Benchmark.Task() {
+                @Override
+                public double run() {
+                    Transform xform = new Transform();
+                    xform.adjust(observations);
+                    return xform.x0();
+                }
+            }) / 1e6, "ms");
+        }
+    }
+}
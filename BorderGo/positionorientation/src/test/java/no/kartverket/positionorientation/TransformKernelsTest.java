@@ -0,0 +1,244 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import no.kartverket.data.dtm.DTMSurface;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * The adjustment with the closed form kernels must give the same parameters, variances, residuals
+ * and robust weights as the matrix products of the model equations in {@link EjmlAdjustment}, for
+ * positions, orientations and point clouds with gross errors, through {@link Transform#adjust(List)}
+ * and {@link Transform#update()}, and in the parallel path.
+ */
+public class TransformKernelsTest {
+    private static final double TOLERANCE = 1e-6;
+    private static final double X0 = 23.4, Y0 = -12.1, Z0 = 1.7, AZ = 0.8;
+
+    private final Random random = new Random(5);
+
+    /**
+     * Terrain with a different tilted plane for each 10 m cell, not covered for negative x
+     */
+    private static final class Facets implements DTMSurface {
+        @Override
+        public void setOrigin(OriginData origin) {
+        }
+
+        @Override
+        public double getInterpolatedAltitude(double lat, double lng) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public void getInterpolatedAltitudes(double[] lat, double[] lng, double[] heights, int offset, int count) {
+            for (int i = offset; i < offset + count; ++i)
+                heights[i] = Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public float[] getSurfacePlane(float x, float y, float z) {
+            if (x < 0)
+                return null;
+            int cx = (int) Math.floor(x / 10), cy = (int) Math.floor(y / 10);
+            double gx = 0.05 * ((cx * 7 + cy * 3) % 5 - 2), gy = 0.04 * ((cx * 2 + cy * 5) % 7 - 3);
+            double h = 100 + cx - cy;
+            double n = Math.sqrt(gx * gx + gy * gy + 1);
+            return new float[] {(float) (-gx / n), (float) (-gy / n), (float) (1 / n), (float) (h / n)};
+        }
+
+        @Override
+        public float getSpacing() {
+            return 10;
+        }
+
+        @Override
+        public float rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+            return Float.POSITIVE_INFINITY;
+        }
+    }
+
+    private float uniform(double min, double max) {
+        return (float) (min + random.nextDouble() * (max - min));
+    }
+
+    private Transform.PositionObservation2D position(Transform xform, boolean is3D, double error) {
+        final double sin = Math.sin(AZ), cos = Math.cos(AZ);
+        Transform.PositionObservation2D o;
+        if (is3D) {
+            Transform.PositionObservation3D o3 = xform.new PositionObservation3D();
+            o3.z_t = uniform(-5, 5);
+            o3.z_w_sd = uniform(1, 10);
+            o3.z_t_sd = uniform(0.01, 0.5);
+            o3.z_w = (float) (o3.z_t + Z0 + random.nextGaussian() * o3.z_w_sd);
+            o = o3;
+        } else {
+            o = xform.new PositionObservation2D();
+        }
+        o.x_t = uniform(-100, 100);
+        o.y_t = uniform(-100, 100);
+        o.x_w_sd = uniform(1, 10);
+        o.y_w_sd = uniform(1, 10);
+        o.x_t_sd = uniform(0.01, 0.5);
+        o.y_t_sd = uniform(0.01, 0.5);
+        o.x_w = (float) (cos * o.x_t - sin * o.y_t + X0 + random.nextGaussian() * o.x_w_sd + error);
+        o.y_w = (float) (sin * o.x_t + cos * o.y_t + Y0 + random.nextGaussian() * o.y_w_sd);
+        return o;
+    }
+
+    private Transform.OrientationObservation orientation(Transform xform) {
+        Transform.OrientationObservation o = xform.new OrientationObservation();
+        o.orient_sd = uniform(0.01, 0.5);
+        o.orient = (float) (AZ + random.nextGaussian() * o.orient_sd);
+        return o;
+    }
+
+    /**
+     * Points on the terrain, some of them outside it and some far off
+     */
+    private Transform.PointCloudObservation pointCloud(Transform xform, DTMSurface grid) {
+        final int n = 50;
+        final double sin = Math.sin(AZ), cos = Math.cos(AZ);
+        float[] x_t = new float[n], y_t = new float[n], z_t = new float[n], sd = new float[n];
+        for (int i = 0; i < n; ++i) {
+            x_t[i] = uniform(-20, 80);
+            y_t[i] = uniform(-50, 50);
+            sd[i] = uniform(2, 5);
+            float x_w = (float) (cos * x_t[i] - sin * y_t[i] + X0), y_w = (float) (sin * x_t[i] + cos * y_t[i] + Y0);
+            float[] pl = grid.getSurfacePlane(x_w, y_w, 0);
+            double h = pl == null ? 100 : (pl[3] - pl[0] * x_w - pl[1] * y_w) / pl[2];
+            z_t[i] = (float) (h - Z0 + random.nextGaussian() * sd[i] + (i % 17 == 0 ? 20 : 0));
+        }
+        return xform.new PointCloudObservation(x_t, y_t, z_t, sd, grid);
+    }
+
+    /**
+     * @return mixed observations of the transform, with gross errors, also used by {@link TransformKernelsBenchmark}
+     */
+    List<Transform.Observation> observations(Transform xform, int n) {
+        DTMSurface grid = new Facets();
+        List<Transform.Observation> observations = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            switch (i % 5) {
+                case 0:
+                    // Every 20th a gross error
+                    observations.add(position(xform, false, i % 20 == 0 ? 60 : 0));
+                    break;
+                case 1:
+                case 2:
+                    observations.add(position(xform, true, 0));
+                    break;
+                case 3:
+                    observations.add(orientation(xform));
+                    break;
+                default:
+                    observations.add(i % 10 == 4 ? pointCloud(xform, grid) : orientation(xform));
+                    break;
+            }
+        }
+        return observations;
+    }
+
+    private static void assertClose(String what, double expected, double actual) {
+        assertEquals(what, expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+    }
+
+    /**
+     * Compare a residual kept in float by the transform
+     */
+    private static void assertResidual(String what, double expected, double expectedSd, float actual) {
+        assertEquals(what, expected, actual, 1e-4 * Math.max(Math.abs(expected), expectedSd) + 1e-6);
+    }
+
+    private static void assertSame(EjmlAdjustment reference, Transform xform, List<Transform.Observation> observations) {
+        EjmlAdjustment.Parameters p = reference.result();
+        assertClose("x0", p.x0, xform.x0());
+        assertClose("y0", p.y0, xform.y0());
+        assertClose("z0", p.z0, xform.z0());
+        assertClose("az", p.az, xform.az());
+        assertClose("sigma2", p.sigma2, xform.sigma2());
+        assertClose("xySigma2", p.xy_sigma2, xform.xySigma2());
+        assertClose("zSigma2", p.z_sigma2, xform.zSigma2());
+        assertClose("azSigma2", p.az_sigma2, xform.azSigma2());
+
+        int weighted = 0;
+        for (int i = 0; i < observations.size(); ++i) {
+            Transform.Observation obs = observations.get(i);
+            double[] v = reference.residuals(obs), sd = reference.residualSds(obs);
+            float[] actual, actualSd;
+            if (obs instanceof Transform.PointCloudObservation) {
+                Transform.PointCloudObservation cloud = (Transform.PointCloudObservation) obs;
+                float[] weight = reference.pointWeights(cloud);
+                for (int k = 0; k < cloud.size; ++k) {
+                    assertEquals(i + " weight " + k, weight[k], cloud.weight[k], 1e-4 * weight[k]);
+                    if (weight[k] < 1)
+                        ++weighted;
+                }
+                actual = cloud.v;
+                actualSd = cloud.v_sd;
+            } else if (obs instanceof Transform.PositionObservation3D) {
+                Transform.PositionObservation3D o = (Transform.PositionObservation3D) obs;
+                actual = new float[] {o.x_t_v, o.y_t_v, o.z_t_v, o.x_w_v, o.y_w_v, o.z_w_v};
+                actualSd = new float[] {o.x_t_v_sd, o.y_t_v_sd, o.z_t_v_sd, o.x_w_v_sd, o.y_w_v_sd, o.z_w_v_sd};
+            } else if (obs instanceof Transform.PositionObservation2D) {
+                Transform.PositionObservation2D o = (Transform.PositionObservation2D) obs;
+                actual = new float[] {o.x_t_v, o.y_t_v, o.x_w_v, o.y_w_v};
+                actualSd = new float[] {o.x_t_v_sd, o.y_t_v_sd, o.x_w_v_sd, o.y_w_v_sd};
+            } else {
+                Transform.OrientationObservation o = (Transform.OrientationObservation) obs;
+                actual = new float[] {o.orient_v};
+                actualSd = new float[] {o.orient_v_sd};
+            }
+            assertEquals(v.length, actual.length);
+            for (int k = 0; k < v.length; ++k) {
+                assertResidual(i + " v " + k, v[k], sd[k], actual[k]);
+                assertResidual(i + " v_sd " + k, sd[k], sd[k], actualSd[k]);
+            }
+        }
+        // The gross errors are weighted down
+        assertTrue(weighted > 0);
+    }
+
+    private void checkAdjust(int n) {
+        Transform xform = new Transform();
+        List<Transform.Observation> observations = observations(xform, n);
+        EjmlAdjustment reference = new EjmlAdjustment();
+        assertTrue(reference.adjust(observations));
+        assertTrue(xform.adjust(observations));
+        assertSame(reference, xform, observations);
+        assertEquals(X0, xform.x0(), 1);
+        assertEquals(AZ, xform.az(), 0.01);
+    }
+
+    @Test
+    public void adjust_sameAsMatrixProducts() throws Exception {
+        for (int round = 0; round < 5; ++round)
+            checkAdjust(200);
+    }
+
+    @Test
+    public void adjust_parallelSameAsMatrixProducts() throws Exception {
+        assertTrue(3000 > Transform.PARALLEL_THRESHOLD);
+        checkAdjust(3000);
+    }
+
+    @Test
+    public void update_sameAsMatrixProducts() throws Exception {
+        // The first update is a full adjustment of the added observations, the next ones solve
+        // the sums of their contributions
+        Transform xform = new Transform();
+        List<Transform.Observation> observations = observations(xform, 300);
+        for (Transform.Observation obs : observations)
+            xform.addObservation(obs);
+        EjmlAdjustment reference = new EjmlAdjustment();
+        assertTrue(reference.adjust(observations));
+        assertTrue(xform.update());
+        assertSame(reference, xform, observations);
+    }
+}
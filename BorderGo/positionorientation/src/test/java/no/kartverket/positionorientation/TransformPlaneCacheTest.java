@@ -0,0 +1,176 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import no.kartverket.data.dtm.DTMSurface;
+import no.kartverket.geodesy.OriginData;
+
+import static org.junit.Assert.*;
+
+/**
+ * Terrain observations must reuse the planes found in earlier iterations of an adjustment while
+ * the points move less than {@link Transform#PLANE_CACHE_FRACTION} of the grid spacing, and give
+ * the same transform, within a fraction of its standard deviations, as searching the terrain at
+ * every iteration, which is what a surface with spacing 0 gets.
+ */
+public class TransformPlaneCacheTest {
+    private static final double X0 = 2.5, Y0 = -3.1, Z0 = 1.2, AZ = 0.1;
+
+    /**
+     * Hills triangulated at 1 m, with the plane of the facet below a point as the closest one,
+     * counting the plane searches, and with the spacing of the triangulation or another one
+     */
+    private static final class Terrain implements DTMSurface {
+        final float spacing;
+        int searches;
+
+        Terrain(float spacing) {
+            this.spacing = spacing;
+        }
+
+        static double height(int c, int r) {
+            return 3 * Math.sin(c / 7.0) * Math.cos(r / 9.0) + 0.02 * c;
+        }
+
+        @Override
+        public void setOrigin(OriginData origin) {
+        }
+
+        @Override
+        public double getInterpolatedAltitude(double lat, double lng) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public void getInterpolatedAltitudes(double[] lat, double[] lng, double[] heights, int offset, int count) {
+            for (int i = offset; i < offset + count; ++i)
+                heights[i] = Double.NEGATIVE_INFINITY;
+        }
+
+        @Override
+        public float[] getSurfacePlane(float x, float y, float z) {
+            ++searches;
+            int c = (int) Math.floor(x), r = (int) Math.floor(y);
+            double u = x - c, v = y - r;
+            double h00 = height(c, r), h10 = height(c + 1, r), h01 = height(c, r + 1), h11 = height(c + 1, r + 1);
+            // Cells split from (c + 1, r) to (c, r + 1)
+            double gx, gy, h;
+            if (u + v <= 1) {
+                gx = h10 - h00;
+                gy = h01 - h00;
+                h = h00 - gx * c - gy * r;
+            } else {
+                gx = h11 - h01;
+                gy = h11 - h10;
+                h = h11 - gx * (c + 1) - gy * (r + 1);
+            }
+            double n = Math.sqrt(gx * gx + gy * gy + 1);
+            return new float[] {(float) (-gx / n), (float) (-gy / n), (float) (1 / n), (float) (h / n)};
+        }
+
+        @Override
+        public float getSpacing() {
+            return spacing;
+        }
+
+        @Override
+        public float rayCast(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+            return Float.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return GPS positions, compass orientations and point cloud snaps of the terrain, the same
+     *         for the same seed
+     */
+    private static List<Transform.Observation> observations(Transform xform, Terrain terrain, long seed) {
+        Random random = new Random(seed);
+        final double sin = Math.sin(AZ), cos = Math.cos(AZ);
+        List<Transform.Observation> observations = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            Transform.PositionObservation3D o = xform.new PositionObservation3D();
+            o.x_t = (float) (random.nextDouble() * 60 - 30);
+            o.y_t = (float) (random.nextDouble() * 60 - 30);
+            o.z_t = (float) random.nextDouble();
+            o.x_w = (float) (cos * o.x_t - sin * o.y_t + X0 + random.nextGaussian() * 3);
+            o.y_w = (float) (sin * o.x_t + cos * o.y_t + Y0 + random.nextGaussian() * 3);
+            o.z_w = (float) (o.z_t + Z0 + random.nextGaussian() * 5);
+            o.x_w_sd = o.y_w_sd = 3;
+            o.z_w_sd = 5;
+            o.x_t_sd = o.y_t_sd = o.z_t_sd = 0.1f;
+            observations.add(o);
+
+            Transform.OrientationObservation a = xform.new OrientationObservation();
+            a.orient = (float) (AZ + random.nextGaussian() * 0.1);
+            a.orient_sd = 0.1f;
+            observations.add(a);
+        }
+
+        for (int s = 0; s < 30; ++s) {
+            final int n = 100;
+            double cx = random.nextDouble() * 60 - 30, cy = random.nextDouble() * 60 - 30;
+            float[] x_t = new float[n], y_t = new float[n], z_t = new float[n], sd = new float[n];
+            for (int i = 0; i < n; ++i) {
+                x_t[i] = (float) (cx + random.nextDouble() * 6 - 3);
+                y_t[i] = (float) (cy + random.nextDouble() * 6 - 3);
+                float x_w = (float) (cos * x_t[i] - sin * y_t[i] + X0), y_w = (float) (sin * x_t[i] + cos * y_t[i] + Y0);
+                float[] pl = terrain.getSurfacePlane(x_w, y_w, 0);
+                z_t[i] = (float) ((pl[3] - pl[0] * x_w - pl[1] * y_w) / pl[2] - Z0 + random.nextGaussian() * 0.05);
+                sd[i] = 0.1f;
+            }
+            observations.add(xform.new PointCloudObservation(x_t, y_t, z_t, sd, terrain));
+        }
+        return observations;
+    }
+
+    @Test
+    public void adjust_hitsInLaterIterations() throws Exception {
+        Terrain terrain = new Terrain(1);
+        Transform xform = new Transform();
+        List<Transform.Observation> observations = observations(xform, terrain, 1);
+        terrain.searches = 0;
+        final int points = 30 * 100;
+
+        assertTrue(xform.adjust(observations));
+        long lookups = xform.planeLookups(), hits = xform.planeHits();
+        // The first iteration searches for every point, the later ones reuse some of the planes
+        assertTrue(lookups > points);
+        assertTrue(hits > 0);
+        assertTrue(terrain.searches >= points);
+        assertEquals(lookups - hits, terrain.searches);
+
+        // From converged parameters most points stay on the same facet
+        assertTrue(xform.adjust(observations));
+        long lookups2 = xform.planeLookups() - lookups, hits2 = xform.planeHits() - hits;
+        assertTrue(hits2 > 0.5 * lookups2);
+    }
+
+    @Test
+    public void adjust_sameAsUncached() throws Exception {
+        Terrain cachedTerrain = new Terrain(1), uncachedTerrain = new Terrain(0);
+        Transform cached = new Transform(), uncached = new Transform();
+        List<Transform.Observation> cachedObservations = observations(cached, cachedTerrain, 2);
+        List<Transform.Observation> uncachedObservations = observations(uncached, uncachedTerrain, 2);
+        cachedTerrain.searches = uncachedTerrain.searches = 0;
+
+        for (int round = 0; round < 2; ++round) {
+            assertTrue(cached.adjust(cachedObservations));
+            assertTrue(uncached.adjust(uncachedObservations));
+
+            assertEquals(uncached.x0(), cached.x0(), 0.1 * Math.sqrt(uncached.xySigma2()));
+            assertEquals(uncached.y0(), cached.y0(), 0.1 * Math.sqrt(uncached.xySigma2()));
+            assertEquals(uncached.z0(), cached.z0(), 0.1 * Math.sqrt(uncached.zSigma2()));
+            assertEquals(uncached.az(), cached.az(), 0.1 * Math.sqrt(uncached.azSigma2()));
+            assertEquals(uncached.sigma2(), cached.sigma2(), 0.05 * uncached.sigma2());
+        }
+        // Without a spacing only unchanged positions hit the cache
+        assertTrue(cachedTerrain.searches < 0.7 * uncachedTerrain.searches);
+        assertEquals(uncached.planeLookups() - uncached.planeHits(), uncachedTerrain.searches);
+        assertEquals(X0, cached.x0(), 1);
+        assertEquals(AZ, cached.az(), 0.01);
+    }
+}
@@ -0,0 +1,170 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The scheduler must start a run when the changes have been quiet for the debounce time, but no
+ * later than the deadline after the first change not handled, and no sooner than the minimum
+ * interval after the previous run. Every change must cause a run, also changes that leave the
+ * number of observations as it was.
+ */
+public class TransformSchedulerTest {
+    private static final long DEBOUNCE = TransformScheduler.DEBOUNCE_MS;
+    private static final long INTERVAL = TransformScheduler.MIN_INTERVAL_MS;
+    private static final long DEADLINE = TransformScheduler.DEADLINE_MS;
+
+    /**
+     * Clock moved by the test, where waiting for a time moves it to the end of the wait
+     */
+    private static final class TestClock implements TransformScheduler.Clock {
+        long time = 10000;
+
+        @Override
+        public long now() {
+            return time;
+        }
+
+        @Override
+        public void await(Object monitor, long ms) {
+            assertTrue("waits for a change that never comes", ms > 0);
+            time += ms;
+        }
+    }
+
+    @Test
+    public void awaitWork_debounce() throws Exception {
+        TestClock clock = new TestClock();
+        TransformScheduler scheduler = new TransformScheduler(clock);
+        final long start = clock.time;
+
+        // A burst of changes, run once when it has been quiet for the debounce time
+        for (int i = 0; i < 5; ++i) {
+            clock.time = start + 30 * i;
+            scheduler.markDirty();
+        }
+        assertEquals(5, scheduler.awaitWork());
+        assertEquals(start + 4 * 30 + DEBOUNCE, clock.time);
+    }
+
+    @Test
+    public void awaitWork_minimumInterval() throws Exception {
+        TestClock clock = new TestClock();
+        TransformScheduler scheduler = new TransformScheduler(clock);
+        scheduler.markDirty();
+        assertEquals(1, scheduler.awaitWork());
+        final long run = clock.time;
+
+        // A change just after a run waits for the minimum interval, not just the debounce time
+        clock.time += 10;
+        scheduler.markDirty();
+        assertEquals(2, scheduler.awaitWork());
+        assertEquals(run + INTERVAL, clock.time);
+
+        // A change long after the run waits for the debounce time only
+        clock.time += 2 * INTERVAL;
+        final long change = clock.time;
+        scheduler.markDirty();
+        assertEquals(3, scheduler.awaitWork());
+        assertEquals(change + DEBOUNCE, clock.time);
+    }
+
+    @Test
+    public void awaitWork_deadline() throws Exception {
+        TestClock clock = new TestClock();
+        TransformScheduler scheduler = new TransformScheduler(clock);
+        final long start = clock.time;
+
+        // Changes more often than the debounce time, for longer than the deadline
+        long generation = 0;
+        for (long t = 0; t < DEADLINE; t += DEBOUNCE / 2) {
+            clock.time = start + t;
+            scheduler.markDirty();
+            ++generation;
+        }
+        assertEquals(generation, scheduler.awaitWork());
+        assertEquals(start + DEADLINE, clock.time);
+
+        // The deadline of the next burst counts from its first change, so a burst longer than the
+        // deadline is run at once
+        clock.time += 400;
+        for (int i = 0; i < 30; ++i) {
+            scheduler.markDirty();
+            ++generation;
+            clock.time += DEBOUNCE / 2;
+        }
+        final long end = clock.time;
+        assertEquals(generation, scheduler.awaitWork());
+        assertEquals(end, clock.time);
+    }
+
+    @Test
+    public void awaitWork_generations() throws Exception {
+        TestClock clock = new TestClock();
+        TransformScheduler scheduler = new TransformScheduler(clock);
+        assertEquals(0, scheduler.getGeneration());
+
+        scheduler.markDirty();
+        scheduler.markDirty();
+        assertEquals(2, scheduler.getGeneration());
+        assertEquals(2, scheduler.awaitWork());
+
+        // Changes after a run are handled by the next one
+        scheduler.markDirty();
+        assertEquals(3, scheduler.getGeneration());
+        assertEquals(3, scheduler.awaitWork());
+
+        // Stopped, no more runs
+        scheduler.markDirty();
+        scheduler.stop();
+        assertEquals(-1, scheduler.awaitWork());
+    }
+
+    @Test
+    public void awaitWork_churnOfEqualSize() throws Exception {
+        TestClock clock = new TestClock();
+        TransformScheduler scheduler = new TransformScheduler(clock);
+        Transform xform = new Transform();
+        Transform.OrientationObservation a = xform.new OrientationObservation(), b = xform.new OrientationObservation();
+        a.orient_sd = b.orient_sd = 0.1f;
+        xform.addObservation(a);
+        scheduler.markDirty();
+        assertEquals(1, scheduler.awaitWork());
+
+        // One observation replaced by another, as the aggregation and thinning do, leaves the
+        // number of observations unchanged but is still a change to run for
+        clock.time += INTERVAL;
+        PendingChanges changes = new PendingChanges();
+        changes.remove(a);
+        scheduler.markDirty();
+        changes.add(b);
+        scheduler.markDirty();
+        assertEquals(3, scheduler.awaitWork());
+        assertFalse(changes.isEmpty());
+        changes.applyTo(xform);
+        assertEquals(1, xform.numObservations());
+        assertTrue(xform.removeObservation(b));
+    }
+
+    @Test
+    public void awaitWork_systemClock() throws Exception {
+        // The system clock waits on the monitor, and a change wakes the waiting worker
+        final TransformScheduler scheduler = new TransformScheduler();
+        final long[] result = new long[1];
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = scheduler.awaitWork();
+            }
+        });
+        worker.start();
+        long start = System.nanoTime();
+        scheduler.markDirty();
+        worker.join(10000);
+        assertFalse(worker.isAlive());
+        assertEquals(1, result[0]);
+        assertTrue((System.nanoTime() - start) / 1000000 >= DEBOUNCE - 1);
+        scheduler.stop();
+    }
+}
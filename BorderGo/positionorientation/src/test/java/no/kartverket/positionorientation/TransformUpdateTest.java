@@ -0,0 +1,103 @@
+package no.kartverket.positionorientation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The incremental {@link Transform#update()} must follow the full {@link Transform#adjust(List)},
+ * also when observations with gross errors are added between full adjustments.
+ */
+public class TransformUpdateTest {
+    private static final double X0 = 12.3, Y0 = -4.5, Z0 = 2.2, AZ = 0.3;
+
+    private final Random random = new Random(3);
+
+    private Transform.PositionObservation3D position(Transform xform, double error) {
+        Transform.PositionObservation3D o = xform.new PositionObservation3D();
+        double x_t = random.nextDouble() * 100 - 50, y_t = random.nextDouble() * 100 - 50, z_t = random.nextDouble() * 5;
+        o.x_t = (float) x_t;
+        o.y_t = (float) y_t;
+        o.z_t = (float) z_t;
+        o.x_w = (float) (x_t * Math.cos(AZ) - y_t * Math.sin(AZ) + X0 + random.nextGaussian() * 3 + error);
+        o.y_w = (float) (x_t * Math.sin(AZ) + y_t * Math.cos(AZ) + Y0 + random.nextGaussian() * 3);
+        o.z_w = (float) (z_t + Z0 + random.nextGaussian() * 6);
+        o.x_w_sd = o.y_w_sd = 3;
+        o.z_w_sd = 6;
+        o.x_t_sd = o.y_t_sd = o.z_t_sd = 0.1f;
+        return o;
+    }
+
+    private Transform.OrientationObservation orientation(Transform xform) {
+        Transform.OrientationObservation o = xform.new OrientationObservation();
+        o.orient = (float) (AZ + random.nextGaussian() * 0.1);
+        o.orient_sd = 0.1f;
+        return o;
+    }
+
+    private List<Transform.Observation> start(Transform xform) {
+        List<Transform.Observation> observations = new ArrayList<>();
+        for (int i = 0; i < 200; ++i) {
+            Transform.Observation o = i % 4 == 0 ? orientation(xform) : position(xform, 0);
+            observations.add(o);
+            xform.addObservation(o);
+        }
+        assertTrue(xform.update());
+        return observations;
+    }
+
+    @Test
+    public void update_followsAdjust() throws Exception {
+        Transform xform = new Transform(), full = new Transform();
+        List<Transform.Observation> observations = start(xform);
+
+        for (int round = 0; round < 20; ++round) {
+            for (int k = 0; k < 5; ++k) {
+                Transform.Observation o = position(xform, 0);
+                observations.add(o);
+                xform.addObservation(o);
+            }
+            xform.removeObservation(observations.remove(random.nextInt(observations.size())));
+            assertTrue(xform.update());
+
+            // The weights of the other observations are kept until the next full adjustment
+            assertTrue(full.adjust(new ArrayList<>(observations)));
+            assertAgree(full, xform);
+        }
+    }
+
+    @Test
+    public void update_weightsDownGrossErrors() throws Exception {
+        Transform xform = new Transform(), full = new Transform();
+        List<Transform.Observation> observations = start(xform);
+        double x0 = xform.x0();
+
+        // Few enough at a time that no full adjustment is run, 60 m is 20 standard deviations
+        for (int round = 0; round < 10; ++round) {
+            Transform.Observation o = position(xform, 60);
+            observations.add(o);
+            xform.addObservation(o);
+            assertTrue(xform.update());
+        }
+
+        // With weight 1 each error would move x0 by about 0.4 m, until the moves add up to
+        // RELINEARIZE_DISTANCE and a full adjustment is run
+        assertEquals(x0, xform.x0(), 0.1);
+        assertTrue(full.adjust(new ArrayList<>(observations)));
+        assertAgree(full, xform);
+    }
+
+    /**
+     * Assert that the parameters agree within their estimated standard deviations
+     */
+    private static void assertAgree(Transform expected, Transform actual) {
+        assertEquals(expected.x0(), actual.x0(), Math.sqrt(expected.xySigma2()));
+        assertEquals(expected.y0(), actual.y0(), Math.sqrt(expected.xySigma2()));
+        assertEquals(expected.z0(), actual.z0(), Math.sqrt(expected.zSigma2()));
+        assertEquals(expected.az(), actual.az(), Math.sqrt(expected.azSigma2()));
+    }
+}